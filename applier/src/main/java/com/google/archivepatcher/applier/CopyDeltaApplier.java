@@ -0,0 +1,110 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An implementation of {@link DeltaApplier} that copies a range of the old blob verbatim, for work
+ * ranges of the new blob that are unchanged. There is no delta to read; the range is transferred
+ * with {@link FileChannel#transferTo(long, long, WritableByteChannel)} when the target is a file,
+ * which the operating system can perform without copying the bytes through the Java heap, and read
+ * straight into a single buffer that is written to the target otherwise.
+ */
+public class CopyDeltaApplier implements DeltaApplier {
+  /** The maximum size of the buffer to copy a range through when the target isn't a file. */
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  /** The range of the old blob to copy. */
+  private final TypedRange<Void> oldRange;
+
+  /**
+   * Creates an applier that copies the specified range of the old blob.
+   *
+   * @param oldRange the range to copy
+   */
+  public CopyDeltaApplier(TypedRange<Void> oldRange) {
+    this.oldRange = oldRange;
+  }
+
+  @Override
+  public void applyDelta(File oldBlob, InputStream deltaIn, OutputStream newBlobOut)
+      throws IOException {
+    if (newBlobOut instanceof FileOutputStream) {
+      // Don't close this channel, as it would close the stream that we don't own.
+      @SuppressWarnings("resource")
+      FileChannel newBlobChannel = ((FileOutputStream) newBlobOut).getChannel();
+      transferTo(oldBlob, newBlobChannel);
+      return;
+    }
+    // Transferring to a channel over any other stream would copy the bytes through a direct buffer
+    // and then through a heap buffer of the channel, so read them straight into one heap buffer.
+    try (RandomAccessFile oldBlobRaf = new RandomAccessFile(oldBlob, "r")) {
+      if (oldRange.getOffset() > oldBlobRaf.length() - oldRange.getLength()) {
+        throw new PatchFormatException("Old blob is shorter than the copy range " + oldRange);
+      }
+      oldBlobRaf.seek(oldRange.getOffset());
+      byte[] buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, oldRange.getLength())];
+      long remaining = oldRange.getLength();
+      while (remaining > 0) {
+        int numToRead = (int) Math.min(buffer.length, remaining);
+        oldBlobRaf.readFully(buffer, 0, numToRead);
+        newBlobOut.write(buffer, 0, numToRead);
+        remaining -= numToRead;
+      }
+    }
+  }
+
+  @Override
+  public void applyDelta(byte[] oldBlob, InputStream deltaIn, OutputStream newBlobOut)
+      throws IOException {
+    if (oldRange.getOffset() > oldBlob.length - oldRange.getLength()) {
+      throw new PatchFormatException("Old blob is shorter than the copy range " + oldRange);
+    }
+    newBlobOut.write(oldBlob, (int) oldRange.getOffset(), (int) oldRange.getLength());
+  }
+
+  /**
+   * Copies the range of the old blob to the specified channel, at its current position if it has
+   * one.
+   *
+   * @param oldBlob the old blob
+   * @param target the channel to write to
+   * @throws IOException if the old blob is shorter than the range, or if unable to read or write
+   */
+  public void transferTo(File oldBlob, WritableByteChannel target) throws IOException {
+    try (RandomAccessFile oldBlobRaf = new RandomAccessFile(oldBlob, "r")) {
+      FileChannel oldBlobChannel = oldBlobRaf.getChannel();
+      long position = oldRange.getOffset();
+      long end = oldRange.getOffset() + oldRange.getLength();
+      while (position < end) {
+        // transferTo may transfer fewer bytes than requested, but none only at the end of the file.
+        long transferred = oldBlobChannel.transferTo(position, end - position, target);
+        if (transferred <= 0) {
+          throw new PatchFormatException("Old blob is shorter than the copy range " + oldRange);
+        }
+        position += transferred;
+      }
+    }
+  }
+}
@@ -15,6 +15,7 @@
 package com.google.archivepatcher.applier;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -33,4 +34,29 @@ public interface DeltaApplier {
    */
   public void applyDelta(File oldBlob, InputStream deltaIn, OutputStream newBlobOut)
       throws IOException;
+
+  /**
+   * Applies a delta from deltaIn to oldBlob, which is held in memory, and writes the result to
+   * newBlobOut. The default implementation writes oldBlob to a temp file and applies the delta to
+   * it with {@link #applyDelta(File, InputStream, OutputStream)}; implementations should override
+   * it to read oldBlob directly. It may be called on several threads at the same time with the same
+   * oldBlob, which must not be modified.
+   *
+   * @param oldBlob the old blob
+   * @param deltaIn the delta to apply to the oldBlob
+   * @param newBlobOut the stream to write the result to
+   * @throws IOException in the event of an I/O error reading the input or writing the output
+   */
+  public default void applyDelta(byte[] oldBlob, InputStream deltaIn, OutputStream newBlobOut)
+      throws IOException {
+    File oldBlobFile = File.createTempFile("deltaapplier", "old");
+    try {
+      try (FileOutputStream oldBlobOut = new FileOutputStream(oldBlobFile)) {
+        oldBlobOut.write(oldBlob);
+      }
+      applyDelta(oldBlobFile, deltaIn, newBlobOut);
+    } finally {
+      oldBlobFile.delete();
+    }
+  }
 }
@@ -15,13 +15,33 @@
 package com.google.archivepatcher.applier;
 
 import com.google.archivepatcher.applier.bsdiff.BsDiffDeltaApplier;
+import com.google.archivepatcher.applier.gdiff.GdiffDeltaApplier;
+import com.google.archivepatcher.shared.CountingOutputStream;
 import com.google.archivepatcher.shared.DeltaFriendlyFile;
+import com.google.archivepatcher.shared.Futures;
 import com.google.archivepatcher.shared.IDeflater;
+import com.google.archivepatcher.shared.PatchConstants;
+import com.google.archivepatcher.shared.RandomAccessFileInputStream;
 import com.google.archivepatcher.shared.RandomAccessFileOutputStream;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.BiFunction;
 import java.util.zip.Deflater;
 
@@ -35,12 +55,26 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
    */
   private static final int DEFAULT_COPY_BUFFER_SIZE = 32768;
 
+  /** The maximum size of a blob that can be held in a byte array. */
+  private static final long MAX_IN_MEMORY_BLOB_SIZE = Integer.MAX_VALUE - 8;
+
   /**
    * The temp directory to use.
    */
   private final File tempDir;
   private final BiFunction<Integer, Boolean, IDeflater> deflaterFactory;
 
+  /**
+   * The maximum number of threads to apply the deltas of a patch with several delta records on.
+   */
+  private final int threadCount;
+
+  /**
+   * The maximum size of the delta-friendly blobs for applying a patch in memory, without any temp
+   * files.
+   */
+  private final long inMemoryThresholdBytes;
+
   /**
    * Creates a new delta applier that will use the default temp directory for working files. This is
    * equivalent to calling {@link #FileByFileV1DeltaApplier(File, BiFunction)}
@@ -51,22 +85,79 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
   }
 
   /**
-   * Creates a new delta applier that will use the specified temp directory.
+   * Creates a new delta applier that will use the specified temp directory, and that applies the
+   * deltas of patches with several delta records on as many threads as there are processors.
    *
    * @param tempDir a temp directory where the delta-friendly old blob can be written during the
    *     patch application process; if null, the system's default temporary directory is used
    */
   public FileByFileV1DeltaApplier(File tempDir, BiFunction<Integer, Boolean, IDeflater> deflaterFactory) {
+    this(tempDir, deflaterFactory, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a new delta applier that will use the specified temp directory, and that applies the
+   * deltas of patches with several delta records on up to the specified number of threads.
+   *
+   * @param tempDir a temp directory where the delta-friendly old blob can be written during the
+   *     patch application process; if null, the system's default temporary directory is used
+   * @param threadCount the maximum number of threads to apply deltas on, at least 1
+   */
+  public FileByFileV1DeltaApplier(
+      File tempDir, BiFunction<Integer, Boolean, IDeflater> deflaterFactory, int threadCount) {
+    this(tempDir, deflaterFactory, threadCount, 0);
+  }
+
+  /**
+   * Creates a new delta applier like {@link #FileByFileV1DeltaApplier(File, BiFunction, int)} that
+   * applies patches whose delta-friendly old and new blobs are both no larger than the specified
+   * threshold entirely in memory. The delta-friendly old blob is then held in a byte array rather
+   * than written to a temp file, and the deltas of patches with several delta records are applied
+   * concurrently without temp files too. This saves creating, writing, syncing and deleting temp
+   * files, which dominates the time to apply patches to small archives, at the cost of heap space
+   * for both blobs; larger patches are applied with temp files as usual.
+   *
+   * @param tempDir a temp directory where the delta-friendly old blob can be written during the
+   *     patch application process; if null, the system's default temporary directory is used
+   * @param threadCount the maximum number of threads to apply deltas on, at least 1
+   * @param inMemoryThresholdBytes the maximum size of the delta-friendly blobs for applying a patch
+   *     in memory, or 0 to always use temp files
+   */
+  public FileByFileV1DeltaApplier(
+      File tempDir,
+      BiFunction<Integer, Boolean, IDeflater> deflaterFactory,
+      int threadCount,
+      long inMemoryThresholdBytes) {
+    if (threadCount < 1) {
+      throw new IllegalArgumentException("Unsupported thread count: " + threadCount);
+    }
+    if (inMemoryThresholdBytes < 0) {
+      throw new IllegalArgumentException(
+          "Unsupported in-memory threshold: " + inMemoryThresholdBytes);
+    }
     if (tempDir == null) {
       tempDir = new File(System.getProperty("java.io.tmpdir"));
     }
     this.tempDir = tempDir;
     this.deflaterFactory = deflaterFactory;
+    this.threadCount = threadCount;
+    this.inMemoryThresholdBytes = Math.min(inMemoryThresholdBytes, MAX_IN_MEMORY_BLOB_SIZE);
   }
 
   @Override
   public void applyDelta(File oldBlob, InputStream deltaIn, OutputStream newBlobOut)
       throws IOException {
+    // First, read the patch plan from the patch stream.
+    PatchReader patchReader = new PatchReader();
+    PatchApplyPlan plan = patchReader.readPatchApplyPlan(deltaIn);
+    List<DeltaDescriptor> descriptors = plan.getDeltaDescriptors();
+    TypedRange<Void> lastNewRange =
+        descriptors.get(descriptors.size() - 1).getDeltaFriendlyNewFileRange();
+    if (plan.getDeltaFriendlyOldFileSize() <= inMemoryThresholdBytes
+        && lastNewRange.getOffset() + lastNewRange.getLength() <= inMemoryThresholdBytes) {
+      applyDeltaInMemory(plan, oldBlob, deltaIn, newBlobOut);
+      return;
+    }
     if (!tempDir.exists()) {
       // Be nice, try to create the temp directory. Don't bother to check return value as the code
       // will fail when it tries to create the file in a few more lines anyways.
@@ -74,7 +165,7 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
     }
     File tempFile = File.createTempFile("gfbfv1", "old", tempDir);
     try {
-      applyDeltaInternal(oldBlob, tempFile, deltaIn, newBlobOut);
+      applyDeltaInternal(plan, oldBlob, tempFile, deltaIn, newBlobOut);
     } finally {
       tempFile.delete();
     }
@@ -82,28 +173,63 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
 
   /**
    * Does the work for applying a delta.
+   * @param plan the plan read from the patch stream
    * @param oldBlob the old blob
    * @param deltaFriendlyOldBlob the location in which to store the delta-friendly old blob
-   * @param deltaIn the patch stream
+   * @param deltaIn the patch stream, positioned at the first byte of the first delta
    * @param newBlobOut the stream to write the new blob to after applying the delta
    * @throws IOException if anything goes wrong
    */
   private void applyDeltaInternal(
-      File oldBlob, File deltaFriendlyOldBlob, InputStream deltaIn, OutputStream newBlobOut)
+      PatchApplyPlan plan,
+      File oldBlob,
+      File deltaFriendlyOldBlob,
+      InputStream deltaIn,
+      OutputStream newBlobOut)
       throws IOException {
-
-    // First, read the patch plan from the patch stream.
-    PatchReader patchReader = new PatchReader();
-    PatchApplyPlan plan = patchReader.readPatchApplyPlan(deltaIn);
     writeDeltaFriendlyOldBlob(plan, oldBlob, deltaFriendlyOldBlob);
-    // Apply the delta. In v1 there is always exactly one delta descriptor, it is bsdiff, and it
-    // takes up the rest of the patch stream - so there is no need to examine the list of
-    // DeltaDescriptors in the patch at all.
-    long deltaLength = plan.getDeltaDescriptors().get(0).getDeltaLength();
-    DeltaApplier deltaApplier = getDeltaApplier();
-    // Don't close this stream, as it is just a limiting wrapper.
+    // Don't close this stream, as it would close the underlying OutputStream (that we don't own).
     @SuppressWarnings("resource")
-    LimitedInputStream limitedDeltaIn = new LimitedInputStream(deltaIn, deltaLength);
+    PartiallyCompressingOutputStream recompressingNewBlobOut =
+        new PartiallyCompressingOutputStream(
+            plan.getDeltaFriendlyNewFileRecompressionPlan(),
+            newBlobOut,
+            DEFAULT_COPY_BUFFER_SIZE,
+            deflaterFactory);
+    if (isConcurrent(plan)) {
+      applyDeltasConcurrently(plan, deltaFriendlyOldBlob, deltaIn, recompressingNewBlobOut);
+    } else {
+      applyDeltasInOrder(
+          plan,
+          (deltaApplier, recordDeltaIn, newRangeOut) ->
+              deltaApplier.applyDelta(deltaFriendlyOldBlob, recordDeltaIn, newRangeOut),
+          deltaIn,
+          recompressingNewBlobOut);
+    }
+    recompressingNewBlobOut.flush();
+  }
+
+  /**
+   * Does the work for applying a delta like {@link #applyDeltaInternal(PatchApplyPlan, File, File,
+   * InputStream, OutputStream)}, but with the delta-friendly old blob held in memory.
+   * @param plan the plan read from the patch stream
+   * @param oldBlob the old blob
+   * @param deltaIn the patch stream, positioned at the first byte of the first delta
+   * @param newBlobOut the stream to write the new blob to after applying the delta
+   * @throws IOException if anything goes wrong
+   */
+  private void applyDeltaInMemory(
+      PatchApplyPlan plan, File oldBlob, InputStream deltaIn, OutputStream newBlobOut)
+      throws IOException {
+    ByteArrayOutputStream deltaFriendlyOldBlobOut =
+        new ByteArrayOutputStream((int) plan.getDeltaFriendlyOldFileSize());
+    DeltaFriendlyFile.generateDeltaFriendlyFile(
+        plan.getOldFileUncompressionPlan(),
+        oldBlob,
+        deltaFriendlyOldBlobOut,
+        false,
+        DEFAULT_COPY_BUFFER_SIZE);
+    final byte[] deltaFriendlyOldBlob = deltaFriendlyOldBlobOut.toByteArray();
     // Don't close this stream, as it would close the underlying OutputStream (that we don't own).
     @SuppressWarnings("resource")
     PartiallyCompressingOutputStream recompressingNewBlobOut =
@@ -112,10 +238,331 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
             newBlobOut,
             DEFAULT_COPY_BUFFER_SIZE,
             deflaterFactory);
-    deltaApplier.applyDelta(deltaFriendlyOldBlob, limitedDeltaIn, recompressingNewBlobOut);
+    if (isConcurrent(plan)) {
+      applyDeltasConcurrentlyInMemory(plan, deltaFriendlyOldBlob, deltaIn, recompressingNewBlobOut);
+    } else {
+      applyDeltasInOrder(
+          plan,
+          (deltaApplier, recordDeltaIn, newRangeOut) ->
+              deltaApplier.applyDelta(deltaFriendlyOldBlob, recordDeltaIn, newRangeOut),
+          deltaIn,
+          recompressingNewBlobOut);
+    }
     recompressingNewBlobOut.flush();
   }
 
+  /** Applies a delta to the delta-friendly old blob, wherever that is held. */
+  private interface OldBlobDeltaApplier {
+    void applyDelta(DeltaApplier deltaApplier, InputStream deltaIn, OutputStream newBlobOut)
+        throws IOException;
+  }
+
+  /**
+   * Returns whether the deltas of a patch are applied concurrently, which takes more than one
+   * thread and more than one delta that is not a copy.
+   * @param plan the plan read from the patch stream
+   * @return as described
+   */
+  private boolean isConcurrent(PatchApplyPlan plan) {
+    int deltaCount = 0;
+    for (DeltaDescriptor descriptor : plan.getDeltaDescriptors()) {
+      if (descriptor.getFormat() != PatchConstants.DeltaFormat.COPY) {
+        deltaCount++;
+      }
+    }
+    return threadCount > 1 && deltaCount > 1;
+  }
+
+  /**
+   * Applies the deltas of a patch in order, straight from the patch stream. Without the flag for
+   * several delta records there is exactly one delta descriptor, and its delta takes up the rest of
+   * the patch stream.
+   * @param plan the plan read from the patch stream
+   * @param oldBlobDeltaApplier applies each delta to the delta-friendly old blob
+   * @param deltaIn the patch stream, positioned at the first byte of the first delta
+   * @param deltaFriendlyNewBlobOut the stream to write the delta-friendly new blob to
+   * @throws IOException if anything goes wrong
+   */
+  private void applyDeltasInOrder(
+      PatchApplyPlan plan,
+      OldBlobDeltaApplier oldBlobDeltaApplier,
+      InputStream deltaIn,
+      OutputStream deltaFriendlyNewBlobOut)
+      throws IOException {
+    List<DeltaDescriptor> descriptors = plan.getDeltaDescriptors();
+    for (int i = 0; i < descriptors.size(); i++) {
+      DeltaDescriptor descriptor = descriptors.get(i);
+      if (descriptors.size() > 1) {
+        checkDeltaFriendlyOldFileRange(plan, descriptor);
+      }
+      long deltaLength = descriptor.getDeltaLength();
+      DeltaApplier deltaApplier = getDeltaApplier(descriptor);
+      // Don't close these streams, as they are just wrappers.
+      @SuppressWarnings("resource")
+      LimitedInputStream limitedDeltaIn = new LimitedInputStream(deltaIn, deltaLength);
+      @SuppressWarnings("resource")
+      CountingOutputStream newRangeOut = new CountingOutputStream(deltaFriendlyNewBlobOut);
+      oldBlobDeltaApplier.applyDelta(deltaApplier, limitedDeltaIn, newRangeOut);
+      if (descriptors.size() > 1) {
+        checkDeltaOutputLength(descriptor, newRangeOut.getNumBytesWritten());
+        if (limitedDeltaIn.read() >= 0) {
+          throw new PatchFormatException("Delta " + i + " is longer than it was applied");
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks that a delta is against the whole delta-friendly old file, or that it is a copy, whose
+   * range has been checked by the reader.
+   * @param plan the plan read from the patch stream
+   * @param descriptor the descriptor of the delta
+   * @throws PatchFormatException if the delta is against a part of the delta-friendly old file
+   */
+  private static void checkDeltaFriendlyOldFileRange(
+      PatchApplyPlan plan, DeltaDescriptor descriptor) throws PatchFormatException {
+    TypedRange<Void> oldRange = descriptor.getDeltaFriendlyOldFileRange();
+    if (descriptor.getFormat() != PatchConstants.DeltaFormat.COPY
+        && (oldRange.getOffset() != 0
+            || oldRange.getLength() != plan.getDeltaFriendlyOldFileSize())) {
+      throw new PatchFormatException("Unsupported delta-friendly old file work range: " + oldRange);
+    }
+  }
+
+  /**
+   * Checks that a delta produced exactly its work range of the delta-friendly new file.
+   * @param descriptor the descriptor of the delta
+   * @param numBytesWritten the number of bytes that the delta produced
+   * @throws PatchFormatException if the delta produced more or fewer bytes
+   */
+  private static void checkDeltaOutputLength(DeltaDescriptor descriptor, long numBytesWritten)
+      throws PatchFormatException {
+    TypedRange<Void> newRange = descriptor.getDeltaFriendlyNewFileRange();
+    if (numBytesWritten != newRange.getLength()) {
+      throw new PatchFormatException(
+          "Delta produced "
+              + numBytesWritten
+              + " bytes for a work range of "
+              + newRange.getLength());
+    }
+  }
+
+  /**
+   * Applies the deltas of a patch with several delta records. The deltas are copied from the patch
+   * stream to a temp file, and then applied on up to {@link #threadCount} threads, each writing its
+   * work range of a temp delta-friendly new blob, which is finally copied to the specified stream.
+   * @param plan the plan read from the patch stream
+   * @param deltaFriendlyOldBlob the delta-friendly old blob
+   * @param deltaIn the patch stream, positioned at the first byte of the first delta
+   * @param deltaFriendlyNewBlobOut the stream to write the delta-friendly new blob to
+   * @throws IOException if anything goes wrong
+   */
+  private void applyDeltasConcurrently(
+      PatchApplyPlan plan,
+      final File deltaFriendlyOldBlob,
+      InputStream deltaIn,
+      OutputStream deltaFriendlyNewBlobOut)
+      throws IOException {
+    List<DeltaDescriptor> descriptors = plan.getDeltaDescriptors();
+    final File deltasFile = File.createTempFile("gfbfv1", "delta", tempDir);
+    final File deltaFriendlyNewBlob = File.createTempFile("gfbfv1", "new", tempDir);
+    ExecutorService executor = null;
+    try {
+      // The deltas follow each other in the patch stream, so copy them where every thread can read
+      // its own.
+      long[] deltaOffsets = new long[descriptors.size()];
+      long deltasLength = 0;
+      try (FileOutputStream deltasOut = new FileOutputStream(deltasFile)) {
+        for (int i = 0; i < descriptors.size(); i++) {
+          DeltaDescriptor descriptor = descriptors.get(i);
+          checkDeltaFriendlyOldFileRange(plan, descriptor);
+          deltaOffsets[i] = deltasLength;
+          // Don't close this stream, as it is just a limiting wrapper.
+          @SuppressWarnings("resource")
+          LimitedInputStream limitedDeltaIn =
+              new LimitedInputStream(deltaIn, descriptor.getDeltaLength());
+          if (copy(limitedDeltaIn, deltasOut) != descriptor.getDeltaLength()) {
+            throw new PatchFormatException("Truncated delta " + i);
+          }
+          deltasLength += descriptor.getDeltaLength();
+        }
+      }
+      TypedRange<Void> lastNewRange =
+          descriptors.get(descriptors.size() - 1).getDeltaFriendlyNewFileRange();
+      try (RandomAccessFile newBlobRaf = new RandomAccessFile(deltaFriendlyNewBlob, "rw")) {
+        newBlobRaf.setLength(lastNewRange.getOffset() + lastNewRange.getLength());
+      }
+
+      executor = Executors.newFixedThreadPool(Math.min(threadCount, descriptors.size()));
+      List<Future<Void>> results = new ArrayList<Future<Void>>(descriptors.size());
+      for (int i = 0; i < descriptors.size(); i++) {
+        final DeltaDescriptor descriptor = descriptors.get(i);
+        final long deltaOffset = deltaOffsets[i];
+        results.add(
+            executor.submit(
+                () -> {
+                  applyDelta(
+                      descriptor,
+                      deltaFriendlyOldBlob,
+                      deltasFile,
+                      deltaOffset,
+                      deltaFriendlyNewBlob);
+                  return null;
+                }));
+      }
+      for (Future<Void> result : results) {
+        getResult(result);
+      }
+
+      try (FileInputStream newBlobIn = new FileInputStream(deltaFriendlyNewBlob)) {
+        copy(newBlobIn, deltaFriendlyNewBlobOut);
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+      deltasFile.delete();
+      deltaFriendlyNewBlob.delete();
+    }
+  }
+
+  /**
+   * Applies the deltas of a patch with several delta records to a delta-friendly old blob in
+   * memory. The deltas are read from the patch stream into memory, and then applied on up to {@link
+   * #threadCount} threads, each writing its work range of the delta-friendly new blob to memory,
+   * from where the ranges are finally copied to the specified stream in order.
+   * @param plan the plan read from the patch stream
+   * @param deltaFriendlyOldBlob the delta-friendly old blob
+   * @param deltaIn the patch stream, positioned at the first byte of the first delta
+   * @param deltaFriendlyNewBlobOut the stream to write the delta-friendly new blob to
+   * @throws IOException if anything goes wrong
+   */
+  private void applyDeltasConcurrentlyInMemory(
+      PatchApplyPlan plan,
+      final byte[] deltaFriendlyOldBlob,
+      InputStream deltaIn,
+      OutputStream deltaFriendlyNewBlobOut)
+      throws IOException {
+    List<DeltaDescriptor> descriptors = plan.getDeltaDescriptors();
+    List<byte[]> deltas = new ArrayList<byte[]>(descriptors.size());
+    // Don't close this stream, as it would close the patch stream that we don't own.
+    @SuppressWarnings("resource")
+    DataInputStream dataDeltaIn = new DataInputStream(deltaIn);
+    for (int i = 0; i < descriptors.size(); i++) {
+      DeltaDescriptor descriptor = descriptors.get(i);
+      checkDeltaFriendlyOldFileRange(plan, descriptor);
+      if (descriptor.getDeltaLength() > MAX_IN_MEMORY_BLOB_SIZE) {
+        throw new PatchFormatException("Delta " + i + " is too long to hold in memory");
+      }
+      byte[] delta = new byte[(int) descriptor.getDeltaLength()];
+      dataDeltaIn.readFully(delta);
+      deltas.add(delta);
+    }
+
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(threadCount, descriptors.size()));
+    try {
+      List<Future<ByteArrayOutputStream>> results =
+          new ArrayList<Future<ByteArrayOutputStream>>(descriptors.size());
+      for (int i = 0; i < descriptors.size(); i++) {
+        final DeltaDescriptor descriptor = descriptors.get(i);
+        final byte[] delta = deltas.get(i);
+        results.add(
+            executor.submit(
+                () -> {
+                  ByteArrayOutputStream newRangeOut =
+                      new ByteArrayOutputStream(
+                          (int) descriptor.getDeltaFriendlyNewFileRange().getLength());
+                  getDeltaApplier(descriptor)
+                      .applyDelta(
+                          deltaFriendlyOldBlob, new ByteArrayInputStream(delta), newRangeOut);
+                  checkDeltaOutputLength(descriptor, newRangeOut.size());
+                  return newRangeOut;
+                }));
+      }
+      for (Future<ByteArrayOutputStream> result : results) {
+        getResult(result).writeTo(deltaFriendlyNewBlobOut);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Waits for a delta that is applied on the executor and returns its result.
+   * @param result the result of applying the delta
+   * @return the value of the result
+   * @throws IOException if applying the delta threw it, or if interrupted while waiting
+   */
+  private static <T> T getResult(Future<T> result) throws IOException {
+    try {
+      return Futures.get(result);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while applying deltas");
+    }
+  }
+
+  /**
+   * Applies one of several deltas, writing its work range of the delta-friendly new blob.
+   * @param descriptor the descriptor of the delta
+   * @param deltaFriendlyOldBlob the delta-friendly old blob
+   * @param deltasFile the file that the deltas were copied to
+   * @param deltaOffset the offset of the delta in that file
+   * @param deltaFriendlyNewBlob the delta-friendly new blob, already of its full length
+   * @throws IOException if anything goes wrong
+   */
+  private void applyDelta(
+      DeltaDescriptor descriptor,
+      File deltaFriendlyOldBlob,
+      File deltasFile,
+      long deltaOffset,
+      File deltaFriendlyNewBlob)
+      throws IOException {
+    DeltaApplier deltaApplier = getDeltaApplier(descriptor);
+    TypedRange<Void> newRange = descriptor.getDeltaFriendlyNewFileRange();
+    if (deltaApplier instanceof CopyDeltaApplier) {
+      // Copies go from channel to channel, without passing through a stream.
+      try (RandomAccessFile newBlobRaf = new RandomAccessFile(deltaFriendlyNewBlob, "rw")) {
+        newBlobRaf.seek(newRange.getOffset());
+        ((CopyDeltaApplier) deltaApplier)
+            .transferTo(deltaFriendlyOldBlob, newBlobRaf.getChannel());
+      }
+      return;
+    }
+    try (RandomAccessFileInputStream recordDeltaIn =
+            new RandomAccessFileInputStream(deltasFile, deltaOffset, descriptor.getDeltaLength());
+        RandomAccessFile newBlobRaf = new RandomAccessFile(deltaFriendlyNewBlob, "rw")) {
+      // The channel writes at the position of the file, so each delta writes its own range.
+      newBlobRaf.seek(newRange.getOffset());
+      CountingOutputStream newRangeOut =
+          new CountingOutputStream(
+              new BufferedOutputStream(
+                  Channels.newOutputStream(newBlobRaf.getChannel()), DEFAULT_COPY_BUFFER_SIZE));
+      deltaApplier.applyDelta(deltaFriendlyOldBlob, recordDeltaIn, newRangeOut);
+      newRangeOut.flush();
+      checkDeltaOutputLength(descriptor, newRangeOut.getNumBytesWritten());
+    }
+  }
+
+  /**
+   * Copies the rest of a stream to another.
+   * @param in the stream to copy from
+   * @param out the stream to copy to
+   * @return the number of bytes copied
+   * @throws IOException if anything goes wrong
+   */
+  private static long copy(InputStream in, OutputStream out) throws IOException {
+    byte[] buffer = new byte[DEFAULT_COPY_BUFFER_SIZE];
+    long numCopied = 0;
+    int numRead;
+    while ((numRead = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, numRead);
+      numCopied += numRead;
+    }
+    return numCopied;
+  }
+
   /**
    * Writes the delta-friendly old blob to temporary storage.
    * @param plan the plan to use for uncompressing
@@ -146,8 +593,28 @@ public class FileByFileV1DeltaApplier implements DeltaApplier {
   }
 
   /**
-   * Return an instance of a {@link DeltaApplier} suitable for applying the deltas within the patch
-   * stream.
+   * Return an instance of a {@link DeltaApplier} suitable for applying the delta described by the
+   * specified descriptor.
+   * @param descriptor the descriptor of the delta
+   * @return the applier
+   * @throws PatchFormatException if the format of the delta is not supported
+   */
+  private DeltaApplier getDeltaApplier(DeltaDescriptor descriptor) throws PatchFormatException {
+    switch (descriptor.getFormat()) {
+      case BSDIFF:
+        return getDeltaApplier();
+      case GDIFF:
+        return new GdiffDeltaApplier(descriptor.getDeltaFriendlyNewFileRange().getLength());
+      case COPY:
+        return new CopyDeltaApplier(descriptor.getDeltaFriendlyOldFileRange());
+      default:
+        throw new PatchFormatException("Unsupported delta format: " + descriptor.getFormat());
+    }
+  }
+
+  /**
+   * Return an instance of a {@link DeltaApplier} suitable for applying bsdiff deltas within the
+   * patch stream.
    * @return the applier
    */
   // Visible for testing only
@@ -36,7 +36,8 @@ public class PatchReader {
    * of delta bytes, and returns a {@link PatchApplyPlan} that describes all the operations that
    * need to be performed in order to apply the patch. When this method returns, the stream is
    * positioned so that the next read will be the first byte of delta bytes corresponding to the
-   * first {@link DeltaDescriptor} in the returned plan.
+   * first {@link DeltaDescriptor} in the returned plan; the deltas of the other descriptors follow
+   * it in order.
    * @param in the stream to read from
    * @return the plan for applying the patch
    * @throws IOException if anything goes wrong
@@ -55,7 +56,11 @@ public class PatchReader {
     if (!Arrays.equals(expectedIdentifier, actualIdentifier)) {
       throw new PatchFormatException("Bad identifier");
     }
-    dataIn.skip(4); // Flags (ignored in v1)
+    int flags = dataIn.readInt();
+    if ((flags & ~PatchConstants.FLAG_MULTIPLE_DELTA_RECORDS) != 0) {
+      throw new PatchFormatException("Unsupported flags: " + flags);
+    }
+    boolean multipleDeltaRecords = (flags & PatchConstants.FLAG_MULTIPLE_DELTA_RECORDS) != 0;
     long deltaFriendlyOldFileSize = checkNonNegative(
         dataIn.readLong(), "delta-friendly old file size");
 
@@ -115,16 +120,26 @@ public class PatchReader {
     }
 
     // Read the delta metadata, but stop before the first byte of the actual delta.
-    // V1 has exactly one delta and it must be bsdiff.
-    int numDeltaRecords = (int) checkRange(dataIn.readInt(), 1, 1, "num delta records");
+    // V1 has exactly one delta unless the patch is flagged to have several, and every delta must be
+    // bsdiff, gdiff or a verbatim copy.
+    int numDeltaRecords =
+        (int)
+            checkRange(
+                dataIn.readInt(),
+                1,
+                multipleDeltaRecords ? Integer.MAX_VALUE : 1,
+                "num delta records");
 
-    List<DeltaDescriptor> deltaDescriptors = new ArrayList<DeltaDescriptor>(numDeltaRecords);
+    List<DeltaDescriptor> deltaDescriptors =
+        new ArrayList<DeltaDescriptor>(Math.min(numDeltaRecords, 1024));
+    // With several deltas, their work ranges in the new file must be contiguous and in order.
+    long expectedNewFileWorkRangeOffset = 0;
     for (int x = 0; x < numDeltaRecords; x++) {
       byte deltaFormatByte = (byte)
       checkRange(
           dataIn.readByte(),
           PatchConstants.DeltaFormat.BSDIFF.patchValue,
-          PatchConstants.DeltaFormat.BSDIFF.patchValue,
+          PatchConstants.DeltaFormat.COPY.patchValue,
           "delta format");
       long deltaFriendlyOldFileWorkRangeOffset = checkNonNegative(
           dataIn.readLong(), "delta-friendly old file work range offset");
@@ -134,7 +149,27 @@ public class PatchReader {
           dataIn.readLong(), "delta-friendly new file work range offset");
       long deltaFriendlyNewFileWorkRangeLength = checkNonNegative(
           dataIn.readLong(), "delta-friendly new file work range length");
+      if (multipleDeltaRecords) {
+        if (deltaFriendlyNewFileWorkRangeOffset != expectedNewFileWorkRangeOffset) {
+          throw new PatchFormatException(
+              "delta-friendly new file work ranges not contiguous or out of order");
+        }
+        expectedNewFileWorkRangeOffset =
+            deltaFriendlyNewFileWorkRangeOffset + deltaFriendlyNewFileWorkRangeLength;
+      }
       long deltaLength = checkNonNegative(dataIn.readLong(), "delta length");
+      if (deltaFormatByte == PatchConstants.DeltaFormat.COPY.patchValue) {
+        // A copy has no delta, and its work ranges are the same length and within the files.
+        if (deltaLength != 0) {
+          throw new PatchFormatException("Bad value for copy delta length: " + deltaLength);
+        }
+        if (deltaFriendlyOldFileWorkRangeLength != deltaFriendlyNewFileWorkRangeLength
+            || deltaFriendlyOldFileWorkRangeLength
+                > deltaFriendlyOldFileSize - deltaFriendlyOldFileWorkRangeOffset) {
+          throw new PatchFormatException(
+              "copy work ranges differ in length or exceed the old file");
+        }
+      }
       DeltaDescriptor descriptor =
           new DeltaDescriptor(
               PatchConstants.DeltaFormat.fromPatchValue(deltaFormatByte),
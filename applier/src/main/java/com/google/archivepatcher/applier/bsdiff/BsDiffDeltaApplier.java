@@ -42,4 +42,10 @@ public class BsDiffDeltaApplier implements DeltaApplier {
       }
     }
   }
+
+  @Override
+  public void applyDelta(byte[] oldBlob, InputStream deltaIn, OutputStream newBlobOut)
+      throws IOException {
+    BsPatch.applyPatch(oldBlob, newBlobOut, deltaIn, null);
+  }
 }
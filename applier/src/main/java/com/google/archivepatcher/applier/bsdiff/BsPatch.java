@@ -17,6 +17,9 @@ package com.google.archivepatcher.applier.bsdiff;
 import com.google.archivepatcher.applier.PatchFormatException;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -26,8 +29,9 @@ import java.util.logging.Logger;
 
 /**
  * A Java implementation of the "bspatch" algorithm based on the BSD-2 licensed source code
- * available here: https://github.com/mendsley/bsdiff. This implementation supports a maximum file
- * size of 2GB for all binaries involved (old, new and patch binaries).
+ * available here: https://github.com/mendsley/bsdiff. There is no limit on the size of the binaries
+ * involved (old, new and patch binaries), but the diff and copy lengths of a single entry are
+ * limited to 2GB.
  */
 public class BsPatch {
   /** If true, output verbose debugging information. */
@@ -89,7 +93,74 @@ public class BsPatch {
    * @throws IOException if unable to read or write any of the data
    */
   public static void applyPatch(
-      RandomAccessFile oldData, OutputStream newData, InputStream patchData, Long expectedNewSize)
+      final RandomAccessFile oldData,
+      OutputStream newData,
+      InputStream patchData,
+      Long expectedNewSize)
+      throws PatchFormatException, IOException {
+    applyPatch(
+        new OldData() {
+          @Override
+          public long length() throws IOException {
+            return oldData.length();
+          }
+
+          @Override
+          public DataInput seek(long offset) throws IOException {
+            oldData.seek(offset);
+            return oldData;
+          }
+        },
+        newData,
+        patchData,
+        expectedNewSize);
+  }
+
+  /**
+   * Applies a patch from |patchData| to the data in |oldData|, which is held in memory, writing the
+   * result to |newData| while verifying that the expectedSize is obtained.
+   *
+   * @param oldData data to which the patch should be applied
+   * @param newData stream to write the new artifact to
+   * @param patchData stream to read patch instructions from
+   * @param expectedNewSize the expected number of bytes in |newData| when patching completes. Can
+   *     be null in which case no expectedNewSize checks will be performed.
+   * @throws PatchFormatException if the patch stream is invalid
+   * @throws IOException if unable to read or write any of the data
+   */
+  public static void applyPatch(
+      final byte[] oldData, OutputStream newData, InputStream patchData, Long expectedNewSize)
+      throws PatchFormatException, IOException {
+    applyPatch(
+        new OldData() {
+          @Override
+          public long length() {
+            return oldData.length;
+          }
+
+          @Override
+          public DataInput seek(long offset) {
+            // The offset has been checked against the length.
+            return new DataInputStream(
+                new ByteArrayInputStream(oldData, (int) offset, oldData.length - (int) offset));
+          }
+        },
+        newData,
+        patchData,
+        expectedNewSize);
+  }
+
+  /** The old data, which is read sequentially from the offsets that the patch seeks to. */
+  private interface OldData {
+    /** Returns the length of the old data. */
+    long length() throws IOException;
+
+    /** Returns the old data, positioned at the specified offset. */
+    DataInput seek(long offset) throws IOException;
+  }
+
+  private static void applyPatch(
+      OldData oldData, OutputStream newData, InputStream patchData, Long expectedNewSize)
       throws PatchFormatException, IOException {
     patchData = new BufferedInputStream(patchData, PATCH_STREAM_BUFFER_SIZE);
     newData = new BufferedOutputStream(newData, OUTPUT_STREAM_BUFFER_SIZE);
@@ -100,9 +171,9 @@ public class BsPatch {
     }
   }
 
-  /** Does the work of the public applyPatch method. */
+  /** Does the work of the public applyPatch methods. */
   private static void applyPatchInternal(
-      final RandomAccessFile oldData,
+      final OldData oldData,
       final OutputStream newData,
       final InputStream patchData,
       final Long expectedNewSize)
@@ -121,11 +192,8 @@ public class BsPatch {
 
     // Sanity-check: ensure a-priori knowledge matches patch expectations
     final long oldSize = oldData.length();
-    if (oldSize > Integer.MAX_VALUE) {
-      throw new PatchFormatException("bad oldSize");
-    }
     final long newSize = readBsdiffLong(patchData);
-    if (newSize < 0 || newSize > Integer.MAX_VALUE) {
+    if (newSize < 0) {
       throw new PatchFormatException("bad newSize");
     }
     if (expectedNewSize != null && expectedNewSize != newSize) {
@@ -141,6 +209,9 @@ public class BsPatch {
     long newDataBytesWritten = 0; // monotonically increases from 0 .. |expectedNewSize|
     int numDirectives = 0; // only used for debugging output
 
+    // Jumps can span the whole of |oldData|, which may be larger than an int can address.
+    final long maxOffsetToNextInput = Math.max(oldSize, Integer.MAX_VALUE);
+
     while (newDataBytesWritten < newSize) {
       // Read "control data" for the operation. There are three values here:
       // 1. |diffSegmentLength| defines a number of "similar" bytes that can be transformed
@@ -184,7 +255,8 @@ public class BsPatch {
       if (copySegmentLength < 0 || copySegmentLength > Integer.MAX_VALUE) {
         throw new PatchFormatException("bad copySegmentLength");
       }
-      if (offsetToNextInput < Integer.MIN_VALUE || offsetToNextInput > Integer.MAX_VALUE) {
+      if (offsetToNextInput < -maxOffsetToNextInput - 1
+          || offsetToNextInput > maxOffsetToNextInput) {
         throw new PatchFormatException("bad offsetToNextInput");
       }
 
@@ -203,9 +275,14 @@ public class BsPatch {
       }
 
       // At this point everything is known to be sane, and the operations should all succeed.
-      oldData.seek(oldDataOffset);
       if (diffSegmentLength > 0) {
-        transformBytes((int) diffSegmentLength, patchData, oldData, newData, buffer1, buffer2);
+        transformBytes(
+            (int) diffSegmentLength,
+            patchData,
+            oldData.seek(oldDataOffset),
+            newData,
+            buffer1,
+            buffer2);
       }
       if (copySegmentLength > 0) {
         pipe(patchData, newData, buffer1, (int) copySegmentLength);
@@ -240,7 +317,7 @@ public class BsPatch {
   static void transformBytes(
       final int diffLength,
       final InputStream patchData,
-      final RandomAccessFile oldData,
+      final DataInput oldData,
       final OutputStream newData,
       final byte[] buffer1,
       final byte[] buffer2)
@@ -76,11 +76,68 @@ public class Gdiff {
    * @throws IOException on file I/O as well as when patch under/over run happens.
    */
   public static long patch(
-      RandomAccessFile inputFile,
+      final RandomAccessFile inputFile,
       InputStream patchFile,
       OutputStream output,
       long expectedOutputSize)
       throws IOException {
+    return patch(
+        (out, inputOffset, copyLength, buffer) -> {
+          try {
+            inputFile.seek(inputOffset);
+            while (copyLength > 0) {
+              int spanLength = (copyLength < COPY_BUFFER_SIZE) ? copyLength : COPY_BUFFER_SIZE;
+              inputFile.readFully(buffer, 0, spanLength);
+              out.write(buffer, 0, spanLength);
+              copyLength -= spanLength;
+            }
+          } catch (EOFException e) {
+            throw new IOException("patch underrun", e);
+          }
+        },
+        patchFile,
+        output,
+        expectedOutputSize);
+  }
+
+  /**
+   * Apply a patch to data held in memory, which is copied to the output without an intermediate
+   * buffer.
+   *
+   * @param input base data
+   * @param patchFile patch file
+   * @param output output stream to write the file to
+   * @param expectedOutputSize expected size of the output.
+   * @throws IOException on file I/O as well as when patch under/over run happens.
+   */
+  public static long patch(
+      final byte[] input, InputStream patchFile, OutputStream output, long expectedOutputSize)
+      throws IOException {
+    return patch(
+        (out, inputOffset, copyLength, buffer) -> {
+          if (inputOffset > input.length - copyLength) {
+            throw new IOException("patch underrun");
+          }
+          out.write(input, (int) inputOffset, copyLength);
+        },
+        patchFile,
+        output,
+        expectedOutputSize);
+  }
+
+  /** The original file, from which ranges are copied to the output. */
+  private interface Original {
+    /**
+     * Copies a range of the original file, whose offset and length are not negative, to the
+     * output, using the buffer if needed.
+     */
+    void copyTo(OutputStream out, long inputOffset, int copyLength, byte[] buffer)
+        throws IOException;
+  }
+
+  private static long patch(
+      Original inputFile, InputStream patchFile, OutputStream output, long expectedOutputSize)
+      throws IOException {
     byte[] buffer = new byte[COPY_BUFFER_SIZE];
     long outputSize = 0;
 
@@ -203,7 +260,7 @@ public class Gdiff {
   /** Copy a series of bytes from the input (original) file to the output file */
   private static void copyFromOriginal(
       byte[] buffer,
-      RandomAccessFile inputFile,
+      Original inputFile,
       OutputStream output,
       long inputOffset,
       int copyLength,
@@ -218,16 +275,6 @@ public class Gdiff {
     if (copyLength > maxCopyLength) {
       throw new IOException("Output length overrun");
     }
-    try {
-      inputFile.seek(inputOffset);
-      while (copyLength > 0) {
-        int spanLength = (copyLength < COPY_BUFFER_SIZE) ? copyLength : COPY_BUFFER_SIZE;
-        inputFile.readFully(buffer, 0, spanLength);
-        output.write(buffer, 0, spanLength);
-        copyLength -= spanLength;
-      }
-    } catch (EOFException e) {
-      throw new IOException("patch underrun", e);
-    }
+    inputFile.copyTo(output, inputOffset, copyLength, buffer);
   }
 }
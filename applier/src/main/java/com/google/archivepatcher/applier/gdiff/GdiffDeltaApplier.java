@@ -0,0 +1,65 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier.gdiff;
+
+import com.google.archivepatcher.applier.DeltaApplier;
+import com.google.archivepatcher.applier.PatchFormatException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * An implementation of {@link DeltaApplier} that uses {@link Gdiff} to apply a gdiff patch. Unlike
+ * bsdiff, which adds every byte of the patch to a byte of the old blob, gdiff copies whole ranges
+ * of the old blob and of the patch to the new blob, so applying it takes little more than the I/O.
+ */
+public class GdiffDeltaApplier implements DeltaApplier {
+  /** The expected size of the new blob. */
+  private final long expectedNewSize;
+
+  /**
+   * Creates an applier for patches that produce a new blob of the specified size.
+   *
+   * @param expectedNewSize the size of the new blob; patches that produce more or fewer bytes are
+   *     rejected
+   */
+  public GdiffDeltaApplier(long expectedNewSize) {
+    this.expectedNewSize = expectedNewSize;
+  }
+
+  @Override
+  public void applyDelta(File oldBlob, InputStream deltaIn, OutputStream newBlobOut)
+      throws IOException {
+    try (RandomAccessFile oldBlobRaf = new RandomAccessFile(oldBlob, "r")) {
+      checkNewSize(Gdiff.patch(oldBlobRaf, deltaIn, newBlobOut, expectedNewSize));
+    }
+  }
+
+  @Override
+  public void applyDelta(byte[] oldBlob, InputStream deltaIn, OutputStream newBlobOut)
+      throws IOException {
+    checkNewSize(Gdiff.patch(oldBlob, deltaIn, newBlobOut, expectedNewSize));
+  }
+
+  private void checkNewSize(long newSize) throws PatchFormatException {
+    if (newSize != expectedNewSize) {
+      throw new PatchFormatException(
+          "Expected " + expectedNewSize + " bytes of output but got " + newSize);
+    }
+  }
+}
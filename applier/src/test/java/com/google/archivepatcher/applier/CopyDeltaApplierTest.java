@@ -0,0 +1,126 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.applier;
+
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CopyDeltaApplier}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class CopyDeltaApplierTest {
+  private byte[] oldBytes;
+  private File oldBlob;
+
+  @Before
+  public void setUp() throws IOException {
+    oldBytes = new byte[300000];
+    new Random(1).nextBytes(oldBytes);
+    oldBlob = File.createTempFile("CopyDeltaApplierTest", "old");
+    try (FileOutputStream out = new FileOutputStream(oldBlob)) {
+      out.write(oldBytes);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    oldBlob.delete();
+  }
+
+  @Test
+  public void testApplyDelta() throws IOException {
+    CopyDeltaApplier applier = new CopyDeltaApplier(new TypedRange<Void>(1000, 250000, null));
+    ByteArrayOutputStream newOut = new ByteArrayOutputStream();
+    applier.applyDelta(oldBlob, new ByteArrayInputStream(new byte[0]), newOut);
+    Assert.assertArrayEquals(Arrays.copyOfRange(oldBytes, 1000, 251000), newOut.toByteArray());
+  }
+
+  @Test
+  public void testApplyDelta_FileOutputStream() throws IOException {
+    CopyDeltaApplier applier = new CopyDeltaApplier(new TypedRange<Void>(1000, 250000, null));
+    File newBlob = File.createTempFile("CopyDeltaApplierTest", "new");
+    try {
+      // The copy is transferred to the channel of the stream, after what was written before.
+      try (FileOutputStream newOut = new FileOutputStream(newBlob)) {
+        newOut.write(oldBytes, 0, 10);
+        applier.applyDelta(oldBlob, new ByteArrayInputStream(new byte[0]), newOut);
+        newOut.write(oldBytes, 20, 10);
+      }
+      byte[] expected = new byte[250020];
+      System.arraycopy(oldBytes, 0, expected, 0, 10);
+      System.arraycopy(oldBytes, 1000, expected, 10, 250000);
+      System.arraycopy(oldBytes, 20, expected, 250010, 10);
+      Assert.assertArrayEquals(expected, Files.readAllBytes(newBlob.toPath()));
+    } finally {
+      newBlob.delete();
+    }
+  }
+
+  @Test
+  public void testApplyDelta_InMemory() throws IOException {
+    CopyDeltaApplier applier = new CopyDeltaApplier(new TypedRange<Void>(1000, 250000, null));
+    ByteArrayOutputStream newOut = new ByteArrayOutputStream();
+    applier.applyDelta(oldBytes, new ByteArrayInputStream(new byte[0]), newOut);
+    Assert.assertArrayEquals(Arrays.copyOfRange(oldBytes, 1000, 251000), newOut.toByteArray());
+  }
+
+  @Test
+  public void testTransferTo() throws IOException {
+    CopyDeltaApplier applier = new CopyDeltaApplier(new TypedRange<Void>(5, 100000, null));
+    File newBlob = File.createTempFile("CopyDeltaApplierTest", "new");
+    try (RandomAccessFile newBlobRaf = new RandomAccessFile(newBlob, "rw")) {
+      // The copy is written at the position of the channel.
+      newBlobRaf.setLength(100010);
+      newBlobRaf.seek(10);
+      applier.transferTo(oldBlob, newBlobRaf.getChannel());
+      byte[] copy = new byte[100000];
+      newBlobRaf.seek(10);
+      newBlobRaf.readFully(copy);
+      Assert.assertArrayEquals(Arrays.copyOfRange(oldBytes, 5, 100005), copy);
+    } finally {
+      newBlob.delete();
+    }
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testApplyDelta_BeyondOldBlob() throws IOException {
+    CopyDeltaApplier applier =
+        new CopyDeltaApplier(new TypedRange<Void>(oldBytes.length - 10, 11, null));
+    applier.applyDelta(
+        oldBlob, new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testApplyDelta_InMemory_BeyondOldBlob() throws IOException {
+    CopyDeltaApplier applier =
+        new CopyDeltaApplier(new TypedRange<Void>(oldBytes.length - 10, 11, null));
+    applier.applyDelta(
+        oldBytes, new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+  }
+}
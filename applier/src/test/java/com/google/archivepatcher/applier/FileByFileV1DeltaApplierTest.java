@@ -36,7 +36,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests for {@link FileByFileV1DeltaApplier}.
@@ -107,6 +109,9 @@ public class FileByFileV1DeltaApplierTest {
    * expected, and "patches" it by simply writing the expected *new* content to the output stream.
    */
   private FileByFileV1DeltaApplier fakeApplier;
+
+  /** The number of deltas that the testing delta applier has applied to an old blob in memory. */
+  private final AtomicInteger inMemoryApplications = new AtomicInteger();
   
   @Before
   public void setUp() throws IOException {
@@ -231,6 +236,20 @@ public class FileByFileV1DeltaApplierTest {
       newBlobOut.write(NEW_ENTRY.getUncompressedBinaryContent());
       newBlobOut.write(UNCOMPRESSED_TRAILER);
     }
+
+    @Override
+    public void applyDelta(byte[] oldBlob, InputStream deltaIn, OutputStream newBlobOut)
+        throws IOException {
+      inMemoryApplications.incrementAndGet();
+      Assert.assertArrayEquals(expectedDeltaFriendlyOldFileBytes, oldBlob);
+      File oldBlobFile = File.createTempFile("fbfv1dat", "dfold");
+      try {
+        Files.write(oldBlobFile.toPath(), oldBlob);
+        applyDelta(oldBlobFile, deltaIn, newBlobOut);
+      } finally {
+        oldBlobFile.delete();
+      }
+    }
   }
 
   @After
@@ -268,4 +287,34 @@ public class FileByFileV1DeltaApplierTest {
     Assert.assertFalse(closed.get());
   }
 
+  @Test
+  public void testApplyDelta_InMemory() throws IOException {
+    long deltaFriendlyOldFileSize = expectedDeltaFriendlyOldFileBytes.length;
+    long deltaFriendlyNewFileSize =
+        UNCOMPRESSED_HEADER.length + UNCOMPRESSED_NEW_CONTENT.length + UNCOMPRESSED_TRAILER.length;
+    // Just too small for either blob, then just large enough for both.
+    long[] thresholds = {
+      Math.min(deltaFriendlyOldFileSize, deltaFriendlyNewFileSize) - 1,
+      Math.max(deltaFriendlyOldFileSize, deltaFriendlyNewFileSize)
+    };
+    for (int i = 0; i < thresholds.length; i++) {
+      FileByFileV1DeltaApplier applier =
+          new FileByFileV1DeltaApplier(tempDir, DefaultDeflater::new, 1, thresholds[i]) {
+            @Override
+            protected DeltaApplier getDeltaApplier() {
+              return new FakeDeltaApplier();
+            }
+          };
+      ByteArrayOutputStream actualNewBlobOut = new ByteArrayOutputStream();
+      applier.applyDelta(oldFile, new ByteArrayInputStream(patchBytes), actualNewBlobOut);
+      Assert.assertArrayEquals(expectedNewBytes, actualNewBlobOut.toByteArray());
+      Assert.assertEquals(i, inMemoryApplications.get());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_NegativeInMemoryThreshold() {
+    new FileByFileV1DeltaApplier(tempDir, DefaultDeflater::new, 1, -1);
+  }
+
 }
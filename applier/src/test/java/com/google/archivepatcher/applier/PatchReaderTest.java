@@ -90,6 +90,12 @@ public class PatchReaderTest {
 
   private Corruption corruption = null;
 
+  /** The flags to write, which determine how many delta records the patch may have. */
+  private int flags = 0;
+
+  /** The delta descriptors to write, each followed by {@link #DELTA_CONTENT} in the patch. */
+  private List<DeltaDescriptor> deltaDescriptors = DELTA_DESCRIPTORS;
+
   /**
    * Settings that can be altered to break the code under test in useful ways.
    */
@@ -141,7 +147,7 @@ public class PatchReaderTest {
         corruption.corruptIdentifier
             ? new byte[8]
             : PatchConstants.IDENTIFIER.getBytes("US-ASCII")); // header
-    patchOut.writeInt(0); // Flags, all reserved in v1
+    patchOut.writeInt(flags); // Flags, only FLAG_MULTIPLE_DELTA_RECORDS is defined
     patchOut.writeLong(
         corruption.corruptDeltaFriendlyOldFileSize ? -1 : DELTA_FRIENDLY_OLD_FILE_SIZE);
 
@@ -196,8 +202,8 @@ public class PatchReaderTest {
     patchOut.writeInt(
         corruption.corruptNumDeltaRecords
             ? -1
-            : DELTA_DESCRIPTORS.size()); // Number of difference records
-    for (DeltaDescriptor descriptor : DELTA_DESCRIPTORS) {
+            : deltaDescriptors.size()); // Number of difference records
+    for (DeltaDescriptor descriptor : deltaDescriptors) {
       patchOut.write(corruption.corruptDeltaType ? 73 : descriptor.getFormat().patchValue);
       patchOut.writeLong(
           corruption.corruptDeltaFriendlyOldFileWorkRangeOffset
@@ -219,7 +225,9 @@ public class PatchReaderTest {
     }
 
     // Finally, the delta bytes
-    patchOut.write(DELTA_CONTENT.getBytes("US-ASCII"));
+    for (int x = 0; x < deltaDescriptors.size(); x++) {
+      patchOut.write(DELTA_CONTENT.getBytes("US-ASCII"));
+    }
     return out.toByteArray();
   }
 
@@ -234,6 +242,117 @@ public class PatchReaderTest {
     Assert.assertEquals(DELTA_DESCRIPTORS, plan.getDeltaDescriptors());
   }
 
+  @Test
+  public void testReadPatchApplyPlan_Gdiff() throws IOException {
+    byte[] patch = writeTestPatch();
+    // The format of the only delta record precedes its four ranges, its length and the delta.
+    int formatOffset = patch.length - DELTA_CONTENT.length() - 8 - 4 * 8 - 1;
+    Assert.assertEquals(PatchConstants.DeltaFormat.BSDIFF.patchValue, patch[formatOffset]);
+    patch[formatOffset] = PatchConstants.DeltaFormat.GDIFF.patchValue;
+    PatchApplyPlan plan = new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(patch));
+    Assert.assertEquals(
+        PatchConstants.DeltaFormat.GDIFF, plan.getDeltaDescriptors().get(0).getFormat());
+  }
+
+  @Test
+  public void testReadPatchApplyPlan_MultipleDeltaRecords() throws IOException {
+    flags = PatchConstants.FLAG_MULTIPLE_DELTA_RECORDS;
+    deltaDescriptors = multipleDeltaDescriptors(0);
+    PatchApplyPlan plan =
+        new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+    Assert.assertEquals(deltaDescriptors, plan.getDeltaDescriptors());
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_MultipleDeltaRecordsWithoutFlag() throws IOException {
+    deltaDescriptors = multipleDeltaDescriptors(0);
+    new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_MultipleDeltaRecordsNotContiguous() throws IOException {
+    flags = PatchConstants.FLAG_MULTIPLE_DELTA_RECORDS;
+    deltaDescriptors = multipleDeltaDescriptors(1);
+    new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_UnsupportedFlags() throws IOException {
+    flags = 2;
+    new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+  }
+
+  @Test
+  public void testReadPatchApplyPlan_Copy() throws IOException {
+    flags = PatchConstants.FLAG_MULTIPLE_DELTA_RECORDS;
+    deltaDescriptors = copyDeltaDescriptors(100, 100, 0);
+    PatchApplyPlan plan =
+        new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+    Assert.assertEquals(deltaDescriptors, plan.getDeltaDescriptors());
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_CopyWithDelta() throws IOException {
+    flags = PatchConstants.FLAG_MULTIPLE_DELTA_RECORDS;
+    deltaDescriptors = copyDeltaDescriptors(100, 100, 1);
+    new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_CopyLengthsDiffer() throws IOException {
+    flags = PatchConstants.FLAG_MULTIPLE_DELTA_RECORDS;
+    deltaDescriptors = copyDeltaDescriptors(100, 99, 0);
+    new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+  }
+
+  @Test(expected = PatchFormatException.class)
+  public void testReadPatchApplyPlan_CopyBeyondOldFile() throws IOException {
+    flags = PatchConstants.FLAG_MULTIPLE_DELTA_RECORDS;
+    deltaDescriptors = copyDeltaDescriptors(DELTA_FRIENDLY_OLD_FILE_SIZE - 99, 100, 0);
+    new PatchReader().readPatchApplyPlan(new ByteArrayInputStream(writeTestPatch()));
+  }
+
+  /**
+   * Returns descriptors for a copy of 100 bytes at the start of the delta-friendly new file,
+   * followed by a delta for the rest.
+   * @param oldOffset the offset of the copied range in the delta-friendly old file
+   * @param oldLength the length of the copied range, 100 to be as long as the copy
+   * @param deltaLength the length of the delta of the copy, 0 to be valid
+   */
+  private static List<DeltaDescriptor> copyDeltaDescriptors(
+      long oldOffset, long oldLength, long deltaLength) {
+    return Arrays.asList(
+        new DeltaDescriptor(
+            PatchConstants.DeltaFormat.COPY,
+            new TypedRange<Void>(oldOffset, oldLength, null),
+            new TypedRange<Void>(0, 100, null),
+            deltaLength),
+        new DeltaDescriptor(
+            PatchConstants.DeltaFormat.BSDIFF,
+            DELTA_FRIENDLY_OLD_FILE_WORK_RANGE,
+            new TypedRange<Void>(100, DELTA_FRIENDLY_NEW_FILE_SIZE - 100, null),
+            DELTA_CONTENT.length()));
+  }
+
+  /**
+   * Returns descriptors for two deltas that split the delta-friendly new file in two.
+   * @param gap the number of bytes between the work ranges in the new file, 0 to be contiguous
+   */
+  private static List<DeltaDescriptor> multipleDeltaDescriptors(long gap) {
+    long split = DELTA_FRIENDLY_NEW_FILE_SIZE / 2;
+    return Arrays.asList(
+        new DeltaDescriptor(
+            PatchConstants.DeltaFormat.BSDIFF,
+            DELTA_FRIENDLY_OLD_FILE_WORK_RANGE,
+            new TypedRange<Void>(0, split, null),
+            DELTA_CONTENT.length()),
+        new DeltaDescriptor(
+            PatchConstants.DeltaFormat.GDIFF,
+            DELTA_FRIENDLY_OLD_FILE_WORK_RANGE,
+            new TypedRange<Void>(split + gap, DELTA_FRIENDLY_NEW_FILE_SIZE - split - gap, null),
+            DELTA_CONTENT.length()));
+  }
+
   @Test(expected = PatchFormatException.class)
   public void testReadPatchApplyPlan_CorruptIdentifier() throws IOException {
     corruption.corruptIdentifier = true;
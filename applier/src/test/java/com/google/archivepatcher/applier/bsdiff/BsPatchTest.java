@@ -632,6 +632,15 @@ public class BsPatchTest {
     BsPatch.applyPatch(oldData, actualNewData, patchInputStream);
     byte[] actualNewDataBytes = actualNewData.toByteArray();
     Assert.assertArrayEquals(expectedNewDataBytes, actualNewDataBytes);
+
+    // The same with the old data in memory.
+    actualNewData = new ByteArrayOutputStream();
+    BsPatch.applyPatch(
+        readTestData(oldPath),
+        actualNewData,
+        new ByteArrayInputStream(readTestData(patchPatch)),
+        (long) expectedNewDataBytes.length);
+    Assert.assertArrayEquals(expectedNewDataBytes, actualNewData.toByteArray());
   }
 
   /**
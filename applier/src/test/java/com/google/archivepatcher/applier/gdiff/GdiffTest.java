@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.Random;
 import org.junit.Assert;
 import org.junit.Test;
@@ -116,6 +117,13 @@ public class GdiffTest {
     long outputLength = Gdiff.patch(readInputFile, patchStream, outputStream, newBytes.length);
     Assert.assertEquals(newBytes.length, outputLength);
     Assert.assertArrayEquals(newBytes, outputStream.toByteArray());
+
+    // The same with the input in memory.
+    outputStream = new ByteArrayOutputStream(newBytes.length);
+    outputLength =
+        Gdiff.patch(oldBytes, new ByteArrayInputStream(patch), outputStream, newBytes.length);
+    Assert.assertEquals(newBytes.length, outputLength);
+    Assert.assertArrayEquals(newBytes, outputStream.toByteArray());
   }
 
   /**
@@ -330,5 +338,18 @@ public class GdiffTest {
     } catch (IOException expected) {
     }
     Assert.assertTrue(outputStream.size() <= outputLimit);
+
+    // The same with the input in memory.
+    outputStream = new ByteArrayOutputStream();
+    try {
+      Gdiff.patch(
+          Arrays.copyOf(inputBytes, inputLimit),
+          new ByteArrayInputStream(patchBytes, 0, patchLimit),
+          outputStream,
+          outputLimit);
+      Assert.fail("Expected IOException");
+    } catch (IOException expected) {
+    }
+    Assert.assertTrue(outputStream.size() <= outputLimit);
   }
 }
@@ -2,9 +2,30 @@ plugins {
     java
 }
 
+// Microbenchmarks, run with: ./gradlew :generator:jmh [-Pjmh.includes=<regex>]
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+configurations["jmhImplementation"].extendsFrom(configurations.implementation.get())
+
 dependencies {
     implementation(project(":shared"))
 
     testImplementation("junit:junit:4.13.1")
     testImplementation(project(":sharedtest"))
+
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+}
+
+tasks.register<JavaExec>("jmh") {
+    description = "Runs the JMH microbenchmarks."
+    group = "verification"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    args = listOfNotNull(project.findProperty("jmh.includes") as String?)
 }
@@ -0,0 +1,116 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link RandomAccessObject#mismatch} and {@link RandomAccessObject#compare} on two equal
+ * ranges of the given length, against the byte-at-a-time loops they replaced in {@link BsDiff} and
+ * {@link BsUtil}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ComparisonBenchmark {
+
+  @Param({"16", "256", "65536"})
+  public int length;
+
+  /** The backing of both objects: "heap" or "mmap". */
+  @Param({"heap", "mmap"})
+  public String backing;
+
+  private RandomAccessObject data1;
+  private RandomAccessObject data2;
+
+  @Setup
+  public void setup() throws IOException {
+    byte[] data = new byte[2 * length];
+    new Random(length).nextBytes(data);
+    System.arraycopy(data, 0, data, length, length);
+    if ("mmap".equals(backing)) {
+      // Deleted when closed.
+      File tempFile = File.createTempFile("ComparisonBenchmark", ".bin");
+      try (RandomAccessFile file = new RandomAccessFile(tempFile, "rw")) {
+        file.write(data);
+      }
+      data1 = new RandomAccessObject.RandomAccessMmapObject(tempFile, "r");
+    } else {
+      data1 = new RandomAccessObject.RandomAccessByteArrayObject(data);
+    }
+    data2 = ((RandomAccessObject.RandomAccessByteArrayObject) data1).duplicate();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    data1.close();
+  }
+
+  @Benchmark
+  public int mismatch() throws IOException {
+    return data1.mismatch(0, data2, length, length);
+  }
+
+  @Benchmark
+  public int mismatchBytewise() throws IOException {
+    data1.seek(0);
+    data2.seek(length);
+    for (int offset = 0; offset < length; offset++) {
+      if (data1.readByte() != data2.readByte()) {
+        return offset;
+      }
+    }
+    return length;
+  }
+
+  @Benchmark
+  public int compare() throws IOException {
+    return data1.compare(0, length, data2, length, length);
+  }
+
+  @Benchmark
+  public int compareBytewise() throws IOException {
+    data1.seek(0);
+    data2.seek(length);
+    for (int i = 0; i < length; i++) {
+      int i1 = data1.readUnsignedByte();
+      int i2 = data2.readUnsignedByte();
+      if (i1 != i2) {
+        return i1 - i2;
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,86 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link DivSuffixSorter} on inputs that resemble delta-friendly blobs: runs of random
+ * bytes interleaved with copies of earlier runs. Whether the sort can work on heap copies depends
+ * on the heap given to the forked JVM.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class DivSuffixSorterBenchmark {
+
+  @Param({"1048576", "104857600"})
+  public int size;
+
+  /** The backing of the suffix array: "heap" or "mmap". */
+  @Param({"heap", "mmap"})
+  public String backing;
+
+  private RandomAccessObject input;
+  private RandomAccessObjectFactory factory;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(size);
+    byte[] data = new byte[size];
+    int offset = 0;
+    while (offset < size) {
+      int runLength = Math.min(size - offset, 256 + random.nextInt(8192));
+      if (offset > 0 && random.nextBoolean()) {
+        int source = random.nextInt(offset);
+        runLength = Math.min(runLength, offset - source);
+        System.arraycopy(data, source, data, offset, runLength);
+      } else {
+        for (int i = offset; i < offset + runLength; i++) {
+          data[i] = (byte) random.nextInt(64);
+        }
+      }
+      offset += runLength;
+    }
+    input = new RandomAccessObject.RandomAccessByteArrayObject(data);
+    factory =
+        "mmap".equals(backing)
+            ? new RandomAccessObjectFactory.RandomAccessMmapObjectFactory("rw")
+            : new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory();
+  }
+
+  @Benchmark
+  public int suffixSort() throws Exception {
+    try (RandomAccessObject suffixArray = new DivSuffixSorter(factory).suffixSort(input)) {
+      suffixArray.seekToIntAligned(size / 2);
+      return suffixArray.readInt();
+    }
+  }
+}
@@ -0,0 +1,603 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.generator.DefaultDeflateCompressionDiviner.DivinationResult;
+import com.google.archivepatcher.shared.JreDeflateParameters;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Keeps the entries of archives and the deflate parameters divined for them in a directory, so that
+ * diffing the same archive against many others only parses and divines it once.
+ *
+ * <p>Both are keyed by the SHA-256 digest of the archive, which is computed once per archive for
+ * as long as its length and modification time don't change. Divined parameters are additionally
+ * recorded per entry, in an entry named after the CRC32 and sizes of the entry and the SHA-256
+ * digest of its compressed bytes, so that the entries of a new archive that are unchanged from any
+ * archive in the cache aren't divined again either, at the cost of one lookup each. Entries that
+ * were never asked for are recorded as unknown and divined when they first are. Divination
+ * results depend on the {@link GenerationProfile}, which is part of their key, and on the deflater
+ * implementation, which is not: use one directory per deflater implementation.
+ *
+ * <p>The directory is a {@link DirectoryCache}, which evicts the least recently used entries when
+ * their total length exceeds the limit. The parameters entries are only about 60 bytes long, so
+ * the file system may allocate many times the limit for a directory that holds mostly those. A
+ * failure to read or write an entry is not fatal; the archive is simply analyzed again.
+ */
+public final class ArchiveAnalysisCache {
+
+  /** The file name extension of the entries that hold the entries of an archive. */
+  private static final String ENTRIES_SUFFIX = ".entries";
+
+  /** The file name extension of the entries that hold divined parameters, after the profile. */
+  private static final String DIVINATION_SUFFIX = ".div";
+
+  /**
+   * The file name extension of the entries that hold the divined parameters of a single zip entry,
+   * after the profile.
+   */
+  private static final String PARAMETERS_SUFFIX = ".param";
+
+  /** The maximum number of archives to remember the digests of. */
+  private static final int MAX_REMEMBERED_DIGESTS = 64;
+
+  /** The size of the blocks that data is read in. */
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  /** The length of a SHA-256 digest in bytes. */
+  private static final int DIGEST_LENGTH = 32;
+
+  /** Marks a zip entry that is not deflate compressed in a divination entry. */
+  private static final int NOT_DEFLATE_COMPRESSED = 0;
+
+  /** Marks a zip entry whose deflate parameters could not be divined in a divination entry. */
+  private static final int NOT_DIVINED = 1;
+
+  /** Marks a zip entry whose deflate parameters were divined in a divination entry. */
+  private static final int DIVINED = 2;
+
+  /** Marks a deflate compressed zip entry that was not divined yet in a divination entry. */
+  private static final int UNKNOWN = 3;
+
+  private final DirectoryCache directory;
+
+  /** The digests of the archives seen most recently, by their absolute paths. */
+  private final Map<String, ArchiveDigest> digests = new HashMap<String, ArchiveDigest>();
+
+  /** The digest of an archive, with the length and modification time it was computed at. */
+  private static final class ArchiveDigest {
+    final long length;
+    final long lastModified;
+    final String digest;
+
+    ArchiveDigest(long length, long lastModified, String digest) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.digest = digest;
+    }
+  }
+
+  /**
+   * Creates a cache in the specified directory.
+   *
+   * @param directory the directory to keep the entries in, which is created if it doesn't exist
+   * @param maxCacheBytes the maximum total size of the entries
+   */
+  public ArchiveAnalysisCache(File directory, long maxCacheBytes) {
+    this.directory =
+        new DirectoryCache(
+            directory, maxCacheBytes, ENTRIES_SUFFIX, DIVINATION_SUFFIX, PARAMETERS_SUFFIX);
+  }
+
+  /**
+   * Returns the entries of the archive like {@link MinimalZipArchive#listEntries(File)}, from the
+   * cache if possible.
+   *
+   * @param archiveFile the archive
+   * @return the entries, in the order of their local entries
+   * @throws IOException if unable to read or parse the archive
+   */
+  public List<MinimalZipEntry> listEntries(File archiveFile) throws IOException {
+    return listEntries(archiveFile, digest(archiveFile));
+  }
+
+  /**
+   * Returns the entries of the archive with their divined deflate parameters like {@link
+   * DefaultDeflateCompressionDiviner#divineDeflateParameters(File)}, from the cache if possible.
+   * Entries that the cache has no parameters for, neither for this archive nor for the same entry
+   * in another archive, are divined with the specified diviner.
+   *
+   * @param archiveFile the archive
+   * @param diviner the diviner to divine the entries that aren't cached with
+   * @return a list of results for each entry in the archive, in file order
+   * @throws IOException if unable to read or parse the archive
+   */
+  public List<DivinationResult> divineDeflateParameters(
+      File archiveFile, DefaultDeflateCompressionDiviner diviner) throws IOException {
+    try {
+      return divineDeflateParameters(archiveFile, diviner, null, 1);
+    } catch (InterruptedException e) {
+      // Not thrown without an executor.
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while divining");
+    }
+  }
+
+  /**
+   * Like {@link #divineDeflateParameters(File, DefaultDeflateCompressionDiviner)}, but divines the
+   * entries that aren't cached on the specified executor, with {@link
+   * DefaultDeflateCompressionDiviner#divineDeflateParameters(File, List, ExecutorService, int)}.
+   *
+   * @param archiveFile the archive
+   * @param diviner the diviner to divine the entries that aren't cached with
+   * @param executor the executor to divine on, or null to divine on the current thread
+   * @param threadCount the maximum number of tasks to divine on concurrently, at least 1
+   * @return a list of results for each entry in the archive, in file order
+   * @throws IOException if unable to read or parse the archive
+   * @throws InterruptedException if interrupted while waiting for the executor
+   */
+  public List<DivinationResult> divineDeflateParameters(
+      File archiveFile,
+      DefaultDeflateCompressionDiviner diviner,
+      ExecutorService executor,
+      int threadCount)
+      throws IOException, InterruptedException {
+    String digest = digest(archiveFile);
+    List<MinimalZipEntry> entries = listEntries(archiveFile, digest);
+    return divineDeflateParameters(
+        archiveFile, digest, entries, entries, diviner, executor, threadCount);
+  }
+
+  /**
+   * Like {@link #divineDeflateParameters(File, DefaultDeflateCompressionDiviner, ExecutorService,
+   * int)}, but only for the specified entries of the archive, e.g. for those that are going to be
+   * uncompressed. The other entries are neither divined nor looked up.
+   *
+   * @param archiveFile the archive
+   * @param entries the entries of the archive to divine, as listed by {@link #listEntries(File)}
+   *     or {@link MinimalZipArchive#listEntries(File)}
+   * @param diviner the diviner to divine the entries that aren't cached with
+   * @param executor the executor to divine on, or null to divine on the current thread
+   * @param threadCount the maximum number of tasks to divine on concurrently, at least 1
+   * @return a list of results for each of the specified entries, in the same order
+   * @throws IOException if unable to read or parse the archive
+   * @throws InterruptedException if interrupted while waiting for the executor
+   */
+  public List<DivinationResult> divineDeflateParameters(
+      File archiveFile,
+      List<MinimalZipEntry> entries,
+      DefaultDeflateCompressionDiviner diviner,
+      ExecutorService executor,
+      int threadCount)
+      throws IOException, InterruptedException {
+    String digest = digest(archiveFile);
+    return divineDeflateParameters(
+        archiveFile,
+        digest,
+        listEntries(archiveFile, digest),
+        entries,
+        diviner,
+        executor,
+        threadCount);
+  }
+
+  /**
+   * Divines the requested entries out of all entries of the archive, taking what is known from the
+   * divination entry of the archive and from the entries of other archives, and records the results
+   * in the divination entry of the archive.
+   */
+  private List<DivinationResult> divineDeflateParameters(
+      File archiveFile,
+      String digest,
+      List<MinimalZipEntry> allEntries,
+      List<MinimalZipEntry> requestedEntries,
+      DefaultDeflateCompressionDiviner diviner,
+      ExecutorService executor,
+      int threadCount)
+      throws IOException, InterruptedException {
+    File divinationEntry =
+        directory.entry(digest + "." + diviner.getProfile().name() + DIVINATION_SUFFIX);
+    // Elements are null for entries that are not known yet.
+    DivinationResult[] results = new DivinationResult[allEntries.size()];
+    byte[][] entryKeys = new byte[allEntries.size()][];
+    loadDivination(divinationEntry, allEntries, results, entryKeys);
+
+    Map<Long, Integer> indicesByOffset = new HashMap<Long, Integer>();
+    for (int i = 0; i < allEntries.size(); i++) {
+      indicesByOffset.put(allEntries.get(i).getFileOffsetOfLocalEntry(), i);
+    }
+    int[] requestedIndices = new int[requestedEntries.size()];
+    boolean[] unknown = new boolean[allEntries.size()];
+    List<Integer> unknownIndices = new ArrayList<Integer>();
+    for (int i = 0; i < requestedEntries.size(); i++) {
+      Integer index = indicesByOffset.get(requestedEntries.get(i).getFileOffsetOfLocalEntry());
+      if (index == null) {
+        throw new IllegalArgumentException(
+            "Not an entry of the archive: " + requestedEntries.get(i).getFileName());
+      }
+      requestedIndices[i] = index;
+      if (results[index] == null && !unknown[index]) {
+        unknown[index] = true;
+        unknownIndices.add(index);
+      }
+    }
+
+    if (!unknownIndices.isEmpty()) {
+      List<MinimalZipEntry> unknownEntries = new ArrayList<MinimalZipEntry>();
+      for (int index : unknownIndices) {
+        unknownEntries.add(allEntries.get(index));
+      }
+      List<byte[]> unknownKeys = entryKeys(archiveFile, unknownEntries);
+      List<MinimalZipEntry> uncachedEntries = new ArrayList<MinimalZipEntry>();
+      JreDeflateParameters[] cachedParameters = new JreDeflateParameters[1];
+      for (int i = 0; i < unknownIndices.size(); i++) {
+        int index = unknownIndices.get(i);
+        entryKeys[index] = unknownKeys.get(i);
+        if (entryKeys[index] == null) {
+          results[index] = new DivinationResult(allEntries.get(index), null);
+        } else if (loadParameters(
+            parametersEntry(entryKeys[index], diviner.getProfile()),
+            entryKeys[index],
+            cachedParameters)) {
+          results[index] = new DivinationResult(allEntries.get(index), cachedParameters[0]);
+        } else {
+          uncachedEntries.add(allEntries.get(index));
+        }
+      }
+      List<DivinationResult> divined;
+      if (executor == null) {
+        divined = diviner.divineDeflateParameters(archiveFile, uncachedEntries);
+      } else {
+        divined =
+            diviner.divineDeflateParameters(archiveFile, uncachedEntries, executor, threadCount);
+      }
+      for (DivinationResult result : divined) {
+        int index = indicesByOffset.get(result.minimalZipEntry.getFileOffsetOfLocalEntry());
+        results[index] = result;
+        if (entryKeys[index] != null) {
+          storeParameters(
+              parametersEntry(entryKeys[index], diviner.getProfile()),
+              entryKeys[index],
+              result.divinedParameters);
+        }
+      }
+      storeDivination(divinationEntry, results, entryKeys);
+    }
+
+    List<DivinationResult> requestedResults =
+        new ArrayList<DivinationResult>(requestedEntries.size());
+    for (int i = 0; i < requestedEntries.size(); i++) {
+      requestedResults.add(
+          new DivinationResult(
+              requestedEntries.get(i), results[requestedIndices[i]].divinedParameters));
+    }
+    return requestedResults;
+  }
+
+  /** Returns the entries of the archive with the specified digest, from the cache if possible. */
+  private List<MinimalZipEntry> listEntries(File archiveFile, String digest) throws IOException {
+    File entriesEntry = directory.entry(digest + ENTRIES_SUFFIX);
+    List<MinimalZipEntry> cached = loadEntries(entriesEntry);
+    if (cached != null) {
+      return cached;
+    }
+    List<MinimalZipEntry> entries = MinimalZipArchive.listEntries(archiveFile);
+    storeEntries(entriesEntry, entries);
+    return entries;
+  }
+
+  /**
+   * Returns the key of each entry of the archive, which consists of the CRC32 and sizes of the
+   * entry and the digest of its compressed bytes, or null for entries that are not deflate
+   * compressed.
+   */
+  private static List<byte[]> entryKeys(File archiveFile, List<MinimalZipEntry> entries)
+      throws IOException {
+    List<byte[]> keys = new ArrayList<byte[]>(entries.size());
+    MessageDigest digest = DirectoryCache.newDigest();
+    byte[] block = new byte[BLOCK_SIZE];
+    try (RandomAccessFile archive = new RandomAccessFile(archiveFile, "r")) {
+      for (MinimalZipEntry entry : entries) {
+        if (!entry.isDeflateCompressed()) {
+          keys.add(null);
+          continue;
+        }
+        archive.seek(entry.getFileOffsetOfCompressedData());
+        long remaining = entry.getCompressedSize();
+        while (remaining > 0) {
+          int blockLength = (int) Math.min(block.length, remaining);
+          archive.readFully(block, 0, blockLength);
+          digest.update(block, 0, blockLength);
+          remaining -= blockLength;
+        }
+        keys.add(
+            ByteBuffer.allocate(3 * 8 + DIGEST_LENGTH)
+                .putLong(entry.getCrc32OfUncompressedData())
+                .putLong(entry.getCompressedSize())
+                .putLong(entry.getUncompressedSize())
+                .put(digest.digest())
+                .array());
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Returns the entries in the entry and marks it as recently used, or null if there is no valid
+   * entry.
+   */
+  private static List<MinimalZipEntry> loadEntries(File entriesEntry) {
+    if (!entriesEntry.isFile()) {
+      return null;
+    }
+    try (DataInputStream in = openEntry(entriesEntry)) {
+      int count = in.readInt();
+      List<MinimalZipEntry> entries = new ArrayList<MinimalZipEntry>(count);
+      for (int i = 0; i < count; i++) {
+        int compressionMethod = in.readInt();
+        long crc32 = in.readLong();
+        long compressedSize = in.readLong();
+        long uncompressedSize = in.readLong();
+        byte[] fileNameBytes = new byte[in.readInt()];
+        in.readFully(fileNameBytes);
+        boolean generalPurposeFlagBit11 = in.readBoolean();
+        MinimalZipEntry entry =
+            new MinimalZipEntry(
+                compressionMethod,
+                crc32,
+                compressedSize,
+                uncompressedSize,
+                fileNameBytes,
+                generalPurposeFlagBit11,
+                in.readLong());
+        entry.setFileOffsetOfCompressedData(in.readLong());
+        entries.add(entry);
+      }
+      if (in.read() != -1) {
+        throw new IOException("Trailing bytes in " + entriesEntry);
+      }
+      entriesEntry.setLastModified(System.currentTimeMillis());
+      return entries;
+    } catch (IOException | RuntimeException e) {
+      // Evicted by someone else in the meantime, or not written by this class.
+      return null;
+    }
+  }
+
+  /**
+   * Reads the results and keys in the divination entry for the entries of its archive and marks it
+   * as recently used, unless there is no valid entry. Results of entries that are not known are
+   * left null.
+   */
+  private static void loadDivination(
+      File divinationEntry,
+      List<MinimalZipEntry> entries,
+      DivinationResult[] results,
+      byte[][] entryKeys) {
+    if (!divinationEntry.isFile()) {
+      return;
+    }
+    DivinationResult[] loadedResults = new DivinationResult[entries.size()];
+    byte[][] loadedKeys = new byte[entries.size()][];
+    try (DataInputStream in = openEntry(divinationEntry)) {
+      if (in.readInt() != entries.size()) {
+        return;
+      }
+      for (int i = 0; i < entries.size(); i++) {
+        byte[][] key = new byte[1][];
+        JreDeflateParameters parameters = readParameters(in, key);
+        // Only deflate compressed entries have keys, once they are known.
+        if (key[0] != null || !entries.get(i).isDeflateCompressed()) {
+          loadedResults[i] = new DivinationResult(entries.get(i), parameters);
+          loadedKeys[i] = key[0];
+        }
+      }
+      divinationEntry.setLastModified(System.currentTimeMillis());
+    } catch (IOException | RuntimeException e) {
+      return;
+    }
+    System.arraycopy(loadedResults, 0, results, 0, results.length);
+    System.arraycopy(loadedKeys, 0, entryKeys, 0, entryKeys.length);
+  }
+
+  /** Returns the entry that holds the divined parameters of the zip entry with the key. */
+  private File parametersEntry(byte[] entryKey, GenerationProfile profile) {
+    return directory.entry(
+        DirectoryCache.toHex(entryKey) + "." + profile.name() + PARAMETERS_SUFFIX);
+  }
+
+  /**
+   * Reads the divined parameters of a zip entry from its parameters entry and marks it as recently
+   * used, unless there is no valid entry.
+   *
+   * @param parametersEntry the entry to read
+   * @param entryKey the key of the zip entry
+   * @param parameters receives the parameters at index 0, or null if they could not be divined
+   * @return whether the entry was valid
+   */
+  private static boolean loadParameters(
+      File parametersEntry, byte[] entryKey, JreDeflateParameters[] parameters) {
+    if (!parametersEntry.isFile()) {
+      return false;
+    }
+    try (DataInputStream in = openEntry(parametersEntry)) {
+      byte[][] key = new byte[1][];
+      JreDeflateParameters entryParameters = readParameters(in, key);
+      if (key[0] == null || !Arrays.equals(key[0], entryKey) || in.read() != -1) {
+        return false;
+      }
+      parametersEntry.setLastModified(System.currentTimeMillis());
+      parameters[0] = entryParameters;
+      return true;
+    } catch (IOException | RuntimeException e) {
+      // Evicted by someone else in the meantime, or not written by this class.
+      return false;
+    }
+  }
+
+  /**
+   * Reads the parameters of a zip entry from a divination entry.
+   *
+   * @param in the stream to read from
+   * @param key if not null, receives the key of the zip entry at index 0, or null if the zip entry
+   *     is not deflate compressed or not known
+   * @return the parameters, or null if none
+   * @throws IOException if unable to read the parameters
+   */
+  private static JreDeflateParameters readParameters(DataInputStream in, byte[][] key)
+      throws IOException {
+    int kind = in.readUnsignedByte();
+    if (kind == NOT_DEFLATE_COMPRESSED || kind == UNKNOWN) {
+      return null;
+    }
+    byte[] entryKey = new byte[3 * 8 + DIGEST_LENGTH];
+    in.readFully(entryKey);
+    if (key != null) {
+      key[0] = entryKey;
+    }
+    if (kind == NOT_DIVINED) {
+      return null;
+    }
+    if (kind != DIVINED) {
+      throw new IOException("Unknown kind: " + kind);
+    }
+    int level = in.readUnsignedByte();
+    int strategy = in.readUnsignedByte();
+    boolean nowrap = in.readBoolean();
+    return JreDeflateParameters.of(level, strategy, nowrap);
+  }
+
+  /** Writes the entries to the entry, unless anything goes wrong. */
+  private void storeEntries(File entriesEntry, List<MinimalZipEntry> entries) {
+    directory.store(
+        entriesEntry,
+        out -> {
+          out.writeInt(entries.size());
+          for (MinimalZipEntry entry : entries) {
+            out.writeInt(entry.getCompressionMethod());
+            out.writeLong(entry.getCrc32OfUncompressedData());
+            out.writeLong(entry.getCompressedSize());
+            out.writeLong(entry.getUncompressedSize());
+            out.writeInt(entry.getFileNameBytes().length);
+            out.write(entry.getFileNameBytes());
+            out.writeBoolean(entry.getGeneralPurposeFlagBit11());
+            out.writeLong(entry.getFileOffsetOfLocalEntry());
+            out.writeLong(entry.getFileOffsetOfCompressedData());
+          }
+        });
+  }
+
+  /**
+   * Writes the divined parameters of a zip entry to its parameters entry, unless anything goes
+   * wrong. Doesn't evict, as the divination entry of the archive is stored right after.
+   */
+  private void storeParameters(
+      File parametersEntry, byte[] entryKey, JreDeflateParameters parameters) {
+    directory.write(
+        parametersEntry,
+        out -> {
+          out.write(parameters == null ? NOT_DIVINED : DIVINED);
+          out.write(entryKey);
+          if (parameters != null) {
+            out.write(parameters.level);
+            out.write(parameters.strategy);
+            out.writeBoolean(parameters.nowrap);
+          }
+        });
+  }
+
+  /**
+   * Writes the results to the divination entry, unless anything goes wrong. Null results are
+   * written as unknown.
+   */
+  private void storeDivination(
+      File divinationEntry, DivinationResult[] results, byte[][] entryKeys) {
+    directory.store(
+        divinationEntry,
+        out -> {
+          out.writeInt(results.length);
+          for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+              out.write(UNKNOWN);
+              continue;
+            }
+            JreDeflateParameters parameters = results[i].divinedParameters;
+            if (entryKeys[i] == null) {
+              out.write(NOT_DEFLATE_COMPRESSED);
+              continue;
+            }
+            out.write(parameters == null ? NOT_DIVINED : DIVINED);
+            out.write(entryKeys[i]);
+            if (parameters != null) {
+              out.write(parameters.level);
+              out.write(parameters.strategy);
+              out.writeBoolean(parameters.nowrap);
+            }
+          }
+        });
+  }
+
+  /** Opens an entry for reading. */
+  private static DataInputStream openEntry(File entry) throws IOException {
+    return new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+  }
+
+  /**
+   * Returns the SHA-256 digest of the archive as a lower case hex string, computed again only if
+   * the length or modification time of the archive changed since it last was.
+   */
+  private String digest(File archiveFile) throws IOException {
+    String path = archiveFile.getAbsolutePath();
+    long length = archiveFile.length();
+    long lastModified = archiveFile.lastModified();
+    synchronized (digests) {
+      ArchiveDigest known = digests.get(path);
+      if (known != null && known.length == length && known.lastModified == lastModified) {
+        return known.digest;
+      }
+    }
+    MessageDigest digest = DirectoryCache.newDigest();
+    byte[] block = new byte[BLOCK_SIZE];
+    try (InputStream in = new FileInputStream(archiveFile)) {
+      int numRead;
+      while ((numRead = in.read(block)) >= 0) {
+        digest.update(block, 0, numRead);
+      }
+    }
+    String hex = DirectoryCache.toHex(digest.digest());
+    synchronized (digests) {
+      if (digests.size() >= MAX_REMEMBERED_DIGESTS) {
+        digests.clear();
+      }
+      digests.put(path, new ArchiveDigest(length, lastModified, hex));
+    }
+    return hex;
+  }
+}
@@ -16,15 +16,17 @@ package com.google.archivepatcher.generator;
 
 import com.google.archivepatcher.shared.*;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
@@ -37,9 +39,6 @@ import java.util.zip.ZipException;
  */
 public class DefaultDeflateCompressionDiviner {
 
-  /** The levels to try for each strategy, in the order to attempt them. */
-  private static final Map<Integer, List<Integer>> LEVELS_BY_STRATEGY = getLevelsByStrategy();
-
   /**
    * A simple struct that contains a {@link MinimalZipEntry} describing a specific entry from a zip
    * archive along with an optional accompanying {@link JreDeflateParameters} describing the
@@ -73,10 +72,38 @@ public class DefaultDeflateCompressionDiviner {
     }
   }
 
+  /**
+   * The maximum number of inflated bytes of an entry that are kept for trying further candidates
+   * after the first, which is much more than most candidates take to diverge.
+   */
+  private static final int MAX_INFLATED_CACHE_BYTES = 1024 * 1024;
+
+  /**
+   * The maximum compressed size of the entry of an archive that is divined first, so that the
+   * parameters it was compressed with can be tried first for the other entries. Larger entries are
+   * only chosen if there is no smaller one.
+   */
+  private static final long MAX_PROBE_COMPRESSED_BYTES = 64 * 1024;
+
   private final BiFunction<Integer, Boolean, IDeflater> deflaterFactory;
 
+  /** The profile to take the levels to try and the threshold for divining in memory from. */
+  private final GenerationProfile profile;
+
   public DefaultDeflateCompressionDiviner(BiFunction<Integer, Boolean, IDeflater> deflaterFactory) {
+    this(deflaterFactory, GenerationProfile.BALANCED);
+  }
+
+  /**
+   * Creates a diviner that tries the deflate levels of the specified profile.
+   *
+   * @param deflaterFactory the factory for the deflaters to try the levels with
+   * @param profile the profile
+   */
+  public DefaultDeflateCompressionDiviner(
+      BiFunction<Integer, Boolean, IDeflater> deflaterFactory, GenerationProfile profile) {
     this.deflaterFactory = deflaterFactory;
+    this.profile = profile;
   }
 
   /**
@@ -91,59 +118,223 @@ public class DefaultDeflateCompressionDiviner {
    * @see DivinationResult 
    */
   public List<DivinationResult> divineDeflateParameters(File archiveFile) throws IOException {
-    List<DivinationResult> results = new ArrayList<>();
-    for (MinimalZipEntry minimalZipEntry : MinimalZipArchive.listEntries(archiveFile)) {
-      JreDeflateParameters divinedParameters = null;
-      if (minimalZipEntry.isDeflateCompressed()) {
-        // TODO(pasc): Reuse streams to avoid churning file descriptors
-        MultiViewInputStreamFactory isFactory =
-            new RandomAccessFileInputStreamFactory(
-                archiveFile,
-                minimalZipEntry.getFileOffsetOfCompressedData(),
-                minimalZipEntry.getCompressedSize());
-
-        // Keep small entries in memory to avoid unnecessary file I/O.
-        if (minimalZipEntry.getCompressedSize() < (100 * 1024)) {
-          try (InputStream is = isFactory.newStream()) {
-            byte[] compressedBytes = new byte[(int) minimalZipEntry.getCompressedSize()];
-            is.read(compressedBytes);
-            divinedParameters =
-                divineDeflateParameters(new ByteArrayInputStreamFactory(compressedBytes));
-          } catch (Exception ignore) {
-            divinedParameters = null;
-          }
-        } else {
-          divinedParameters = divineDeflateParameters(isFactory);
-        }
+    return divineDeflateParameters(archiveFile, MinimalZipArchive.listEntries(archiveFile));
+  }
+
+  /**
+   * Attempt to divine deflate parameters for the specified entries of the archive, e.g. for those
+   * that an {@link ArchiveAnalysisCache} has no results for. Entries of an archive are usually all
+   * compressed the same way, so one small entry is divined first and the parameters that it was
+   * compressed with are tried first for all other entries.
+   *
+   * @param archiveFile the archive file to work on
+   * @param entries the entries of the archive to divine, as listed by {@link
+   *     MinimalZipArchive#listEntries(File)}
+   * @return a list of results for each of the specified entries, in the same order
+   * @throws IOException if unable to read the file
+   */
+  public List<DivinationResult> divineDeflateParameters(
+      File archiveFile, List<MinimalZipEntry> entries) throws IOException {
+    List<DivinationResult> results = new ArrayList<>(entries.size());
+    Codecs codecs = new Codecs();
+    try {
+      int probeIndex = findProbeEntry(entries);
+      JreDeflateParameters probeParameters =
+          probeIndex < 0 ? null : divineEntry(archiveFile, entries.get(probeIndex), codecs, null);
+      for (int i = 0; i < entries.size(); i++) {
+        JreDeflateParameters divinedParameters =
+            i == probeIndex
+                ? probeParameters
+                : divineEntry(archiveFile, entries.get(i), codecs, probeParameters);
+        results.add(new DivinationResult(entries.get(i), divinedParameters));
       }
-      results.add(new DivinationResult(minimalZipEntry, divinedParameters));
+    } finally {
+      codecs.end();
     }
     return results;
   }
 
   /**
-   * Returns an unmodifiable map whose keys are deflate strategies and whose values are the levels
-   * that make sense to try with the corresponding strategy, in the recommended testing order.
+   * Like {@link #divineDeflateParameters(File)}, but divines the entries on up to the specified
+   * number of tasks of the specified executor.
    *
-   * <ul>
-   *   <li>For strategy 0, levels 1 through 9 (inclusive) are included.
-   *   <li>For strategy 1, levels 4 through 9 (inclusive) are included. Levels 1, 2 and 3 are
-   *       excluded because they behave the same under strategy 0.
-   *   <li>For strategy 2, only level 1 is included because the level is ignored under strategy 2.
-   * </ul>
+   * @param archiveFile the archive file to work on
+   * @param executor the executor to run the tasks on
+   * @param threadCount the maximum number of tasks to run concurrently, at least 1
+   * @return a list of results for each entry in the archive, in file order
+   * @throws IOException if unable to read or parse the file
+   * @throws InterruptedException if interrupted while waiting for the tasks
+   */
+  public List<DivinationResult> divineDeflateParameters(
+      File archiveFile, ExecutorService executor, int threadCount)
+      throws IOException, InterruptedException {
+    return divineDeflateParameters(
+        archiveFile, MinimalZipArchive.listEntries(archiveFile), executor, threadCount);
+  }
+
+  /**
+   * Like {@link #divineDeflateParameters(File, List)}, but divines the entries on up to the
+   * specified number of tasks of the specified executor. The small entry whose parameters are tried
+   * first for the others is divined before the tasks start, so that the results don't depend on
+   * the order in which the tasks complete. Each task takes the largest entry that is left, so that
+   * a single large entry started last doesn't hold up the result, and has its own inflaters and
+   * deflaters.
+   *
+   * @param archiveFile the archive file to work on
+   * @param entries the entries of the archive to divine
+   * @param executor the executor to run the tasks on
+   * @param threadCount the maximum number of tasks to run concurrently, at least 1
+   * @return a list of results for each of the specified entries, in the same order
+   * @throws IOException if unable to read the file
+   * @throws InterruptedException if interrupted while waiting for the tasks
+   */
+  public List<DivinationResult> divineDeflateParameters(
+      File archiveFile,
+      List<MinimalZipEntry> entries,
+      ExecutorService executor,
+      int threadCount)
+      throws IOException, InterruptedException {
+    if (threadCount < 1) {
+      throw new IllegalArgumentException("Unsupported thread count: " + threadCount);
+    }
+    // Every task writes distinct elements, which are read after all tasks have completed.
+    JreDeflateParameters[] divinedParameters = new JreDeflateParameters[entries.size()];
+    int probeIndex = findProbeEntry(entries);
+    if (probeIndex >= 0) {
+      Codecs codecs = new Codecs();
+      try {
+        divinedParameters[probeIndex] =
+            divineEntry(archiveFile, entries.get(probeIndex), codecs, null);
+      } finally {
+        codecs.end();
+      }
+    }
+    JreDeflateParameters probeParameters = probeIndex < 0 ? null : divinedParameters[probeIndex];
+    // The indices of the other deflate compressed entries, largest first.
+    List<Integer> largestFirst = new ArrayList<>();
+    for (int i = 0; i < entries.size(); i++) {
+      if (i != probeIndex && entries.get(i).isDeflateCompressed()) {
+        largestFirst.add(i);
+      }
+    }
+    Collections.sort(
+        largestFirst,
+        (a, b) ->
+            Long.compare(entries.get(b).getCompressedSize(), entries.get(a).getCompressedSize()));
+    AtomicInteger nextIndex = new AtomicInteger();
+    List<Future<Void>> tasks = new ArrayList<>();
+    try {
+      for (int i = 0; i < Math.min(threadCount, largestFirst.size()); i++) {
+        tasks.add(
+            executor.submit(
+                () -> {
+                  Codecs codecs = new Codecs();
+                  try {
+                    int index;
+                    while ((index = nextIndex.getAndIncrement()) < largestFirst.size()) {
+                      int entryIndex = largestFirst.get(index);
+                      divinedParameters[entryIndex] =
+                          divineEntry(
+                              archiveFile, entries.get(entryIndex), codecs, probeParameters);
+                    }
+                  } catch (IOException | RuntimeException e) {
+                    // Let the other tasks finish early.
+                    nextIndex.set(largestFirst.size());
+                    throw e;
+                  } finally {
+                    codecs.end();
+                  }
+                  return null;
+                }));
+      }
+      for (Future<Void> task : tasks) {
+        Futures.get(task);
+      }
+    } finally {
+      nextIndex.set(largestFirst.size());
+      for (Future<Void> task : tasks) {
+        task.cancel(false);
+      }
+    }
+    List<DivinationResult> results = new ArrayList<>(entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      results.add(new DivinationResult(entries.get(i), divinedParameters[i]));
+    }
+    return results;
+  }
+
+  /**
+   * Returns the index of the deflate compressed entry to divine before the others: the largest one
+   * of at most {@link #MAX_PROBE_COMPRESSED_BYTES}, or else the smallest one, or -1 if there is
+   * none. Tiny entries often come out the same at several levels, while large ones take long.
+   */
+  private static int findProbeEntry(List<MinimalZipEntry> entries) {
+    int probeIndex = -1;
+    long probeSize = 0;
+    for (int i = 0; i < entries.size(); i++) {
+      if (!entries.get(i).isDeflateCompressed()) {
+        continue;
+      }
+      long size = entries.get(i).getCompressedSize();
+      boolean better;
+      if (probeIndex < 0) {
+        better = true;
+      } else if (size <= MAX_PROBE_COMPRESSED_BYTES) {
+        better = probeSize > MAX_PROBE_COMPRESSED_BYTES || size > probeSize;
+      } else {
+        better = probeSize > MAX_PROBE_COMPRESSED_BYTES && size < probeSize;
+      }
+      if (better) {
+        probeIndex = i;
+        probeSize = size;
+      }
+    }
+    return probeIndex;
+  }
+
+  /**
+   * Divines the deflate parameters of an entry of the archive.
    *
-   * @return such a mapping
+   * @param archiveFile the archive file
+   * @param minimalZipEntry the entry
+   * @param codecs the inflaters and deflaters to use
+   * @param preferredParameters the parameters to try first, or null
+   * @return the parameters, or null if the entry is not deflate compressed or they can't be divined
+   * @throws IOException if unable to read the file
    */
-  private static Map<Integer, List<Integer>> getLevelsByStrategy() {
-    final Map<Integer, List<Integer>> levelsByStrategy = new HashMap<>();
-    // The best order for the levels is simply the order of popularity in the world, which is
-    // expected to be default (6), maximum compression (9), and fastest (1).
-    // The rest of the levels are rarely encountered and their order is mostly irrelevant.
-    levelsByStrategy.put(0, Collections.unmodifiableList(Arrays.asList(6, 9, 1, 4, 2, 3, 5, 7, 8)));
-    levelsByStrategy.put(1, Collections.unmodifiableList(Arrays.asList(6, 9, 4, 5, 7, 8)));
-    // Strategy 2 does not have the concept of levels, so vacuously call it 1.
-    levelsByStrategy.put(2, Collections.singletonList(1));
-    return Collections.unmodifiableMap(levelsByStrategy);
+  private JreDeflateParameters divineEntry(
+      File archiveFile,
+      MinimalZipEntry minimalZipEntry,
+      Codecs codecs,
+      JreDeflateParameters preferredParameters)
+      throws IOException {
+    if (!minimalZipEntry.isDeflateCompressed()) {
+      return null;
+    }
+    // TODO(pasc): Reuse streams to avoid churning file descriptors
+    MultiViewInputStreamFactory isFactory =
+        new RandomAccessFileInputStreamFactory(
+            archiveFile,
+            minimalZipEntry.getFileOffsetOfCompressedData(),
+            minimalZipEntry.getCompressedSize());
+
+    // Keep small entries in memory to avoid unnecessary file I/O.
+    if (minimalZipEntry.getCompressedSize() < profile.getInMemoryDivinationThresholdBytes()) {
+      try (InputStream is = isFactory.newStream()) {
+        byte[] compressedBytes = new byte[(int) minimalZipEntry.getCompressedSize()];
+        is.read(compressedBytes);
+        return divineDeflateParameters(
+            new ByteArrayInputStreamFactory(compressedBytes), codecs, preferredParameters);
+      } catch (Exception ignore) {
+        return null;
+      }
+    }
+    return divineDeflateParameters(isFactory, codecs, preferredParameters);
+  }
+
+  /** Returns the profile that determines the levels to try. */
+  GenerationProfile getProfile() {
+    return profile;
   }
 
   /**
@@ -161,88 +352,391 @@ public class DefaultDeflateCompressionDiviner {
    */
   public JreDeflateParameters divineDeflateParameters(
       MultiViewInputStreamFactory compressedDataInputStreamFactory) throws IOException {
-    byte[] copyBuffer = new byte[32 * 1024];
+    Codecs codecs = new Codecs();
+    try {
+      return divineDeflateParameters(compressedDataInputStreamFactory, codecs, null);
+    } finally {
+      codecs.end();
+    }
+  }
+
+  /**
+   * Like {@link #divineDeflateParameters(MultiViewInputStreamFactory)}, with the specified
+   * inflaters and deflaters. For each value of nowrap, the compressed delivery is inflated once, in
+   * chunks, and the chunks are fed to each candidate level and strategy in turn; a candidate is
+   * dropped as soon as its output diverges from the compressed delivery, and the first one that
+   * reproduces it wins. Most deliveries match the first candidate; if it doesn't, the candidates
+   * that the {@link DeflateTokenStatistics} of the start of the compressed delivery rule out are
+   * skipped.
+   *
+   * @param preferredParameters the parameters to try first, or null to try them in the order of
+   *     the profile
+   */
+  private JreDeflateParameters divineDeflateParameters(
+      MultiViewInputStreamFactory compressedDataInputStreamFactory,
+      Codecs codecs,
+      JreDeflateParameters preferredParameters)
+      throws IOException {
+    int analyzedLength = -1;
     // Iterate over all relevant combinations of nowrap, strategy and level.
     for (boolean nowrap : new boolean[] {true, false}) {
-      Inflater inflater = new Inflater(nowrap);
-      IDeflater deflater = deflaterFactory.apply(0, nowrap);
-
-      strategy_loop:
-      for (int strategy : new int[] {0, 1, 2}) {
-        deflater.setStrategy(strategy);
-        for (int level : LEVELS_BY_STRATEGY.get(strategy)) {
-          deflater.setLevel(level);
-          inflater.reset();
-          deflater.reset();
+      List<JreDeflateParameters> candidateParameters =
+          getCandidateParameters(nowrap, preferredParameters);
+      DeflateTokenStatistics statistics = null;
+      Candidate candidate = codecs.getCandidate(nowrap);
+      try (InflatedDelivery inflated =
+          new InflatedDelivery(
+              codecs.getInflater(nowrap), compressedDataInputStreamFactory, codecs)) {
+        for (int i = 0; i < candidateParameters.size(); i++) {
+          JreDeflateParameters parameters = candidateParameters.get(i);
+          if (i > 0) {
+            if (statistics == null) {
+              if (analyzedLength < 0) {
+                analyzedLength = codecs.readStart(compressedDataInputStreamFactory);
+              }
+              statistics =
+                  DeflateTokenStatistics.analyze(codecs.analyzedStart, analyzedLength, nowrap);
+            }
+            if (!statistics.allows(parameters.strategy, parameters.level)) {
+              continue;
+            }
+          }
+          candidate.start(parameters.strategy, parameters.level, compressedDataInputStreamFactory);
           try {
-            if (matches(inflater, deflater, compressedDataInputStreamFactory, copyBuffer)) {
-              end(inflater, deflater);
-              return JreDeflateParameters.of(level, strategy, nowrap);
+            if (inflated.matches(candidate)) {
+              return candidate.getParameters();
             }
-          } catch (ZipException e) {
-            // Parse error in input. The only possibilities are corruption or the wrong nowrap.
-            // Skip all remaining levels and strategies.
-            break strategy_loop;
+          } finally {
+            candidate.stop();
           }
         }
+      } catch (ZipException e) {
+        // Parse error in input. The only possibilities are corruption or the wrong nowrap.
+        // Skip all remaining levels and strategies.
       }
-      end(inflater, deflater);
     }
     return null;
   }
 
   /**
-   * Closes the (de)compressor and discards any unprocessed input. This method should be called when
-   * the (de)compressor is no longer being used. Once this method is called, the behavior
-   * De/Inflater is undefined.
+   * Returns the parameters of the profile to try for one value of nowrap, in the order of the
+   * profile except for the preferred parameters, which come first.
    */
-  private static void end(Inflater inflater, IDeflater deflater) {
-    inflater.end();
-    deflater.end();
+  private List<JreDeflateParameters> getCandidateParameters(
+      boolean nowrap, JreDeflateParameters preferredParameters) {
+    List<JreDeflateParameters> candidateParameters = new ArrayList<>();
+    for (int strategy : new int[] {0, 1, 2}) {
+      for (int level : profile.getDivinationLevels(strategy)) {
+        JreDeflateParameters parameters = JreDeflateParameters.of(level, strategy, nowrap);
+        if (parameters.equals(preferredParameters)) {
+          candidateParameters.add(0, parameters);
+        } else {
+          candidateParameters.add(parameters);
+        }
+      }
+    }
+    return candidateParameters;
   }
 
   /**
-   * Checks whether the specified deflater will produce the same compressed delivery as the byte
-   * stream.
-   *
-   * @param inflater the inflater for uncompressing the stream
-   * @param deflater the deflater for recompressing the output of the inflater
-   * @param copyBuffer buffer to use for copying bytes between the inflater and the deflater
-   * @return true if the specified deflater reproduces the bytes in compressedDataIn, otherwise
-   *     false
-   * @throws IOException if anything goes wrong; in particular, {@link ZipException} is thrown if
-   *     there is a problem parsing compressedDataIn
-   */
-  private boolean matches(
-      Inflater inflater,
-      IDeflater deflater,
-      MultiViewInputStreamFactory compressedDataInputStreamFactory,
-      byte[] copyBuffer)
-      throws IOException {
+   * The inflaters, deflaters and buffers of one thread, which are created when first needed and
+   * reused for every entry that the thread divines.
+   */
+  private final class Codecs {
+    /** Buffer to use for copying bytes between the inflater and the deflater. */
+    final byte[] copyBuffer = new byte[32 * 1024];
+
+    /** The inflated bytes that are kept for the next candidate; grows up to a limit. */
+    byte[] inflatedCache = new byte[0];
+
+    /** The start of the compressed delivery, for the {@link DeflateTokenStatistics}. */
+    final byte[] analyzedStart = new byte[DeflateTokenStatistics.MAX_ANALYZED_BYTES];
+
+    /** The inflaters and candidates for nowrap=true at index 0 and nowrap=false at index 1. */
+    private final Inflater[] inflaters = new Inflater[2];
+
+    private final Candidate[] candidates = new Candidate[2];
+
+    Inflater getInflater(boolean nowrap) {
+      int index = nowrap ? 0 : 1;
+      if (inflaters[index] == null) {
+        inflaters[index] = new Inflater(nowrap);
+      }
+      return inflaters[index];
+    }
 
-    try (MatchingOutputStream matcher =
-            new MatchingOutputStream(
-                compressedDataInputStreamFactory.newStream(), copyBuffer.length);
-        InflaterInputStream inflaterIn =
-            new InflaterInputStream(
-                compressedDataInputStreamFactory.newStream(), inflater, copyBuffer.length);
-        IDeflaterOutputStream out = new IDeflaterOutputStream(matcher, deflater, copyBuffer.length)) {
-      int numRead;
-      while ((numRead = inflaterIn.read(copyBuffer)) >= 0) {
-        out.write(copyBuffer, 0, numRead);
-      }
-      // When done, all bytes have been successfully recompressed. For sanity, check that
-      // the matcher has consumed the same number of bytes and arrived at EOF as well.
-      out.finish();
-      out.flush();
-      matcher.expectEof();
-      // At this point the delivery in the compressed output stream was a perfect match for the
-      // delivery in the compressed input stream; the answer has been found.
+    /**
+     * Reads the start of the compressed delivery into {@link #analyzedStart}.
+     *
+     * @return the number of bytes read
+     */
+    int readStart(MultiViewInputStreamFactory compressedDataInputStreamFactory)
+        throws IOException {
+      int length = 0;
+      try (InputStream in = compressedDataInputStreamFactory.newStream()) {
+        int numRead;
+        while (length < analyzedStart.length
+            && (numRead = in.read(analyzedStart, length, analyzedStart.length - length)) > 0) {
+          length += numRead;
+        }
+      }
+      return length;
+    }
+
+    Candidate getCandidate(boolean nowrap) {
+      int index = nowrap ? 0 : 1;
+      if (candidates[index] == null) {
+        candidates[index] =
+            new Candidate(deflaterFactory.apply(0, nowrap), nowrap, copyBuffer.length);
+      }
+      return candidates[index];
+    }
+
+    /**
+     * Closes the (de)compressors and discards any unprocessed input. This method should be called
+     * when the (de)compressors are no longer being used.
+     */
+    void end() {
+      for (int i = 0; i < 2; i++) {
+        if (inflaters[i] != null) {
+          inflaters[i].end();
+        }
+        if (candidates[i] != null) {
+          candidates[i].deflater.end();
+        }
+      }
+    }
+  }
+
+  /**
+   * The inflated delivery of an entry, which is inflated once for all candidates. The inflated
+   * bytes are kept up to {@link #MAX_INFLATED_CACHE_BYTES}, which covers the point where most
+   * candidates diverge, and replayed to every candidate. Only a candidate that gets past the
+   * bytes kept and past the point that the inflater has already reached inflates the delivery
+   * again.
+   */
+  private static final class InflatedDelivery implements Closeable {
+    private final Inflater inflater;
+    private final MultiViewInputStreamFactory compressedDataInputStreamFactory;
+    private final Codecs codecs;
+
+    /** The number of bytes at the start of the cache of the codecs that are kept. */
+    private int cachedLength;
+
+    /** The stream that is inflating, or null before the first read. */
+    private InflaterInputStream inflaterIn;
+
+    /** The number of bytes read from the stream that is inflating. */
+    private long inflatedLength;
+
+    /** Whether the inflater reached the end of the delivery. */
+    private boolean inflatedToEnd;
+
+    InflatedDelivery(
+        Inflater inflater,
+        MultiViewInputStreamFactory compressedDataInputStreamFactory,
+        Codecs codecs) {
+      this.inflater = inflater;
+      this.compressedDataInputStreamFactory = compressedDataInputStreamFactory;
+      this.codecs = codecs;
+    }
+
+    /**
+     * Feeds the inflated delivery to the candidate until it diverges or the delivery ends.
+     *
+     * @param candidate the started candidate
+     * @return true if the candidate reproduces the compressed delivery
+     * @throws IOException if anything goes wrong; in particular, {@link ZipException} is thrown if
+     *     there is a problem parsing the compressed delivery
+     */
+    boolean matches(Candidate candidate) throws IOException {
+      long position = 0;
+      while (true) {
+        if (position < cachedLength) {
+          int length = (int) Math.min(codecs.copyBuffer.length, cachedLength - position);
+          if (!candidate.write(codecs.inflatedCache, (int) position, length)) {
+            return false;
+          }
+          position += length;
+          continue;
+        }
+        if (inflatedToEnd && inflatedLength == position) {
+          break;
+        }
+        if (inflaterIn == null || inflatedLength != position) {
+          restartAt(position);
+        }
+        int numRead = inflaterIn.read(codecs.copyBuffer);
+        if (numRead < 0) {
+          inflatedToEnd = true;
+          break;
+        }
+        inflatedLength += numRead;
+        cache(position, numRead);
+        if (!candidate.write(codecs.copyBuffer, 0, numRead)) {
+          return false;
+        }
+        position += numRead;
+      }
+      // When done, all bytes have been successfully recompressed. The candidate must still flush
+      // the rest of its output and arrive at the end of the compressed delivery as well.
+      return candidate.finish();
+    }
+
+    /** Starts inflating again and skips the inflated bytes before the position. */
+    private void restartAt(long position) throws IOException {
+      close();
+      inflater.reset();
+      inflaterIn =
+          new InflaterInputStream(
+              compressedDataInputStreamFactory.newStream(), inflater, codecs.copyBuffer.length);
+      inflatedLength = 0;
+      inflatedToEnd = false;
+      while (inflatedLength < position) {
+        int numRead =
+            inflaterIn.read(
+                codecs.copyBuffer,
+                0,
+                (int) Math.min(codecs.copyBuffer.length, position - inflatedLength));
+        if (numRead < 0) {
+          throw new ZipException("Inflated length changed");
+        }
+        inflatedLength += numRead;
+      }
+    }
+
+    /** Keeps the bytes just read from the copy buffer if they continue the cache and fit. */
+    private void cache(long position, int length) {
+      if (position != cachedLength || cachedLength + length > MAX_INFLATED_CACHE_BYTES) {
+        return;
+      }
+      if (codecs.inflatedCache.length < cachedLength + length) {
+        codecs.inflatedCache =
+            Arrays.copyOf(
+                codecs.inflatedCache,
+                Math.min(
+                    MAX_INFLATED_CACHE_BYTES,
+                    Math.max(cachedLength + length, 2 * codecs.inflatedCache.length)));
+      }
+      System.arraycopy(codecs.copyBuffer, 0, codecs.inflatedCache, cachedLength, length);
+      cachedLength += length;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (inflaterIn != null) {
+        inflaterIn.close();
+        inflaterIn = null;
+      }
+    }
+  }
+
+  /**
+   * A deflater that recompresses the inflated delivery with a combination of deflate parameters
+   * and compares the output to the compressed delivery as it goes.
+   */
+  private static final class Candidate {
+    final IDeflater deflater;
+    private final boolean nowrap;
+
+    /** The output of the deflater. */
+    private final byte[] deflated;
+
+    /** The corresponding bytes of the compressed delivery. */
+    private final byte[] expected;
+
+    private int strategy;
+    private int level;
+    private MultiViewInputStreamFactory compressedDataInputStreamFactory;
+
+    /** The compressed delivery, opened when the deflater first produces output. */
+    private InputStream expectedIn;
+
+    Candidate(IDeflater deflater, boolean nowrap, int bufferSize) {
+      this.deflater = deflater;
+      this.nowrap = nowrap;
+      this.deflated = new byte[bufferSize];
+      this.expected = new byte[bufferSize];
+    }
+
+    /** Prepares to recompress a compressed delivery with the specified parameters. */
+    void start(
+        int strategy, int level, MultiViewInputStreamFactory compressedDataInputStreamFactory) {
+      this.strategy = strategy;
+      this.level = level;
+      this.compressedDataInputStreamFactory = compressedDataInputStreamFactory;
+      deflater.setStrategy(strategy);
+      deflater.setLevel(level);
+      deflater.reset();
+    }
+
+    /**
+     * Recompresses the next inflated bytes.
+     *
+     * @return false if the output diverged from the compressed delivery
+     */
+    boolean write(byte[] buffer, int offset, int length) throws IOException {
+      deflater.setInput(buffer, offset, length);
+      while (!deflater.needsInput()) {
+        if (!matchOutput()) {
+          return false;
+        }
+      }
       return true;
-    } catch (MismatchException e) {
-      // Fast-fail case when the compressed output stream doesn't match the compressed input
-      // stream. These are not the parameters you're looking for!
-      return false;
+    }
+
+    /**
+     * Finishes recompressing.
+     *
+     * @return true if the output matched the whole compressed delivery
+     */
+    boolean finish() throws IOException {
+      deflater.finish();
+      while (!deflater.finished()) {
+        if (!matchOutput()) {
+          return false;
+        }
+      }
+      return openExpected().read() == -1;
+    }
+
+    JreDeflateParameters getParameters() {
+      return JreDeflateParameters.of(level, strategy, nowrap);
+    }
+
+    /** Releases the compressed delivery. */
+    void stop() throws IOException {
+      compressedDataInputStreamFactory = null;
+      if (expectedIn != null) {
+        expectedIn.close();
+        expectedIn = null;
+      }
+    }
+
+    /** Compares the next output of the deflater to the compressed delivery. */
+    private boolean matchOutput() throws IOException {
+      int length = deflater.deflate(deflated, 0, deflated.length);
+      int matched = 0;
+      while (matched < length) {
+        int numRead = openExpected().read(expected, 0, length - matched);
+        if (numRead < 0) {
+          return false;
+        }
+        for (int i = 0; i < numRead; i++) {
+          if (expected[i] != deflated[matched + i]) {
+            return false;
+          }
+        }
+        matched += numRead;
+      }
+      return true;
+    }
+
+    private InputStream openExpected() throws IOException {
+      if (expectedIn == null) {
+        expectedIn = compressedDataInputStreamFactory.newStream();
+      }
+      return expectedIn;
     }
   }
 }
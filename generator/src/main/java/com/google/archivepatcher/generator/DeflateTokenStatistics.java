@@ -0,0 +1,356 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+/**
+ * Statistics of the tokens at the start of a deflate stream, decoded from its block headers and
+ * Huffman codes without inflating it, which rule out deflate parameters that could not have
+ * produced the stream. The rules follow the zlib implementation that the JRE uses:
+ *
+ * <ul>
+ *   <li>Strategy 2 (Huffman only) emits literals only, so any match rules it out.
+ *   <li>Levels 4 to 9 evaluate matches lazily and discard matches of length 3 that are more than
+ *       4096 bytes back, so such a match rules them out.
+ *   <li>Strategy 1 (filtered) at levels 4 to 9 also discards matches of length 5 or less, so such a
+ *       match rules it out.
+ *   <li>With a zlib wrapper (nowrap=false), the header records which of four ranges of levels was
+ *       used, which rules out the levels of the other ranges.
+ * </ul>
+ *
+ * <p>Block types and the lengths and distances of other matches depend on the data at least as
+ * much as on the parameters, so they don't rule anything out. A stream that can't be decoded rules
+ * nothing out; candidates are always verified by recompressing anyway.
+ */
+final class DeflateTokenStatistics {
+
+  /** The maximum number of compressed bytes at the start of a stream to decode. */
+  static final int MAX_ANALYZED_BYTES = 64 * 1024;
+
+  /** The distance beyond which levels 4 to 9 discard matches of length 3. */
+  private static final int TOO_FAR = 4096;
+
+  /** The order of the code length codes in the header of a dynamic block. */
+  private static final int[] CODE_LENGTH_ORDER = {
+    16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+  };
+
+  /** The base lengths of length symbols 257 to 285. */
+  private static final int[] LENGTH_BASE = {
+    3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131,
+    163, 195, 227, 258
+  };
+
+  /** The number of extra bits of length symbols 257 to 285. */
+  private static final int[] LENGTH_EXTRA_BITS = {
+    0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+  };
+
+  /** The base distances of distance symbols 0 to 29. */
+  private static final int[] DISTANCE_BASE = {
+    1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537,
+    2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577
+  };
+
+  /** The number of extra bits of distance symbols 0 to 29. */
+  private static final int[] DISTANCE_EXTRA_BITS = {
+    0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13,
+    13
+  };
+
+  /** Statistics that rule nothing out. */
+  private static final DeflateTokenStatistics NONE = new DeflateTokenStatistics();
+
+  /** The level flags of the zlib header, or -1 if there is none. */
+  private int zlibLevelFlags = -1;
+
+  /** Whether any match was decoded. */
+  private boolean hasMatches;
+
+  /** Whether a match of length 5 or less was decoded. */
+  private boolean hasShortMatches;
+
+  /** Whether a match of length 3 more than {@link #TOO_FAR} bytes back was decoded. */
+  private boolean hasFarLength3Matches;
+
+  private DeflateTokenStatistics() {}
+
+  /**
+   * Decodes the start of a deflate stream.
+   *
+   * @param data the buffer holding the start of the stream
+   * @param length the number of bytes of the stream in the buffer, which may end anywhere
+   * @param nowrap whether the stream is raw deflate, as opposed to having a zlib wrapper
+   * @return the statistics of the tokens that could be decoded
+   */
+  static DeflateTokenStatistics analyze(byte[] data, int length, boolean nowrap) {
+    DeflateTokenStatistics statistics = new DeflateTokenStatistics();
+    BitReader in = new BitReader(data, length);
+    try {
+      if (!nowrap) {
+        int cmf = in.readBits(8);
+        int flg = in.readBits(8);
+        if ((cmf & 0x0f) != 8 || ((cmf << 8) | flg) % 31 != 0) {
+          return NONE;
+        }
+        statistics.zlibLevelFlags = flg >> 6;
+      }
+      boolean lastBlock = false;
+      while (!lastBlock) {
+        lastBlock = in.readBits(1) == 1;
+        int blockType = in.readBits(2);
+        if (blockType == 0) {
+          in.skipStoredBlock();
+        } else if (blockType == 1) {
+          statistics.decodeTokens(in, Huffman.FIXED_LITERALS, Huffman.FIXED_DISTANCES);
+        } else if (blockType == 2) {
+          decodeDynamicBlock(in, statistics);
+        } else {
+          return NONE;
+        }
+      }
+    } catch (EndOfDataException e) {
+      // Only the start of the stream was available; the tokens decoded so far are complete.
+    } catch (IllegalStateException e) {
+      // Not a valid deflate stream.
+      return NONE;
+    }
+    return statistics;
+  }
+
+  /**
+   * Returns whether the stream could have been produced with the specified parameters.
+   *
+   * @param strategy the deflate strategy, 0, 1 or 2
+   * @param level the deflate level, 1 to 9
+   * @return false if the parameters are ruled out
+   */
+  boolean allows(int strategy, int level) {
+    if (zlibLevelFlags >= 0 && zlibLevelFlags != levelFlags(strategy, level)) {
+      return false;
+    }
+    if (strategy == 2) {
+      return !hasMatches;
+    }
+    if (level >= 4) {
+      if (hasFarLength3Matches) {
+        return false;
+      }
+      if (strategy == 1 && hasShortMatches) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the level flags that zlib writes into the header for the parameters. */
+  private static int levelFlags(int strategy, int level) {
+    if (strategy >= 2 || level < 2) {
+      return 0;
+    }
+    if (level < 6) {
+      return 1;
+    }
+    return level == 6 ? 2 : 3;
+  }
+
+  private static void decodeDynamicBlock(BitReader in, DeflateTokenStatistics statistics) {
+    int literalCount = in.readBits(5) + 257;
+    int distanceCount = in.readBits(5) + 1;
+    int codeLengthCount = in.readBits(4) + 4;
+    int[] codeLengthLengths = new int[19];
+    for (int i = 0; i < codeLengthCount; i++) {
+      codeLengthLengths[CODE_LENGTH_ORDER[i]] = in.readBits(3);
+    }
+    Huffman codeLengths = new Huffman(codeLengthLengths, 19);
+    int[] lengths = new int[literalCount + distanceCount];
+    int index = 0;
+    while (index < lengths.length) {
+      int symbol = codeLengths.decode(in);
+      if (symbol < 16) {
+        lengths[index++] = symbol;
+        continue;
+      }
+      int repeatedLength = 0;
+      int repeat;
+      if (symbol == 16) {
+        if (index == 0) {
+          throw new IllegalStateException("Nothing to repeat");
+        }
+        repeatedLength = lengths[index - 1];
+        repeat = 3 + in.readBits(2);
+      } else if (symbol == 17) {
+        repeat = 3 + in.readBits(3);
+      } else {
+        repeat = 11 + in.readBits(7);
+      }
+      if (index + repeat > lengths.length) {
+        throw new IllegalStateException("Too many code lengths");
+      }
+      while (repeat-- > 0) {
+        lengths[index++] = repeatedLength;
+      }
+    }
+    int[] literalLengths = new int[literalCount];
+    System.arraycopy(lengths, 0, literalLengths, 0, literalCount);
+    int[] distanceLengths = new int[distanceCount];
+    System.arraycopy(lengths, literalCount, distanceLengths, 0, distanceCount);
+    statistics.decodeTokens(
+        in, new Huffman(literalLengths, 288), new Huffman(distanceLengths, 30));
+  }
+
+  /** Decodes the tokens of a compressed block up to and including its end. */
+  private void decodeTokens(BitReader in, Huffman literals, Huffman distances) {
+    while (true) {
+      int symbol = literals.decode(in);
+      if (symbol < 256) {
+        continue;
+      }
+      if (symbol == 256) {
+        return;
+      }
+      symbol -= 257;
+      if (symbol >= LENGTH_BASE.length) {
+        throw new IllegalStateException("Invalid length symbol");
+      }
+      int length = LENGTH_BASE[symbol] + in.readBits(LENGTH_EXTRA_BITS[symbol]);
+      int distanceSymbol = distances.decode(in);
+      if (distanceSymbol >= DISTANCE_BASE.length) {
+        throw new IllegalStateException("Invalid distance symbol");
+      }
+      int distance =
+          DISTANCE_BASE[distanceSymbol] + in.readBits(DISTANCE_EXTRA_BITS[distanceSymbol]);
+      hasMatches = true;
+      if (length <= 5) {
+        hasShortMatches = true;
+      }
+      if (length == 3 && distance > TOO_FAR) {
+        hasFarLength3Matches = true;
+      }
+    }
+  }
+
+  /** Thrown when the available data ends, which is expected for the start of a stream. */
+  private static final class EndOfDataException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    EndOfDataException() {
+      super(null, null, false, false);
+    }
+  }
+
+  /** Reads the bits of a deflate stream, least significant first. */
+  private static final class BitReader {
+    private final byte[] data;
+    private final int length;
+    private int position;
+    private int bitBuffer;
+    private int bitCount;
+
+    BitReader(byte[] data, int length) {
+      this.data = data;
+      this.length = length;
+    }
+
+    int readBits(int count) {
+      while (bitCount < count) {
+        if (position >= length) {
+          throw new EndOfDataException();
+        }
+        bitBuffer |= (data[position++] & 0xff) << bitCount;
+        bitCount += 8;
+      }
+      int bits = bitBuffer & ((1 << count) - 1);
+      bitBuffer >>>= count;
+      bitCount -= count;
+      return bits;
+    }
+
+    void skipStoredBlock() {
+      bitBuffer = 0;
+      bitCount = 0;
+      int storedLength = readBits(16);
+      if ((storedLength ^ 0xffff) != readBits(16)) {
+        throw new IllegalStateException("Invalid stored block length");
+      }
+      if (position + storedLength > length) {
+        throw new EndOfDataException();
+      }
+      position += storedLength;
+    }
+  }
+
+  /** A canonical Huffman code, decoded one bit at a time. */
+  private static final class Huffman {
+    static final Huffman FIXED_LITERALS = new Huffman(fixedLiteralLengths(), 288);
+    static final Huffman FIXED_DISTANCES = new Huffman(fixedDistanceLengths(), 30);
+
+    private static final int MAX_BITS = 15;
+
+    /** The number of codes of each length. */
+    private final int[] counts = new int[MAX_BITS + 1];
+
+    /** The symbols ordered by code. */
+    private final int[] symbols;
+
+    Huffman(int[] lengths, int symbolCount) {
+      symbols = new int[symbolCount];
+      for (int length : lengths) {
+        counts[length]++;
+      }
+      int[] offsets = new int[MAX_BITS + 2];
+      for (int bits = 1; bits <= MAX_BITS; bits++) {
+        offsets[bits + 1] = offsets[bits] + counts[bits];
+      }
+      for (int symbol = 0; symbol < lengths.length; symbol++) {
+        if (lengths[symbol] != 0) {
+          symbols[offsets[lengths[symbol]]++] = symbol;
+        }
+      }
+    }
+
+    int decode(BitReader in) {
+      int code = 0;
+      int first = 0;
+      int index = 0;
+      for (int bits = 1; bits <= MAX_BITS; bits++) {
+        code |= in.readBits(1);
+        int count = counts[bits];
+        if (code - first < count) {
+          return symbols[index + code - first];
+        }
+        index += count;
+        first = (first + count) << 1;
+        code <<= 1;
+      }
+      throw new IllegalStateException("Invalid Huffman code");
+    }
+
+    private static int[] fixedLiteralLengths() {
+      int[] lengths = new int[288];
+      for (int symbol = 0; symbol < lengths.length; symbol++) {
+        lengths[symbol] = symbol < 144 ? 8 : symbol < 256 ? 9 : symbol < 280 ? 7 : 8;
+      }
+      return lengths;
+    }
+
+    private static int[] fixedDistanceLengths() {
+      int[] lengths = new int[30];
+      for (int symbol = 0; symbol < lengths.length; symbol++) {
+        lengths[symbol] = 5;
+      }
+      return lengths;
+    }
+  }
+}
@@ -14,9 +14,22 @@
 
 package com.google.archivepatcher.generator;
 
+import com.google.archivepatcher.shared.Futures;
+import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
+import com.google.archivepatcher.shared.RandomAccessFileInputStream;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * An interface to be implemented by delta generators.
@@ -34,4 +47,114 @@ public interface DeltaGenerator {
    */
   public void generateDelta(File oldBlob, File newBlob, OutputStream deltaOut)
       throws IOException, InterruptedException;
+
+  /**
+   * Returns the format of the deltas that this generator writes, which is recorded in File-by-File
+   * patches whose delta between the delta-friendly blobs is generated by it.
+   *
+   * @return the format, {@link DeltaFormat#BSDIFF} unless overridden
+   */
+  public default DeltaFormat getDeltaFormat() {
+    return DeltaFormat.BSDIFF;
+  }
+
+  /**
+   * Generates one delta for each of the specified ranges of newBlob, which can be applied to the
+   * whole of oldBlob to produce that range. The default implementation copies each range to a temp
+   * file and generates its delta with {@link #generateDelta(File, File, OutputStream)}, on as many
+   * threads as there are processors; implementations can override it to share work between the
+   * ranges, such as indexing oldBlob only once.
+   *
+   * @param oldBlob the old blob
+   * @param newBlob the new blob
+   * @param deltaRanges the ranges of newBlob, with the files to write their deltas to as metadata
+   * @throws IOException in the event of an I/O error reading the input files or writing the deltas
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public default void generateDeltas(
+      final File oldBlob, final File newBlob, List<TypedRange<File>> deltaRanges)
+      throws IOException, InterruptedException {
+    if (deltaRanges.size() == 1 && deltaRanges.get(0).getLength() == newBlob.length()) {
+      try (FileOutputStream deltaFileOut = new FileOutputStream(deltaRanges.get(0).getMetadata());
+          BufferedOutputStream bufferedDeltaOut = new BufferedOutputStream(deltaFileOut)) {
+        generateDelta(oldBlob, newBlob, bufferedDeltaOut);
+      }
+      return;
+    }
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            Math.min(deltaRanges.size(), Runtime.getRuntime().availableProcessors()));
+    try {
+      List<Future<Void>> results = new ArrayList<Future<Void>>(deltaRanges.size());
+      for (final TypedRange<File> range : deltaRanges) {
+        results.add(
+            executor.submit(
+                () -> {
+                  // The delta is generated between whole files, so copy the range to its own.
+                  try (TempFileHolder rangeFile = new TempFileHolder()) {
+                    try (RandomAccessFileInputStream rangeIn =
+                            new RandomAccessFileInputStream(
+                                newBlob, range.getOffset(), range.getLength());
+                        FileOutputStream rangeOut = new FileOutputStream(rangeFile.file)) {
+                      byte[] buffer = new byte[32768];
+                      int numRead;
+                      while ((numRead = rangeIn.read(buffer)) >= 0) {
+                        rangeOut.write(buffer, 0, numRead);
+                      }
+                    }
+                    try (FileOutputStream deltaFileOut = new FileOutputStream(range.getMetadata());
+                        BufferedOutputStream bufferedDeltaOut =
+                            new BufferedOutputStream(deltaFileOut)) {
+                      generateDelta(oldBlob, rangeFile.file, bufferedDeltaOut);
+                    }
+                  }
+                  return null;
+                }));
+      }
+      for (Future<Void> result : results) {
+        Futures.get(result);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Generates one delta for each of the specified ranges of newBlob, which can be applied to the
+   * whole of oldBlob to produce that range, like {@link #generateDeltas(File, File, List)} but with
+   * the blobs and the deltas held in memory. The default implementation writes the blobs to temp
+   * files and generates the deltas with {@link #generateDeltas(File, File, List)}; implementations
+   * can override it to avoid touching the disk.
+   *
+   * @param oldBlob the old blob
+   * @param newBlob the new blob
+   * @param deltaRanges the ranges of newBlob, with the streams to write their deltas to as metadata
+   * @throws IOException in the event of an I/O error writing the deltas
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public default void generateDeltas(
+      byte[] oldBlob, byte[] newBlob, List<TypedRange<ByteArrayOutputStream>> deltaRanges)
+      throws IOException, InterruptedException {
+    List<TypedRange<File>> fileRanges = new ArrayList<TypedRange<File>>(deltaRanges.size());
+    try (TempFileHolder oldFile = new TempFileHolder();
+        TempFileHolder newFile = new TempFileHolder()) {
+      Files.write(oldFile.file.toPath(), oldBlob);
+      Files.write(newFile.file.toPath(), newBlob);
+      for (TypedRange<ByteArrayOutputStream> range : deltaRanges) {
+        fileRanges.add(
+            new TypedRange<File>(
+                range.getOffset(),
+                range.getLength(),
+                File.createTempFile("deltagenerator", "delta")));
+      }
+      generateDeltas(oldFile.file, newFile.file, fileRanges);
+      for (int i = 0; i < deltaRanges.size(); i++) {
+        Files.copy(fileRanges.get(i).getMetadata().toPath(), deltaRanges.get(i).getMetadata());
+      }
+    } finally {
+      for (TypedRange<File> range : fileRanges) {
+        range.getMetadata().delete();
+      }
+    }
+  }
 }
@@ -0,0 +1,202 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A directory of cache entries whose total size is bounded, which can be shared between processes.
+ *
+ * <p>Entries are written to a temporary file first and then renamed, so that other processes
+ * sharing the directory never see partial entries. Readers mark the entries they use by updating
+ * their modification time, and when the total size of the entries exceeds the limit, the least
+ * recently used ones are deleted. The limit counts the lengths of the entries, not the space that
+ * the file system allocates for them, which is larger for entries much shorter than a block. Only
+ * files with one of the file name extensions of the cache count as entries.
+ */
+public final class DirectoryCache {
+
+  private final File directory;
+  private final long maxCacheBytes;
+  private final String[] entrySuffixes;
+
+  /** Writes the contents of an entry. */
+  public interface EntryWriter {
+    /**
+     * Writes the contents.
+     *
+     * @param out the stream to write to
+     * @throws IOException if unable to write the contents
+     */
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  /**
+   * Creates a cache in the specified directory.
+   *
+   * @param directory the directory to keep the entries in, which is created when the first entry
+   *     is written
+   * @param maxCacheBytes the maximum total length of the entries
+   * @param entrySuffixes the file name extensions of the entries
+   */
+  public DirectoryCache(File directory, long maxCacheBytes, String... entrySuffixes) {
+    this.directory = directory;
+    this.maxCacheBytes = maxCacheBytes;
+    this.entrySuffixes = entrySuffixes.clone();
+  }
+
+  /**
+   * Returns the entry with the specified name, which may or may not exist.
+   *
+   * @param name the name of the entry, ending with one of the file name extensions of the cache
+   * @return the entry
+   */
+  public File entry(String name) {
+    return new File(directory, name);
+  }
+
+  /**
+   * Returns the maximum total length of the entries.
+   *
+   * @return the limit
+   */
+  public long getMaxCacheBytes() {
+    return maxCacheBytes;
+  }
+
+  /**
+   * Writes an entry and evicts the least recently used entries, unless anything goes wrong.
+   *
+   * @param entry the entry to write
+   * @param writer writes the contents of the entry
+   */
+  public void store(File entry, EntryWriter writer) {
+    write(entry, writer);
+    evict();
+  }
+
+  /**
+   * Writes an entry, unless anything goes wrong. Nothing is evicted; call {@link #store(File,
+   * EntryWriter)} for the last of several entries that are written together.
+   *
+   * @param entry the entry to write
+   * @param writer writes the contents of the entry
+   */
+  public void write(File entry, EntryWriter writer) {
+    File tempFile = null;
+    try {
+      if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+        return;
+      }
+      tempFile = File.createTempFile(entry.getName(), ".tmp", directory);
+      try (DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+        writer.write(out);
+      }
+      if (tempFile.renameTo(entry)) {
+        tempFile = null;
+      }
+    } catch (IOException e) {
+      // The entry just won't be there next time.
+    } finally {
+      if (tempFile != null) {
+        tempFile.delete();
+      }
+    }
+  }
+
+  /** Deletes the least recently used entries until the rest fit into the limit. */
+  public synchronized void evict() {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    List<File> entries = new ArrayList<File>();
+    long totalBytes = 0;
+    for (File file : files) {
+      if (file.isFile() && isEntry(file.getName())) {
+        entries.add(file);
+        totalBytes += file.length();
+      }
+    }
+    final Map<File, Long> lastModified = new HashMap<File, Long>();
+    for (File file : entries) {
+      lastModified.put(file, file.lastModified());
+    }
+    Collections.sort(
+        entries,
+        new Comparator<File>() {
+          @Override
+          public int compare(File a, File b) {
+            return Long.compare(lastModified.get(a), lastModified.get(b));
+          }
+        });
+    for (int i = 0; i < entries.size() && totalBytes > maxCacheBytes; i++) {
+      long length = entries.get(i).length();
+      if (entries.get(i).delete()) {
+        totalBytes -= length;
+      }
+    }
+  }
+
+  private boolean isEntry(String fileName) {
+    for (String suffix : entrySuffixes) {
+      if (fileName.endsWith(suffix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns a new SHA-256 digest, which cache entries are keyed by.
+   *
+   * @return the digest
+   */
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns the bytes as a lower case hex string, for use in the names of entries.
+   *
+   * @param bytes the bytes
+   * @return the hex string
+   */
+  public static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(2 * bytes.length);
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b & 0xff));
+    }
+    return hex.toString();
+  }
+}
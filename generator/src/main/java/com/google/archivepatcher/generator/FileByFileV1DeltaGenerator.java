@@ -15,28 +15,68 @@
 package com.google.archivepatcher.generator;
 
 import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator;
+import com.google.archivepatcher.generator.bsdiff.RandomAccessObject;
+import com.google.archivepatcher.generator.gdiff.GdiffDeltaGenerator;
+import com.google.archivepatcher.shared.DefaultDeflater;
 import com.google.archivepatcher.shared.IDeflater;
+import com.google.archivepatcher.shared.TypedRange;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Generates file-by-file patches.
  */
 public class FileByFileV1DeltaGenerator implements DeltaGenerator {
+  /**
+   * A minimum length of the verbatim copies between the delta-friendly blobs that lets them be
+   * found with the largest blocks of a {@link GdiffDeltaGenerator}, in a fraction of the time that
+   * bsdiff takes.
+   */
+  public static final long DEFAULT_MINIMUM_COPY_LENGTH = 2 * GdiffDeltaGenerator.MAX_BLOCK_LENGTH;
+
+  private static final Logger logger = Logger.getLogger(FileByFileV1DeltaGenerator.class.getName());
 
   private final BiFunction<Integer, Boolean, IDeflater> deflaterFactory;
 
   /** Optional modifiers for planning and patch generation. */
   private final List<RecommendationModifier> recommendationModifiers;
 
+  /** The generator for the delta between the delta-friendly blobs, or null for the default. */
+  private final DeltaGenerator deltaGenerator;
+
+  /** The profile for divining deflate parameters and for the default delta generator. */
+  private final GenerationProfile generationProfile;
+
+  /** The number of delta records to split the delta between the delta-friendly blobs into. */
+  private final int deltaRecordCount;
+
+  /**
+   * The minimum length of the ranges of the delta-friendly new blob to write as verbatim copies of
+   * the delta-friendly old blob, or 0 to write no copies.
+   */
+  private final long minimumCopyLength;
+
+  /**
+   * The maximum length of the delta-friendly blobs to generate a patch for in memory, without temp
+   * files, or 0 to always use temp files.
+   */
+  private final long inMemoryThresholdBytes;
+
+  /** Optional cache of the entries and divined deflate parameters of archives. */
+  private final ArchiveAnalysisCache analysisCache;
+
   /**
    * Constructs a new generator for File-by-File v1 patches, using the specified configuration.
    *
@@ -48,15 +88,222 @@ public class FileByFileV1DeltaGenerator implements DeltaGenerator {
   public FileByFileV1DeltaGenerator(
           BiFunction<Integer, Boolean, IDeflater> deflaterFactory,
           RecommendationModifier... recommendationModifiers) {
+    this(
+        deflaterFactory,
+        GenerationProfile.BALANCED,
+        null,
+        1,
+        0,
+        0,
+        null,
+        recommendationModifiers == null
+            ? Collections.<RecommendationModifier>emptyList()
+            : Arrays.asList(recommendationModifiers));
+  }
+
+  private FileByFileV1DeltaGenerator(
+      BiFunction<Integer, Boolean, IDeflater> deflaterFactory,
+      GenerationProfile generationProfile,
+      DeltaGenerator deltaGenerator,
+      int deltaRecordCount,
+      long minimumCopyLength,
+      long inMemoryThresholdBytes,
+      ArchiveAnalysisCache analysisCache,
+      List<RecommendationModifier> recommendationModifiers) {
     this.deflaterFactory = deflaterFactory;
-    if (recommendationModifiers != null) {
-      this.recommendationModifiers =
-          Collections.unmodifiableList(Arrays.asList(recommendationModifiers));
-    } else {
-      this.recommendationModifiers = Collections.emptyList();
-    }
+    this.generationProfile = generationProfile;
+    this.deltaGenerator = deltaGenerator;
+    this.deltaRecordCount = deltaRecordCount;
+    this.minimumCopyLength = minimumCopyLength;
+    this.inMemoryThresholdBytes = inMemoryThresholdBytes;
+    this.analysisCache = analysisCache;
+    this.recommendationModifiers =
+        Collections.unmodifiableList(
+            new ArrayList<RecommendationModifier>(recommendationModifiers));
   }
 
+  /**
+   * Builds {@link FileByFileV1DeltaGenerator}s. Unless configured otherwise, a generator divines
+   * with the {@link GenerationProfile#BALANCED} profile and writes a single bsdiff delta record,
+   * without copies, through temp files.
+   */
+  public static final class Builder {
+    private BiFunction<Integer, Boolean, IDeflater> deflaterFactory = DefaultDeflater::new;
+    private GenerationProfile generationProfile = GenerationProfile.BALANCED;
+    private DeltaGenerator deltaGenerator;
+    private int deltaRecordCount = 1;
+    private long minimumCopyLength;
+    private long inMemoryThresholdBytes;
+    private ArchiveAnalysisCache analysisCache;
+    private final List<RecommendationModifier> recommendationModifiers = new ArrayList<>();
+
+    /**
+     * Sets the factory for the deflaters that divine and recompress the entries of the archives.
+     * The default is {@link DefaultDeflater}.
+     *
+     * @param deflaterFactory the factory to use
+     * @return this builder
+     */
+    public Builder withDeflaterFactory(BiFunction<Integer, Boolean, IDeflater> deflaterFactory) {
+      if (deflaterFactory == null) {
+        throw new IllegalArgumentException("deflaterFactory cannot be null");
+      }
+      this.deflaterFactory = deflaterFactory;
+      return this;
+    }
+
+    /**
+     * Sets the profile that trades patch size against generation time in every stage of
+     * generation: it divines the deflate parameters of the new file's entries, and configures the
+     * default generator for the delta between the delta-friendly blobs. The default is {@link
+     * GenerationProfile#BALANCED}.
+     *
+     * @param generationProfile the profile to use
+     * @return this builder
+     */
+    public Builder withGenerationProfile(GenerationProfile generationProfile) {
+      if (generationProfile == null) {
+        throw new IllegalArgumentException("generationProfile cannot be null");
+      }
+      this.generationProfile = generationProfile;
+      return this;
+    }
+
+    /**
+     * Sets the generator for the deltas between the delta-friendly blobs, e.g. a {@link
+     * BsDiffDeltaGenerator} with a {@link
+     * com.google.archivepatcher.generator.bsdiff.CachingSuffixSorter}, or a {@link
+     * GdiffDeltaGenerator} for patches that are faster to generate and apply. The format of the
+     * deltas is taken from {@link DeltaGenerator#getDeltaFormat()}. With several delta records,
+     * the generator is used on several threads at the same time. The default is a {@link
+     * BsDiffDeltaGenerator} with the generation profile.
+     *
+     * @param deltaGenerator the generator to use, or null for the default
+     * @return this builder
+     */
+    public Builder withDeltaGenerator(DeltaGenerator deltaGenerator) {
+      this.deltaGenerator = deltaGenerator;
+      return this;
+    }
+
+    /**
+     * Sets the number of work ranges of about equal length to split the delta-friendly new blob
+     * into, and to generate the delta of each against the whole delta-friendly old blob
+     * concurrently. The deltas of such patches can be applied concurrently too, but only by
+     * appliers that support {@link
+     * com.google.archivepatcher.shared.PatchConstants#FLAG_MULTIPLE_DELTA_RECORDS}. Every delta
+     * indexes the whole old blob, so generation takes up to that many times the memory, and
+     * matches that would span two ranges are split, which makes the patch slightly larger. Blobs
+     * shorter than this get one record per byte. The default is 1.
+     *
+     * @param deltaRecordCount the number of delta records, at least 1
+     * @return this builder
+     */
+    public Builder withDeltaRecordCount(int deltaRecordCount) {
+      if (deltaRecordCount < 1) {
+        throw new IllegalArgumentException("Unsupported delta record count: " + deltaRecordCount);
+      }
+      this.deltaRecordCount = deltaRecordCount;
+      return this;
+    }
+
+    /**
+     * Sets the minimum length of the ranges of the delta-friendly new blob that are verbatim
+     * copies of ranges of the delta-friendly old blob to write as {@link
+     * com.google.archivepatcher.shared.PatchConstants.DeltaFormat#COPY} records. Such ranges,
+     * which mostly consist of entries whose compressed bytes are identical in both archives, are
+     * neither matched by the delta generator nor transformed by the applier, which transfers them
+     * straight from the old blob. The rest of the new blob is split into the delta records as by
+     * {@link #withDeltaRecordCount(int)}, and additionally wherever a copy interrupts it; the delta
+     * generator should generate several ranges without indexing the old blob again for each, as
+     * the bsdiff and gdiff generators do. Copies of at least {@link
+     * FileByFileV1DeltaGenerator#DEFAULT_MINIMUM_COPY_LENGTH} bytes are cheap to find. The default
+     * is 0, which writes no copies.
+     *
+     * @param minimumCopyLength the minimum length of a copy, or 0 to write no copies
+     * @return this builder
+     */
+    public Builder withMinimumCopyLength(long minimumCopyLength) {
+      if (minimumCopyLength < 0) {
+        throw new IllegalArgumentException("Unsupported minimum copy length: " + minimumCopyLength);
+      }
+      this.minimumCopyLength = minimumCopyLength;
+      return this;
+    }
+
+    /**
+     * Sets the maximum length of the delta-friendly blobs to hold them and the deltas in memory
+     * for instead of in temp files, which saves writing and reading them back. The lengths are
+     * taken from the plan, like the applier does, so whether the blobs fit is decided after
+     * planning; longer blobs, and blobs too long for a byte array, fall back to temp files. The
+     * threshold should leave room for the memory of the delta generator. Delta generators that
+     * don't generate deltas in memory themselves write the blobs to temp files; see {@link
+     * DeltaGenerator#generateDeltas(byte[], byte[], List)}. The default is 0, which always uses
+     * temp files.
+     *
+     * @param inMemoryThresholdBytes the maximum length of the delta-friendly blobs, or 0 for none
+     * @return this builder
+     */
+    public Builder withInMemoryThreshold(long inMemoryThresholdBytes) {
+      if (inMemoryThresholdBytes < 0) {
+        throw new IllegalArgumentException(
+            "Unsupported in-memory threshold: " + inMemoryThresholdBytes);
+      }
+      this.inMemoryThresholdBytes = inMemoryThresholdBytes;
+      return this;
+    }
+
+    /**
+     * Sets an optional cache to take the entries of the old archives and the divined deflate
+     * parameters of the entries of the new archives from when possible, e.g. to generate patches
+     * from many old versions of an archive, or to the same new version from many old versions.
+     * The cache must only ever be used with the same deflater factory.
+     *
+     * @param analysisCache the cache to use
+     * @return this builder
+     */
+    public Builder withAnalysisCache(ArchiveAnalysisCache analysisCache) {
+      if (analysisCache == null) {
+        throw new IllegalArgumentException("analysisCache cannot be null");
+      }
+      this.analysisCache = analysisCache;
+      return this;
+    }
+
+    /**
+     * Appends an optional {@link RecommendationModifier} for modifying the planning phase of patch
+     * generation, e.g. to limit the total amount of recompression that a patch applier needs to
+     * do. Modifiers are applied in the order they are appended.
+     *
+     * @param recommendationModifier the modifier to append
+     * @return this builder
+     */
+    public Builder withRecommendationModifier(RecommendationModifier recommendationModifier) {
+      if (recommendationModifier == null) {
+        throw new IllegalArgumentException("recommendationModifier cannot be null");
+      }
+      this.recommendationModifiers.add(recommendationModifier);
+      return this;
+    }
+
+    /**
+     * Builds and returns a {@link FileByFileV1DeltaGenerator} according to the current
+     * configuration.
+     *
+     * @return the generator
+     */
+    public FileByFileV1DeltaGenerator build() {
+      return new FileByFileV1DeltaGenerator(
+          deflaterFactory,
+          generationProfile,
+          deltaGenerator,
+          deltaRecordCount,
+          minimumCopyLength,
+          inMemoryThresholdBytes,
+          analysisCache,
+          recommendationModifiers);
+    }
+  }
   /**
    * Generate a V1 patch for the specified input files and write the patch to the specified {@link
    * OutputStream}. The written patch is <em>raw</em>, i.e. it has not been compressed. Compression
@@ -73,35 +320,256 @@ public class FileByFileV1DeltaGenerator implements DeltaGenerator {
   @Override
   public void generateDelta(File oldFile, File newFile, OutputStream patchOut)
       throws IOException, InterruptedException {
-    try (TempFileHolder deltaFriendlyOldFile = new TempFileHolder();
-        TempFileHolder deltaFriendlyNewFile = new TempFileHolder();
-        TempFileHolder deltaFile = new TempFileHolder();
-        FileOutputStream deltaFileOut = new FileOutputStream(deltaFile.file);
-        BufferedOutputStream bufferedDeltaOut = new BufferedOutputStream(deltaFileOut)) {
+    try (OnDemandTempFile deltaFriendlyOldTempFile = new OnDemandTempFile();
+        OnDemandTempFile deltaFriendlyNewTempFile = new OnDemandTempFile()) {
       PreDiffExecutor.Builder builder =
-          new PreDiffExecutor.Builder()
-              .readingOriginalFiles(oldFile, newFile)
-              .writingDeltaFriendlyFiles(deltaFriendlyOldFile.file, deltaFriendlyNewFile.file);
-      builder.withDeflaterFactory(deflaterFactory);
-      for (RecommendationModifier modifier : recommendationModifiers) {
-        builder.withRecommendationModifier(modifier);
+          newPreDiffExecutorBuilder(oldFile, newFile)
+              .writingDeltaFriendlyFilesOnDemand(
+                  deltaFriendlyOldTempFile, deltaFriendlyNewTempFile);
+      if (inMemoryThresholdBytes > 0) {
+        // Whether the delta-friendly blobs fit is only known once they are planned.
+        builder.holdingDeltaFriendlyBlobsUpTo(inMemoryThresholdBytes);
       }
       PreDiffExecutor executor = builder.build();
       PreDiffPlan preDiffPlan = executor.prepareForDiffing();
+      if (executor.getDeltaFriendlyOldBlob() != null) {
+        generateDeltaInMemory(
+            preDiffPlan,
+            executor.getDeltaFriendlyOldBlob(),
+            executor.getDeltaFriendlyNewBlob(),
+            patchOut);
+        return;
+      }
+      File deltaFriendlyOldFile = deltaFriendlyOldTempFile.get();
+      File deltaFriendlyNewFile = deltaFriendlyNewTempFile.get();
       DeltaGenerator deltaGenerator = getDeltaGenerator();
-      deltaGenerator.generateDelta(
-          deltaFriendlyOldFile.file, deltaFriendlyNewFile.file, bufferedDeltaOut);
-      bufferedDeltaOut.close();
-      PatchWriter patchWriter =
-          new PatchWriter(
-              preDiffPlan,
-              deltaFriendlyOldFile.file.length(),
-              deltaFriendlyNewFile.file.length(),
-              deltaFile.file);
-      patchWriter.writeV1Patch(patchOut);
+      long deltaFriendlyNewFileLength = deltaFriendlyNewFile.length();
+      // The stages after preparation depend on each other, so they simply add to its times.
+      long copiesStartNanos = System.nanoTime();
+      List<TypedRange<Long>> copyRanges =
+          minimumCopyLength == 0
+              ? Collections.<TypedRange<Long>>emptyList()
+              : getCopyFinder()
+                  .findMatches(deltaFriendlyOldFile, deltaFriendlyNewFile, minimumCopyLength);
+      copyRanges = withoutSplittingCopies(copyRanges, deltaFriendlyNewFileLength);
+      long deltasStartNanos = System.nanoTime();
+      List<TempFileHolder> deltaFiles = new ArrayList<TempFileHolder>();
+      try {
+        List<TypedRange<File>> deltaRanges = new ArrayList<TypedRange<File>>();
+        for (TypedRange<Void> range : getDeltaRanges(copyRanges, deltaFriendlyNewFileLength)) {
+          TempFileHolder deltaFile = new TempFileHolder();
+          deltaFiles.add(deltaFile);
+          deltaRanges.add(
+              new TypedRange<File>(range.getOffset(), range.getLength(), deltaFile.file));
+        }
+        if (!deltaRanges.isEmpty()) {
+          deltaGenerator.generateDeltas(deltaFriendlyOldFile, deltaFriendlyNewFile, deltaRanges);
+        }
+        logTimes(copyRanges.size(), deltaRanges.size(), copiesStartNanos, deltasStartNanos);
+        PatchWriter patchWriter =
+            new PatchWriter(
+                preDiffPlan,
+                deltaFriendlyOldFile.length(),
+                deltaFriendlyNewFileLength,
+                PatchWriter.fromFiles(deltaRanges),
+                deltaGenerator.getDeltaFormat(),
+                copyRanges);
+        patchWriter.writeV1Patch(patchOut);
+      } finally {
+        for (TempFileHolder deltaFile : deltaFiles) {
+          deltaFile.close();
+        }
+      }
     }
   }
 
+  /**
+   * Generates the rest of a V1 patch like {@link #generateDelta(File, File, OutputStream)}, but
+   * with the delta-friendly blobs and the deltas held in memory instead of in temp files.
+   *
+   * @param preDiffPlan the plan that the delta-friendly blobs were prepared with
+   * @param deltaFriendlyOldBlob the delta-friendly old blob
+   * @param deltaFriendlyNewBlob the delta-friendly new blob
+   * @param patchOut the stream to write the patch to
+   * @throws IOException if unable to complete the operation due to an I/O error
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  private void generateDeltaInMemory(
+      PreDiffPlan preDiffPlan,
+      byte[] deltaFriendlyOldBlob,
+      byte[] deltaFriendlyNewBlob,
+      OutputStream patchOut)
+      throws IOException, InterruptedException {
+    DeltaGenerator deltaGenerator = getDeltaGenerator();
+    long copiesStartNanos = System.nanoTime();
+    List<TypedRange<Long>> copyRanges =
+        minimumCopyLength == 0
+            ? Collections.<TypedRange<Long>>emptyList()
+            : getCopyFinder()
+                .findMatches(
+                    new RandomAccessObject.RandomAccessByteArrayObject(deltaFriendlyOldBlob),
+                    new RandomAccessObject.RandomAccessByteArrayObject(deltaFriendlyNewBlob),
+                    minimumCopyLength);
+    copyRanges = withoutSplittingCopies(copyRanges, deltaFriendlyNewBlob.length);
+    long deltasStartNanos = System.nanoTime();
+    List<TypedRange<ByteArrayOutputStream>> deltaRanges =
+        new ArrayList<TypedRange<ByteArrayOutputStream>>();
+    for (TypedRange<Void> range : getDeltaRanges(copyRanges, deltaFriendlyNewBlob.length)) {
+      deltaRanges.add(
+          new TypedRange<ByteArrayOutputStream>(
+              range.getOffset(), range.getLength(), new ByteArrayOutputStream()));
+    }
+    if (!deltaRanges.isEmpty()) {
+      deltaGenerator.generateDeltas(deltaFriendlyOldBlob, deltaFriendlyNewBlob, deltaRanges);
+    }
+    logTimes(copyRanges.size(), deltaRanges.size(), copiesStartNanos, deltasStartNanos);
+    PatchWriter patchWriter =
+        new PatchWriter(
+            preDiffPlan,
+            deltaFriendlyOldBlob.length,
+            deltaFriendlyNewBlob.length,
+            PatchWriter.fromByteArrayOutputStreams(deltaRanges),
+            deltaGenerator.getDeltaFormat(),
+            copyRanges);
+    patchWriter.writeV1Patch(patchOut);
+  }
+
+  /** A temp file that is only created when it is first needed, and deleted on close if it was. */
+  private static final class OnDemandTempFile implements PreDiffExecutor.FileSupplier, Closeable {
+    private TempFileHolder holder;
+
+    @Override
+    public synchronized File get() throws IOException {
+      if (holder == null) {
+        holder = new TempFileHolder();
+      }
+      return holder.file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if (holder != null) {
+        holder.close();
+      }
+    }
+  }
+
+  /** Returns a builder for the executor that prepares the original files for diffing. */
+  private PreDiffExecutor.Builder newPreDiffExecutorBuilder(File oldFile, File newFile) {
+    PreDiffExecutor.Builder builder =
+        new PreDiffExecutor.Builder().readingOriginalFiles(oldFile, newFile);
+    builder.withDeflaterFactory(deflaterFactory);
+    builder.withGenerationProfile(generationProfile);
+    builder.withDivinationThreadCount(Runtime.getRuntime().availableProcessors());
+    if (analysisCache != null) {
+      builder.withAnalysisCache(analysisCache);
+    }
+    for (RecommendationModifier modifier : recommendationModifiers) {
+      builder.withRecommendationModifier(modifier);
+    }
+    return builder;
+  }
+
+  /**
+   * Returns the ranges of the delta-friendly new blob to generate deltas for: the ranges between
+   * the copies, split at the boundaries of the requested number of ranges of equal length. An empty
+   * blob is still produced by a delta.
+   *
+   * @param copyRanges the ranges of the new blob to write as verbatim copies, in order
+   * @param deltaFriendlyNewBlobLength the length of the new blob
+   * @return the ranges in order, possibly none if the copies cover the whole blob
+   */
+  private List<TypedRange<Void>> getDeltaRanges(
+      List<TypedRange<Long>> copyRanges, long deltaFriendlyNewBlobLength) {
+    if (deltaFriendlyNewBlobLength == 0) {
+      return Collections.singletonList(new TypedRange<Void>(0, 0, null));
+    }
+    List<TypedRange<Void>> deltaRanges = new ArrayList<TypedRange<Void>>();
+    long start = 0;
+    int copyIndex = 0;
+    int boundaryIndex = 1;
+    while (start < deltaFriendlyNewBlobLength) {
+      if (copyIndex < copyRanges.size() && copyRanges.get(copyIndex).getOffset() == start) {
+        start += copyRanges.get(copyIndex++).getLength();
+        continue;
+      }
+      long end =
+          copyIndex < copyRanges.size()
+              ? copyRanges.get(copyIndex).getOffset()
+              : deltaFriendlyNewBlobLength;
+      while (boundaryIndex < deltaRecordCount) {
+        long boundary = deltaFriendlyNewBlobLength * boundaryIndex / deltaRecordCount;
+        if (boundary > start) {
+          end = Math.min(end, boundary);
+          break;
+        }
+        boundaryIndex++;
+      }
+      deltaRanges.add(new TypedRange<Void>(start, end - start, null));
+      start = end;
+    }
+    return deltaRanges;
+  }
+
+  /**
+   * Returns the copies without those that would split a delta range in two and are shorter than
+   * twice the {@link #minimumCopyLength}. The minimum copy length is what a copy must save to pay
+   * for setting up its record in the applier, and such a copy adds a second record for the delta
+   * after it, so it is cheaper to produce as part of the delta range that it would split.
+   *
+   * @param copyRanges the ranges of the new blob that are verbatim copies, in order
+   * @param deltaFriendlyNewBlobLength the length of the new blob
+   * @return the ranges of the new blob to write as verbatim copies, in order
+   */
+  // Visible for testing only
+  List<TypedRange<Long>> withoutSplittingCopies(
+      List<TypedRange<Long>> copyRanges, long deltaFriendlyNewBlobLength) {
+    List<TypedRange<Long>> result = new ArrayList<TypedRange<Long>>(copyRanges.size());
+    long previousEnd = 0;
+    for (int i = 0; i < copyRanges.size(); i++) {
+      TypedRange<Long> copyRange = copyRanges.get(i);
+      long end = copyRange.getOffset() + copyRange.getLength();
+      long nextStart =
+          i + 1 < copyRanges.size()
+              ? copyRanges.get(i + 1).getOffset()
+              : deltaFriendlyNewBlobLength;
+      boolean splitsDelta = copyRange.getOffset() > previousEnd && end < nextStart;
+      if (!splitsDelta || copyRange.getLength() >= 2 * minimumCopyLength) {
+        result.add(copyRange);
+        previousEnd = end;
+      }
+    }
+    return result;
+  }
+
+  /** Logs the number of copies and deltas and the times it took to find and generate them. */
+  private static void logTimes(
+      int copyCount, int deltaCount, long copiesStartNanos, long deltasStartNanos) {
+    if (logger.isLoggable(Level.FINE)) {
+      logger.fine(
+          "Found "
+              + copyCount
+              + " copies in "
+              + TimeUnit.NANOSECONDS.toMillis(deltasStartNanos - copiesStartNanos)
+              + " ms and generated "
+              + deltaCount
+              + " deltas in "
+              + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - deltasStartNanos)
+              + " ms");
+    }
+  }
+
+  /**
+   * Returns the generator that finds the ranges of the delta-friendly new blob to write as verbatim
+   * copies of the delta-friendly old blob, with blocks short enough that every copy of at least
+   * {@link #minimumCopyLength} bytes contains one.
+   */
+  private GdiffDeltaGenerator getCopyFinder() {
+    long blockLength =
+        Math.max(4, Math.min(GdiffDeltaGenerator.MAX_BLOCK_LENGTH, (minimumCopyLength + 1) / 2));
+    return new GdiffDeltaGenerator((int) blockLength);
+  }
+
   /**
    * Generate a V1 patch pre diffing plan.
    *
@@ -115,15 +583,10 @@ public class FileByFileV1DeltaGenerator implements DeltaGenerator {
       throws IOException, InterruptedException {
     try (TempFileHolder deltaFriendlyOldFile = new TempFileHolder();
         TempFileHolder deltaFriendlyNewFile = new TempFileHolder()) {
-      PreDiffExecutor.Builder builder =
-          new PreDiffExecutor.Builder()
-              .readingOriginalFiles(oldFile, newFile)
-              .writingDeltaFriendlyFiles(deltaFriendlyOldFile.file, deltaFriendlyNewFile.file);
-      for (RecommendationModifier modifier : recommendationModifiers) {
-        builder.withRecommendationModifier(modifier);
-      }
-
-      PreDiffExecutor executor = builder.build();
+      PreDiffExecutor executor =
+          newPreDiffExecutorBuilder(oldFile, newFile)
+              .writingDeltaFriendlyFiles(deltaFriendlyOldFile.file, deltaFriendlyNewFile.file)
+              .build();
 
       return executor.prepareForDiffing();
     }
@@ -131,6 +594,9 @@ public class FileByFileV1DeltaGenerator implements DeltaGenerator {
 
   // Visible for testing only
   protected DeltaGenerator getDeltaGenerator() {
-    return new BsDiffDeltaGenerator();
+    if (deltaGenerator != null) {
+      return deltaGenerator;
+    }
+    return new BsDiffDeltaGenerator(null, Long.MAX_VALUE, generationProfile);
   }
 }
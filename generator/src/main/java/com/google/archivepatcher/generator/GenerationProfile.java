@@ -0,0 +1,157 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Presets that trade the size of a patch against the CPU time needed to generate it, consistently
+ * across all stages of generation: divining the deflate parameters of the entries of the new
+ * archive, and diffing the delta-friendly blobs with bsdiff. Patches generated with any profile
+ * can be applied by the same applier.
+ */
+public enum GenerationProfile {
+  /**
+   * For builds that need a patch quickly, like continuous integration. Only the most popular
+   * deflate levels are divined, so entries compressed with other levels stay compressed in the
+   * delta-friendly blobs. bsdiff finds matches with a hash-chain index instead of sorting the
+   * suffixes of the old blob, matches on all processors, which costs a little patch size at the
+   * seams between the threads, and gives up sooner on extending matches in repetitive data.
+   */
+  FAST(
+      levels(6, 9, 1),
+      Collections.<Integer>emptyList(),
+      Collections.<Integer>emptyList(),
+      100 * 1024,
+      levels(16),
+      1L << 22,
+      true,
+      true),
+
+  /** The default, which was the only behavior before profiles existed. */
+  BALANCED(
+      levels(6, 9, 1, 4, 2, 3, 5, 7, 8),
+      levels(6, 9, 4, 5, 7, 8),
+      levels(1),
+      100 * 1024,
+      levels(16),
+      1L << 26,
+      false,
+      false),
+
+  /**
+   * For release builds, where the patch is downloaded many times and should be as small as
+   * possible. Every deflate parameter is divined, and more entries are divined in memory. No
+   * minimum match length is best for all inputs, so bsdiff matches the new blob once for each of
+   * several lengths against the same suffix array and keeps the entries that compress best, which
+   * takes a little longer than sorting the suffixes.
+   */
+  MAX(
+      levels(6, 9, 1, 4, 2, 3, 5, 7, 8),
+      levels(6, 9, 4, 5, 7, 8),
+      levels(1),
+      1024 * 1024,
+      levels(16, 24),
+      1L << 26,
+      false,
+      false);
+
+  /** The levels to try for each strategy, in the order to attempt them. */
+  private final List<List<Integer>> divinationLevelsByStrategy;
+
+  private final int inMemoryDivinationThresholdBytes;
+  private final List<Integer> bsDiffMinimumMatchLengths;
+  private final long bsDiffTotalMatchLengthBudget;
+  private final boolean bsDiffParallelMatching;
+  private final boolean bsDiffHashChainMatching;
+
+  private GenerationProfile(
+      List<Integer> strategy0Levels,
+      List<Integer> strategy1Levels,
+      List<Integer> strategy2Levels,
+      int inMemoryDivinationThresholdBytes,
+      List<Integer> bsDiffMinimumMatchLengths,
+      long bsDiffTotalMatchLengthBudget,
+      boolean bsDiffParallelMatching,
+      boolean bsDiffHashChainMatching) {
+    this.divinationLevelsByStrategy =
+        Collections.unmodifiableList(
+            Arrays.asList(strategy0Levels, strategy1Levels, strategy2Levels));
+    this.inMemoryDivinationThresholdBytes = inMemoryDivinationThresholdBytes;
+    this.bsDiffMinimumMatchLengths = bsDiffMinimumMatchLengths;
+    this.bsDiffTotalMatchLengthBudget = bsDiffTotalMatchLengthBudget;
+    this.bsDiffParallelMatching = bsDiffParallelMatching;
+    this.bsDiffHashChainMatching = bsDiffHashChainMatching;
+  }
+
+  /**
+   * Returns the deflate levels that the {@link DefaultDeflateCompressionDiviner} tries with the
+   * specified strategy, in the order to try them. The best order is simply the order of popularity
+   * in the world, which is expected to be default (6), maximum compression (9), and fastest (1).
+   * Levels 1, 2 and 3 are never tried with strategy 1 because they behave the same under strategy
+   * 0, and strategy 2 ignores the level, so it is vacuously tried with level 1.
+   *
+   * @param strategy the deflate strategy, 0, 1 or 2
+   * @return the levels, possibly none
+   */
+  public List<Integer> getDivinationLevels(int strategy) {
+    return divinationLevelsByStrategy.get(strategy);
+  }
+
+  /**
+   * Returns the compressed size below which an entry is read into memory once for divining its
+   * deflate parameters, instead of being read from the archive for every attempt.
+   */
+  public int getInMemoryDivinationThresholdBytes() {
+    return inMemoryDivinationThresholdBytes;
+  }
+
+  /**
+   * Returns the minimum match lengths for bsdiff to try, of which the one whose patch compresses
+   * best is used. Within a memory budget, the best one is chosen for each window of the new blob.
+   */
+  public List<Integer> getBsDiffMinimumMatchLengths() {
+    return bsDiffMinimumMatchLengths;
+  }
+
+  /**
+   * Returns the total length of the matches that bsdiff may examine while searching for the next
+   * match before settling for the current one, which bounds the time spent on repetitive data.
+   */
+  public long getBsDiffTotalMatchLengthBudget() {
+    return bsDiffTotalMatchLengthBudget;
+  }
+
+  /** Returns the maximum number of threads for bsdiff to match the new blob on. */
+  public int getBsDiffMatchingThreadCount() {
+    return bsDiffParallelMatching ? Runtime.getRuntime().availableProcessors() : 1;
+  }
+
+  /**
+   * Returns whether bsdiff finds matches with a hash-chain index of the old blob, which is built in
+   * a single pass, instead of with its suffix array. The index is built once for all minimum match
+   * lengths. Generation within a memory budget always uses suffix arrays of windows of the old
+   * blob.
+   */
+  public boolean isBsDiffHashChainMatching() {
+    return bsDiffHashChainMatching;
+  }
+
+  private static List<Integer> levels(Integer... levels) {
+    return Collections.unmodifiableList(Arrays.asList(levels));
+  }
+}
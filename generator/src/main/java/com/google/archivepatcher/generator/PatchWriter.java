@@ -18,11 +18,15 @@ import com.google.archivepatcher.shared.JreDeflateParameters;
 import com.google.archivepatcher.shared.PatchConstants;
 import com.google.archivepatcher.shared.TypedRange;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Writes patches.
@@ -44,10 +48,111 @@ public class PatchWriter {
    */
   private final long deltaFriendlyNewFileSize;
 
+  /** The records that produce the work ranges of the new delta-friendly file, in order. */
+  private final List<Record> records;
+
+  /** A delta to write to the patch, wherever it is held. */
+  public interface DeltaSource {
+    /**
+     * Returns the length of the delta.
+     *
+     * @return the length in bytes
+     */
+    long length();
+
+    /**
+     * Writes the whole delta to the specified stream.
+     *
+     * @param out the stream to write to, which is not closed
+     * @throws IOException if unable to read the delta or write it
+     */
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /** A delta in a file. */
+  public static final class FileDeltaSource implements DeltaSource {
+    private final File deltaFile;
+
+    /**
+     * Creates a source for the delta in the specified file, which is read when it is written.
+     *
+     * @param deltaFile the file
+     */
+    public FileDeltaSource(File deltaFile) {
+      this.deltaFile = deltaFile;
+    }
+
+    @Override
+    public long length() {
+      return deltaFile.length();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      try (FileInputStream deltaFileIn = new FileInputStream(deltaFile);
+          BufferedInputStream deltaIn = new BufferedInputStream(deltaFileIn)) {
+        byte[] buffer = new byte[32768];
+        int numRead = 0;
+        while ((numRead = deltaIn.read(buffer)) >= 0) {
+          out.write(buffer, 0, numRead);
+        }
+      }
+    }
+  }
+
+  /** A delta generated in memory. */
+  public static final class InMemoryDeltaSource implements DeltaSource {
+    private final ByteArrayOutputStream delta;
+
+    /**
+     * Creates a source for the delta in the specified stream, which is written without copying it.
+     *
+     * @param delta the stream that the delta was written to
+     */
+    public InMemoryDeltaSource(ByteArrayOutputStream delta) {
+      this.delta = delta;
+    }
+
+    @Override
+    public long length() {
+      return delta.size();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      delta.writeTo(out);
+    }
+  }
+
   /**
-   * The delta that transforms the old delta-friendly file into the new delta-friendly file.
+   * A record of the patch: the work range of the delta-friendly new file that it produces, either
+   * as a verbatim copy of a range of the delta-friendly old file or with a delta against the whole
+   * delta-friendly old file.
    */
-  private final File deltaFile;
+  private static final class Record {
+    /** The format of the record, {@link PatchConstants.DeltaFormat#COPY} for a verbatim copy. */
+    final PatchConstants.DeltaFormat format;
+
+    /** The work range of the delta-friendly new file. */
+    final TypedRange<Void> newRange;
+
+    /** The offset of the copied range in the delta-friendly old file, for a verbatim copy. */
+    final long oldOffset;
+
+    /** The delta, or null for a verbatim copy. */
+    final DeltaSource delta;
+
+    private Record(
+        PatchConstants.DeltaFormat format,
+        TypedRange<?> newRange,
+        long oldOffset,
+        DeltaSource delta) {
+      this.format = format;
+      this.newRange = new TypedRange<Void>(newRange.getOffset(), newRange.getLength(), null);
+      this.oldOffset = oldOffset;
+      this.delta = delta;
+    }
+  }
 
   /**
    * Creates a new patch writer.
@@ -59,17 +164,175 @@ public class PatchWriter {
    * @param deltaFriendlyNewFileSize the expected size of the delta-friendly new file, provided for
    *     forward compatibility
    * @param deltaFile the delta that transforms the old delta-friendly file into the new
-   *     delta-friendly file
+   *     delta-friendly file, in the bsdiff format
    */
   public PatchWriter(
       PreDiffPlan plan,
       long deltaFriendlyOldFileSize,
       long deltaFriendlyNewFileSize,
       File deltaFile) {
+    this(
+        plan,
+        deltaFriendlyOldFileSize,
+        deltaFriendlyNewFileSize,
+        deltaFile,
+        PatchConstants.DeltaFormat.BSDIFF);
+  }
+
+  /**
+   * Creates a new patch writer for a delta in the specified format.
+   *
+   * @param plan the patch plan
+   * @param deltaFriendlyOldFileSize the expected size of the delta-friendly old file, provided as a
+   *     convenience for the patch <strong>applier</strong> to reserve space on the filesystem for
+   *     applying the patch
+   * @param deltaFriendlyNewFileSize the expected size of the delta-friendly new file, which the
+   *     applier uses to bound the output of the delta
+   * @param deltaFile the delta that transforms the old delta-friendly file into the new
+   *     delta-friendly file
+   * @param deltaFormat the format of the delta
+   */
+  public PatchWriter(
+      PreDiffPlan plan,
+      long deltaFriendlyOldFileSize,
+      long deltaFriendlyNewFileSize,
+      File deltaFile,
+      PatchConstants.DeltaFormat deltaFormat) {
+    this(
+        plan,
+        deltaFriendlyOldFileSize,
+        deltaFriendlyNewFileSize,
+        Collections.singletonList(
+            new TypedRange<File>(0, deltaFriendlyNewFileSize, deltaFile)),
+        deltaFormat);
+  }
+
+  /**
+   * Creates a new patch writer for several deltas in the specified format, each of which produces
+   * one work range of the delta-friendly new file from the whole delta-friendly old file. A patch
+   * with more than one delta is marked with {@link PatchConstants#FLAG_MULTIPLE_DELTA_RECORDS}.
+   *
+   * @param plan the patch plan
+   * @param deltaFriendlyOldFileSize the expected size of the delta-friendly old file, provided as a
+   *     convenience for the patch <strong>applier</strong> to reserve space on the filesystem for
+   *     applying the patch
+   * @param deltaFriendlyNewFileSize the expected size of the delta-friendly new file
+   * @param deltaFiles the work ranges of the delta-friendly new file, contiguous and in order from
+   *     the start of the file, with the deltas that produce them as metadata
+   * @param deltaFormat the format of the deltas
+   */
+  public PatchWriter(
+      PreDiffPlan plan,
+      long deltaFriendlyOldFileSize,
+      long deltaFriendlyNewFileSize,
+      List<TypedRange<File>> deltaFiles,
+      PatchConstants.DeltaFormat deltaFormat) {
+    this(
+        plan,
+        deltaFriendlyOldFileSize,
+        deltaFriendlyNewFileSize,
+        fromFiles(deltaFiles),
+        deltaFormat,
+        Collections.<TypedRange<Long>>emptyList());
+  }
+
+  /**
+   * Creates a new patch writer for several deltas in the specified format and for verbatim copies
+   * of ranges of the delta-friendly old file, which together produce the work ranges of the
+   * delta-friendly new file. Copies are written as {@link PatchConstants.DeltaFormat#COPY} records
+   * and take no space in the patch beyond their record. A patch with more than one record is marked
+   * with {@link PatchConstants#FLAG_MULTIPLE_DELTA_RECORDS}.
+   *
+   * @param plan the patch plan
+   * @param deltaFriendlyOldFileSize the expected size of the delta-friendly old file, provided as a
+   *     convenience for the patch <strong>applier</strong> to reserve space on the filesystem for
+   *     applying the patch
+   * @param deltaFriendlyNewFileSize the expected size of the delta-friendly new file
+   * @param deltas the work ranges of the delta-friendly new file that are produced by deltas
+   *     against the whole delta-friendly old file, in order, with the deltas as metadata
+   * @param deltaFormat the format of the deltas
+   * @param copyRanges the work ranges of the delta-friendly new file that are verbatim copies of
+   *     ranges of the delta-friendly old file, in order, with the offsets of the copied ranges as
+   *     metadata; together with the delta work ranges they must be contiguous and cover the file
+   */
+  public PatchWriter(
+      PreDiffPlan plan,
+      long deltaFriendlyOldFileSize,
+      long deltaFriendlyNewFileSize,
+      List<TypedRange<DeltaSource>> deltas,
+      PatchConstants.DeltaFormat deltaFormat,
+      List<TypedRange<Long>> copyRanges) {
+    List<Record> records = new ArrayList<Record>(deltas.size() + copyRanges.size());
+    int deltaIndex = 0;
+    int copyIndex = 0;
+    long expectedOffset = 0;
+    while (deltaIndex < deltas.size() || copyIndex < copyRanges.size()) {
+      Record record;
+      if (copyIndex < copyRanges.size()
+          && copyRanges.get(copyIndex).getOffset() == expectedOffset) {
+        TypedRange<Long> copyRange = copyRanges.get(copyIndex++);
+        if (copyRange.getMetadata() < 0
+            || copyRange.getMetadata() + copyRange.getLength() > deltaFriendlyOldFileSize) {
+          throw new IllegalArgumentException("Copy exceeds the old file: " + copyRange);
+        }
+        record =
+            new Record(PatchConstants.DeltaFormat.COPY, copyRange, copyRange.getMetadata(), null);
+      } else if (deltaIndex < deltas.size()
+          && deltas.get(deltaIndex).getOffset() == expectedOffset) {
+        TypedRange<DeltaSource> deltaRange = deltas.get(deltaIndex++);
+        if (deltaRange.getMetadata() == null) {
+          throw new IllegalArgumentException("Missing delta: " + deltaRange);
+        }
+        record = new Record(deltaFormat, deltaRange, 0, deltaRange.getMetadata());
+      } else {
+        throw new IllegalArgumentException(
+            "Work ranges are not contiguous: " + deltas + ", " + copyRanges);
+      }
+      records.add(record);
+      expectedOffset += record.newRange.getLength();
+    }
+    if (records.isEmpty() || expectedOffset != deltaFriendlyNewFileSize) {
+      throw new IllegalArgumentException(
+          "Work ranges don't cover the file: " + deltas + ", " + copyRanges);
+    }
     this.plan = plan;
     this.deltaFriendlyOldFileSize = deltaFriendlyOldFileSize;
     this.deltaFriendlyNewFileSize = deltaFriendlyNewFileSize;
-    this.deltaFile = deltaFile;
+    this.records = records;
+  }
+
+  /**
+   * Returns the specified work ranges with sources for the deltas in the files of their metadata.
+   *
+   * @param deltaFiles the work ranges, with the files that hold their deltas as metadata
+   * @return the work ranges, with the sources as metadata
+   */
+  public static List<TypedRange<DeltaSource>> fromFiles(List<TypedRange<File>> deltaFiles) {
+    List<TypedRange<DeltaSource>> deltas = new ArrayList<TypedRange<DeltaSource>>();
+    for (TypedRange<File> range : deltaFiles) {
+      deltas.add(
+          new TypedRange<DeltaSource>(
+              range.getOffset(), range.getLength(), new FileDeltaSource(range.getMetadata())));
+    }
+    return deltas;
+  }
+
+  /**
+   * Returns the specified work ranges with sources for the deltas held in the streams of their
+   * metadata.
+   *
+   * @param deltaStreams the work ranges, with the streams that hold their deltas as metadata
+   * @return the work ranges, with the sources as metadata
+   */
+  public static List<TypedRange<DeltaSource>> fromByteArrayOutputStreams(
+      List<TypedRange<ByteArrayOutputStream>> deltaStreams) {
+    List<TypedRange<DeltaSource>> deltas = new ArrayList<TypedRange<DeltaSource>>();
+    for (TypedRange<ByteArrayOutputStream> range : deltaStreams) {
+      deltas.add(
+          new TypedRange<DeltaSource>(
+              range.getOffset(), range.getLength(), new InMemoryDeltaSource(range.getMetadata())));
+    }
+    return deltas;
   }
 
   /**
@@ -85,7 +348,8 @@ public class PatchWriter {
     DataOutputStream dataOut = new DataOutputStream(out);
 
     dataOut.write(PatchConstants.IDENTIFIER.getBytes("US-ASCII"));
-    dataOut.writeInt(0); // Flags (reserved)
+    // Flags. Only the one for several delta records is defined; the rest are reserved.
+    dataOut.writeInt(records.size() > 1 ? PatchConstants.FLAG_MULTIPLE_DELTA_RECORDS : 0);
     dataOut.writeLong(deltaFriendlyOldFileSize);
 
     // Write out all the delta-friendly old file uncompression instructions
@@ -108,29 +372,41 @@ public class PatchWriter {
     }
 
     // Now the delta section
-    // First write the number of deltas present in the patch. In v1, there is always exactly one
-    // delta, and it is for the entire input; in future versions there may be multiple deltas, of
-    // arbitrary types.
-    dataOut.writeInt(1);
-    // In v1 the delta format is always bsdiff, so write it unconditionally.
-    dataOut.write(PatchConstants.DeltaFormat.BSDIFF.patchValue);
-
-    // Write the working ranges. In v1 these are always the entire contents of the delta-friendly
-    // old file and the delta-friendly new file. These are for forward compatibility with future
-    // versions that may allow deltas of arbitrary formats to be mapped to arbitrary ranges.
-    dataOut.writeLong(0); // i.e., start of the working range in the delta-friendly old file
-    dataOut.writeLong(deltaFriendlyOldFileSize); // i.e., length of the working range in old
-    dataOut.writeLong(0); // i.e., start of the working range in the delta-friendly new file
-    dataOut.writeLong(deltaFriendlyNewFileSize); // i.e., length of the working range in new
-
-    // Finally, the length of the delta and the delta itself.
-    dataOut.writeLong(deltaFile.length());
-    try (FileInputStream deltaFileIn = new FileInputStream(deltaFile);
-        BufferedInputStream deltaIn = new BufferedInputStream(deltaFileIn)) {
-      byte[] buffer = new byte[32768];
-      int numRead = 0;
-      while ((numRead = deltaIn.read(buffer)) >= 0) {
-        dataOut.write(buffer, 0, numRead);
+    // First write the number of deltas present in the patch. Without the flag for several delta
+    // records there is exactly one delta, and it is for the entire input; in future versions there
+    // may be deltas of arbitrary types.
+    dataOut.writeInt(records.size());
+    for (Record record : records) {
+      TypedRange<Void> range = record.newRange;
+      // The format of each record, bsdiff unless the deltas were generated otherwise.
+      dataOut.write(record.format.patchValue);
+      if (record.format == PatchConstants.DeltaFormat.COPY) {
+        // A verbatim copy works on a range of the delta-friendly old file as long as its range of
+        // the delta-friendly new file, and has no delta.
+        dataOut.writeLong(record.oldOffset);
+        dataOut.writeLong(range.getLength());
+        dataOut.writeLong(range.getOffset());
+        dataOut.writeLong(range.getLength());
+        dataOut.writeLong(0);
+        continue;
+      }
+
+      // Write the working ranges. Every delta works on the entire contents of the delta-friendly
+      // old file, and produces its own range of the delta-friendly new file, which is the whole
+      // file when there is only one delta.
+      dataOut.writeLong(0); // i.e., start of the working range in the delta-friendly old file
+      dataOut.writeLong(deltaFriendlyOldFileSize); // i.e., length of the working range in old
+      dataOut.writeLong(range.getOffset()); // i.e., start of the working range in the new file
+      dataOut.writeLong(range.getLength()); // i.e., length of the working range in new
+
+      // The length of the delta. The deltas themselves follow the last record.
+      dataOut.writeLong(record.delta.length());
+    }
+
+    // Finally, the deltas themselves, in the order of the records.
+    for (Record record : records) {
+      if (record.delta != null) {
+        record.delta.writeTo(dataOut);
       }
     }
     dataOut.flush();
@@ -20,28 +20,86 @@ import com.google.archivepatcher.shared.*;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Prepares resources for differencing.
  */
 public class PreDiffExecutor {
 
+  /**
+   * The stages of {@link #prepareForDiffing()}. The old entries are listed concurrently with the
+   * new entries, and the delta-friendly old file is written concurrently with the new one; planning
+   * runs on its own in between. Divination is part of planning, since the planner decides which
+   * entries to divine, so nothing overlaps it. The time to prepare is therefore the longer of the
+   * two listings, plus planning, plus the longer of the two writes.
+   */
+  public enum Stage {
+    /** Listing the entries of the original old file. */
+    LIST_OLD_ENTRIES,
+    /** Listing the entries of the original new file. */
+    LIST_NEW_ENTRIES,
+    /**
+     * Divining the deflate parameters of the entries of the original new file that planning
+     * decides to uncompress, which is part of planning.
+     */
+    DIVINE_NEW_ENTRIES,
+    /** Planning, which depends on both the old entries and the new entries. */
+    PLAN,
+    /** Writing the delta-friendly old file, which depends on the plan. */
+    WRITE_DELTA_FRIENDLY_OLD_FILE,
+    /** Writing the delta-friendly new file, which depends on the plan. */
+    WRITE_DELTA_FRIENDLY_NEW_FILE
+  }
+
+  /** Supplies a file to write a delta-friendly binary to, which may create it on demand. */
+  public interface FileSupplier {
+    /**
+     * Returns the file, which is only called if the binary is written to a file.
+     *
+     * @return the file to write the binary to (will be overwritten if it exists)
+     * @throws IOException if unable to create the file
+     */
+    File get() throws IOException;
+  }
+
+  private static final Logger logger = Logger.getLogger(PreDiffExecutor.class.getName());
+
+  /** The maximum length of a delta-friendly binary that can be held in a byte array. */
+  private static final long MAX_BLOB_LENGTH = Integer.MAX_VALUE - 8;
+
   private BiFunction<Integer, Boolean, IDeflater> deflaterFactory;
 
   /** A helper class to build a {@link PreDiffExecutor} with a variety of configurations. */
   public static final class Builder {
     private File originalOldFile;
     private File originalNewFile;
-    private File deltaFriendlyOldFile;
-    private File deltaFriendlyNewFile;
+    private FileSupplier deltaFriendlyOldFile;
+    private FileSupplier deltaFriendlyNewFile;
+    private OutputStream deltaFriendlyOldOut;
+    private OutputStream deltaFriendlyNewOut;
+    private long deltaFriendlyBlobsMaxLength = -1;
     private BiFunction<Integer, Boolean, IDeflater> deflaterFactory = DefaultDeflater::new;
+    private GenerationProfile generationProfile = GenerationProfile.BALANCED;
+    private ArchiveAnalysisCache analysisCache;
+    private int divinationThreadCount = 1;
+    private ExecutorService executor;
     private final List<RecommendationModifier> recommendationModifiers = new ArrayList<>();
 
     /**
@@ -73,8 +131,76 @@ public class PreDiffExecutor {
       if (deltaFriendlyOldFile == null || deltaFriendlyNewFile == null) {
         throw new IllegalStateException("do not set null delta-friendly files");
       }
+      return writingDeltaFriendlyFilesOnDemand(
+          () -> deltaFriendlyOldFile, () -> deltaFriendlyNewFile);
+    }
+
+    /**
+     * Like {@link #writingDeltaFriendlyFiles(File, File)}, but only gets the files when the
+     * delta-friendly binaries are written to them, e.g. to create temp files only if they are not
+     * held in memory as set by {@link #holdingDeltaFriendlyBlobsUpTo(long)}. The suppliers may be
+     * called on any thread.
+     *
+     * @param deltaFriendlyOldFile the supplier of the file to write the old binary to
+     * @param deltaFriendlyNewFile the supplier of the file to write the new binary to
+     * @return this builder
+     */
+    public Builder writingDeltaFriendlyFilesOnDemand(
+        FileSupplier deltaFriendlyOldFile, FileSupplier deltaFriendlyNewFile) {
+      if (deltaFriendlyOldFile == null || deltaFriendlyNewFile == null) {
+        throw new IllegalStateException("do not set null delta-friendly files");
+      }
       this.deltaFriendlyOldFile = deltaFriendlyOldFile;
       this.deltaFriendlyNewFile = deltaFriendlyNewFile;
+      this.deltaFriendlyOldOut = null;
+      this.deltaFriendlyNewOut = null;
+      this.deltaFriendlyBlobsMaxLength = -1;
+      return this;
+    }
+
+    /**
+     * Sets the streams to write the delta-friendly intermediate binaries to instead of files, e.g.
+     * to generate a patch without touching the disk. The streams are not closed. If called, both
+     * arguments must be non-null; this replaces any files set by {@link
+     * #writingDeltaFriendlyFiles(File, File)}.
+     *
+     * @param deltaFriendlyOldOut the stream to write the delta-friendly old binary to
+     * @param deltaFriendlyNewOut the stream to write the delta-friendly new binary to
+     * @return this builder
+     */
+    public Builder writingDeltaFriendlyStreams(
+        OutputStream deltaFriendlyOldOut, OutputStream deltaFriendlyNewOut) {
+      if (deltaFriendlyOldOut == null || deltaFriendlyNewOut == null) {
+        throw new IllegalStateException("do not set null delta-friendly streams");
+      }
+      this.deltaFriendlyOldOut = deltaFriendlyOldOut;
+      this.deltaFriendlyNewOut = deltaFriendlyNewOut;
+      this.deltaFriendlyOldFile = null;
+      this.deltaFriendlyNewFile = null;
+      this.deltaFriendlyBlobsMaxLength = -1;
+      return this;
+    }
+
+    /**
+     * Holds the delta-friendly intermediate binaries in byte arrays of exactly their length instead
+     * of writing them to the files set by {@link #writingDeltaFriendlyFiles(File, File)} or {@link
+     * #writingDeltaFriendlyFilesOnDemand(FileSupplier, FileSupplier)}, but only if neither binary
+     * is longer than the specified length or than a byte array can be. The lengths are only known
+     * once the plan is, so this lets the caller keep the binaries in memory when they fit and fall
+     * back to files when they don't; {@link PreDiffExecutor#getDeltaFriendlyOldBlob()} tells which
+     * it was. The files must be set before this.
+     *
+     * @param maxLength the maximum length of either binary to hold in memory
+     * @return this builder
+     */
+    public Builder holdingDeltaFriendlyBlobsUpTo(long maxLength) {
+      if (deltaFriendlyOldFile == null) {
+        throw new IllegalStateException("set the delta-friendly files to fall back to first");
+      }
+      if (maxLength < 0) {
+        throw new IllegalArgumentException("Unsupported maximum length: " + maxLength);
+      }
+      this.deltaFriendlyBlobsMaxLength = Math.min(maxLength, MAX_BLOB_LENGTH);
       return this;
     }
 
@@ -83,6 +209,70 @@ public class PreDiffExecutor {
       return this;
     }
 
+    /**
+     * Sets the profile that determines how thoroughly the deflate parameters of the entries of the
+     * new file are divined. The default is {@link GenerationProfile#BALANCED}.
+     *
+     * @param generationProfile the profile to use
+     * @return this builder
+     */
+    public Builder withGenerationProfile(GenerationProfile generationProfile) {
+      if (generationProfile == null) {
+        throw new IllegalArgumentException("generationProfile cannot be null");
+      }
+      this.generationProfile = generationProfile;
+      return this;
+    }
+
+    /**
+     * Sets an optional cache to take the entries of the old file and the divined deflate parameters
+     * of the entries of the new file from, and to add them to, instead of analyzing the files every
+     * time. The cache must only ever be used with the same deflater factory.
+     *
+     * @param analysisCache the cache to use
+     * @return this builder
+     */
+    public Builder withAnalysisCache(ArchiveAnalysisCache analysisCache) {
+      if (analysisCache == null) {
+        throw new IllegalArgumentException("analysisCache cannot be null");
+      }
+      this.analysisCache = analysisCache;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of threads to divine the deflate parameters of the entries of the new
+     * file on. The default is 1, which divines them on the thread that prepares for diffing.
+     *
+     * @param divinationThreadCount the number of threads, at least 1
+     * @return this builder
+     */
+    public Builder withDivinationThreadCount(int divinationThreadCount) {
+      if (divinationThreadCount < 1) {
+        throw new IllegalArgumentException(
+            "Unsupported divination thread count: " + divinationThreadCount);
+      }
+      this.divinationThreadCount = divinationThreadCount;
+      return this;
+    }
+
+    /**
+     * Sets an optional executor to run the old listing and the writing of the delta-friendly old
+     * file on, and to divine on if {@link #withDivinationThreadCount(int)} allows more than one
+     * thread. It needs at least one thread and is not shut down. By default, each call to {@link
+     * PreDiffExecutor#prepareForDiffing()} creates and shuts down threads of its own.
+     *
+     * @param executor the executor to use
+     * @return this builder
+     */
+    public Builder withExecutor(ExecutorService executor) {
+      if (executor == null) {
+        throw new IllegalArgumentException("executor cannot be null");
+      }
+      this.executor = executor;
+      return this;
+    }
+
     /**
      * Appends an optional {@link RecommendationModifier} to be used during the generation of the
      * {@link PreDiffPlan} and/or delta-friendly blobs.
@@ -113,7 +303,14 @@ public class PreDiffExecutor {
           originalNewFile,
           deltaFriendlyOldFile,
           deltaFriendlyNewFile,
+          deltaFriendlyOldOut,
+          deltaFriendlyNewOut,
+          deltaFriendlyBlobsMaxLength,
           deflaterFactory,
+          generationProfile,
+          analysisCache,
+          divinationThreadCount,
+          executor,
           recommendationModifiers);
     }
   }
@@ -128,32 +325,86 @@ public class PreDiffExecutor {
    * Optional file to write the delta-friendly version of the original old file to (will be created,
    * overwriting if it already exists). If null, only the read-only planning step can be performed.
    */
-  private final File deltaFriendlyOldFile;
+  private final FileSupplier deltaFriendlyOldFile;
 
   /**
    * Optional file to write the delta-friendly version of the original new file to (will be created,
    * overwriting if it already exists). If null, only the read-only planning step can be performed.
    */
-  private final File deltaFriendlyNewFile;
+  private final FileSupplier deltaFriendlyNewFile;
+
+  /**
+   * Optional stream to write the delta-friendly version of the original old file to instead of
+   * {@link #deltaFriendlyOldFile} (will not be closed).
+   */
+  private final OutputStream deltaFriendlyOldOut;
+
+  /**
+   * Optional stream to write the delta-friendly version of the original new file to instead of
+   * {@link #deltaFriendlyNewFile} (will not be closed).
+   */
+  private final OutputStream deltaFriendlyNewOut;
+
+  /**
+   * The maximum length of either delta-friendly binary to hold in memory rather than write to the
+   * files, or -1 to always write them to the files.
+   */
+  private final long deltaFriendlyBlobsMaxLength;
+
+  /** The delta-friendly old binary of the last preparation, if it was held in memory. */
+  private volatile byte[] deltaFriendlyOldBlob;
+
+  /** The delta-friendly new binary of the last preparation, if it was held in memory. */
+  private volatile byte[] deltaFriendlyNewBlob;
+
+  /** The profile to divine the deflate parameters of the entries of the new file with. */
+  private final GenerationProfile generationProfile;
+
+  /** Optional cache of the entries and divined deflate parameters of archives. */
+  private final ArchiveAnalysisCache analysisCache;
+
+  /** The maximum number of threads to divine the deflate parameters on. */
+  private final int divinationThreadCount;
+
+  /** Optional executor to run the concurrent stages and divination on, which is not shut down. */
+  private final ExecutorService executor;
 
   /**
    * Optional {@link RecommendationModifier}s to be used for modifying the patch to be generated.
    */
   private final List<RecommendationModifier> recommendationModifiers;
 
+  /** The time that each stage of the last preparation took, in milliseconds. */
+  private final Map<Stage, Long> stageTimesMillis =
+      Collections.synchronizedMap(new EnumMap<Stage, Long>(Stage.class));
+
   /** Constructs a new PreDiffExecutor to work with the specified configuration. */
   private PreDiffExecutor(
           File originalOldFile,
           File originalNewFile,
-          File deltaFriendlyOldFile,
-          File deltaFriendlyNewFile,
+          FileSupplier deltaFriendlyOldFile,
+          FileSupplier deltaFriendlyNewFile,
+          OutputStream deltaFriendlyOldOut,
+          OutputStream deltaFriendlyNewOut,
+          long deltaFriendlyBlobsMaxLength,
           BiFunction<Integer, Boolean, IDeflater> deflaterFactory,
+          GenerationProfile generationProfile,
+          ArchiveAnalysisCache analysisCache,
+          int divinationThreadCount,
+          ExecutorService executor,
           List<RecommendationModifier> recommendationModifiers) {
     this.originalOldFile = originalOldFile;
     this.originalNewFile = originalNewFile;
     this.deltaFriendlyOldFile = deltaFriendlyOldFile;
     this.deltaFriendlyNewFile = deltaFriendlyNewFile;
+    this.deltaFriendlyOldOut = deltaFriendlyOldOut;
+    this.deltaFriendlyNewOut = deltaFriendlyNewOut;
+    this.deltaFriendlyBlobsMaxLength = deltaFriendlyBlobsMaxLength;
     this.deflaterFactory = deflaterFactory;
+    this.generationProfile = generationProfile;
+    this.analysisCache = analysisCache;
+    this.divinationThreadCount = divinationThreadCount;
+    this.executor = executor;
     this.recommendationModifiers = recommendationModifiers;
   }
 
@@ -164,70 +415,381 @@ public class PreDiffExecutor {
    * @throws IOException if unable to complete the operation due to an I/O error
    */
   public PreDiffPlan prepareForDiffing() throws IOException {
-    PreDiffPlan preDiffPlan = generatePreDiffPlan();
-    List<TypedRange<JreDeflateParameters>> deltaFriendlyNewFileRecompressionPlan = null;
-    if (deltaFriendlyOldFile != null) {
-      // Builder.writingDeltaFriendlyFiles() ensures old and new are non-null when called, so a
-      // check on either is sufficient.
-      deltaFriendlyNewFileRecompressionPlan =
-          Collections.unmodifiableList(generateDeltaFriendlyFiles(preDiffPlan));
+    stageTimesMillis.clear();
+    deltaFriendlyOldBlob = null;
+    deltaFriendlyNewBlob = null;
+    // No more than two stages are ever independent of each other, so the current thread runs one
+    // of them and the executor the other.
+    ExecutorService executor =
+        this.executor != null ? this.executor : Executors.newSingleThreadExecutor();
+    Future<List<MinimalZipEntry>> oldEntries = null;
+    Future<Void> oldFileWritten = null;
+    try {
+      // The old entries are only needed by the planner, so list them concurrently.
+      oldEntries =
+          executor.submit(
+              () ->
+                  runStage(
+                      Stage.LIST_OLD_ENTRIES,
+                      () ->
+                          analysisCache == null
+                              ? MinimalZipArchive.listEntries(originalOldFile)
+                              : analysisCache.listEntries(originalOldFile)));
+      List<MinimalZipEntry> newEntries =
+          runStage(
+              Stage.LIST_NEW_ENTRIES,
+              () ->
+                  analysisCache == null
+                      ? MinimalZipArchive.listEntries(originalNewFile)
+                      : analysisCache.listEntries(originalNewFile));
+      stageTimesMillis.put(Stage.DIVINE_NEW_ENTRIES, 0L);
+      List<MinimalZipEntry> oldEntryList = getResult(oldEntries);
+      PreDiffPlan preDiffPlan =
+          runStage(Stage.PLAN, () -> generatePreDiffPlan(oldEntryList, newEntries));
+      List<TypedRange<JreDeflateParameters>> deltaFriendlyNewFileRecompressionPlan = null;
+      if (deltaFriendlyBlobsMaxLength >= 0) {
+        long oldLength =
+            getDeltaFriendlyLength(
+                originalOldFile, oldEntryList, preDiffPlan.getOldFileUncompressionPlan());
+        long newLength =
+            getDeltaFriendlyLength(
+                originalNewFile, newEntries, preDiffPlan.getNewFileUncompressionPlan());
+        if (oldLength <= deltaFriendlyBlobsMaxLength && newLength <= deltaFriendlyBlobsMaxLength) {
+          deltaFriendlyOldBlob = new byte[(int) oldLength];
+          deltaFriendlyNewBlob = new byte[(int) newLength];
+        }
+      }
+      if (deltaFriendlyOldFile != null || deltaFriendlyOldOut != null) {
+        // Builder.writingDeltaFriendlyFiles() and Builder.writingDeltaFriendlyStreams() ensure old
+        // and new are non-null when called, so a check on either is sufficient. The delta-friendly
+        // files only depend on the plan, so write them concurrently.
+        oldFileWritten =
+            executor.submit(
+                () ->
+                    runStage(
+                        Stage.WRITE_DELTA_FRIENDLY_OLD_FILE,
+                        () -> {
+                          generateDeltaFriendlyOldFile(preDiffPlan);
+                          return null;
+                        }));
+        deltaFriendlyNewFileRecompressionPlan =
+            Collections.unmodifiableList(
+                runStage(
+                    Stage.WRITE_DELTA_FRIENDLY_NEW_FILE,
+                    () -> generateDeltaFriendlyNewFile(preDiffPlan)));
+        getResult(oldFileWritten);
+      }
+      if (logger.isLoggable(Level.FINE)) {
+        logger.fine("Prepared for diffing, in milliseconds per stage: " + getStageTimesMillis());
+      }
+      return new PreDiffPlan(
+          preDiffPlan.getQualifiedRecommendations(),
+          preDiffPlan.getOldFileUncompressionPlan(),
+          preDiffPlan.getNewFileUncompressionPlan(),
+          deltaFriendlyNewFileRecompressionPlan);
+    } finally {
+      if (this.executor == null) {
+        executor.shutdownNow();
+      } else {
+        // Stop the stages that are still running after a failure; this is a no-op on success.
+        cancel(oldEntries);
+        cancel(oldFileWritten);
+      }
+    }
+  }
+
+  /** Cancels a stage that was submitted to the executor, if it was submitted at all. */
+  private static void cancel(Future<?> stage) {
+    if (stage != null) {
+      stage.cancel(true);
+    }
+  }
+
+  /**
+   * Returns the delta-friendly old binary of the last call to {@link #prepareForDiffing()} if it
+   * was held in memory as set by {@link Builder#holdingDeltaFriendlyBlobsUpTo(long)}, in which case
+   * neither binary was written to the files.
+   *
+   * @return the binary, exactly as long as it is, or null if it was written to the file
+   */
+  public byte[] getDeltaFriendlyOldBlob() {
+    return deltaFriendlyOldBlob;
+  }
+
+  /**
+   * Returns the delta-friendly new binary of the last call to {@link #prepareForDiffing()} if it
+   * was held in memory; see {@link #getDeltaFriendlyOldBlob()}.
+   *
+   * @return the binary, exactly as long as it is, or null if it was written to the file
+   */
+  public byte[] getDeltaFriendlyNewBlob() {
+    return deltaFriendlyNewBlob;
+  }
+
+  /**
+   * Returns the length of the delta-friendly version of an original file: its own length, plus
+   * what uncompressing the planned ranges adds.
+   *
+   * @param originalFile the original file
+   * @param entries the entries of the original file
+   * @param uncompressionPlan the ranges of the compressed data of the entries to uncompress
+   * @return the length
+   */
+  private static long getDeltaFriendlyLength(
+      File originalFile,
+      List<MinimalZipEntry> entries,
+      List<? extends TypedRange<?>> uncompressionPlan) {
+    Map<Long, MinimalZipEntry> entriesByOffset = new HashMap<Long, MinimalZipEntry>();
+    for (MinimalZipEntry entry : entries) {
+      entriesByOffset.put(entry.getFileOffsetOfCompressedData(), entry);
+    }
+    long length = originalFile.length();
+    for (TypedRange<?> range : uncompressionPlan) {
+      length += entriesByOffset.get(range.getOffset()).getUncompressedSize() - range.getLength();
+    }
+    return length;
+  }
+
+  /**
+   * Returns the time that each stage of the last call to {@link #prepareForDiffing()} took, which
+   * shows where to optimize: the time to prepare is that of the longest chain of dependent stages,
+   * as described in {@link Stage}. Stages that were not run, such as writing the delta-friendly
+   * files when none are configured, are absent.
+   *
+   * @return the times in milliseconds, in the order of the stages
+   */
+  public Map<Stage, Long> getStageTimesMillis() {
+    Map<Stage, Long> result = new EnumMap<Stage, Long>(Stage.class);
+    synchronized (stageTimesMillis) {
+      result.putAll(stageTimesMillis);
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  /** The work of a stage. */
+  private interface StageWork<T> {
+    T run() throws IOException;
+  }
+
+  /**
+   * Runs a stage on the current thread and records the time it takes.
+   *
+   * @param stage the stage
+   * @param work the work of the stage
+   * @return the result of the work
+   * @throws IOException if the work throws it
+   */
+  private <T> T runStage(Stage stage, StageWork<T> work) throws IOException {
+    long startNanos = System.nanoTime();
+    try {
+      return work.run();
+    } finally {
+      stageTimesMillis.put(stage, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
     }
-    return new PreDiffPlan(
-        preDiffPlan.getQualifiedRecommendations(),
-        preDiffPlan.getOldFileUncompressionPlan(),
-        preDiffPlan.getNewFileUncompressionPlan(),
-        deltaFriendlyNewFileRecompressionPlan);
   }
 
   /**
-   * Generate the delta-friendly files and return the plan for recompressing the delta-friendly new
-   * file back into the original new file.
+   * Waits for a stage that runs on the executor and returns its result.
+   *
+   * @param result the result of the stage
+   * @return the value of the result
+   * @throws IOException if the stage threw it, or if interrupted while waiting
+   */
+  private static <T> T getResult(Future<T> result) throws IOException {
+    try {
+      return Futures.get(result);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while preparing for diffing");
+    }
+  }
+
+  /**
+   * Generate the delta-friendly old file.
    *
    * @param preDiffPlan the plan to execute
-   * @return as described
    * @throws IOException if anything goes wrong
    */
-  private List<TypedRange<JreDeflateParameters>> generateDeltaFriendlyFiles(PreDiffPlan preDiffPlan)
-      throws IOException {
-    try (FileOutputStream out = new FileOutputStream(deltaFriendlyOldFile);
+  private void generateDeltaFriendlyOldFile(PreDiffPlan preDiffPlan) throws IOException {
+    if (deltaFriendlyOldBlob != null) {
+      try (BlobOutputStream out = new BlobOutputStream(deltaFriendlyOldBlob)) {
+        DeltaFriendlyFile.generateDeltaFriendlyFile(
+            preDiffPlan.getOldFileUncompressionPlan(), originalOldFile, out);
+      }
+      return;
+    }
+    if (deltaFriendlyOldOut != null) {
+      DeltaFriendlyFile.generateDeltaFriendlyFile(
+          preDiffPlan.getOldFileUncompressionPlan(),
+          originalOldFile,
+          unclosable(deltaFriendlyOldOut));
+      return;
+    }
+    try (FileOutputStream out = new FileOutputStream(deltaFriendlyOldFile.get());
         BufferedOutputStream bufferedOut = new BufferedOutputStream(out)) {
       DeltaFriendlyFile.generateDeltaFriendlyFile(
           preDiffPlan.getOldFileUncompressionPlan(), originalOldFile, bufferedOut);
     }
-    try (FileOutputStream out = new FileOutputStream(deltaFriendlyNewFile);
+  }
+
+  /**
+   * Generate the delta-friendly new file and return the plan for recompressing it back into the
+   * original new file.
+   *
+   * @param preDiffPlan the plan to execute
+   * @return as described
+   * @throws IOException if anything goes wrong
+   */
+  private List<TypedRange<JreDeflateParameters>> generateDeltaFriendlyNewFile(
+      PreDiffPlan preDiffPlan) throws IOException {
+    if (deltaFriendlyNewBlob != null) {
+      try (BlobOutputStream out = new BlobOutputStream(deltaFriendlyNewBlob)) {
+        return DeltaFriendlyFile.generateDeltaFriendlyFile(
+            preDiffPlan.getNewFileUncompressionPlan(), originalNewFile, out);
+      }
+    }
+    if (deltaFriendlyNewOut != null) {
+      return DeltaFriendlyFile.generateDeltaFriendlyFile(
+          preDiffPlan.getNewFileUncompressionPlan(),
+          originalNewFile,
+          unclosable(deltaFriendlyNewOut));
+    }
+    try (FileOutputStream out = new FileOutputStream(deltaFriendlyNewFile.get());
         BufferedOutputStream bufferedOut = new BufferedOutputStream(out)) {
       return DeltaFriendlyFile.generateDeltaFriendlyFile(
           preDiffPlan.getNewFileUncompressionPlan(), originalNewFile, bufferedOut);
     }
   }
 
+  /** Wraps the stream so that closing the wrapper only flushes it. */
+  private static OutputStream unclosable(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    };
+  }
+
   /**
-   * Analyze the original old and new files and generate a plan to transform them into their
-   * delta-friendly equivalents.
+   * A stream that fills a byte array of the planned length of a delta-friendly binary, and fails if
+   * the binary turns out to be of any other length.
+   */
+  private static final class BlobOutputStream extends OutputStream {
+    private final byte[] blob;
+    private int length;
+
+    BlobOutputStream(byte[] blob) {
+      this.blob = blob;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (length == blob.length) {
+        throw new IOException("Delta-friendly binary is longer than planned: " + blob.length);
+      }
+      blob[length++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (len > blob.length - length) {
+        throw new IOException("Delta-friendly binary is longer than planned: " + blob.length);
+      }
+      System.arraycopy(b, off, blob, length, len);
+      length += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (length != blob.length) {
+        throw new IOException(
+            "Delta-friendly binary is " + length + " bytes instead of " + blob.length);
+      }
+    }
+  }
+
+  /**
+   * Divines the deflate parameters of the specified entries of the original new file on up to
+   * {@link #divinationThreadCount} threads, using the analysis cache if there is one, and adds the
+   * time it takes to that of {@link Stage#DIVINE_NEW_ENTRIES}.
    *
+   * @param entries the entries to divine
+   * @return the deflate parameters of the entries, in the same order
+   * @throws IOException if unable to read the original new file, or if interrupted
+   */
+  private List<JreDeflateParameters> divineNewEntries(List<MinimalZipEntry> entries)
+      throws IOException {
+    long startNanos = System.nanoTime();
+    DefaultDeflateCompressionDiviner diviner =
+        new DefaultDeflateCompressionDiviner(deflaterFactory, generationProfile);
+    ExecutorService executor =
+        divinationThreadCount == 1
+            ? null
+            : this.executor != null
+                ? this.executor
+                : Executors.newFixedThreadPool(divinationThreadCount);
+    try {
+      List<DivinationResult> divinationResults;
+      if (analysisCache != null) {
+        divinationResults =
+            analysisCache.divineDeflateParameters(
+                originalNewFile, entries, diviner, executor, divinationThreadCount);
+      } else if (executor == null) {
+        divinationResults = diviner.divineDeflateParameters(originalNewFile, entries);
+      } else {
+        divinationResults =
+            diviner.divineDeflateParameters(
+                originalNewFile, entries, executor, divinationThreadCount);
+      }
+      List<JreDeflateParameters> parameters = new ArrayList<>(divinationResults.size());
+      for (DivinationResult divinationResult : divinationResults) {
+        parameters.add(divinationResult.divinedParameters);
+      }
+      return parameters;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while divining");
+    } finally {
+      if (executor != null && executor != this.executor) {
+        executor.shutdownNow();
+      }
+      stageTimesMillis.merge(
+          Stage.DIVINE_NEW_ENTRIES,
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
+          Long::sum);
+    }
+  }
+
+  /**
+   * Plan how to transform the original old and new files into their delta-friendly equivalents.
+   *
+   * @param oldEntries the entries of the original old file
+   * @param newEntries the entries of the original new file
    * @return the plan, which does not yet contain information for recompressing the delta-friendly
    *     new archive.
    * @throws IOException if anything goes wrong
    */
-  private PreDiffPlan generatePreDiffPlan() throws IOException {
+  private PreDiffPlan generatePreDiffPlan(
+      List<MinimalZipEntry> oldEntries, List<MinimalZipEntry> newEntries) throws IOException {
     Map<ByteArrayHolder, MinimalZipEntry> originalOldArchiveZipEntriesByPath =
         new HashMap<ByteArrayHolder, MinimalZipEntry>();
     Map<ByteArrayHolder, MinimalZipEntry> originalNewArchiveZipEntriesByPath =
         new HashMap<ByteArrayHolder, MinimalZipEntry>();
-    Map<ByteArrayHolder, JreDeflateParameters> originalNewArchiveJreDeflateParametersByPath =
-        new HashMap<ByteArrayHolder, JreDeflateParameters>();
 
-    for (MinimalZipEntry zipEntry : MinimalZipArchive.listEntries(originalOldFile)) {
+    for (MinimalZipEntry zipEntry : oldEntries) {
       ByteArrayHolder key = new ByteArrayHolder(zipEntry.getFileNameBytes());
       originalOldArchiveZipEntriesByPath.put(key, zipEntry);
     }
 
-    DefaultDeflateCompressionDiviner diviner = new DefaultDeflateCompressionDiviner(deflaterFactory);
-    for (DivinationResult divinationResult : diviner.divineDeflateParameters(originalNewFile)) {
-      ByteArrayHolder key =
-          new ByteArrayHolder(divinationResult.minimalZipEntry.getFileNameBytes());
-      originalNewArchiveZipEntriesByPath.put(key, divinationResult.minimalZipEntry);
-      originalNewArchiveJreDeflateParametersByPath.put(key, divinationResult.divinedParameters);
+    for (MinimalZipEntry zipEntry : newEntries) {
+      ByteArrayHolder key = new ByteArrayHolder(zipEntry.getFileNameBytes());
+      originalNewArchiveZipEntriesByPath.put(key, zipEntry);
     }
 
     PreDiffPlanner preDiffPlanner =
@@ -236,7 +798,7 @@ public class PreDiffExecutor {
             originalOldArchiveZipEntriesByPath,
             originalNewFile,
             originalNewArchiveZipEntriesByPath,
-            originalNewArchiveJreDeflateParametersByPath,
+            this::divineNewEntries,
             recommendationModifiers.toArray(new RecommendationModifier[] {}));
     return preDiffPlanner.generatePreDiffPlan();
   }
@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -33,6 +34,19 @@ import java.util.Set;
  * Plans archive transformations to be made prior to differencing.
  */
 class PreDiffPlanner {
+  /** Divines the deflate parameters of entries of the new archive when the planner needs them. */
+  interface NewEntryDiviner {
+    /**
+     * Divines the deflate parameters of the specified entries of the new archive.
+     *
+     * @param entries the deflate compressed entries of the new archive to divine
+     * @return the parameters of each entry, in the same order, or null for entries whose
+     *     parameters can't be divined
+     * @throws IOException if unable to read the new archive
+     */
+    List<JreDeflateParameters> divine(List<MinimalZipEntry> entries) throws IOException;
+  }
+
   /**
    * The old archive.
    */
@@ -53,10 +67,15 @@ class PreDiffPlanner {
    */
   private final Map<ByteArrayHolder, MinimalZipEntry> newArchiveZipEntriesByPath;
 
+  /** Divines the parameters for compression of the entries in the new archive on demand. */
+  private final NewEntryDiviner newEntryDiviner;
+
   /**
-   * The divined parameters for compression of the entries in the new archive, with paths as keys.
+   * The divined parameters for compression of the entries in the new archive that have been
+   * divined so far, with paths as keys. The value is null for entries that could not be divined.
    */
-  private final Map<ByteArrayHolder, JreDeflateParameters> newArchiveJreDeflateParametersByPath;
+  private final Map<ByteArrayHolder, JreDeflateParameters> newArchiveJreDeflateParametersByPath =
+      new HashMap<>();
 
   /**
    * Optional {@link RecommendationModifier}s that will be applied after the default recommendations
@@ -84,11 +103,49 @@ class PreDiffPlanner {
       Map<ByteArrayHolder, MinimalZipEntry> newArchiveZipEntriesByPath,
       Map<ByteArrayHolder, JreDeflateParameters> newArchiveJreDeflateParametersByPath,
       RecommendationModifier... recommendationModifiers) {
+    this(
+        oldFile,
+        oldArchiveZipEntriesByPath,
+        newFile,
+        newArchiveZipEntriesByPath,
+        entries -> {
+          List<JreDeflateParameters> parameters = new ArrayList<>(entries.size());
+          for (MinimalZipEntry entry : entries) {
+            parameters.add(
+                newArchiveJreDeflateParametersByPath.get(
+                    new ByteArrayHolder(entry.getFileNameBytes())));
+          }
+          return parameters;
+        },
+        recommendationModifiers);
+  }
+
+  /**
+   * Constructs a new planner that will work on the specified inputs and only divine the parameters
+   * of the entries in the new archive that it plans to uncompress, which on typical updates are a
+   * small part of them.
+   *
+   * @param oldFile the old file, used to compare bytes between old and new entries as necessary
+   * @param oldArchiveZipEntriesByPath the entries in the old archive, with paths as keys
+   * @param newFile the new file, used to compare bytes between old and new entries as necessary
+   * @param newArchiveZipEntriesByPath the entries in the new archive, with paths as keys
+   * @param newEntryDiviner divines the {@link JreDeflateParameters} of entries in the new archive
+   * @param recommendationModifiers optionally, {@link RecommendationModifier}s to be applied after
+   *     the default recommendations have been made but before the {@link PreDiffPlan} is generated
+   *     in {@link #generatePreDiffPlan()}.
+   */
+  PreDiffPlanner(
+      File oldFile,
+      Map<ByteArrayHolder, MinimalZipEntry> oldArchiveZipEntriesByPath,
+      File newFile,
+      Map<ByteArrayHolder, MinimalZipEntry> newArchiveZipEntriesByPath,
+      NewEntryDiviner newEntryDiviner,
+      RecommendationModifier... recommendationModifiers) {
     this.oldFile = oldFile;
     this.oldArchiveZipEntriesByPath = oldArchiveZipEntriesByPath;
     this.newFile = newFile;
     this.newArchiveZipEntriesByPath = newArchiveZipEntriesByPath;
-    this.newArchiveJreDeflateParametersByPath = newArchiveJreDeflateParametersByPath;
+    this.newEntryDiviner = newEntryDiviner;
     this.recommendationModifiers =
           Collections.unmodifiableList(Arrays.asList(recommendationModifiers));
   }
@@ -101,11 +158,21 @@ class PreDiffPlanner {
    * @throws IOException if there are any problems reading the input files
    */
   PreDiffPlan generatePreDiffPlan() throws IOException {
-    List<QualifiedRecommendation> recommendations = getDefaultRecommendations();
-    for (RecommendationModifier modifier : recommendationModifiers) {
-      // Allow changing the recommendations base on arbitrary criteria.
-      recommendations = modifier.getModifiedRecommendations(oldFile, newFile, recommendations);
-    }
+    List<QualifiedRecommendation> defaultRecommendations = getDefaultRecommendations();
+    List<QualifiedRecommendation> recommendations;
+    // Only the new entries that end up uncompressed need to be divined. A new entry that can't be
+    // divined can't be uncompressed either, which may leave room for others in the modifiers, so
+    // apply them again until every new entry that they leave uncompressed can be divined.
+    do {
+      recommendations = new ArrayList<>(defaultRecommendations.size());
+      for (QualifiedRecommendation recommendation : defaultRecommendations) {
+        recommendations.add(checkDeflateSuitability(recommendation));
+      }
+      for (RecommendationModifier modifier : recommendationModifiers) {
+        // Allow changing the recommendations base on arbitrary criteria.
+        recommendations = modifier.getModifiedRecommendations(oldFile, newFile, recommendations);
+      }
+    } while (divineUncompressedNewEntries(recommendations));
 
     // Process recommendations to extract ranges for decompression & recompression
     Set<TypedRange<Void>> oldFilePlan = new HashSet<>();
@@ -198,16 +265,6 @@ class PreDiffPlanner {
   private QualifiedRecommendation getRecommendation(MinimalZipEntry oldEntry, MinimalZipEntry newEntry)
       throws IOException {
 
-    // Reject anything that is unsuitable for uncompressed diffing.
-    // Reason singled out in order to monitor unsupported versions of zlib.
-    if (unsuitableDeflate(newEntry)) {
-      return new QualifiedRecommendation(
-          oldEntry,
-          newEntry,
-          Recommendation.UNCOMPRESS_NEITHER,
-          RecommendationReason.DEFLATE_UNSUITABLE);
-    }
-
     // Reject anything that is unsuitable for uncompressed diffing.
     if (unsuitable(oldEntry, newEntry)) {
       return new QualifiedRecommendation(
@@ -229,7 +286,9 @@ class PreDiffPlanner {
     // The following are now true:
     // 1. At least one of the entries is compressed.
     // 1. The old entry is either uncompressed, or is compressed with deflate.
-    // 2. The new entry is either uncompressed, or is reproducibly compressed with deflate.
+    // 2. The new entry is either uncompressed, or is compressed with deflate. Whether it is
+    //    reproducibly compressed is only checked if it is to be uncompressed, see
+    //    checkDeflateSuitability().
 
     if (uncompressedChangedToCompressed(oldEntry, newEntry)) {
       return new QualifiedRecommendation(
@@ -264,6 +323,59 @@ class PreDiffPlanner {
         RecommendationReason.COMPRESSED_BYTES_IDENTICAL);
   }
 
+  /**
+   * Rejects a recommendation to uncompress a new entry that is known to be unsuitable for
+   * uncompressed diffing because its deflate parameters could not be divined.
+   *
+   * @param recommendation the recommendation
+   * @return the recommendation, or one to uncompress neither entry
+   */
+  private QualifiedRecommendation checkDeflateSuitability(QualifiedRecommendation recommendation) {
+    // Reason singled out in order to monitor unsupported versions of zlib.
+    if (recommendation.getRecommendation().uncompressNewEntry
+        && unsuitableDeflate(recommendation.getNewEntry())) {
+      return new QualifiedRecommendation(
+          recommendation.getOldEntry(),
+          recommendation.getNewEntry(),
+          Recommendation.UNCOMPRESS_NEITHER,
+          RecommendationReason.DEFLATE_UNSUITABLE);
+    }
+    return recommendation;
+  }
+
+  /**
+   * Divines the deflate parameters of the new entries that the recommendations uncompress and that
+   * have not been divined yet.
+   *
+   * @param recommendations the recommendations
+   * @return true if the parameters of any of them could not be divined
+   * @throws IOException if unable to read the new archive
+   */
+  private boolean divineUncompressedNewEntries(List<QualifiedRecommendation> recommendations)
+      throws IOException {
+    List<MinimalZipEntry> entries = new ArrayList<>();
+    for (QualifiedRecommendation recommendation : recommendations) {
+      MinimalZipEntry newEntry = recommendation.getNewEntry();
+      if (recommendation.getRecommendation().uncompressNewEntry
+          && newEntry.isDeflateCompressed()
+          && !newArchiveJreDeflateParametersByPath.containsKey(
+              new ByteArrayHolder(newEntry.getFileNameBytes()))) {
+        entries.add(newEntry);
+      }
+    }
+    if (entries.isEmpty()) {
+      return false;
+    }
+    List<JreDeflateParameters> parameters = newEntryDiviner.divine(entries);
+    boolean undivinable = false;
+    for (int i = 0; i < entries.size(); i++) {
+      newArchiveJreDeflateParametersByPath.put(
+          new ByteArrayHolder(entries.get(i).getFileNameBytes()), parameters.get(i));
+      undivinable |= parameters.get(i) == null;
+    }
+    return undivinable;
+  }
+
   /**
    * Returns true if the entries are unsuitable for doing an uncompressed diff. This method returns
    * true if either of the entries is compressed in an unsupported way (a non-deflate compression
@@ -289,15 +401,17 @@ class PreDiffPlanner {
   /**
    * Returns true if the entries are unsuitable for doing an uncompressed diff as a result of the
    * new entry being compressed via deflate, with undivinable parameters. This could be the result
-   * of an unsupported version of zlib being used.
+   * of an unsupported version of zlib being used. Entries that have not been divined yet are not
+   * known to be unsuitable.
    *
    * @param newEntry the entry in the new archive
    * @return true if unsuitable
    */
   private boolean unsuitableDeflate(MinimalZipEntry newEntry) {
-    JreDeflateParameters newJreDeflateParameters =
-        newArchiveJreDeflateParametersByPath.get(new ByteArrayHolder(newEntry.getFileNameBytes()));
-    if (newEntry.isDeflateCompressed() && newJreDeflateParameters == null) {
+    ByteArrayHolder newEntryPath = new ByteArrayHolder(newEntry.getFileNameBytes());
+    if (newEntry.isDeflateCompressed()
+        && newArchiveJreDeflateParametersByPath.containsKey(newEntryPath)
+        && newArchiveJreDeflateParametersByPath.get(newEntryPath) == null) {
       // The new entry is compressed via deflate, but the parameters were undivinable. Therefore the
       // new entry cannot be recompressed, so leave both old and new alone.
       return true;
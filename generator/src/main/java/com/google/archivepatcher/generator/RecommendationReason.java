@@ -20,7 +20,9 @@ package com.google.archivepatcher.generator;
 public enum RecommendationReason {
   /**
    * The entry in the new file is compressed using deflate in a way that cannot be reliably
-   * reproduced. This could be caused by using an unsupported version of zlib.
+   * reproduced. This could be caused by using an unsupported version of zlib. Only entries that
+   * would otherwise be uncompressed are checked, so this takes the place of a reason that
+   * uncompresses the new entry.
    */
   DEFLATE_UNSUITABLE,
   /**
@@ -0,0 +1,202 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A {@link SuffixSorter} that chooses between {@link DivSuffixSorter} and {@link SaisSuffixSorter}
+ * for every input, based on a cheap estimate of how the input repeats itself.
+ *
+ * <p>{@link DivSuffixSorter} is faster on most data, including long runs of the same byte, short
+ * periods and long repeats of high-entropy data, all of which its tandem repeat sort handles well.
+ * It slows down on data made of many long, slightly different copies of low-entropy content, such
+ * as tables of similar records, where {@link SaisSuffixSorter} is faster because its running time
+ * does not depend on the content. Since both produce the same suffix array, the choice only affects
+ * the time it takes.
+ */
+public final class AdaptiveSuffixSorter implements SuffixSorter {
+
+  /** The length of the windows that are checked for repeats. */
+  private static final int WINDOW_LENGTH = 16;
+
+  /** Windows with a period up to this length count as runs, not as repeats. */
+  private static final int MAX_RUN_PERIOD = 8;
+
+  /**
+   * The number of earlier samples with the same content that make a sampled window count as highly
+   * repeated.
+   */
+  private static final int MIN_REPEATS = 8;
+
+  /** The maximum number of windows to check. */
+  private static final int MAX_SAMPLES = 1 << 16;
+
+  /**
+   * The minimum fraction of the sampled windows that must be highly repeated for the input to be
+   * sorted with {@link SaisSuffixSorter}.
+   */
+  static final double MIN_REPETITIVENESS = 0.25;
+
+  /**
+   * The maximum order-0 entropy, in bits per byte, for the input to be sorted with {@link
+   * SaisSuffixSorter}. Repeats of high-entropy data are sorted faster by {@link DivSuffixSorter}.
+   */
+  static final double MAX_BITS_PER_BYTE = 7.0;
+
+  private final DivSuffixSorter divSuffixSorter;
+  private final SaisSuffixSorter saisSuffixSorter;
+
+  public AdaptiveSuffixSorter(RandomAccessObjectFactory randomAccessObjectFactory) {
+    this(randomAccessObjectFactory, null);
+  }
+
+  /**
+   * Creates a sorter that passes the specified pool on to {@link DivSuffixSorter}.
+   *
+   * @param randomAccessObjectFactory factory to create the suffix array with
+   * @param forkJoinPool the pool for {@link DivSuffixSorter}, or null
+   */
+  public AdaptiveSuffixSorter(
+      RandomAccessObjectFactory randomAccessObjectFactory, ForkJoinPool forkJoinPool) {
+    divSuffixSorter = new DivSuffixSorter(randomAccessObjectFactory, forkJoinPool);
+    saisSuffixSorter = new SaisSuffixSorter(randomAccessObjectFactory);
+  }
+
+  @Override
+  public RandomAccessObject suffixSort(RandomAccessObject data)
+      throws IOException, InterruptedException {
+    return chooseSuffixSorter(data).suffixSort(data);
+  }
+
+  /**
+   * Returns the sorter to use for the specified data. Warning: this calls {@link
+   * RandomAccessObject#seek(long)}, so the internal state of the data object will be modified.
+   *
+   * @param data the data to sort
+   * @return the sorter
+   * @throws IOException if unable to read the data
+   */
+  SuffixSorter chooseSuffixSorter(RandomAccessObject data) throws IOException {
+    // SaisSuffixSorter always sorts on the heap, while DivSuffixSorter can work on buffers. Leave
+    // room for the rest of the generator, like DivSuffixSorter does.
+    Runtime runtime = Runtime.getRuntime();
+    long heapFree = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    if (heapFree / 2 < saisSuffixSorter.heapBytesNeeded(data)) {
+      return divSuffixSorter;
+    }
+    Estimate estimate = estimate(data);
+    if (estimate.repetitiveness >= MIN_REPETITIVENESS
+        && estimate.bitsPerByte <= MAX_BITS_PER_BYTE) {
+      return saisSuffixSorter;
+    }
+    return divSuffixSorter;
+  }
+
+  /** The properties of an input that decide which sorter is used. */
+  static final class Estimate {
+    /**
+     * The fraction of the sampled windows whose content was already seen in at least {@link
+     * #MIN_REPEATS} earlier samples, not counting windows that are runs of a short period.
+     */
+    final double repetitiveness;
+
+    /** The order-0 entropy of the input, in bits per byte. */
+    final double bitsPerByte;
+
+    Estimate(double repetitiveness, double bitsPerByte) {
+      this.repetitiveness = repetitiveness;
+      this.bitsPerByte = bitsPerByte;
+    }
+  }
+
+  /**
+   * Estimates the properties of the data from windows at up to {@link #MAX_SAMPLES} positions, one
+   * at a random offset in each of as many equal strata of the data, so that the cost does not
+   * depend on the length of the data. Warning: this calls {@link RandomAccessObject#seek(long)}, so
+   * the internal state of the data object will be modified.
+   *
+   * @param data the data to examine
+   * @return the estimate
+   * @throws IOException if unable to read the data
+   */
+  static Estimate estimate(RandomAccessObject data) throws IOException {
+    long length = data.length();
+    if (length < WINDOW_LENGTH) {
+      return new Estimate(0, 0);
+    }
+    long stride = Math.max(WINDOW_LENGTH, length / MAX_SAMPLES);
+    // A fixed seed, so that the same data always gets the same sorter.
+    Random random = new Random(length);
+    long[] histogram = new long[256];
+    byte[] window = new byte[WINDOW_LENGTH];
+    Map<Long, Integer> timesSeen = new HashMap<Long, Integer>();
+    long samples = 0;
+    long sampledBytes = 0;
+    long repeats = 0;
+    for (long stratum = 0; stratum + WINDOW_LENGTH <= length; stratum += stride) {
+      long range = Math.min(stride, length - stratum) - WINDOW_LENGTH + 1;
+      long position = stratum + (long) (random.nextDouble() * range);
+      data.seek(position);
+      data.readFully(window);
+      long hash = 0;
+      for (byte b : window) {
+        histogram[b & 0xff]++;
+        hash = hash * 0x100000001b3L + (b & 0xff);
+      }
+      samples++;
+      sampledBytes += WINDOW_LENGTH;
+      if (hasShortPeriod(window)) {
+        continue;
+      }
+      Integer count = timesSeen.get(hash);
+      int earlier = count == null ? 0 : count;
+      timesSeen.put(hash, earlier + 1);
+      if (earlier >= MIN_REPEATS) {
+        repeats++;
+      }
+    }
+
+    double bitsPerByte = 0;
+    for (long count : histogram) {
+      if (count > 0) {
+        double p = (double) count / sampledBytes;
+        bitsPerByte -= p * Math.log(p) / Math.log(2);
+      }
+    }
+    return new Estimate((double) repeats / samples, bitsPerByte);
+  }
+
+  /**
+   * Returns true if the window is a repetition of a pattern of at most {@link #MAX_RUN_PERIOD}
+   * bytes.
+   */
+  private static boolean hasShortPeriod(byte[] window) {
+    for (int period = 1; period <= MAX_RUN_PERIOD; period++) {
+      int i = 0;
+      while (i + period < window.length && window[i] == window[i + period]) {
+        i++;
+      }
+      if (i + period == window.length) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
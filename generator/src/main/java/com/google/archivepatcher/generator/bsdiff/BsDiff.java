@@ -23,8 +23,9 @@ import java.io.IOException;
  * A canonical description of the bsdiff algorithm can be found at the following URL:
  * http://www.daemonology.net/bsdiff/
  * <p>
- * Since Java only supports "int" for array indexing, the maximum size of files that this
- * implementation can handle is 2^31, or 2 gibibytes.
+ * Since Java only supports "int" for array indexing, the old data that a suffix array is searched
+ * in can be at most 2^31 bytes, or 2 gibibytes; see {@link BsDiffMatcher} for larger old data.
+ * Positions in the new data are longs.
  */
 class BsDiff {
 
@@ -46,19 +47,14 @@ class BsDiff {
       final RandomAccessObject oldData,
       final int oldStart,
       final RandomAccessObject newData,
-      final int newStart)
+      final long newStart)
       throws IOException {
-    final int max = Math.min((int) oldData.length() - oldStart, (int) newData.length() - newStart);
+    final int max =
+        (int) Math.min((int) oldData.length() - oldStart, newData.length() - newStart);
     if (max > 0) {
-      // If max is 0, it's sometimes possible for this seek to seek to length + 1 and throw an
-      // exception unnecessarily.
-      oldData.seek(oldStart);
-      newData.seek(newStart);
-      for (int offset = 0; offset < max; offset++) {
-        if (oldData.readByte() != newData.readByte()) {
-          return offset;
-        }
-      }
+      // If max is 0, it's sometimes possible for the start to be at length + 1, which must not be
+      // read from.
+      return oldData.mismatch(oldStart, newData, newStart, max);
     }
 
     return max;
@@ -69,20 +65,52 @@ class BsDiff {
       final RandomAccessObject groupArray,
       final RandomAccessObject oldData,
       final RandomAccessObject newData,
-      final int newStart,
+      final long newStart,
       final int oldDataRangeStartA,
       final int oldDataRangeStartB)
       throws IOException {
+    return searchForMatchBaseCase(
+        groupArray, oldData, newData, newStart, oldDataRangeStartA, 0, oldDataRangeStartB, 0);
+  }
+
+  /**
+   * Like {@link #searchForMatchBaseCase(RandomAccessObject, RandomAccessObject,
+   * RandomAccessObject, int, int, int)}, but skips the bytes that are already known to match.
+   *
+   * @param matchLengthA a number of bytes that the suffix at |oldDataRangeStartA| in the group
+   *     array is known to have in common with the new data at |newStart|
+   * @param matchLengthB the same for the suffix at |oldDataRangeStartB|
+   */
+  private static Match searchForMatchBaseCase(
+      final RandomAccessObject groupArray,
+      final RandomAccessObject oldData,
+      final RandomAccessObject newData,
+      final long newStart,
+      final int oldDataRangeStartA,
+      final int matchLengthA,
+      final int oldDataRangeStartB,
+      final int matchLengthB)
+      throws IOException {
     // Located the start of a matching range (no further search required) or the size of the range
     // has shrunk to one byte (no further search possible).
     groupArray.seekToIntAligned(oldDataRangeStartA);
     final int groupArrayOldDataRangeStartA = groupArray.readInt();
     final int lengthOfMatchA =
-        lengthOfMatch(oldData, groupArrayOldDataRangeStartA, newData, newStart);
+        matchLengthA
+            + lengthOfMatch(
+                oldData,
+                groupArrayOldDataRangeStartA + matchLengthA,
+                newData,
+                newStart + matchLengthA);
     groupArray.seekToIntAligned(oldDataRangeStartB);
     final int groupArrayOldDataRangeStartB = groupArray.readInt();
     final int lengthOfMatchB =
-        lengthOfMatch(oldData, groupArrayOldDataRangeStartB, newData, newStart);
+        matchLengthB
+            + lengthOfMatch(
+                oldData,
+                groupArrayOldDataRangeStartB + matchLengthB,
+                newData,
+                newStart + matchLengthB);
 
     if (lengthOfMatchA > lengthOfMatchB) {
       return Match.of(groupArrayOldDataRangeStartA, lengthOfMatchA);
@@ -108,31 +136,82 @@ class BsDiff {
       final RandomAccessObject groupArray,
       final RandomAccessObject oldData,
       final RandomAccessObject newData,
-      final int newStart,
+      final long newStart,
       final int oldDataRangeStartA,
       final int oldDataRangeStartB)
       throws IOException {
-    if (oldDataRangeStartB - oldDataRangeStartA < 2) {
-      return searchForMatchBaseCase(
-          groupArray, oldData, newData, newStart, oldDataRangeStartA, oldDataRangeStartB);
-    }
+    return searchForMatch(
+        groupArray, oldData, newData, newStart, oldDataRangeStartA, 0, oldDataRangeStartB, 0);
+  }
 
-    // Cut range in half and search again
-    final int rangeLength = oldDataRangeStartB - oldDataRangeStartA;
-    final int pivot = oldDataRangeStartA + (rangeLength / 2);
-    groupArray.seekToIntAligned(pivot);
-    final int groupArrayPivot = groupArray.readInt();
-    if (BsUtil.lexicographicalCompare(
-            oldData,
-            groupArrayPivot,
-            (int) oldData.length() - groupArrayPivot,
-            newData,
-            newStart,
-            (int) newData.length() - newStart)
-        < 0) {
-      return searchForMatch(groupArray, oldData, newData, newStart, pivot, oldDataRangeStartB);
+  /**
+   * Like {@link #searchForMatch(RandomAccessObject, RandomAccessObject, RandomAccessObject, int,
+   * int, int)}, but keeps track of how many bytes the suffixes at both ends of the range have in
+   * common with the new data (the "mlr" technique from Manber and Myers: "Suffix arrays: a new
+   * method for on-line string searches", SIAM Journal on Computing, 1993). Since the suffixes are
+   * sorted, every suffix in the range has at least the smaller of the two in common with the new
+   * data, so the comparison at the pivot can skip that many bytes. Without this, long prefixes
+   * that the new data shares with many suffixes are compared again at every step of the search.
+   *
+   * @param matchLengthA a number of bytes that the suffix at |oldDataRangeStartA| in the group
+   *     array is known to have in common with the new data at |newStart|
+   * @param matchLengthB the same for the suffix at |oldDataRangeStartB|
+   */
+  private static Match searchForMatch(
+      final RandomAccessObject groupArray,
+      final RandomAccessObject oldData,
+      final RandomAccessObject newData,
+      final long newStart,
+      int oldDataRangeStartA,
+      int matchLengthA,
+      int oldDataRangeStartB,
+      int matchLengthB)
+      throws IOException {
+    final int oldLength = (int) oldData.length();
+    final long newRemaining = newData.length() - newStart;
+    while (oldDataRangeStartB - oldDataRangeStartA >= 2) {
+      // Cut range in half and search again
+      final int rangeLength = oldDataRangeStartB - oldDataRangeStartA;
+      final int pivot = oldDataRangeStartA + (rangeLength / 2);
+      groupArray.seekToIntAligned(pivot);
+      final int groupArrayPivot = groupArray.readInt();
+      // Compare the suffix at the pivot with the new data, like
+      // BsUtil.lexicographicalCompare(...) < 0 but starting after the bytes that are known to
+      // match, and find their match length on the way.
+      final int oldRemaining = oldLength - groupArrayPivot;
+      final int maxMatchLength = (int) Math.min(oldRemaining, newRemaining);
+      int matchLengthPivot = Math.min(matchLengthA, matchLengthB);
+      boolean pivotIsLess = oldRemaining < newRemaining;
+      if (matchLengthPivot < maxMatchLength) {
+        matchLengthPivot +=
+            oldData.mismatch(
+                groupArrayPivot + matchLengthPivot,
+                newData,
+                newStart + matchLengthPivot,
+                maxMatchLength - matchLengthPivot);
+        if (matchLengthPivot < maxMatchLength) {
+          oldData.seek(groupArrayPivot + matchLengthPivot);
+          newData.seek(newStart + matchLengthPivot);
+          pivotIsLess = oldData.readUnsignedByte() < newData.readUnsignedByte();
+        }
+      }
+      if (pivotIsLess) {
+        oldDataRangeStartA = pivot;
+        matchLengthA = matchLengthPivot;
+      } else {
+        oldDataRangeStartB = pivot;
+        matchLengthB = matchLengthPivot;
+      }
     }
-    return searchForMatch(groupArray, oldData, newData, newStart, oldDataRangeStartA, pivot);
+    return searchForMatchBaseCase(
+        groupArray,
+        oldData,
+        newData,
+        newStart,
+        oldDataRangeStartA,
+        matchLengthA,
+        oldDataRangeStartB,
+        matchLengthB);
   }
 
   static class Match {
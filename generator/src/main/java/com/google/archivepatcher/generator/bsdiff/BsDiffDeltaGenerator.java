@@ -15,23 +15,146 @@
 package com.google.archivepatcher.generator.bsdiff;
 
 import com.google.archivepatcher.generator.DeltaGenerator;
+import com.google.archivepatcher.generator.GenerationProfile;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * An implementation of {@link DeltaGenerator} that uses {@link BsDiffPatchWriter} to write a
  * bsdiff patch that represents the delta between given inputs.
  */
 public class BsDiffDeltaGenerator implements DeltaGenerator {
+  /** The options to generate deltas with. */
+  private final BsDiffOptions options;
+
+  /** Creates a generator that sorts suffixes on the calling thread. */
+  public BsDiffDeltaGenerator() {
+    this(null, Long.MAX_VALUE);
+  }
+
+  /**
+   * Creates a generator that sorts the suffixes of the old blob on the specified pool.
+   *
+   * @param forkJoinPool the pool to use, or null to sort on the calling thread
+   * @see AdaptiveSuffixSorter#AdaptiveSuffixSorter(RandomAccessObjectFactory, ForkJoinPool)
+   */
+  public BsDiffDeltaGenerator(ForkJoinPool forkJoinPool) {
+    this(
+        forkJoinPool == null
+            ? null
+            : new AdaptiveSuffixSorter(
+                BsDiffPatchWriter.DEFAULT_RANDOM_ACCESS_OBJECT_FACTORY, forkJoinPool),
+        Long.MAX_VALUE);
+  }
+
+  /**
+   * Creates a generator that uses the specified sorter for the suffix array of the old blob, e.g.
+   * a {@link CachingSuffixSorter} when many new blobs are diffed against the same old blob. Unless
+   * the budget is {@link Long#MAX_VALUE}, the memory for the blobs and the suffix array is kept
+   * within it by matching the new blob in windows against the most similar regions of the old blob
+   * if the budget is too small for the whole old blob.
+   *
+   * @param suffixSorter the sorter to use, or null for the default
+   * @param memoryBudgetBytes the memory budget for each delta, or {@link Long#MAX_VALUE} for none
+   * @see BsDiffOptions.Builder#withMemoryBudget(long)
+   */
+  public BsDiffDeltaGenerator(SuffixSorter suffixSorter, long memoryBudgetBytes) {
+    this(suffixSorter, memoryBudgetBytes, GenerationProfile.BALANCED);
+  }
+
+  /**
+   * Creates a generator that takes the minimum match lengths, the budget for extending matches, the
+   * number of matching threads and whether to match with hash chains from the specified profile.
+   *
+   * @param suffixSorter the sorter to use, or null for the default
+   * @param memoryBudgetBytes the memory budget for each delta, or {@link Long#MAX_VALUE} for none
+   * @param profile the profile
+   */
+  public BsDiffDeltaGenerator(
+      SuffixSorter suffixSorter, long memoryBudgetBytes, GenerationProfile profile) {
+    this(options(suffixSorter, memoryBudgetBytes, profile));
+  }
+
   /**
-   * The minimum match length to use for bsdiff.
+   * Creates a generator that generates every delta with the specified options.
+   *
+   * @param options the options
    */
-  private static final int MATCH_LENGTH_BYTES = 16;
+  public BsDiffDeltaGenerator(BsDiffOptions options) {
+    if (options == null) {
+      throw new IllegalArgumentException("options cannot be null");
+    }
+    this.options = options;
+  }
 
   @Override
   public void generateDelta(File oldBlob, File newBlob, OutputStream deltaOut)
       throws IOException, InterruptedException {
-    BsDiffPatchWriter.generatePatch(oldBlob, newBlob, deltaOut, MATCH_LENGTH_BYTES);
+    BsDiffPatchWriter.generatePatch(oldBlob, newBlob, deltaOut, options);
+  }
+
+  /**
+   * Generates one delta for each of the specified ranges of the new blob, sorting the suffixes or
+   * building the hash-chain index of the old blob only once for all of them, and matching the
+   * ranges against it on as many threads as there are processors. Within a memory budget, and for
+   * blobs too long for a single suffix array or mapping, each range is generated on its own as by
+   * {@link DeltaGenerator#generateDeltas(File, File, List)}.
+   */
+  @Override
+  public void generateDeltas(File oldBlob, File newBlob, List<TypedRange<File>> deltaRanges)
+      throws IOException, InterruptedException {
+    boolean rangesFit = true;
+    for (TypedRange<File> range : deltaRanges) {
+      rangesFit &= range.getLength() <= Integer.MAX_VALUE;
+    }
+    if (deltaRanges.size() == 1
+        || options.memoryBudgetBytes != Long.MAX_VALUE
+        || !rangesFit
+        || (!options.hashChainMatching
+            && oldBlob.length() > BsDiffPatchWriter.MAX_SUFFIX_ARRAY_SEGMENT_LENGTH)) {
+      DeltaGenerator.super.generateDeltas(oldBlob, newBlob, deltaRanges);
+      return;
+    }
+    BsDiffPatchWriter.generatePatches(
+        oldBlob, newBlob, deltaRanges, options, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Generates one delta for each of the specified ranges of the new blob in memory, sharing the
+   * suffix array or the hash-chain index of the old blob between the ranges and matching them
+   * concurrently, as {@link #generateDeltas(File, File, List)} does. Within a memory budget, and
+   * for old blobs too long for a single suffix array, the blobs are written to temp files as by
+   * {@link DeltaGenerator#generateDeltas(byte[], byte[], List)}.
+   */
+  @Override
+  public void generateDeltas(
+      byte[] oldBlob, byte[] newBlob, List<TypedRange<ByteArrayOutputStream>> deltaRanges)
+      throws IOException, InterruptedException {
+    if (options.memoryBudgetBytes != Long.MAX_VALUE
+        || (!options.hashChainMatching
+            && oldBlob.length > BsDiffPatchWriter.MAX_SUFFIX_ARRAY_SEGMENT_LENGTH)) {
+      DeltaGenerator.super.generateDeltas(oldBlob, newBlob, deltaRanges);
+      return;
+    }
+    BsDiffPatchWriter.generatePatches(
+        oldBlob, newBlob, deltaRanges, options, Runtime.getRuntime().availableProcessors());
+  }
+
+  /** Returns the options for the specified sorter, budget and profile. */
+  private static BsDiffOptions options(
+      SuffixSorter suffixSorter, long memoryBudgetBytes, GenerationProfile profile) {
+    BsDiffOptions.Builder builder =
+        new BsDiffOptions.Builder()
+            .withGenerationProfile(profile)
+            .withMemoryBudget(memoryBudgetBytes);
+    if (suffixSorter != null) {
+      builder.withSuffixSorter(suffixSorter);
+    }
+    return builder.build();
   }
 }
@@ -30,33 +30,33 @@ class BsDiffMatcher implements Matcher {
   private final RandomAccessObject mOldData;
   private final RandomAccessObject mNewData;
 
-  /**
-   * Contains order of the sorted suffixes of |oldData|. The element at mGroupArray[i] contains the
-   * position of oldData[i ... oldData.length - 1] in the sorted list of suffixes of |oldData|.
-   */
-  private final RandomAccessObject mGroupArray;
+  /** The segments of |oldData| that are searched for matches, each with its own suffix array. */
+  private final OldDataSegment[] mSegments;
 
   /**
    * The index in |oldData| of the first byte of the match. Zero if no matches have been found yet.
    */
-  private int mOldPos;
+  private long mOldPos;
 
   /**
    * The index in |newData| of the first byte of the match. Zero if no matches have been found yet.
    * The next match will be searched starting at |mNewPos| + |mMatchLen|.
    */
-  private int mNewPos;
+  private long mNewPos;
 
   /**
    * Minimum match length in bytes.
    */
   private final int mMinimumMatchLength;
 
+  /** The default for |mTotalMatchLenBudget|. */
+  static final long DEFAULT_TOTAL_MATCH_LENGTH_BUDGET = 1L << 26; // ~64 million.
+
   /**
    * A limit on how many total match lengths encountered, to exit the match extension loop in next()
    * and prevent O(n^2) behavior.
    */
-  private final long mTotalMatchLenBudget = 1L << 26;  // ~64 million.
+  private final long mTotalMatchLenBudget;
 
   /**
    * The number of bytes, |n|, which match between newData[mNewPos ... mNewPos + n] and
@@ -75,11 +75,116 @@ class BsDiffMatcher implements Matcher {
       RandomAccessObject newData,
       RandomAccessObject groupArray,
       int minimumMatchLength) {
+    this(oldData, newData, groupArray, minimumMatchLength, 0);
+  }
+
+  /**
+   * Create a BsDiffMatcher that starts out assuming that newData[0] corresponds to
+   * oldData[initialOldPosition], rather than to oldData[0]. Matches are only accepted if they are
+   * better than continuing from there.
+   * @param initialOldPosition the position in |oldData| that corresponds to the start of |newData|
+   */
+  BsDiffMatcher(
+      RandomAccessObject oldData,
+      RandomAccessObject newData,
+      RandomAccessObject groupArray,
+      int minimumMatchLength,
+      int initialOldPosition) {
+    this(
+        oldData,
+        newData,
+        new OldDataSegment[] {new OldDataSegment(oldData, groupArray, 0)},
+        minimumMatchLength,
+        initialOldPosition,
+        DEFAULT_TOTAL_MATCH_LENGTH_BUDGET);
+  }
+
+  /**
+   * Create a BsDiffMatcher for old data that is covered by several suffix arrays, each of which
+   * is searched for every match. The segments should overlap, since matches are truncated at the
+   * end of the segment that they are found in.
+   * @param segments the segments of |oldData| with their suffix arrays
+   * @param initialOldPosition the position in |oldData| that corresponds to the start of |newData|
+   * @param totalMatchLengthBudget the total length of the matches that may be examined while
+   * searching for the next match before settling for the current one. Larger budgets find better
+   * matches in repetitive data at the cost of time.
+   */
+  BsDiffMatcher(
+      RandomAccessObject oldData,
+      RandomAccessObject newData,
+      OldDataSegment[] segments,
+      int minimumMatchLength,
+      long initialOldPosition,
+      long totalMatchLengthBudget) {
     mOldData = oldData;
     mNewData = newData;
-    mGroupArray = groupArray;
-    mOldPos = 0;
+    mSegments = segments;
+    mOldPos = initialOldPosition;
     mMinimumMatchLength = minimumMatchLength;
+    mTotalMatchLenBudget = totalMatchLengthBudget;
+  }
+
+  /** A range of the old data together with the suffix array of that range. */
+  static final class OldDataSegment {
+    /** The range of the old data, which must be at most 2^31 bytes long. */
+    final RandomAccessObject data;
+
+    /**
+     * Contains order of the sorted suffixes of |data|. The element at groupArray[i] contains the
+     * position of data[i ... data.length - 1] in the sorted list of suffixes of |data|.
+     */
+    final RandomAccessObject groupArray;
+
+    /** The position in the old data of the first byte of |data|. */
+    final long offset;
+
+    OldDataSegment(RandomAccessObject data, RandomAccessObject groupArray, long offset) {
+      this.data = data;
+      this.groupArray = groupArray;
+      this.offset = offset;
+    }
+  }
+
+  /** A range of the old data that matches the new data at a given position. */
+  static final class OldMatch {
+    /** The position of the match in the old data. */
+    final long oldPosition;
+
+    /** The length of the match, which is zero if nothing matches. */
+    final int length;
+
+    OldMatch(long oldPosition, int length) {
+      this.oldPosition = oldPosition;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Finds the longest range of the old data that matches newData[newPosition ...], which is the
+   * first one in any segment if there are several. Subclasses may find matches with another index
+   * of the old data than suffix arrays; the rules for accepting matches stay the same.
+   *
+   * @param newPosition the position in |newData| to match
+   * @return the match
+   */
+  OldMatch findLongestMatch(long newPosition) throws IOException {
+    BsDiff.Match match = null;
+    long matchOffset = 0;
+    for (OldDataSegment segment : mSegments) {
+      BsDiff.Match segmentMatch =
+          BsDiff.searchForMatch(
+              segment.groupArray,
+              segment.data,
+              mNewData,
+              newPosition,
+              0,
+              (int) segment.data.length());
+      if (match == null || segmentMatch.length > match.length) {
+        match = segmentMatch;
+        matchOffset = segment.offset;
+      }
+    }
+    return new OldMatch(matchOffset + match.start, match.length);
   }
 
   @Override
@@ -89,7 +194,7 @@ class BsDiffMatcher implements Matcher {
 
     // The offset between between the indices in |oldData| and |newData|
     // of the previous match.
-    int previousOldOffset = mOldPos - mNewPos;
+    long previousOldOffset = mOldPos - mNewPos;
 
     // Look for a new match starting from the end of the previous match.
     mNewPos += mMatchLen;
@@ -109,24 +214,28 @@ class BsDiffMatcher implements Matcher {
       if (Thread.interrupted()) {
         throw new InterruptedException();
       }
-      BsDiff.Match match =
-          BsDiff.searchForMatch(mGroupArray, oldData, newData, mNewPos, 0, (int) oldData.length());
-      mOldPos = match.start;
+      OldMatch match = findLongestMatch(mNewPos);
+      mOldPos = match.oldPosition;
       mMatchLen = match.length;
       totalMatchLen += mMatchLen;
 
-      // Update |numMatches| for the new value of |matchLen|.
-      for (; matchesCacheSize < mMatchLen; ++matchesCacheSize) {
-        int oldIndex = mNewPos + previousOldOffset + matchesCacheSize;
-        int newIndex = mNewPos + matchesCacheSize;
-        if (oldIndex < oldData.length()) {
-          oldData.seek(oldIndex);
-          newData.seek(newIndex);
-
-          if (oldData.readByte() == newData.readByte()) {
-            ++numMatches;
-          }
+      // Update |numMatches| for the new value of |matchLen|. Bytes beyond the end of |oldData|
+      // never match.
+      if (matchesCacheSize < mMatchLen) {
+        long oldStart = mNewPos + previousOldOffset;
+        int end = (int) Math.min(mMatchLen, oldData.length() - oldStart);
+        while (matchesCacheSize < end) {
+          int equalLength =
+              oldData.mismatch(
+                  oldStart + matchesCacheSize,
+                  newData,
+                  mNewPos + matchesCacheSize,
+                  end - matchesCacheSize);
+          numMatches += equalLength;
+          // Skip the byte that differs.
+          matchesCacheSize += equalLength + 1;
         }
+        matchesCacheSize = mMatchLen;
       }
 
       // Also return if we've been trying to extend a large match for a long time.
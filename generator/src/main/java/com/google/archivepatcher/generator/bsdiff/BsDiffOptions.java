@@ -0,0 +1,219 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import com.google.archivepatcher.generator.GenerationProfile;
+import java.util.List;
+
+/**
+ * The options of {@link BsDiffPatchWriter}: how the suffix array of the old data is created, how
+ * matches are found and how much memory may be used. Options are created with a {@link Builder}.
+ */
+public final class BsDiffOptions {
+  /** A helper class to build {@link BsDiffOptions}. */
+  public static final class Builder {
+    private SuffixSorter suffixSorter;
+    private int[] minimumMatchLengths = {BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH};
+    private long totalMatchLengthBudget = BsDiffMatcher.DEFAULT_TOTAL_MATCH_LENGTH_BUDGET;
+    private int matchingThreadCount = 1;
+    private boolean hashChainMatching;
+    private long memoryBudgetBytes = Long.MAX_VALUE;
+
+    /**
+     * Sets the sorter to create the suffix arrays of the old data with, which also determines the
+     * storage used for them. The default is an {@link AdaptiveSuffixSorter} with {@link
+     * BsDiffPatchWriter#DEFAULT_RANDOM_ACCESS_OBJECT_FACTORY}.
+     *
+     * @param suffixSorter the sorter
+     * @return this builder
+     */
+    public Builder withSuffixSorter(SuffixSorter suffixSorter) {
+      if (suffixSorter == null) {
+        throw new IllegalArgumentException("suffixSorter cannot be null");
+      }
+      this.suffixSorter = suffixSorter;
+      return this;
+    }
+
+    /**
+     * Sets the minimum "match" (in bytes) for BsDiff to consider between the old data and the new.
+     * This can have a significant effect on both the generated patch size and the amount of time
+     * and memory required to apply the patch. The default is 16.
+     *
+     * @param minimumMatchLength the minimum match length, at least 1
+     * @return this builder
+     */
+    public Builder withMinimumMatchLength(int minimumMatchLength) {
+      return withMinimumMatchLengths(new int[] {minimumMatchLength});
+    }
+
+    /**
+     * Sets several minimum match lengths to try: the new data is matched once for each of them,
+     * and the entries that compress best are written.
+     *
+     * @param minimumMatchLengths the minimum match lengths, at least one, each at least 1
+     * @return this builder
+     */
+    public Builder withMinimumMatchLengths(int... minimumMatchLengths) {
+      if (minimumMatchLengths.length == 0) {
+        throw new IllegalArgumentException("minimumMatchLengths cannot be empty");
+      }
+      for (int minimumMatchLength : minimumMatchLengths) {
+        if (minimumMatchLength < 1) {
+          throw new IllegalArgumentException(
+              "Unsupported minimum match length: " + minimumMatchLength);
+        }
+      }
+      this.minimumMatchLengths = minimumMatchLengths.clone();
+      return this;
+    }
+
+    /**
+     * Sets the total length of the matches that may be examined while searching for the next match
+     * before settling for the current one, which bounds the time spent on repetitive data.
+     *
+     * @param totalMatchLengthBudget the budget, at least 0
+     * @return this builder
+     */
+    public Builder withTotalMatchLengthBudget(long totalMatchLengthBudget) {
+      if (totalMatchLengthBudget < 0) {
+        throw new IllegalArgumentException(
+            "Unsupported total match length budget: " + totalMatchLengthBudget);
+      }
+      this.totalMatchLengthBudget = totalMatchLengthBudget;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of threads to match the new data on; see {@link
+     * BsDiffPatchWriter#generatePatch(RandomAccessObject, RandomAccessObject,
+     * java.io.OutputStream, BsDiffOptions)}. The default is 1.
+     *
+     * @param matchingThreadCount the number of threads, at least 1
+     * @return this builder
+     */
+    public Builder withMatchingThreadCount(int matchingThreadCount) {
+      if (matchingThreadCount < 1) {
+        throw new IllegalArgumentException("matchingThreadCount must be at least 1");
+      }
+      this.matchingThreadCount = matchingThreadCount;
+      return this;
+    }
+
+    /**
+     * Sets whether to find matches with a hash-chain index of the old data, which is built in a
+     * single pass, instead of with its suffix array; the suffix sorter is not used then. Within a
+     * memory budget, suffix arrays of regions of the old data are always used. The default is
+     * false.
+     *
+     * @param hashChainMatching whether to match with hash chains
+     * @return this builder
+     */
+    public Builder withHashChainMatching(boolean hashChainMatching) {
+      this.hashChainMatching = hashChainMatching;
+      return this;
+    }
+
+    /**
+     * Sets the amount of memory not to use much more than for the old and new data and the suffix
+     * array; see {@link BsDiffPatchWriter#generatePatch(RandomAccessObject, RandomAccessObject,
+     * java.io.OutputStream, BsDiffOptions)}. The default is {@link Long#MAX_VALUE}, for none.
+     *
+     * @param memoryBudgetBytes the memory budget, which must allow for windows of at least {@link
+     *     BsDiffPatchWriter#MIN_WINDOW_LENGTH} bytes unless it covers the whole old data
+     * @return this builder
+     */
+    public Builder withMemoryBudget(long memoryBudgetBytes) {
+      if (memoryBudgetBytes < 0) {
+        throw new IllegalArgumentException("Unsupported memory budget: " + memoryBudgetBytes);
+      }
+      this.memoryBudgetBytes = memoryBudgetBytes;
+      return this;
+    }
+
+    /**
+     * Takes the minimum match lengths, the budget for extending matches, the number of matching
+     * threads and whether to match with hash chains from the specified profile.
+     *
+     * @param profile the profile
+     * @return this builder
+     */
+    public Builder withGenerationProfile(GenerationProfile profile) {
+      List<Integer> lengths = profile.getBsDiffMinimumMatchLengths();
+      int[] profileLengths = new int[lengths.size()];
+      for (int i = 0; i < profileLengths.length; i++) {
+        profileLengths[i] = lengths.get(i);
+      }
+      return withMinimumMatchLengths(profileLengths)
+          .withTotalMatchLengthBudget(profile.getBsDiffTotalMatchLengthBudget())
+          .withMatchingThreadCount(profile.getBsDiffMatchingThreadCount())
+          .withHashChainMatching(profile.isBsDiffHashChainMatching());
+    }
+
+    /**
+     * Builds and returns the options.
+     *
+     * @return the options
+     */
+    public BsDiffOptions build() {
+      return new BsDiffOptions(
+          suffixSorter != null
+              ? suffixSorter
+              : new AdaptiveSuffixSorter(BsDiffPatchWriter.DEFAULT_RANDOM_ACCESS_OBJECT_FACTORY),
+          minimumMatchLengths.clone(),
+          totalMatchLengthBudget,
+          matchingThreadCount,
+          hashChainMatching,
+          memoryBudgetBytes);
+    }
+  }
+
+  final SuffixSorter suffixSorter;
+  final int[] minimumMatchLengths;
+  final long totalMatchLengthBudget;
+  final int matchingThreadCount;
+  final boolean hashChainMatching;
+  final long memoryBudgetBytes;
+
+  private BsDiffOptions(
+      SuffixSorter suffixSorter,
+      int[] minimumMatchLengths,
+      long totalMatchLengthBudget,
+      int matchingThreadCount,
+      boolean hashChainMatching,
+      long memoryBudgetBytes) {
+    this.suffixSorter = suffixSorter;
+    this.minimumMatchLengths = minimumMatchLengths;
+    this.totalMatchLengthBudget = totalMatchLengthBudget;
+    this.matchingThreadCount = matchingThreadCount;
+    this.hashChainMatching = hashChainMatching;
+    this.memoryBudgetBytes = memoryBudgetBytes;
+  }
+
+  /**
+   * Returns a builder that starts out with these options.
+   *
+   * @return the builder
+   */
+  public Builder toBuilder() {
+    return new Builder()
+        .withSuffixSorter(suffixSorter)
+        .withMinimumMatchLengths(minimumMatchLengths)
+        .withTotalMatchLengthBudget(totalMatchLengthBudget)
+        .withMatchingThreadCount(matchingThreadCount)
+        .withHashChainMatching(hashChainMatching)
+        .withMemoryBudget(memoryBudgetBytes);
+  }
+}
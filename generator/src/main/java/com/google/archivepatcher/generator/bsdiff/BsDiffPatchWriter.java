@@ -14,13 +14,25 @@
 
 package com.google.archivepatcher.generator.bsdiff;
 
+import com.google.archivepatcher.shared.Futures;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
-
-// TODO(andrewhayden) clean up the various generatePatch(...) methods, there are too many.
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 /**
  * A helper class that handles the main BsDiff I/O and patch generation, by calling into the main
@@ -30,6 +42,108 @@ public class BsDiffPatchWriter {
 
   static final int DEFAULT_MINIMUM_MATCH_LENGTH = 16;
 
+  /**
+   * The minimum number of bytes of new data per segment when matching in parallel, so that the
+   * cost of the seams between segments stays small compared to the segments.
+   */
+  static final int MIN_SEGMENT_LENGTH = 1024 * 1024;
+
+  /**
+   * The maximum number of bytes of old data per suffix array, which is the most for which a suffix
+   * array of ints fits into 2GiB. Longer old data is split into overlapping segments that are
+   * sorted separately.
+   */
+  static final int MAX_SUFFIX_ARRAY_SEGMENT_LENGTH = Integer.MAX_VALUE / 4 - 1;
+
+  /**
+   * The number of bytes that consecutive segments of the old data overlap by, so that matches of
+   * up to this length are found in full even if they cross the start of a segment.
+   */
+  static final int SUFFIX_ARRAY_SEGMENT_OVERLAP = 1024 * 1024;
+
+  /**
+   * The bytes of memory budget needed per byte of window when generating a patch with a memory
+   * budget: four for the suffix array of the old region, and one each for the old region and the
+   * window of the new data.
+   */
+  static final int MEMORY_BUDGET_BYTES_PER_WINDOW_BYTE = 6;
+
+  /** The fraction of the memory budget that is used for choosing the old regions. */
+  private static final int MEMORY_BUDGET_INDEX_FRACTION = 16;
+
+  /** The minimum length of the windows when generating a patch with a memory budget. */
+  static final int MIN_WINDOW_LENGTH = 64 * 1024;
+
+  /**
+   * The storage for suffix arrays when the caller doesn't specify any: memory for a quarter of the
+   * maximum heap, shared by all generations in the process, and memory-mapped temp files beyond
+   * that. The heap copies that {@link DivSuffixSorter} sorts in are counted against the same
+   * quarter.
+   */
+  static final RandomAccessObjectFactory DEFAULT_RANDOM_ACCESS_OBJECT_FACTORY =
+      new RandomAccessObjectFactory.AdaptiveRandomAccessObjectFactory(
+          Runtime.getRuntime().maxMemory() / 4);
+
+  /** The size of the blocks that the old and new data are read in while generating entries. */
+  private static final int BLOCK_SIZE = 16 * 1024;
+
+  /** Buffers that are reused for every entry, so that data is read and written in blocks. */
+  private static final class Blocks {
+    final byte[] newBlock = new byte[BLOCK_SIZE];
+    final byte[] oldBlock = new byte[BLOCK_SIZE];
+    /** Whether the bytes of one range match, while another range is read into the blocks. */
+    final boolean[] matches = new boolean[BLOCK_SIZE];
+    final byte[] control = new byte[24];
+  }
+
+  /** The prefix of the temp files that the candidates of generateBestPatchEntries are kept in. */
+  private static final String CANDIDATE_FILE_NAME_PREFIX = "bsdiffcandidate";
+
+  /**
+   * Passes everything written to it through, and measures how long it would be when compressed
+   * with deflate at the default level.
+   */
+  private static final class CompressedLengthOutputStream extends FilterOutputStream {
+    private final Deflater mDeflater = new Deflater();
+    private final byte[] mBuffer = new byte[BLOCK_SIZE];
+    private final byte[] mSingleByte = new byte[1];
+    private long mCompressedLength;
+
+    CompressedLengthOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      mSingleByte[0] = (byte) b;
+      write(mSingleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      mDeflater.setInput(b, off, len);
+      while (!mDeflater.needsInput()) {
+        mCompressedLength += mDeflater.deflate(mBuffer);
+      }
+    }
+
+    /** Returns the compressed length of everything written so far; nothing may be written after. */
+    long finishCompressedLength() {
+      mDeflater.finish();
+      while (!mDeflater.finished()) {
+        mCompressedLength += mDeflater.deflate(mBuffer);
+      }
+      return mCompressedLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+      mDeflater.end();
+      super.close();
+    }
+  }
+
   /**
    * Write a patch entry.
    *
@@ -46,41 +160,83 @@ public class BsDiffPatchWriter {
    * @param oldPositionOffsetForNextEntry the offset between |oldPosition| for the next entry and
    *     |oldPosition| + |diffLength| for this entry.
    * @param outputStream the output stream to write the patch entry to.
+   * @param blocks the buffers to read and write data in
    * @throws IOException if unable to read or write data
    */
   private static void writeEntry(
       RandomAccessObject newData,
       RandomAccessObject oldData,
-      int newPosition,
-      int oldPosition,
-      int diffLength,
-      int extraLength,
-      int oldPositionOffsetForNextEntry,
-      OutputStream outputStream)
+      long newPosition,
+      long oldPosition,
+      long diffLength,
+      long extraLength,
+      long oldPositionOffsetForNextEntry,
+      OutputStream outputStream,
+      Blocks blocks)
       throws IOException {
+    // The lengths of an entry must fit into an int for the applier, so longer ranges are written as
+    // several entries that continue where the previous one stopped.
+    while (diffLength > Integer.MAX_VALUE) {
+      writeEntry(
+          newData,
+          oldData,
+          newPosition,
+          oldPosition,
+          Integer.MAX_VALUE,
+          0,
+          0,
+          outputStream,
+          blocks);
+      newPosition += Integer.MAX_VALUE;
+      oldPosition += Integer.MAX_VALUE;
+      diffLength -= Integer.MAX_VALUE;
+    }
+    while (extraLength > Integer.MAX_VALUE) {
+      writeEntry(
+          newData,
+          oldData,
+          newPosition,
+          oldPosition,
+          diffLength,
+          Integer.MAX_VALUE,
+          0,
+          outputStream,
+          blocks);
+      newPosition += diffLength + Integer.MAX_VALUE;
+      oldPosition += diffLength;
+      diffLength = 0;
+      extraLength -= Integer.MAX_VALUE;
+    }
+
     // Write control data
-    BsUtil.writeFormattedLong(diffLength, outputStream);
-    BsUtil.writeFormattedLong(extraLength, outputStream);
-    BsUtil.writeFormattedLong(oldPositionOffsetForNextEntry, outputStream);
+    BsUtil.writeFormattedLong(diffLength, blocks.control, 0);
+    BsUtil.writeFormattedLong(extraLength, blocks.control, 8);
+    BsUtil.writeFormattedLong(oldPositionOffsetForNextEntry, blocks.control, 16);
+    outputStream.write(blocks.control);
 
-    newData.seek(newPosition);
-    oldData.seek(oldPosition);
     // Write diff data
-    for (int i = 0; i < diffLength; ++i) {
-      // TODO(hartmanng): test using a small buffer to insulate read() calls (and write() for that
-      // matter).
-      outputStream.write(newData.readUnsignedByte() - oldData.readUnsignedByte());
-    }
-
-    if (extraLength > 0) {
-      // This seek will throw an IOException sometimes, if we try to seek to the byte after
-      // the end of the RandomAccessObject.
-      newData.seek(newPosition + diffLength);
-      // Write extra data
-      for (int i = 0; i < extraLength; ++i) {
-        // TODO(hartmanng): same as above - test buffering readByte().
-        outputStream.write(newData.readByte());
+    byte[] newBlock = blocks.newBlock;
+    byte[] oldBlock = blocks.oldBlock;
+    for (long done = 0; done < diffLength; ) {
+      int blockLength = (int) Math.min(diffLength - done, BLOCK_SIZE);
+      newData.seek(newPosition + done);
+      newData.readFully(newBlock, 0, blockLength);
+      oldData.seek(oldPosition + done);
+      oldData.readFully(oldBlock, 0, blockLength);
+      for (int i = 0; i < blockLength; ++i) {
+        newBlock[i] -= oldBlock[i];
       }
+      outputStream.write(newBlock, 0, blockLength);
+      done += blockLength;
+    }
+
+    // Write extra data
+    for (long done = 0; done < extraLength; ) {
+      int blockLength = (int) Math.min(extraLength - done, BLOCK_SIZE);
+      newData.seek(newPosition + diffLength + done);
+      newData.readFully(newBlock, 0, blockLength);
+      outputStream.write(newBlock, 0, blockLength);
+      done += blockLength;
     }
   }
 
@@ -101,12 +257,42 @@ public class BsDiffPatchWriter {
       Matcher matcher,
       OutputStream outputStream)
       throws IOException, InterruptedException {
+    generatePatchWithMatcher(oldData, newData, matcher, 0, -1, outputStream);
+  }
+
+  /**
+   * Generate the entries of a BsDiff patch given a Matcher, starting and ending at the specified
+   * positions in |oldData|. This allows the entries for consecutive segments of the new data to be
+   * generated independently and concatenated.
+   *
+   * @param oldData the old blob
+   * @param newData the new blob, or the segment of it to generate entries for
+   * @param matcher a Matcher to find binary matches between oldData and newData
+   * @param initialOldPosition the position in |oldData| that the first entry diffs against
+   * @param nextOldPosition the position in |oldData| that the last entry should point the entry
+   *     after it to, or -1 if there is no entry after it
+   * @param outputStream the outputStream for the generated entries
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  private static void generatePatchWithMatcher(
+      RandomAccessObject oldData,
+      RandomAccessObject newData,
+      Matcher matcher,
+      long initialOldPosition,
+      long nextOldPosition,
+      OutputStream outputStream)
+      throws IOException, InterruptedException {
+    Blocks blocks = new Blocks();
+    byte[] newBlock = blocks.newBlock;
+    byte[] oldBlock = blocks.oldBlock;
+
     // Compute the differences, writing ctrl as we go
-    int lastNewPosition = 0;
-    int lastOldPosition = 0;
+    long lastNewPosition = 0;
+    long lastOldPosition = initialOldPosition;
 
-    int newPosition = 0;
-    int oldPosition = 0;
+    long newPosition = 0;
+    long oldPosition = 0;
     while (newPosition < newData.length()) {
       if (Thread.interrupted()) {
         throw new InterruptedException();
@@ -116,79 +302,104 @@ public class BsDiffPatchWriter {
         newPosition = nextMatch.newPosition;
         oldPosition = nextMatch.oldPosition;
       } else {
-        newPosition = (int) newData.length();
+        newPosition = newData.length();
       }
 
       // Extend the current match (|newPosition|, |oldPosition|) backward such that 50% of the bytes
       // match. We have written diff / extra data up till |lastNewPosition| so we cannot extend
       // further back than |lastNewPosition|.
-      int backwardExtension = 0;
+      long backwardExtension = 0;
       if (newPosition < newData.length()) {
-        int score = 0;
-        int bestScore = 0;
-        for (int i = 1; newPosition - i >= lastNewPosition && oldPosition >= i; ++i) {
-          oldData.seek(oldPosition - i);
-          newData.seek(newPosition - i);
-          if (oldData.readByte() == newData.readByte()) {
-            ++score;
-          } else {
-            --score;
-          }
+        long score = 0;
+        long bestScore = 0;
+        long length = Math.min(newPosition - lastNewPosition, oldPosition);
+        for (long done = 0; done < length; ) {
+          // The block ends |done| bytes before the match and is scanned from its end.
+          int blockLength = (int) Math.min(length - done, BLOCK_SIZE);
+          oldData.seek(oldPosition - done - blockLength);
+          oldData.readFully(oldBlock, 0, blockLength);
+          newData.seek(newPosition - done - blockLength);
+          newData.readFully(newBlock, 0, blockLength);
+          for (int j = blockLength - 1; j >= 0; --j) {
+            if (oldBlock[j] == newBlock[j]) {
+              ++score;
+            } else {
+              --score;
+            }
 
-          if (score > bestScore) {
-            bestScore = score;
-            backwardExtension = i;
+            if (score > bestScore) {
+              bestScore = score;
+              backwardExtension = done + blockLength - j;
+            }
           }
+          done += blockLength;
         }
       }
 
       // Extend the previous match (|lastNewPosition|, |lastOldPosition|) forward such that 50% of
       // the bytes match. (|lastNewPosition|, |lastOldPosition|) were extended backward in the
       // previous iteration of the loop.
-      int forwardExtension = 0;
+      long forwardExtension = 0;
       {
-        int score = 0;
-        int bestScore = 0;
-        oldData.seek(lastOldPosition);
-        newData.seek(lastNewPosition);
-        for (int i = 0;
-            lastNewPosition + i < newPosition && lastOldPosition + i < oldData.length();
-            ++i) {
-          if (oldData.readByte() == newData.readByte()) {
-            ++score;
-          } else {
-            --score;
-          }
-          if (score > bestScore) {
-            bestScore = score;
-            forwardExtension = i + 1;
+        long score = 0;
+        long bestScore = 0;
+        long length = Math.min(newPosition - lastNewPosition, oldData.length() - lastOldPosition);
+        for (long done = 0; done < length; ) {
+          int blockLength = (int) Math.min(length - done, BLOCK_SIZE);
+          oldData.seek(lastOldPosition + done);
+          oldData.readFully(oldBlock, 0, blockLength);
+          newData.seek(lastNewPosition + done);
+          newData.readFully(newBlock, 0, blockLength);
+          for (int j = 0; j < blockLength; ++j) {
+            if (oldBlock[j] == newBlock[j]) {
+              ++score;
+            } else {
+              --score;
+            }
+            if (score > bestScore) {
+              bestScore = score;
+              forwardExtension = done + j + 1;
+            }
           }
+          done += blockLength;
         }
       }
 
       // Adjust |backwardExtension| and |forwardExtension| such that the extended matches do
       // not intersect in |newData|. They can intersect in |oldData|.
-      int overlap = (lastNewPosition + forwardExtension) - (newPosition - backwardExtension);
+      long overlap = (lastNewPosition + forwardExtension) - (newPosition - backwardExtension);
       if (overlap > 0) {
-        int score = 0;
-        int bestScore = 0;
-        int backwardExtensionDecrement = 0;
-        for (int i = 0; i < overlap; ++i) {
-          newData.seek(lastNewPosition + forwardExtension - overlap + i);
-          oldData.seek(lastOldPosition + forwardExtension - overlap + i);
-          if (newData.readByte() == oldData.readByte()) {
-            ++score;
+        long score = 0;
+        long bestScore = 0;
+        long backwardExtensionDecrement = 0;
+        boolean[] forwardMatches = blocks.matches;
+        for (long done = 0; done < overlap; ) {
+          int blockLength = (int) Math.min(overlap - done, BLOCK_SIZE);
+          newData.seek(lastNewPosition + forwardExtension - overlap + done);
+          newData.readFully(newBlock, 0, blockLength);
+          oldData.seek(lastOldPosition + forwardExtension - overlap + done);
+          oldData.readFully(oldBlock, 0, blockLength);
+          for (int j = 0; j < blockLength; ++j) {
+            forwardMatches[j] = newBlock[j] == oldBlock[j];
           }
 
-          newData.seek(newPosition - backwardExtension + i);
-          oldData.seek(oldPosition - backwardExtension + i);
-          if (newData.readByte() == oldData.readByte()) {
-            --score;
-          }
-          if (score > bestScore) {
-            bestScore = score;
-            backwardExtensionDecrement = i + 1;
+          newData.seek(newPosition - backwardExtension + done);
+          newData.readFully(newBlock, 0, blockLength);
+          oldData.seek(oldPosition - backwardExtension + done);
+          oldData.readFully(oldBlock, 0, blockLength);
+          for (int j = 0; j < blockLength; ++j) {
+            if (forwardMatches[j]) {
+              ++score;
+            }
+            if (newBlock[j] == oldBlock[j]) {
+              --score;
+            }
+            if (score > bestScore) {
+              bestScore = score;
+              backwardExtensionDecrement = done + j + 1;
+            }
           }
+          done += blockLength;
         }
         forwardExtension -= overlap - backwardExtensionDecrement;
         backwardExtension -= backwardExtensionDecrement;
@@ -202,17 +413,19 @@ public class BsDiffPatchWriter {
       //   neither the previous extended match or the new extended match:
       //   newData[lastNewPosition + forwardExtension ... newPosition - backwardExtension - 1]
 
-      int oldPositionOffset = 0;
+      long oldPositionOffset = 0;
       if (newPosition < newData.length()) {
         // The offset from the byte after the last byte of the previous match in |newData| to the
         // first byte of the new match in |oldData|.
         oldPositionOffset =
             (oldPosition - backwardExtension) - (lastOldPosition + forwardExtension);
+      } else if (nextOldPosition >= 0) {
+        oldPositionOffset = nextOldPosition - (lastOldPosition + forwardExtension);
       }
 
       // The number of bytes in |newData| between |lastNewPosition| and |newPosition| which are part
       // of neither the previous extended match or the new extended match.
-      int newNoMatchLength =
+      long newNoMatchLength =
           (newPosition - backwardExtension) - (lastNewPosition + forwardExtension);
 
       writeEntry(
@@ -223,7 +436,8 @@ public class BsDiffPatchWriter {
           forwardExtension,
           newNoMatchLength,
           oldPositionOffset,
-          outputStream);
+          outputStream,
+          blocks);
 
       lastNewPosition = newPosition - backwardExtension;
       lastOldPosition = oldPosition - backwardExtension;
@@ -302,8 +516,8 @@ public class BsDiffPatchWriter {
 
   /**
    * Generate a diff between the old data and the new, writing to the specified stream. Uses
-   * file-based storage for ancillary operations and {@link #DEFAULT_MINIMUM_MATCH_LENGTH} as the
-   * match length.
+   * memory or file-based storage for ancillary operations and {@link #DEFAULT_MINIMUM_MATCH_LENGTH}
+   * as the match length.
    *
    * @param oldData a file containing the old data
    * @param newData a file containing the new data
@@ -319,7 +533,8 @@ public class BsDiffPatchWriter {
 
   /**
    * Generate a diff between the old data and the new, writing to the specified stream. Uses
-   * file-based storage for ancillary allocations.
+   * memory or file-based storage for ancillary allocations, depending on how much memory the other
+   * generations in the process are using; see {@link #DEFAULT_RANDOM_ACCESS_OBJECT_FACTORY}.
    *
    * @param oldData a file containing the old data
    * @param newData a file containing the new data
@@ -336,29 +551,17 @@ public class BsDiffPatchWriter {
       final OutputStream outputStream,
       final int minimumMatchLength)
       throws IOException, InterruptedException {
-    try (RandomAccessFile oldDataRAF = new RandomAccessFile(oldData, "r");
-        RandomAccessFile newDataRAF = new RandomAccessFile(newData, "r");
-        RandomAccessObject oldDataRAO =
-            new RandomAccessObject.RandomAccessMmapObject(oldDataRAF, "r");
-        RandomAccessObject newDataRAO =
-            new RandomAccessObject.RandomAccessMmapObject(newDataRAF, "r"); ) {
-      generatePatch(
-          oldDataRAO,
-          newDataRAO,
-          outputStream,
-          new RandomAccessObjectFactory.RandomAccessMmapObjectFactory("rw"),
-          minimumMatchLength);
-    }
-
-    // Due to a bug in the JVM (http://bugs.java.com/view_bug.do?bug_id=6417205), we need to call
-    // gc() and runFinalization() explicitly to get rid of any MappedByteBuffers we may have used
-    // during patch generation.
-    System.gc();
-    System.runFinalization();
+    generatePatch(
+        oldData,
+        newData,
+        outputStream,
+        new BsDiffOptions.Builder().withMinimumMatchLength(minimumMatchLength).build());
   }
 
   /**
-   * Generate a diff between the old data and the new, writing to the specified stream.
+   * Generate a diff between the old data and the new, writing to the specified stream. The suffix
+   * array of the old data is created by an {@link AdaptiveSuffixSorter}, which picks the sorting
+   * algorithm that suits the old data.
    *
    * @param oldData the old data
    * @param newData the new data
@@ -377,15 +580,844 @@ public class BsDiffPatchWriter {
       final RandomAccessObjectFactory randomAccessObjectFactory,
       final int minimumMatchLength)
       throws IOException, InterruptedException {
+    generatePatch(
+        oldData,
+        newData,
+        outputStream,
+        new BsDiffOptions.Builder()
+            .withSuffixSorter(new AdaptiveSuffixSorter(randomAccessObjectFactory))
+            .withMinimumMatchLength(minimumMatchLength)
+            .build());
+  }
+
+  /**
+   * Generate a diff between the old data and the new, writing to the specified stream, with the
+   * specified options. The old and new data are memory-mapped; see {@link
+   * #generatePatch(RandomAccessObject, RandomAccessObject, OutputStream, BsDiffOptions)}.
+   *
+   * @param oldData a file containing the old data
+   * @param newData a file containing the new data
+   * @param outputStream where output should be written
+   * @param options the options
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public static void generatePatch(
+      final File oldData,
+      final File newData,
+      final OutputStream outputStream,
+      final BsDiffOptions options)
+      throws IOException, InterruptedException {
+    try (RandomAccessFile oldDataRAF = new RandomAccessFile(oldData, "r");
+        RandomAccessFile newDataRAF = new RandomAccessFile(newData, "r");
+        RandomAccessObject oldDataRAO = mapReadOnly(oldDataRAF);
+        RandomAccessObject newDataRAO = mapReadOnly(newDataRAF); ) {
+      generatePatch(oldDataRAO, newDataRAO, outputStream, options);
+    }
+  }
+
+  /**
+   * Generate a diff between the old data and the new, writing to the specified stream, with the
+   * specified options. The result is a standard bsdiff patch.
+   *
+   * <p>The suffix array of the old data is created by the suffix sorter of the options. If they
+   * have several minimum match lengths, the new data is matched once for each of them and the
+   * entries that compress best are written, whichever of the ways below the new data is matched.
+   *
+   * <p>With more than one matching thread, the new data is split into equal segments of at least
+   * {@link #MIN_SEGMENT_LENGTH} bytes, which are matched concurrently against the shared suffix
+   * array. Each segment starts out diffing against the same position in the old data, as the whole
+   * new data does, and its last entry points the next segment there, so the entries of the
+   * segments simply follow each other in the patch. The patch is not the same as with one thread,
+   * since no match spans a seam, and is usually a little larger. The entries of each segment are
+   * held in memory until the segments before it have been written. Matching in parallel requires
+   * the old data, the new data and the suffix array to be {@link
+   * RandomAccessObject.RandomAccessByteArrayObject}s (which includes memory-mapped ones); for
+   * other objects, the new data is matched on the calling thread.
+   *
+   * <p>Old data that is longer than {@link #MAX_SUFFIX_ARRAY_SEGMENT_LENGTH} bytes is split into
+   * overlapping segments with one suffix array each, and is always matched on the calling thread.
+   *
+   * <p>With hash-chain matching, matches are found by a {@link HashChainMatcher} instead of a
+   * suffix array. Indexing the old data takes a single pass over it instead of sorting its
+   * suffixes, so generation is much faster, at the cost of a somewhat larger patch. Old data of any
+   * length is supported, and the new data is split into segments under the same conditions as
+   * above.
+   *
+   * <p>If the options have a memory budget that doesn't cover a suffix array of the whole old data,
+   * at {@link #MEMORY_BUDGET_BYTES_PER_WINDOW_BYTE} bytes per byte of old data plus one byte per
+   * byte of new data, the new data is split into windows, and each window is matched only against
+   * the region of the old data, as long as the window, that shares the most content with it. The
+   * budget is divided between a sample of the old data for choosing the regions and the windows,
+   * which are as long as the rest of the budget allows at {@link
+   * #MEMORY_BUDGET_BYTES_PER_WINDOW_BYTE} bytes per byte of window. Consecutive windows with the
+   * same region share its suffix array. Matches that lie outside the region of their window are not
+   * found, so the patch is usually larger than without a budget. Within a budget, the new data is
+   * always matched with suffix arrays on the calling thread, and the minimum match length is chosen
+   * for each window.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param outputStream where output should be written
+   * @param options the options
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public static void generatePatch(
+      final RandomAccessObject oldData,
+      final RandomAccessObject newData,
+      final OutputStream outputStream,
+      final BsDiffOptions options)
+      throws IOException, InterruptedException {
+    long oldLength = oldData.length();
+    long newLength = newData.length();
+    long memoryBudgetBytes = options.memoryBudgetBytes;
+    if (memoryBudgetBytes != Long.MAX_VALUE
+        && (MEMORY_BUDGET_BYTES_PER_WINDOW_BYTE - 1) * oldLength + newLength > memoryBudgetBytes) {
+      generatePatchInWindows(oldData, newData, outputStream, options);
+      return;
+    }
+    // Within a budget, the suffix array of the whole old data is the only one held in memory.
+    int matchingThreadCount =
+        memoryBudgetBytes == Long.MAX_VALUE ? options.matchingThreadCount : 1;
+    int[] minimumMatchLengths = options.minimumMatchLengths;
+    long totalMatchLengthBudget = options.totalMatchLengthBudget;
+
     // Write header (signature + new file length)
     outputStream.write("ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII));
-    BsUtil.writeFormattedLong(newData.length(), outputStream);
+    BsUtil.writeFormattedLong(newLength, outputStream);
+
+    if (options.hashChainMatching && memoryBudgetBytes == Long.MAX_VALUE) {
+      HashChainMatcher.Index index =
+          HashChainMatcher.Index.build(oldData, shortest(minimumMatchLengths));
+      generateBestPatchEntries(
+          minimumMatchLengths,
+          (minimumMatchLength, out) ->
+              generateHashChainPatchEntries(
+                  oldData,
+                  newData,
+                  index,
+                  minimumMatchLength,
+                  totalMatchLengthBudget,
+                  matchingThreadCount,
+                  out),
+          outputStream);
+      return;
+    }
+
+    if (oldLength > MAX_SUFFIX_ARRAY_SEGMENT_LENGTH) {
+      generatePatchWithSegmentedSuffixArray(
+          oldData,
+          newData,
+          options.suffixSorter,
+          minimumMatchLengths,
+          totalMatchLengthBudget,
+          MAX_SUFFIX_ARRAY_SEGMENT_LENGTH,
+          SUFFIX_ARRAY_SEGMENT_OVERLAP,
+          outputStream);
+      return;
+    }
 
     // Do the suffix search.
-    try (final RandomAccessObject groupArray =
-        new DivSuffixSorter(randomAccessObjectFactory).suffixSort(oldData)) {
-      BsDiffMatcher matcher = new BsDiffMatcher(oldData, newData, groupArray, minimumMatchLength);
+    try (final RandomAccessObject groupArray = options.suffixSorter.suffixSort(oldData)) {
+      generateBestPatchEntries(
+          minimumMatchLengths,
+          (minimumMatchLength, out) ->
+              generatePatchEntries(
+                  oldData,
+                  newData,
+                  groupArray,
+                  minimumMatchLength,
+                  totalMatchLengthBudget,
+                  matchingThreadCount,
+                  out),
+          outputStream);
+    }
+  }
+
+  /**
+   * Generate a diff between the old data and the new in windows, each matched against the region
+   * of the old data that suits it best, as described for a memory budget in {@link
+   * #generatePatch(RandomAccessObject, RandomAccessObject, OutputStream, BsDiffOptions)}.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param outputStream where output should be written
+   * @param options the options, whose memory budget must allow for windows of at least {@link
+   *     #MIN_WINDOW_LENGTH} bytes
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  private static void generatePatchInWindows(
+      final RandomAccessObject oldData,
+      final RandomAccessObject newData,
+      final OutputStream outputStream,
+      final BsDiffOptions options)
+      throws IOException, InterruptedException {
+    long oldLength = oldData.length();
+    long newLength = newData.length();
+    long memoryBudgetBytes = options.memoryBudgetBytes;
+    SuffixSorter suffixSorter = options.suffixSorter;
+    int[] minimumMatchLengths = options.minimumMatchLengths;
+    long totalMatchLengthBudget = options.totalMatchLengthBudget;
+    long indexBudget = memoryBudgetBytes / MEMORY_BUDGET_INDEX_FRACTION;
+    long windowLength =
+        Math.min(
+            MAX_SUFFIX_ARRAY_SEGMENT_LENGTH,
+            (memoryBudgetBytes - indexBudget) / MEMORY_BUDGET_BYTES_PER_WINDOW_BYTE);
+    if (windowLength < MIN_WINDOW_LENGTH) {
+      throw new IllegalArgumentException("memoryBudgetBytes too small: " + memoryBudgetBytes);
+    }
+    int regionLength = (int) Math.min(windowLength, oldLength);
+    int windowCount = (int) ((newLength + windowLength - 1) / windowLength);
+
+    // Every window needs to know where the next one starts diffing, so the regions are chosen up
+    // front.
+    long[] regionStarts = new long[windowCount];
+    if (regionLength < oldLength) {
+      OldRegionSelector selector =
+          new OldRegionSelector(
+              oldData,
+              regionLength,
+              (int) Math.min(Integer.MAX_VALUE, indexBudget / OldRegionSelector.BYTES_PER_SAMPLE));
+      for (int i = 0; i < windowCount; i++) {
+        long windowStart = i * windowLength;
+        // Unless another region is more similar, assume that the window's content hasn't moved.
+        regionStarts[i] =
+            selector.selectRegion(
+                newData,
+                windowStart,
+                (int) Math.min(windowLength, newLength - windowStart),
+                Math.min(windowStart, oldLength - regionLength));
+      }
+    }
+
+    // Write header (signature + new file length)
+    outputStream.write("ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII));
+    BsUtil.writeFormattedLong(newLength, outputStream);
+
+    BsDiffMatcher.OldDataSegment[] segments = new BsDiffMatcher.OldDataSegment[1];
+    try {
+      for (int i = 0; i < windowCount; i++) {
+        if (segments[0] == null || segments[0].offset != regionStarts[i]) {
+          if (segments[0] != null) {
+            closeSegment(segments[0]);
+            segments[0] = null;
+          }
+          RandomAccessObject regionData = sliceOf(oldData, regionStarts[i], regionLength);
+          try {
+            segments[0] =
+                new BsDiffMatcher.OldDataSegment(
+                    regionData, suffixSorter.suffixSort(regionData), regionStarts[i]);
+          } finally {
+            if (segments[0] == null) {
+              regionData.close();
+            }
+          }
+        }
+        long windowStart = i * windowLength;
+        int length = (int) Math.min(windowLength, newLength - windowStart);
+        try (RandomAccessObject windowData = sliceOf(newData, windowStart, length)) {
+          // The windows follow each other in the patch like the segments of
+          // generatePatchInSegments.
+          long initialOldPosition = Math.min(windowStart, oldLength);
+          long nextOldPosition =
+              i + 1 < windowCount ? Math.min(windowStart + length, oldLength) : -1;
+          // Every window uses the minimum match length that suits it best.
+          generateBestPatchEntries(
+              minimumMatchLengths,
+              (minimumMatchLength, out) -> {
+                BsDiffMatcher matcher =
+                    new BsDiffMatcher(
+                        oldData,
+                        windowData,
+                        segments,
+                        minimumMatchLength,
+                        initialOldPosition,
+                        totalMatchLengthBudget);
+                generatePatchWithMatcher(
+                    oldData, windowData, matcher, initialOldPosition, nextOldPosition, out);
+              },
+              outputStream);
+        }
+      }
+    } finally {
+      if (segments[0] != null) {
+        closeSegment(segments[0]);
+      }
+    }
+  }
+
+  /**
+   * Generate the entries of a BsDiff patch against a hash-chain index of the whole old data, on up
+   * to the specified number of threads.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param index the index of the old data
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider
+   * @param totalMatchLengthBudget the budget for extending matches; see {@link BsDiffMatcher}
+   * @param matchingThreadCount the maximum number of threads to match on
+   * @param outputStream where output should be written
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  private static void generateHashChainPatchEntries(
+      RandomAccessObject oldData,
+      RandomAccessObject newData,
+      final HashChainMatcher.Index index,
+      final int minimumMatchLength,
+      final long totalMatchLengthBudget,
+      int matchingThreadCount,
+      OutputStream outputStream)
+      throws IOException, InterruptedException {
+    int segmentCount =
+        (int) Math.max(1, Math.min(matchingThreadCount, newData.length() / MIN_SEGMENT_LENGTH));
+    if (segmentCount > 1
+        && oldData instanceof RandomAccessObject.RandomAccessByteArrayObject
+        && newData instanceof RandomAccessObject.RandomAccessByteArrayObject) {
+      generatePatchInSegments(
+          (RandomAccessObject.RandomAccessByteArrayObject) oldData,
+          (RandomAccessObject.RandomAccessByteArrayObject) newData,
+          (segmentOldData, segmentNewData, initialOldPosition) ->
+              new HashChainMatcher(
+                  segmentOldData,
+                  segmentNewData,
+                  index,
+                  minimumMatchLength,
+                  initialOldPosition,
+                  totalMatchLengthBudget,
+                  HashChainMatcher.DEFAULT_MAX_CHAIN_LENGTH),
+          segmentCount,
+          outputStream);
+    } else {
+      HashChainMatcher matcher =
+          new HashChainMatcher(
+              oldData,
+              newData,
+              index,
+              minimumMatchLength,
+              0,
+              totalMatchLengthBudget,
+              HashChainMatcher.DEFAULT_MAX_CHAIN_LENGTH);
+      generatePatchWithMatcher(oldData, newData, matcher, outputStream);
+    }
+  }
+
+  /**
+   * Generate one diff for each of the specified ranges of the new data against the whole old data,
+   * with the specified options, and write each to the file that is the metadata of its range. The
+   * old and new data are memory-mapped, and the suffix array or the hash-chain index of the old
+   * data is built only once for all ranges. The ranges are matched concurrently on up to the
+   * specified number of threads if the suffix array is held in memory, and otherwise one after the
+   * other on the matching threads of the options. The memory budget of the options is not used.
+   *
+   * @param oldData a file containing the old data, of at most {@link
+   *     #MAX_SUFFIX_ARRAY_SEGMENT_LENGTH} bytes unless the options match with hash chains
+   * @param newData a file containing the new data
+   * @param ranges the ranges of the new data, each of at most {@link Integer#MAX_VALUE} bytes, with
+   *     the files to write their diffs to as metadata
+   * @param options the options
+   * @param threadCount the maximum number of threads to match ranges on concurrently
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  static void generatePatches(
+      final File oldData,
+      final File newData,
+      final List<TypedRange<File>> ranges,
+      final BsDiffOptions options,
+      int threadCount)
+      throws IOException, InterruptedException {
+    try (RandomAccessFile oldDataRAF = new RandomAccessFile(oldData, "r");
+        RandomAccessFile newDataRAF = new RandomAccessFile(newData, "r");
+        RandomAccessObject oldDataRAO = mapReadOnly(oldDataRAF);
+        RandomAccessObject newDataRAO = mapReadOnly(newDataRAF); ) {
+      generatePatches(
+          oldDataRAO,
+          newDataRAO,
+          ranges,
+          file -> new BufferedOutputStream(new FileOutputStream(file)),
+          options,
+          threadCount);
+    }
+  }
+
+  /**
+   * Generate one diff for each of the specified ranges of the new data against the whole old data,
+   * like {@link #generatePatches(File, File, List, BsDiffOptions, int)}, but with the data and the
+   * diffs held in memory. Since the old data is an array, the ranges are always matched
+   * concurrently if the suffix array is held in memory too.
+   *
+   * @param oldData the old data, of at most {@link #MAX_SUFFIX_ARRAY_SEGMENT_LENGTH} bytes unless
+   *     the options match with hash chains
+   * @param newData the new data
+   * @param ranges the ranges of the new data, with the streams to write their diffs to as metadata
+   * @param options the options
+   * @param threadCount the maximum number of threads to match ranges on concurrently
+   * @throws IOException if unable to write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  static void generatePatches(
+      final byte[] oldData,
+      final byte[] newData,
+      final List<TypedRange<ByteArrayOutputStream>> ranges,
+      final BsDiffOptions options,
+      int threadCount)
+      throws IOException, InterruptedException {
+    generatePatches(
+        new RandomAccessObject.RandomAccessByteArrayObject(oldData),
+        new RandomAccessObject.RandomAccessByteArrayObject(newData),
+        ranges,
+        out -> out,
+        options,
+        threadCount);
+  }
+
+  /** Opens the stream to write the diff of a range to, given the metadata of the range. */
+  private interface PatchOutput<T> {
+    OutputStream open(T metadata) throws IOException;
+  }
+
+  private static <T> void generatePatches(
+      final RandomAccessObject oldDataRAO,
+      final RandomAccessObject newDataRAO,
+      final List<TypedRange<T>> ranges,
+      final PatchOutput<T> patchOutput,
+      final BsDiffOptions options,
+      int threadCount)
+      throws IOException, InterruptedException {
+    if (threadCount < 1) {
+      throw new IllegalArgumentException("threadCount must be at least 1");
+    }
+    final int[] minimumMatchLengths = options.minimumMatchLengths;
+    final long totalMatchLengthBudget = options.totalMatchLengthBudget;
+    HashChainMatcher.Index index = null;
+    RandomAccessObject groupArray = null;
+    try {
+      if (options.hashChainMatching) {
+        index = HashChainMatcher.Index.build(oldDataRAO, shortest(minimumMatchLengths));
+      } else {
+        if (oldDataRAO.length() > MAX_SUFFIX_ARRAY_SEGMENT_LENGTH) {
+          throw new IllegalArgumentException("oldData too long: " + oldDataRAO.length());
+        }
+        groupArray = options.suffixSorter.suffixSort(oldDataRAO);
+      }
+      // Concurrent ranges need their own positions in the shared objects.
+      boolean shareable =
+          oldDataRAO instanceof RandomAccessObject.RandomAccessByteArrayObject
+              && (groupArray == null
+                  || groupArray instanceof RandomAccessObject.RandomAccessByteArrayObject);
+      int rangeThreadCount = shareable ? Math.min(threadCount, ranges.size()) : 1;
+      final int matchingThreadCount =
+          rangeThreadCount == 1 ? options.matchingThreadCount : 1;
+      final HashChainMatcher.Index sharedIndex = index;
+      final RandomAccessObject sharedGroupArray = groupArray;
+      ExecutorService executor = Executors.newFixedThreadPool(rangeThreadCount);
+      try {
+        List<Future<Void>> results = new ArrayList<Future<Void>>(ranges.size());
+        for (final TypedRange<T> range : ranges) {
+          final RandomAccessObject rangeOldData =
+              rangeThreadCount == 1
+                  ? oldDataRAO
+                  : ((RandomAccessObject.RandomAccessByteArrayObject) oldDataRAO).duplicate();
+          final RandomAccessObject rangeGroupArray =
+              rangeThreadCount == 1 || sharedGroupArray == null
+                  ? sharedGroupArray
+                  : ((RandomAccessObject.RandomAccessByteArrayObject) sharedGroupArray)
+                      .duplicate();
+          results.add(
+              executor.submit(
+                  () -> {
+                    RandomAccessObject slice;
+                    // Copying the range out of other data moves its shared position.
+                    synchronized (newDataRAO) {
+                      slice =
+                          sliceOf(
+                              newDataRAO, range.getOffset(), Math.toIntExact(range.getLength()));
+                    }
+                    try (RandomAccessObject rangeNewData = slice;
+                        OutputStream outputStream = patchOutput.open(range.getMetadata())) {
+                      // Write header (signature + new file length)
+                      outputStream.write("ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII));
+                      BsUtil.writeFormattedLong(rangeNewData.length(), outputStream);
+                      generateBestPatchEntries(
+                          minimumMatchLengths,
+                          (minimumMatchLength, out) -> {
+                            if (sharedIndex != null) {
+                              generateHashChainPatchEntries(
+                                  rangeOldData,
+                                  rangeNewData,
+                                  sharedIndex,
+                                  minimumMatchLength,
+                                  totalMatchLengthBudget,
+                                  matchingThreadCount,
+                                  out);
+                            } else {
+                              generatePatchEntries(
+                                  rangeOldData,
+                                  rangeNewData,
+                                  rangeGroupArray,
+                                  minimumMatchLength,
+                                  totalMatchLengthBudget,
+                                  matchingThreadCount,
+                                  out);
+                            }
+                          },
+                          outputStream);
+                    }
+                    return null;
+                  }));
+        }
+        for (Future<Void> result : results) {
+          Futures.get(result);
+        }
+      } finally {
+        shutdownAndAwaitTermination(executor);
+      }
+    } finally {
+      if (groupArray != null) {
+        groupArray.close();
+      }
+    }
+  }
+
+  /** Maps the file read-only, in segments if it is longer than a single mapping can be. */
+  private static RandomAccessObject mapReadOnly(RandomAccessFile file) throws IOException {
+    if (file.length() > Integer.MAX_VALUE) {
+      return new RandomAccessObject.RandomAccessSegmentedMmapObject(file);
+    }
+    return new RandomAccessObject.RandomAccessMmapObject(file, "r");
+  }
+
+  /**
+   * Generate the entries of a BsDiff patch against the suffix array of the whole old data, on up to
+   * the specified number of threads.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param groupArray the suffix array of the old data
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider
+   * @param totalMatchLengthBudget the budget for extending matches; see {@link BsDiffMatcher}
+   * @param matchingThreadCount the maximum number of threads to match on
+   * @param outputStream where output should be written
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  private static void generatePatchEntries(
+      RandomAccessObject oldData,
+      RandomAccessObject newData,
+      RandomAccessObject groupArray,
+      int minimumMatchLength,
+      long totalMatchLengthBudget,
+      int matchingThreadCount,
+      OutputStream outputStream)
+      throws IOException, InterruptedException {
+    int segmentCount =
+        (int) Math.max(1, Math.min(matchingThreadCount, newData.length() / MIN_SEGMENT_LENGTH));
+    if (segmentCount > 1
+        && oldData instanceof RandomAccessObject.RandomAccessByteArrayObject
+        && newData instanceof RandomAccessObject.RandomAccessByteArrayObject
+        && groupArray instanceof RandomAccessObject.RandomAccessByteArrayObject) {
+      RandomAccessObject.RandomAccessByteArrayObject sharedGroupArray =
+          (RandomAccessObject.RandomAccessByteArrayObject) groupArray;
+      generatePatchInSegments(
+          (RandomAccessObject.RandomAccessByteArrayObject) oldData,
+          (RandomAccessObject.RandomAccessByteArrayObject) newData,
+          (segmentOldData, segmentNewData, initialOldPosition) ->
+              new BsDiffMatcher(
+                  segmentOldData,
+                  segmentNewData,
+                  new BsDiffMatcher.OldDataSegment[] {
+                    new BsDiffMatcher.OldDataSegment(
+                        segmentOldData, sharedGroupArray.duplicate(), 0)
+                  },
+                  minimumMatchLength,
+                  initialOldPosition,
+                  totalMatchLengthBudget),
+          segmentCount,
+          outputStream);
+    } else {
+      BsDiffMatcher matcher =
+          new BsDiffMatcher(
+              oldData,
+              newData,
+              new BsDiffMatcher.OldDataSegment[] {
+                new BsDiffMatcher.OldDataSegment(oldData, groupArray, 0)
+              },
+              minimumMatchLength,
+              0,
+              totalMatchLengthBudget);
       generatePatchWithMatcher(oldData, newData, matcher, outputStream);
     }
   }
+
+  /** Generates the entries of a BsDiff patch with a given minimum match length. */
+  private interface PatchEntryGenerator {
+    /**
+     * Generates the entries.
+     *
+     * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider
+     * @param outputStream where the entries should be written
+     * @throws IOException if unable to read or write data
+     * @throws InterruptedException if any thread interrupts this thread
+     */
+    void generate(int minimumMatchLength, OutputStream outputStream)
+        throws IOException, InterruptedException;
+  }
+
+  /**
+   * Generate the entries of a BsDiff patch once for each of the specified minimum match lengths,
+   * and write the entries that are the shortest after compression with deflate. Since the entries
+   * are about as long as the new data, each candidate is written to a temp file. With a single
+   * length, the entries are written directly.
+   *
+   * @param minimumMatchLengths the minimum match lengths to try
+   * @param generator generates the entries for each of the lengths
+   * @param outputStream where output should be written
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  private static void generateBestPatchEntries(
+      int[] minimumMatchLengths, PatchEntryGenerator generator, OutputStream outputStream)
+      throws IOException, InterruptedException {
+    if (minimumMatchLengths.length == 1) {
+      generator.generate(minimumMatchLengths[0], outputStream);
+      return;
+    }
+    File best = null;
+    long bestCompressedLength = Long.MAX_VALUE;
+    try {
+      for (int minimumMatchLength : minimumMatchLengths) {
+        File candidate = File.createTempFile(CANDIDATE_FILE_NAME_PREFIX, "temp");
+        long compressedLength;
+        try (FileOutputStream out = new FileOutputStream(candidate);
+            CompressedLengthOutputStream compressedLengthOut =
+                new CompressedLengthOutputStream(new BufferedOutputStream(out))) {
+          generator.generate(minimumMatchLength, compressedLengthOut);
+          compressedLength = compressedLengthOut.finishCompressedLength();
+        } catch (IOException | InterruptedException | RuntimeException | Error e) {
+          candidate.delete();
+          throw e;
+        }
+        if (compressedLength < bestCompressedLength) {
+          if (best != null) {
+            best.delete();
+          }
+          best = candidate;
+          bestCompressedLength = compressedLength;
+        } else {
+          candidate.delete();
+        }
+      }
+      Files.copy(best.toPath(), outputStream);
+    } finally {
+      if (best != null) {
+        best.delete();
+      }
+    }
+  }
+
+  /** Returns the shortest of the specified minimum match lengths. */
+  private static int shortest(int[] minimumMatchLengths) {
+    int shortest = Integer.MAX_VALUE;
+    for (int minimumMatchLength : minimumMatchLengths) {
+      shortest = Math.min(shortest, minimumMatchLength);
+    }
+    return shortest;
+  }
+
+  /**
+   * Generate the entries of a BsDiff patch for old data that is too long for a single suffix array.
+   * The old data is split into segments of at most |segmentLength| bytes, each starting |overlap|
+   * bytes before the end of the previous one, and every match is searched for in the suffix arrays
+   * of all segments. The new data is matched on the calling thread, once for each minimum match
+   * length, and the entries that compress best are written.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param suffixSorter the sorter to create the suffix arrays of the segments with
+   * @param minimumMatchLengths the minimum match lengths to try
+   * @param totalMatchLengthBudget the budget for extending matches; see {@link BsDiffMatcher}
+   * @param segmentLength the maximum length of a segment
+   * @param overlap the number of bytes that consecutive segments overlap by, which must be less
+   *     than |segmentLength|
+   * @param outputStream where output should be written
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  // Visible for testing only
+  static void generatePatchWithSegmentedSuffixArray(
+      RandomAccessObject oldData,
+      RandomAccessObject newData,
+      SuffixSorter suffixSorter,
+      int[] minimumMatchLengths,
+      long totalMatchLengthBudget,
+      int segmentLength,
+      int overlap,
+      OutputStream outputStream)
+      throws IOException, InterruptedException {
+    List<BsDiffMatcher.OldDataSegment> segments = new ArrayList<BsDiffMatcher.OldDataSegment>();
+    // The slices of a mapped file own their mappings, so they are closed along with the segments.
+    List<RandomAccessObject> slices = new ArrayList<RandomAccessObject>();
+    try {
+      long oldLength = oldData.length();
+      for (long start = 0; ; start += segmentLength - overlap) {
+        int length = (int) Math.min(segmentLength, oldLength - start);
+        RandomAccessObject data = sliceOf(oldData, start, length);
+        slices.add(data);
+        segments.add(
+            new BsDiffMatcher.OldDataSegment(data, suffixSorter.suffixSort(data), start));
+        if (start + length == oldLength) {
+          break;
+        }
+      }
+      BsDiffMatcher.OldDataSegment[] segmentArray =
+          segments.toArray(new BsDiffMatcher.OldDataSegment[segments.size()]);
+      generateBestPatchEntries(
+          minimumMatchLengths,
+          (minimumMatchLength, out) -> {
+            BsDiffMatcher matcher =
+                new BsDiffMatcher(
+                    oldData,
+                    newData,
+                    segmentArray,
+                    minimumMatchLength,
+                    0,
+                    totalMatchLengthBudget);
+            generatePatchWithMatcher(oldData, newData, matcher, out);
+          },
+          outputStream);
+    } finally {
+      for (BsDiffMatcher.OldDataSegment segment : segments) {
+        segment.groupArray.close();
+      }
+      for (RandomAccessObject slice : slices) {
+        slice.close();
+      }
+    }
+  }
+
+  /** Closes the suffix array of a segment of the old data, and then the slice it was sorted for. */
+  private static void closeSegment(BsDiffMatcher.OldDataSegment segment) throws IOException {
+    try {
+      segment.groupArray.close();
+    } finally {
+      segment.data.close();
+    }
+  }
+
+  /**
+   * Returns a new object for a range of the specified data, which shares the content of the data if
+   * it is backed by a buffer, maps the range again if it is backed by a segmented file mapping, and
+   * holds a copy of it otherwise. The object must be closed to release a mapping.
+   */
+  private static RandomAccessObject sliceOf(RandomAccessObject data, long start, int length)
+      throws IOException {
+    if (data instanceof RandomAccessObject.RandomAccessByteArrayObject) {
+      return ((RandomAccessObject.RandomAccessByteArrayObject) data).slice((int) start, length);
+    }
+    if (data instanceof RandomAccessObject.RandomAccessSegmentedMmapObject) {
+      return ((RandomAccessObject.RandomAccessSegmentedMmapObject) data).slice(start, length);
+    }
+    byte[] copy = new byte[length];
+    data.seek(start);
+    data.readFully(copy);
+    return new RandomAccessObject.RandomAccessByteArrayObject(copy);
+  }
+
+  /** Creates the matcher for a segment of the new data in {@link #generatePatchInSegments}. */
+  interface SegmentMatcherFactory {
+    /**
+     * Creates a matcher.
+     *
+     * @param oldData the old data, with its own position
+     * @param newData the segment of the new data
+     * @param initialOldPosition the position in the old data that the segment starts out diffing
+     *     against
+     * @return the matcher
+     */
+    Matcher create(RandomAccessObject oldData, RandomAccessObject newData, long initialOldPosition);
+  }
+
+  /**
+   * Generate the entries of a BsDiff patch by matching equal segments of the new data on one thread
+   * each, and write them in order.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param matcherFactory creates the matcher for each segment, on the thread of the segment
+   * @param segmentCount the number of segments
+   * @param outputStream where output should be written
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  // Visible for testing only
+  static void generatePatchInSegments(
+      final RandomAccessObject.RandomAccessByteArrayObject oldData,
+      final RandomAccessObject.RandomAccessByteArrayObject newData,
+      final SegmentMatcherFactory matcherFactory,
+      int segmentCount,
+      OutputStream outputStream)
+      throws IOException, InterruptedException {
+    final int oldLength = (int) oldData.length();
+    final int newLength = (int) newData.length();
+    ExecutorService executor = Executors.newFixedThreadPool(segmentCount);
+    try {
+      List<Future<ByteArrayOutputStream>> segments =
+          new ArrayList<Future<ByteArrayOutputStream>>(segmentCount);
+      for (int i = 0; i < segmentCount; i++) {
+        final int start = (int) ((long) newLength * i / segmentCount);
+        final int end = (int) ((long) newLength * (i + 1) / segmentCount);
+        final int nextOldPosition = end == newLength ? -1 : Math.min(end, oldLength);
+        segments.add(
+            executor.submit(
+                () -> {
+                  // Every segment needs its own positions in the shared objects.
+                  RandomAccessObject segmentOldData = oldData.duplicate();
+                  RandomAccessObject segmentNewData = newData.slice(start, end - start);
+                  int initialOldPosition = Math.min(start, oldLength);
+                  Matcher matcher =
+                      matcherFactory.create(segmentOldData, segmentNewData, initialOldPosition);
+                  ByteArrayOutputStream entries = new ByteArrayOutputStream();
+                  generatePatchWithMatcher(
+                      segmentOldData,
+                      segmentNewData,
+                      matcher,
+                      initialOldPosition,
+                      nextOldPosition,
+                      entries);
+                  return entries;
+                }));
+      }
+      for (int i = 0; i < segmentCount; i++) {
+        Futures.get(segments.get(i)).writeTo(outputStream);
+        segments.set(i, null);
+      }
+    } finally {
+      shutdownAndAwaitTermination(executor);
+    }
+  }
+
+  /**
+   * Interrupts the tasks of the executor and waits for all of them to finish, even if this thread
+   * is interrupted. The tasks read views of buffers that the caller may free as soon as this
+   * returns, and reading a freed buffer can crash the JVM; see {@link BufferReleaser}.
+   */
+  private static void shutdownAndAwaitTermination(ExecutorService executor) {
+    executor.shutdownNow();
+    boolean interrupted = false;
+    while (true) {
+      try {
+        if (executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+          break;
+        }
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
 }
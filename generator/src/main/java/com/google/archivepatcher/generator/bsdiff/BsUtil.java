@@ -17,6 +17,8 @@ package com.google.archivepatcher.generator.bsdiff;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 
 /**
  * Utility functions to be shared between BsDiff and BsPatch.
@@ -47,6 +49,25 @@ class BsUtil {
         }
     }
 
+    /**
+     * Writes a 64-bit signed integer to the specified array in the same format as {@link
+     * #writeFormattedLong(long, OutputStream)}.
+     * @param value the value to write
+     * @param buffer the array to write to
+     * @param offset the index in the array of the first of the 8 bytes to write
+     */
+    static void writeFormattedLong(final long value, byte[] buffer, int offset) {
+        long y = value;
+        if (y < 0) {
+            y = (-y) | NEGATIVE_MASK;
+        }
+
+        for (int i = 0; i < 8; ++i) {
+            buffer[offset + i] = (byte) (y & 0xff);
+            y >>>= 8;
+        }
+    }
+
     /**
      * Reads a 64-bit signed integer written by {@link #writeFormattedLong(long, OutputStream)} from
      * the specified {@link InputStream}.
@@ -65,8 +86,8 @@ class BsUtil {
     }
 
   /**
-   * Provides functional equivalent to C/C++ lexicographical_compare. Warning: this calls {@link
-   * RandomAccessObject#seek(long)}, so the internal state of the data objects will be modified.
+   * Provides functional equivalent to C/C++ lexicographical_compare. Warning: this may call {@link
+   * RandomAccessObject#seek(long)}, so the internal state of the data objects may be modified.
    *
    * @param data1 first byte array
    * @param start1 index in the first array at which to start comparing
@@ -88,19 +109,110 @@ class BsUtil {
       final int start2,
       final int length2)
       throws IOException {
-    int bytesLeft = Math.min(length1, length2);
-
-    data1.seek(start1);
-    data2.seek(start2);
-    while (bytesLeft-- > 0) {
-      final int i1 = data1.readUnsignedByte();
-      final int i2 = data2.readUnsignedByte();
+    return data1.compare(start1, length1, data2, start2, length2);
+  }
 
-      if (i1 != i2) {
-        return i1 - i2;
+  /**
+   * Returns the number of bytes before the first difference between two ranges of big-endian
+   * buffers, comparing eight bytes at a time. The positions of the buffers are not used or changed.
+   *
+   * @param buffer1 the first buffer
+   * @param start1 index in the first buffer at which to start comparing
+   * @param buffer2 the second buffer
+   * @param start2 index in the second buffer at which to start comparing
+   * @param length the number of bytes to compare
+   * @return the index of the first byte that differs, or |length| if the ranges are equal
+   * @throws IndexOutOfBoundsException if either range exceeds the limit of its buffer
+   */
+  static int mismatch(
+      final ByteBuffer buffer1,
+      final int start1,
+      final ByteBuffer buffer2,
+      final int start2,
+      final int length) {
+    int offset = 0;
+    for (; offset + 8 <= length; offset += 8) {
+      long difference = buffer1.getLong(start1 + offset) ^ buffer2.getLong(start2 + offset);
+      if (difference != 0) {
+        // Big-endian, so the first byte is the most significant one.
+        return offset + (Long.numberOfLeadingZeros(difference) >>> 3);
+      }
+    }
+    for (; offset < length; offset++) {
+      if (buffer1.get(start1 + offset) != buffer2.get(start2 + offset)) {
+        return offset;
       }
     }
+    return length;
+  }
 
-    return length1 - length2;
+  /**
+   * Returns the array backing the specified object if its content is exactly that array, so that
+   * it can be read without making a copy.
+   *
+   * @param data the object to get the array of
+   * @return the array, or null if there is none
+   */
+  static byte[] backingArray(RandomAccessObject data) {
+    if (!(data instanceof RandomAccessObject.RandomAccessByteArrayObject)) {
+      return null;
+    }
+    ByteBuffer buffer = ((RandomAccessObject.RandomAccessByteArrayObject) data).asByteBuffer();
+    if (buffer.hasArray()
+        && buffer.arrayOffset() == 0
+        && buffer.array().length == buffer.capacity()) {
+      return buffer.array();
+    }
+    return null;
+  }
+
+  /**
+   * Returns the content of the specified object as a byte array, which is the array backing it if
+   * there is one (see {@link #backingArray(RandomAccessObject)}) or a copy otherwise. Warning: this
+   * may call {@link RandomAccessObject#seek(long)}, so the internal state of the data object may be
+   * modified.
+   *
+   * @param data the object to read
+   * @return the content
+   * @throws IOException if unable to read the data
+   */
+  static byte[] toByteArray(RandomAccessObject data) throws IOException {
+    byte[] array = backingArray(data);
+    if (array == null) {
+      array = new byte[(int) data.length()];
+      data.seek(0);
+      data.readFully(array);
+    }
+    return array;
+  }
+
+  /**
+   * Writes the specified ints to a {@link RandomAccessObject} in the big-endian format read by
+   * {@link RandomAccessObject#readInt()}, in blocks rather than one at a time.
+   *
+   * @param ints the ints to write
+   * @param destination the object to write to
+   * @param intPosition the int-aligned position in the destination to write the first int to, as
+   *     in {@link RandomAccessObject#seekToIntAligned(long)}
+   * @throws IOException if unable to write the data
+   */
+  static void writeInts(int[] ints, RandomAccessObject destination, long intPosition)
+      throws IOException {
+    if (destination instanceof RandomAccessObject.RandomAccessByteArrayObject) {
+      ByteBuffer buffer =
+          ((RandomAccessObject.RandomAccessByteArrayObject) destination).asByteBuffer();
+      buffer.position((int) (intPosition * 4));
+      buffer.slice().asIntBuffer().put(ints);
+      return;
+    }
+    ByteBuffer block = ByteBuffer.allocate(64 * 1024);
+    IntBuffer blockInts = block.asIntBuffer();
+    destination.seekToIntAligned(intPosition);
+    for (int offset = 0; offset < ints.length; offset += blockInts.capacity()) {
+      int count = Math.min(blockInts.capacity(), ints.length - offset);
+      blockInts.clear();
+      blockInts.put(ints, offset, count);
+      destination.write(block.array(), 0, count * 4);
+    }
   }
 }
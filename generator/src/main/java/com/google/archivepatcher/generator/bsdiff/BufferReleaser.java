@@ -0,0 +1,109 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Releases the memory of direct and memory-mapped {@link ByteBuffer}s right away, instead of when
+ * the buffers are garbage collected. Without this, every mapping keeps its file open and its
+ * address space reserved until the next full GC, which callers used to force after every patch.
+ *
+ * <p>There is no public API for this before the foreign memory API, so the cleaner of the buffer
+ * is invoked through {@code sun.misc.Unsafe.invokeCleaner} on Java 9 and later and through {@code
+ * DirectByteBuffer.cleaner()} on Java 8. If neither is accessible, nothing is released and {@link
+ * #release(ByteBuffer)} returns false.
+ *
+ * <p>Any access to a buffer after it has been released, including through duplicates and slices of
+ * it, can crash the JVM, so a buffer must only be released by its sole owner once nothing else uses
+ * it.
+ */
+final class BufferReleaser {
+
+  /** The instance of sun.misc.Unsafe on Java 9 and later, or null. */
+  private static final Object UNSAFE;
+
+  /** Unsafe.invokeCleaner(ByteBuffer) on Java 9 and later, or null. */
+  private static final Method INVOKE_CLEANER;
+
+  /** DirectByteBuffer.cleaner() on Java 8, or null. */
+  private static final Method GET_CLEANER;
+
+  /** Cleaner.clean() on Java 8, or null. */
+  private static final Method CLEAN;
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    Method getCleaner = null;
+    Method clean = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafe = theUnsafe.get(null);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      invokeCleaner = null;
+      try {
+        getCleaner = Class.forName("java.nio.DirectByteBuffer").getMethod("cleaner");
+        getCleaner.setAccessible(true);
+        clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+        clean.setAccessible(true);
+      } catch (ReflectiveOperationException | RuntimeException e2) {
+        getCleaner = null;
+        clean = null;
+      }
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+    GET_CLEANER = getCleaner;
+    CLEAN = clean;
+  }
+
+  private BufferReleaser() {}
+
+  /**
+   * Releases the memory of the specified buffer if it is direct or memory-mapped.
+   *
+   * @param buffer the buffer, which must not be a duplicate or slice of another buffer
+   * @return true if the memory has been released or the buffer is on the heap, false if the memory
+   *     will only be released when the buffer is garbage collected
+   */
+  static boolean release(ByteBuffer buffer) {
+    if (!buffer.isDirect()) {
+      return true;
+    }
+    try {
+      if (INVOKE_CLEANER != null) {
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        return true;
+      }
+      if (GET_CLEANER != null) {
+        // Duplicates and slices have no cleaner.
+        Object cleaner = GET_CLEANER.invoke(buffer);
+        if (cleaner != null) {
+          CLEAN.invoke(cleaner);
+          return true;
+        }
+      }
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Left to the garbage collector.
+    }
+    return false;
+  }
+}
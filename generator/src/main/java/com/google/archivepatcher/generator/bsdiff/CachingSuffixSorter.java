@@ -0,0 +1,142 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import com.google.archivepatcher.generator.DirectoryCache;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ * A {@link SuffixSorter} that keeps the suffix arrays created by another sorter in a directory, so
+ * that diffing many new files against the same old file only sorts the old file once.
+ *
+ * <p>Entries are keyed by the SHA-256 digest of the sorted data and hold the suffix array exactly
+ * as {@link SuffixSorter#suffixSort(RandomAccessObject)} returns it, so a hit is returned as a
+ * read-only {@link RandomAccessObject.RandomAccessMmapObject} of the entry without any parsing.
+ * The directory is a {@link DirectoryCache}, which evicts the least recently used entries when
+ * their total length exceeds the limit. A failure to write an entry is not fatal; the suffix array
+ * is returned anyway.
+ */
+public final class CachingSuffixSorter implements SuffixSorter {
+
+  /** The file name extension of the entries. */
+  private static final String ENTRY_SUFFIX = ".sa";
+
+  /** The size of the blocks that data is read and written in. */
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  private final SuffixSorter delegate;
+  private final DirectoryCache cache;
+
+  /**
+   * Creates a cache in the specified directory.
+   *
+   * @param delegate the sorter to create suffix arrays with on a miss
+   * @param directory the directory to keep the entries in, which is created if it doesn't exist
+   * @param maxCacheBytes the maximum total size of the entries; suffix arrays that are larger than
+   *     this are never stored
+   */
+  public CachingSuffixSorter(SuffixSorter delegate, File directory, long maxCacheBytes) {
+    this.delegate = delegate;
+    this.cache = new DirectoryCache(directory, maxCacheBytes, ENTRY_SUFFIX);
+  }
+
+  @Override
+  public RandomAccessObject suffixSort(RandomAccessObject data)
+      throws IOException, InterruptedException {
+    File entry = cache.entry(digest(data) + ENTRY_SUFFIX);
+    long expectedLength = (data.length() + 1) * 4;
+    RandomAccessObject cached = load(entry, expectedLength);
+    if (cached != null) {
+      return cached;
+    }
+
+    RandomAccessObject suffixArray = delegate.suffixSort(data);
+    if (expectedLength <= cache.getMaxCacheBytes()) {
+      store(suffixArray, entry);
+    }
+    return suffixArray;
+  }
+
+  /**
+   * Returns the entry mapped into memory and marks it as recently used, or null if there is no
+   * valid entry.
+   */
+  private static RandomAccessObject load(File entry, long expectedLength) throws IOException {
+    if (!entry.isFile()) {
+      return null;
+    }
+    if (entry.length() != expectedLength) {
+      // Only possible on a digest collision or if someone else wrote to the directory.
+      entry.delete();
+      return null;
+    }
+    RandomAccessFile file;
+    try {
+      file = new RandomAccessFile(entry, "r");
+    } catch (IOException e) {
+      // Evicted by someone else in the meantime.
+      return null;
+    }
+    try {
+      RandomAccessObject mapped = new RandomAccessObject.RandomAccessMmapObject(file, "r");
+      entry.setLastModified(System.currentTimeMillis());
+      return mapped;
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  /** Writes the suffix array to the entry, unless anything goes wrong. */
+  private void store(RandomAccessObject suffixArray, File entry) {
+    cache.store(
+        entry,
+        out -> {
+          byte[] block = new byte[BLOCK_SIZE];
+          long remaining = suffixArray.length();
+          suffixArray.seek(0);
+          while (remaining > 0) {
+            int blockLength = (int) Math.min(block.length, remaining);
+            suffixArray.readFully(block, 0, blockLength);
+            out.write(block, 0, blockLength);
+            remaining -= blockLength;
+          }
+        });
+  }
+
+  /** Returns the SHA-256 digest of the data as a lower case hex string. */
+  private static String digest(RandomAccessObject data) throws IOException {
+    MessageDigest digest = DirectoryCache.newDigest();
+    if (data instanceof RandomAccessObject.RandomAccessByteArrayObject) {
+      ByteBuffer buffer = ((RandomAccessObject.RandomAccessByteArrayObject) data).asByteBuffer();
+      digest.update(buffer);
+    } else {
+      byte[] block = new byte[BLOCK_SIZE];
+      long remaining = data.length();
+      data.seek(0);
+      while (remaining > 0) {
+        int blockLength = (int) Math.min(block.length, remaining);
+        data.readFully(block, 0, blockLength);
+        digest.update(block, 0, blockLength);
+        remaining -= blockLength;
+      }
+    }
+    return DirectoryCache.toHex(digest.digest());
+  }
+}
@@ -16,7 +16,17 @@
 
 package com.google.archivepatcher.generator.bsdiff;
 
+import com.google.archivepatcher.shared.Futures;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Taken from
@@ -31,6 +41,25 @@ import java.io.IOException;
  *
  * <p>This implementation is basically a translation of the C version given by Yuta Mori:
  * libdivsufsort-2.0.0, http://code.google.com/p/libdivsufsort/
+ *
+ * <p>If constructed with a {@link ForkJoinPool}, the substring sort of the type B* buckets is
+ * spread across the threads of the pool in the same way as the OpenMP build of libdivsufsort does
+ * it: every bucket is sorted independently, and every worker gets its own slice of the free space
+ * in the suffix array to use as a merge buffer. The result is identical to the sequential sort.
+ * Unless the sort works on heap copies (see below), this requires the input and the suffix array to
+ * be backed by {@link RandomAccessObject.RandomAccessByteArrayObject}s (which includes
+ * memory-mapped objects), since the workers need independent views of both; otherwise the sort
+ * silently runs sequentially.
+ *
+ * <p>The sort reads and writes every element of the input and the suffix array many times, so
+ * instead of calling {@link RandomAccessObject#seek(long)} before every access it works on
+ * primitive arrays if there is enough free heap for a copy of both, and copies the result into the
+ * suffix array created by the {@link RandomAccessObjectFactory} at the end. The copies count
+ * against the budget of an {@link RandomAccessObjectFactory.AdaptiveRandomAccessObjectFactory},
+ * together with the suffix array. Otherwise, if the input and the suffix array are backed by {@link
+ * RandomAccessObject.RandomAccessByteArrayObject}s (on the heap or memory-mapped), it accesses
+ * their buffers directly. Other implementations of {@link RandomAccessObject} still work, through
+ * the slow path.
  */
 public final class DivSuffixSorter implements SuffixSorter {
 
@@ -77,11 +106,50 @@ public final class DivSuffixSorter implements SuffixSorter {
   /* fields */
   private final RandomAccessObjectFactory randomAccessObjectFactory;
 
+  /** The pool to sort the type B* buckets in, or null to sort on the calling thread. */
+  private final ForkJoinPool forkJoinPool;
+
   private RandomAccessObject suffixArray;
   private RandomAccessObject input;
 
+  /**
+   * Heap copies of {@link #suffixArray} (without the length in its first entry) and {@link #input},
+   * or null if there isn't enough free heap for them.
+   */
+  private int[] suffixArrayInts;
+
+  private byte[] inputBytes;
+
+  /**
+   * The bytes that the heap copies take from the budget of an {@link
+   * RandomAccessObjectFactory.AdaptiveRandomAccessObjectFactory}, to be returned after the sort.
+   */
+  private long heapCopyBytesReserved;
+
+  /**
+   * Direct views of {@link #suffixArray} (without the length in its first entry) and {@link
+   * #input}, or null if they are not backed by a {@link ByteBuffer}. Only used if there are no heap
+   * copies.
+   */
+  private IntBuffer suffixArrayBuffer;
+
+  private ByteBuffer inputBuffer;
+
   public DivSuffixSorter(RandomAccessObjectFactory randomAccessObjectFactory) {
+    this(randomAccessObjectFactory, null);
+  }
+
+  /**
+   * Creates a sorter that uses the threads of the specified pool to sort the type B* buckets.
+   *
+   * @param randomAccessObjectFactory factory to create the suffix array with
+   * @param forkJoinPool the pool to run the bucket sorts in; if null, or if its parallelism is 1,
+   *     everything runs on the calling thread
+   */
+  public DivSuffixSorter(
+      RandomAccessObjectFactory randomAccessObjectFactory, ForkJoinPool forkJoinPool) {
     this.randomAccessObjectFactory = randomAccessObjectFactory;
+    this.forkJoinPool = forkJoinPool;
   }
 
   @Override
@@ -95,6 +163,10 @@ public final class DivSuffixSorter implements SuffixSorter {
     suffixArray.seek(0);
     suffixArray.writeInt(length);
     this.suffixArray = suffixArray;
+    this.suffixArrayInts = null;
+    this.inputBytes = null;
+    this.suffixArrayBuffer = null;
+    this.inputBuffer = null;
 
     // Deal with small cases separately.
     if (length == 0) {
@@ -105,14 +177,72 @@ public final class DivSuffixSorter implements SuffixSorter {
     }
 
     this.input = input;
-    int[] bucketA = new int[BUCKET_A_SIZE];
-    int[] bucketB = new int[BUCKET_B_SIZE];
-    /* Suffixsort. */
-    int m = sortTypeBstar(bucketA, bucketB, length);
-    constructSuffixArray(bucketA, bucketB, length, m);
+    try {
+      selectAccessPath(length);
+      int[] bucketA = new int[BUCKET_A_SIZE];
+      int[] bucketB = new int[BUCKET_B_SIZE];
+      /* Suffixsort. */
+      int m = sortTypeBstar(bucketA, bucketB, length);
+      constructSuffixArray(bucketA, bucketB, length, m);
+      if (suffixArrayInts != null) {
+        BsUtil.writeInts(suffixArrayInts, suffixArray, 1);
+      }
+    } finally {
+      // Don't hold on to the copies and views after the sort.
+      if (heapCopyBytesReserved > 0) {
+        ((RandomAccessObjectFactory.AdaptiveRandomAccessObjectFactory) randomAccessObjectFactory)
+            .release(heapCopyBytesReserved);
+        heapCopyBytesReserved = 0;
+      }
+      this.suffixArrayInts = null;
+      this.inputBytes = null;
+      this.suffixArrayBuffer = null;
+      this.inputBuffer = null;
+      this.input = null;
+    }
     return suffixArray;
   }
 
+  /**
+   * Sets up the fastest way of accessing {@link #input} and {@link #suffixArray} that the
+   * available memory allows.
+   */
+  private void selectAccessPath(int length) throws IOException {
+    long heapNeeded = 4L * length + (BsUtil.backingArray(input) != null ? 0 : length);
+    Runtime runtime = Runtime.getRuntime();
+    long heapFree = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    // Leave room for the rest of the generator, e.g. a heap-backed suffix array that the copy is
+    // written to at the end.
+    if (heapNeeded <= heapFree / 2 && reserveHeapCopies(heapNeeded)) {
+      inputBytes = BsUtil.toByteArray(input);
+      suffixArrayInts = new int[length];
+      return;
+    }
+    if (input instanceof RandomAccessObject.RandomAccessByteArrayObject) {
+      inputBuffer = ((RandomAccessObject.RandomAccessByteArrayObject) input).asByteBuffer();
+    }
+    if (suffixArray instanceof RandomAccessObject.RandomAccessByteArrayObject) {
+      ByteBuffer buffer =
+          ((RandomAccessObject.RandomAccessByteArrayObject) suffixArray).asByteBuffer();
+      buffer.position(4);
+      suffixArrayBuffer = buffer.slice().asIntBuffer();
+    }
+  }
+
+  /** Takes the bytes of the heap copies from the budget of the factory, if it has one. */
+  private boolean reserveHeapCopies(long bytes) {
+    if (!(randomAccessObjectFactory
+        instanceof RandomAccessObjectFactory.AdaptiveRandomAccessObjectFactory)) {
+      return true;
+    }
+    if (!((RandomAccessObjectFactory.AdaptiveRandomAccessObjectFactory) randomAccessObjectFactory)
+        .reserve(bytes)) {
+      return false;
+    }
+    heapCopyBytesReserved = bytes;
+    return true;
+  }
+
   /**
    * Constructs the suffix array by using the sorted order of type B* suffixes.
    */
@@ -240,14 +370,18 @@ public final class DivSuffixSorter implements SuffixSorter {
       buf = m; // SA
       bufsize = n - (2 * m);
 
-      for (c0 = ALPHABET_SIZE - 2, j = m; 0 < j; --c0) {
-        if (Thread.interrupted()) {
-          throw new InterruptedException();
-        }
-        for (c1 = ALPHABET_SIZE - 1; c0 < c1; j = i, --c1) {
-          i = bucketB[(c0) * ALPHABET_SIZE + (c1)];
-          if (1 < (j - i)) {
-            ssSort(PAb, i, j, buf, bufsize, 2, n, readSuffixArray(i) == (m - 1));
+      if (forkJoinPool != null && forkJoinPool.getParallelism() > 1 && canCreateWorkers()) {
+        ssSortBucketsInParallel(bucketB, PAb, buf, bufsize, n, m);
+      } else {
+        for (c0 = ALPHABET_SIZE - 2, j = m; 0 < j; --c0) {
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+          for (c1 = ALPHABET_SIZE - 1; c0 < c1; j = i, --c1) {
+            i = bucketB[(c0) * ALPHABET_SIZE + (c1)];
+            if (1 < (j - i)) {
+              ssSort(PAb, i, j, buf, bufsize, 2, n, readSuffixArray(i) == (m - 1));
+            }
           }
         }
       }
@@ -310,6 +444,105 @@ public final class DivSuffixSorter implements SuffixSorter {
     return m;
   }
 
+  /**
+   * Runs {@link #ssSort} for every type B* bucket that holds more than one suffix, using one worker
+   * per thread of {@link #forkJoinPool}. The buckets occupy disjoint ranges of the suffix array and
+   * every worker gets a disjoint slice of the buffer, so the workers never touch the same memory.
+   * The largest buckets are handed out first to keep the workers evenly loaded.
+   */
+  private final void ssSortBucketsInParallel(
+      int[] bucketB, final int PAb, int buf, int bufsize, final int n, final int m)
+      throws IOException, InterruptedException {
+    // Collect the [first, last) ranges of the buckets in the same way the sequential loop walks
+    // them.
+    List<int[]> buckets = new ArrayList<int[]>();
+    for (int c0 = ALPHABET_SIZE - 2, i, j = m; 0 < j; --c0) {
+      for (int c1 = ALPHABET_SIZE - 1; c0 < c1; j = i, --c1) {
+        i = bucketB[(c0) * ALPHABET_SIZE + (c1)];
+        if (1 < (j - i)) {
+          buckets.add(new int[] {i, j});
+        }
+      }
+    }
+    buckets.sort((a, b) -> Integer.compare(b[1] - b[0], a[1] - a[0]));
+
+    final int[][] work = buckets.toArray(new int[buckets.size()][]);
+    final AtomicInteger nextBucket = new AtomicInteger();
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    final int numWorkers = Math.min(forkJoinPool.getParallelism(), work.length);
+    final int workerBufsize = numWorkers == 0 ? 0 : bufsize / numWorkers;
+    List<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>(numWorkers);
+    for (int w = 0; w < numWorkers; w++) {
+      final DivSuffixSorter worker = createWorker();
+      final int workerBuf = buf + w * workerBufsize;
+      tasks.add(
+          forkJoinPool.submit(
+              new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                  int index;
+                  while (!cancelled.get() && (index = nextBucket.getAndIncrement()) < work.length) {
+                    int first = work[index][0];
+                    int last = work[index][1];
+                    worker.ssSort(
+                        PAb,
+                        first,
+                        last,
+                        workerBuf,
+                        workerBufsize,
+                        2,
+                        n,
+                        worker.readSuffixArray(first) == (m - 1));
+                  }
+                  return null;
+                }
+              }));
+    }
+
+    try {
+      for (ForkJoinTask<Void> task : tasks) {
+        Futures.get(task);
+      }
+    } finally {
+      // Never return while a worker may still be writing to the suffix array.
+      cancelled.set(true);
+      for (ForkJoinTask<Void> task : tasks) {
+        task.quietlyJoin();
+      }
+    }
+  }
+
+  /**
+   * Returns true if {@link #createWorker()} can give workers their own views of the input and the
+   * suffix array.
+   */
+  private boolean canCreateWorkers() {
+    if (suffixArrayInts != null) {
+      return true;
+    }
+    return input instanceof RandomAccessObject.RandomAccessByteArrayObject
+        && suffixArray instanceof RandomAccessObject.RandomAccessByteArrayObject;
+  }
+
+  /**
+   * Creates a sorter that shares the input and the suffix array with this one, but reads and
+   * writes them through its own views so that it can run on another thread.
+   */
+  private DivSuffixSorter createWorker() {
+    DivSuffixSorter worker = new DivSuffixSorter(randomAccessObjectFactory);
+    // Arrays, and views that are only used with absolute gets and puts, can be shared.
+    worker.suffixArrayInts = suffixArrayInts;
+    worker.inputBytes = inputBytes;
+    worker.inputBuffer = inputBuffer;
+    worker.suffixArrayBuffer = suffixArrayBuffer;
+    if (suffixArrayInts == null) {
+      worker.input = ((RandomAccessObject.RandomAccessByteArrayObject) input).duplicate();
+      worker.suffixArray =
+          ((RandomAccessObject.RandomAccessByteArrayObject) suffixArray).duplicate();
+    }
+    return worker;
+  }
+
   private final void ssSort(
       final int PA, int first, int last, int buf, int bufsize, int depth, int n, boolean lastsuffix)
       throws IOException {
@@ -2059,6 +2292,12 @@ public final class DivSuffixSorter implements SuffixSorter {
   }
 
   private int readInput(long pos) throws IOException {
+    if (inputBytes != null) {
+      return inputBytes[(int) pos] & 0xff;
+    }
+    if (inputBuffer != null) {
+      return inputBuffer.get((int) pos) & 0xff;
+    }
     input.seek(pos);
     return input.readUnsignedByte();
   }
@@ -2069,6 +2308,12 @@ public final class DivSuffixSorter implements SuffixSorter {
      * (which is always the length of the array) and shifts everything by one. So we do the
      * correction here.
      */
+    if (suffixArrayInts != null) {
+      return suffixArrayInts[(int) pos];
+    }
+    if (suffixArrayBuffer != null) {
+      return suffixArrayBuffer.get((int) pos);
+    }
     suffixArray.seekToIntAligned(pos + 1);
     return suffixArray.readInt();
   }
@@ -2079,6 +2324,14 @@ public final class DivSuffixSorter implements SuffixSorter {
      * (which is always the length of the array) and shifts everything by one. So we do the
      * correction here.
      */
+    if (suffixArrayInts != null) {
+      suffixArrayInts[(int) pos] = write;
+      return write;
+    }
+    if (suffixArrayBuffer != null) {
+      suffixArrayBuffer.put((int) pos, write);
+      return write;
+    }
     suffixArray.seekToIntAligned(pos + 1);
     suffixArray.writeInt(write);
     return write;
@@ -0,0 +1,213 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Implementation of matcher that finds matches with a hash-chain index of |oldData|, like LZ77
+ * compressors do, instead of a suffix array. The index is built in a single pass over |oldData|,
+ * which is much faster than sorting its suffixes. Matches are accepted by the same rules as in
+ * {@link BsDiffMatcher}, so the patches are ordinary BsDiff patches, but only the most recent
+ * |maxChainLength| positions with the same hash are examined for each position of |newData|, so the
+ * longest match is not always found and patches are usually somewhat larger.
+ */
+class HashChainMatcher extends BsDiffMatcher {
+  /** The default number of positions in |oldData| to examine for each position in |newData|. */
+  static final int DEFAULT_MAX_CHAIN_LENGTH = 32;
+
+  /** The length of the blocks that data is read in. */
+  private static final int BLOCK_LENGTH = 64 * 1024;
+
+  private final RandomAccessObject mOldData;
+  private final RandomAccessObject mNewData;
+  private final Index mIndex;
+  private final int mMaxChainLength;
+
+  /** A block of |newData| to compute hashes from, starting at |mNewBlockStart|. */
+  private final byte[] mNewBlock = new byte[BLOCK_LENGTH];
+
+  private long mNewBlockStart;
+  private int mNewBlockLength;
+
+  /**
+   * Create a HashChainMatcher.
+   * @param index the index of |oldData|, which can be shared by several matchers
+   * @param minimumMatchLength the minimum "match" (in bytes) for BsDiff to consider between the
+   * oldData and newData
+   * @param initialOldPosition the position in |oldData| that corresponds to the start of |newData|
+   * @param totalMatchLengthBudget the budget for extending matches; see {@link BsDiffMatcher}
+   * @param maxChainLength the maximum number of positions in |oldData| to examine for each
+   * position in |newData|
+   */
+  HashChainMatcher(
+      RandomAccessObject oldData,
+      RandomAccessObject newData,
+      Index index,
+      int minimumMatchLength,
+      long initialOldPosition,
+      long totalMatchLengthBudget,
+      int maxChainLength) {
+    super(
+        oldData,
+        newData,
+        new OldDataSegment[0],
+        minimumMatchLength,
+        initialOldPosition,
+        totalMatchLengthBudget);
+    mOldData = oldData;
+    mNewData = newData;
+    mIndex = index;
+    mMaxChainLength = maxChainLength;
+  }
+
+  /**
+   * A hash-chain index of the positions in the old data, which is immutable once built and can be
+   * used by several matchers at the same time. For old data of more than {@link
+   * #MAX_INDEXED_POSITIONS} bytes, only every n-th position is indexed; matches are then found up
+   * to n - 1 bytes after they start, and the patch writer extends them backward.
+   */
+  static final class Index {
+    /** The maximum number of positions to index, which bounds the index to 256MiB. */
+    static final int MAX_INDEXED_POSITIONS = 1 << 26;
+
+    /** The maximum number of bytes that a hash covers. */
+    static final int MAX_HASH_LENGTH = 8;
+
+    /** The maximum number of bits of a hash. */
+    private static final int MAX_HASH_BITS = 24;
+
+    /** The number of bytes that a hash covers. */
+    private final int mHashLength;
+
+    /** The distance between indexed positions. */
+    private final int mInterval;
+
+    /** The number of bits to shift hashes right by, which is 64 minus the bits of a hash. */
+    private final int mHashShift;
+
+    /** The index of the most recent position with each hash, or -1. */
+    private final int[] mHeads;
+
+    /** For the index of each position, the index of the previous one with the same hash, or -1. */
+    private final int[] mPrevious;
+
+    private Index(int hashLength, int interval, int hashBits, int positionCount) {
+      mHashLength = hashLength;
+      mInterval = interval;
+      mHashShift = 64 - hashBits;
+      mHeads = new int[1 << hashBits];
+      Arrays.fill(mHeads, -1);
+      mPrevious = new int[positionCount];
+    }
+
+    /**
+     * Builds the index of the specified data.
+     * @param oldData the data to index
+     * @param minimumMatchLength the shortest match length that the index will be used for, which
+     * determines how many bytes each hash covers
+     * @return the index
+     * @throws IOException if unable to read the data
+     * @throws InterruptedException if any thread interrupts this thread
+     */
+    static Index build(RandomAccessObject oldData, int minimumMatchLength)
+        throws IOException, InterruptedException {
+      int hashLength = Math.max(1, Math.min(MAX_HASH_LENGTH, minimumMatchLength));
+      long oldLength = oldData.length();
+      // The last position that a hash can be computed at.
+      long lastPosition = oldLength - hashLength;
+      int interval =
+          lastPosition < 0
+              ? 1
+              : (int) Math.max(1, (lastPosition + MAX_INDEXED_POSITIONS) / MAX_INDEXED_POSITIONS);
+      int positionCount = lastPosition < 0 ? 0 : (int) (lastPosition / interval + 1);
+      int hashBits =
+          Math.max(1, Math.min(MAX_HASH_BITS, 32 - Integer.numberOfLeadingZeros(positionCount)));
+      Index index = new Index(hashLength, interval, hashBits, positionCount);
+
+      byte[] block = new byte[BLOCK_LENGTH + hashLength - 1];
+      for (long blockStart = 0; blockStart <= lastPosition; blockStart += BLOCK_LENGTH) {
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+        int length = (int) Math.min(block.length, oldLength - blockStart);
+        oldData.seek(blockStart);
+        oldData.readFully(block, 0, length);
+        long blockEnd = Math.min(blockStart + BLOCK_LENGTH - 1, lastPosition);
+        // The first indexed position in the block.
+        long position = (blockStart + interval - 1) / interval * interval;
+        for (; position <= blockEnd; position += interval) {
+          int positionIndex = (int) (position / interval);
+          int hash = index.hash(block, (int) (position - blockStart));
+          index.mPrevious[positionIndex] = index.mHeads[hash];
+          index.mHeads[hash] = positionIndex;
+        }
+      }
+      return index;
+    }
+
+    /** Returns the hash of the |mHashLength| bytes at the specified offset in the buffer. */
+    private int hash(byte[] buffer, int offset) {
+      long value = 0;
+      for (int i = 0; i < mHashLength; i++) {
+        value = (value << 8) | (buffer[offset + i] & 0xff);
+      }
+      return (int) ((value * 0x9E3779B97F4A7C15L) >>> mHashShift);
+    }
+  }
+
+  @Override
+  OldMatch findLongestMatch(long newPosition) throws IOException {
+    int hashLength = mIndex.mHashLength;
+    long newLength = mNewData.length();
+    if (newLength - newPosition < hashLength) {
+      return new OldMatch(0, 0);
+    }
+    if (newPosition < mNewBlockStart
+        || newPosition + hashLength > mNewBlockStart + mNewBlockLength) {
+      mNewBlockStart = newPosition;
+      mNewBlockLength = (int) Math.min(mNewBlock.length, newLength - newPosition);
+      mNewData.seek(mNewBlockStart);
+      mNewData.readFully(mNewBlock, 0, mNewBlockLength);
+    }
+    long oldLength = mOldData.length();
+    // No match can be longer than the rest of |newData|.
+    int longestPossibleLength = (int) Math.min(Integer.MAX_VALUE, newLength - newPosition);
+
+    long bestOldPosition = 0;
+    int bestLength = 0;
+    int positionIndex =
+        mIndex.mHeads[mIndex.hash(mNewBlock, (int) (newPosition - mNewBlockStart))];
+    for (int chainLength = 0;
+        positionIndex >= 0 && chainLength < mMaxChainLength;
+        chainLength++) {
+      long oldPosition = (long) positionIndex * mIndex.mInterval;
+      int maxLength = (int) Math.min(longestPossibleLength, oldLength - oldPosition);
+      if (maxLength > bestLength) {
+        int length = mOldData.mismatch(oldPosition, mNewData, newPosition, maxLength);
+        if (length > bestLength) {
+          bestOldPosition = oldPosition;
+          bestLength = length;
+          if (length == longestPossibleLength) {
+            break;
+          }
+        }
+      }
+      positionIndex = mIndex.mPrevious[positionIndex];
+    }
+    return new OldMatch(bestOldPosition, bestLength);
+  }
+}
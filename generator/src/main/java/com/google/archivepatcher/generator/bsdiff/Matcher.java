@@ -33,14 +33,14 @@ interface Matcher {
    */
   static class NextMatch {
     final boolean didFindMatch;
-    final int oldPosition;
-    final int newPosition;
+    final long oldPosition;
+    final long newPosition;
 
-    static NextMatch of(boolean didFindMatch, int oldPosition, int newPosition) {
+    static NextMatch of(boolean didFindMatch, long oldPosition, long newPosition) {
       return new NextMatch(didFindMatch, oldPosition, newPosition);
     }
 
-    private NextMatch(boolean didFindMatch, int oldPosition, int newPosition) {
+    private NextMatch(boolean didFindMatch, long oldPosition, long newPosition) {
       this.didFindMatch = didFindMatch;
       this.oldPosition = oldPosition;
       this.newPosition = newPosition;
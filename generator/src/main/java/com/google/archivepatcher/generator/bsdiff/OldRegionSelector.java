@@ -0,0 +1,231 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Chooses the region of the old data that a window of the new data is most similar to, for
+ * generating a patch one window at a time when there isn't enough memory for a suffix array of the
+ * whole old data.
+ *
+ * <p>The hashes of short blocks of the old data, sampled at a fixed stride, are kept in a hash
+ * table. Every block of the new window that is found in the table votes for the stride of the old
+ * data that it was sampled from, so a range of the new window that matches the old data casts a
+ * number of votes proportional to its length. Blocks that were sampled more than once, such as
+ * padding, don't vote, since they say nothing about where the window came from. The chosen region
+ * is the one with the most votes, unless the default region has as many.
+ */
+final class OldRegionSelector {
+
+  /** The length of the blocks that are hashed. */
+  static final int BLOCK_LENGTH = 32;
+
+  /**
+   * The maximum memory used per sampled block: up to two slots of the hash table, which hold a hash
+   * and a stride each, and the votes for the stride.
+   */
+  static final int BYTES_PER_SAMPLE = 2 * (8 + 4) + 4;
+
+  /** The factor of the polynomial hash of the blocks. */
+  private static final long HASH_FACTOR = 0x100000001b3L;
+
+  /** HASH_FACTOR^(BLOCK_LENGTH - 1), for removing the first byte of a block from its hash. */
+  private static final long HASH_FACTOR_POWER;
+
+  static {
+    long power = 1;
+    for (int i = 1; i < BLOCK_LENGTH; i++) {
+      power *= HASH_FACTOR;
+    }
+    HASH_FACTOR_POWER = power;
+  }
+
+  /** The size of the blocks that the data is read in. */
+  private static final int READ_BLOCK_SIZE = 64 * 1024;
+
+  private final RandomAccessObject oldData;
+  private final int regionLength;
+
+  /** The distance between the sampled blocks of the old data. */
+  private final long stride;
+
+  /** The hashes of the sampled blocks, or 0 for empty slots. */
+  private final long[] tableHashes;
+
+  /**
+   * The strides of the old data that the sampled blocks start in, or -1 for blocks that were
+   * sampled more than once.
+   */
+  private final int[] tableStrides;
+
+  /** The votes for each stride of the old data, for the window being examined. */
+  private final int[] votes;
+
+  /**
+   * Samples the old data and builds the hash table.
+   *
+   * @param oldData the old data
+   * @param regionLength the length of the regions to choose, at most the length of the old data
+   * @param maxSamples the maximum number of blocks to sample, which bounds the memory used to at
+   *     most {@link #BYTES_PER_SAMPLE} bytes per sample
+   * @throws IOException if unable to read the old data
+   */
+  OldRegionSelector(RandomAccessObject oldData, int regionLength, int maxSamples)
+      throws IOException {
+    this.oldData = oldData;
+    this.regionLength = regionLength;
+    long oldLength = oldData.length();
+    stride = Math.max(BLOCK_LENGTH, (oldLength + maxSamples - 1) / Math.max(1, maxSamples));
+    int strideCount = (int) ((oldLength + stride - 1) / stride);
+    votes = new int[strideCount];
+
+    // A load factor of at most one half.
+    int tableSize = Integer.highestOneBit(Math.max(1, strideCount)) * 2;
+    tableHashes = new long[tableSize];
+    tableStrides = new int[tableSize];
+    byte[] block = new byte[BLOCK_LENGTH];
+    for (int i = 0; i < strideCount; i++) {
+      long position = i * stride;
+      if (position + BLOCK_LENGTH > oldLength) {
+        break;
+      }
+      oldData.seek(position);
+      oldData.readFully(block);
+      long hash = 0;
+      for (byte b : block) {
+        hash = hash * HASH_FACTOR + (b & 0xff);
+      }
+      insert(nonZero(hash), i);
+    }
+  }
+
+  /**
+   * Returns the start of the region of the old data that has the most blocks in common with the
+   * specified window of the new data. Warning: this calls {@link RandomAccessObject#seek(long)},
+   * so the internal state of the new data will be modified.
+   *
+   * @param newData the new data
+   * @param windowStart the position of the window in the new data
+   * @param windowLength the length of the window
+   * @param defaultStart the start of the region to choose unless another region has more blocks in
+   *     common with the window, such that the region lies within the old data
+   * @return the start of the region, such that the region lies within the old data
+   * @throws IOException if unable to read the new data
+   */
+  long selectRegion(
+      RandomAccessObject newData, long windowStart, int windowLength, long defaultStart)
+      throws IOException {
+    Arrays.fill(votes, 0);
+    byte[] buffer = new byte[READ_BLOCK_SIZE];
+    // The last BLOCK_LENGTH bytes, for removing them from the hash again.
+    byte[] history = new byte[BLOCK_LENGTH];
+    long hash = 0;
+    newData.seek(windowStart);
+    for (int done = 0; done < windowLength; ) {
+      int length = Math.min(windowLength - done, buffer.length);
+      newData.readFully(buffer, 0, length);
+      for (int i = 0; i < length; i++) {
+        int position = done + i;
+        int slot = position % BLOCK_LENGTH;
+        hash = hash * HASH_FACTOR + (buffer[i] & 0xff);
+        if (position >= BLOCK_LENGTH) {
+          // Remove the byte that has just left the block. It was added BLOCK_LENGTH bytes ago, so
+          // it has been multiplied by HASH_FACTOR once more than HASH_FACTOR_POWER.
+          hash -= (history[slot] & 0xff) * HASH_FACTOR_POWER * HASH_FACTOR;
+        }
+        history[slot] = buffer[i];
+        if (position >= BLOCK_LENGTH - 1) {
+          int oldStride = find(nonZero(hash));
+          if (oldStride >= 0) {
+            votes[oldStride] = 1;
+          }
+        }
+      }
+      done += length;
+    }
+
+    // The region with the most votes, counting whole strides.
+    int regionStrides = (int) Math.max(1, regionLength / stride);
+    long sum = 0;
+    for (int i = 0; i < Math.min(regionStrides, votes.length); i++) {
+      sum += votes[i];
+    }
+    long bestSum = sum;
+    int bestStart = 0;
+    for (int i = regionStrides; i < votes.length; i++) {
+      sum += votes[i] - votes[i - regionStrides];
+      if (sum > bestSum) {
+        bestSum = sum;
+        bestStart = i - regionStrides + 1;
+      }
+    }
+    long defaultSum = 0;
+    int defaultStartStride = (int) (defaultStart / stride);
+    for (int i = defaultStartStride;
+        i < Math.min(defaultStartStride + regionStrides, votes.length);
+        i++) {
+      defaultSum += votes[i];
+    }
+    if (bestSum <= defaultSum) {
+      return defaultStart;
+    }
+    // Center the region on the strides that won, since the region is usually a little longer.
+    long start = bestStart * stride - (regionLength - regionStrides * stride) / 2;
+    return Math.max(0, Math.min(start, oldData.length() - regionLength));
+  }
+
+  private void insert(long hash, int oldStride) {
+    int mask = tableHashes.length - 1;
+    for (int slot = firstSlot(hash, mask); ; slot = (slot + 1) & mask) {
+      if (tableHashes[slot] == 0) {
+        tableHashes[slot] = hash;
+        tableStrides[slot] = oldStride;
+        return;
+      }
+      if (tableHashes[slot] == hash) {
+        tableStrides[slot] = -1;
+        return;
+      }
+    }
+  }
+
+  /** Returns the stride that the block with the specified hash was sampled from, or -1. */
+  private int find(long hash) {
+    int mask = tableHashes.length - 1;
+    for (int slot = firstSlot(hash, mask); ; slot = (slot + 1) & mask) {
+      if (tableHashes[slot] == hash) {
+        return tableStrides[slot];
+      }
+      if (tableHashes[slot] == 0) {
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Returns the slot to start probing at. The low bits of the polynomial hash only depend on the
+   * low bits of the bytes, so the hash is mixed first.
+   */
+  private static int firstSlot(long hash, int mask) {
+    return (int) ((hash * 0x9e3779b97f4a7c15L) >>> 32) & mask;
+  }
+
+  /** Maps the hash 0, which marks empty slots, to another value. */
+  private static long nonZero(long hash) {
+    return hash == 0 ? 1 : hash;
+  }
+}
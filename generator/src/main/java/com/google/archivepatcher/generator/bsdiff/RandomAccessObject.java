@@ -16,11 +16,14 @@ package com.google.archivepatcher.generator.bsdiff;
 
 import java.io.Closeable;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.nio.channels.FileChannel;
 
 // TODO(andrewhayden): clean up the implementations, we only really need two and they can be in
@@ -58,6 +61,73 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
    */
   public void seekToIntAligned(long pos) throws IOException;
 
+  /**
+   * Compares a range of this object with a range of the same length of another object and returns
+   * the number of bytes before the first difference. Warning: this may call {@link #seek(long)} on
+   * both objects, so their internal state may be modified.
+   *
+   * @param pos the position of the range in this object
+   * @param other the other object, which may be this object
+   * @param otherPos the position of the range in the other object
+   * @param length the length of the ranges
+   * @return the index of the first byte that differs, or |length| if the ranges are equal
+   * @throws IOException if unable to read either object
+   */
+  public default int mismatch(long pos, RandomAccessObject other, long otherPos, int length)
+      throws IOException {
+    // Read both ranges in blocks, starting small since most ranges differ early.
+    byte[] block = new byte[Math.min(length, 64)];
+    byte[] otherBlock = new byte[block.length];
+    int offset = 0;
+    while (offset < length) {
+      int blockLength = Math.min(length - offset, block.length);
+      seek(pos + offset);
+      readFully(block, 0, blockLength);
+      other.seek(otherPos + offset);
+      other.readFully(otherBlock, 0, blockLength);
+      for (int i = 0; i < blockLength; i++) {
+        if (block[i] != otherBlock[i]) {
+          return offset + i;
+        }
+      }
+      offset += blockLength;
+      if (block.length < 8192 && offset < length) {
+        block = new byte[Math.min(length - offset, 2 * block.length)];
+        otherBlock = new byte[block.length];
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Compares a range of this object with a range of another object lexicographically, treating
+   * bytes as unsigned, like C/C++ lexicographical_compare. Warning: this may call {@link
+   * #seek(long)} on both objects, so their internal state may be modified.
+   *
+   * @param pos the position of the range in this object
+   * @param length the length of the range in this object
+   * @param other the other object, which may be this object
+   * @param otherPos the position of the range in the other object
+   * @param otherLength the length of the range in the other object
+   * @return negative if the first difference has a lower value in this object, positive if it has
+   *     a lower value in the other object. If both ranges compare equal until one of them ends,
+   *     the shorter range is less than the longer one (i.e., it returns |length - otherLength|).
+   * @throws IOException if unable to read either object
+   */
+  public default int compare(
+      long pos, int length, RandomAccessObject other, long otherPos, int otherLength)
+      throws IOException {
+    int commonLength = Math.min(length, otherLength);
+    int mismatch = mismatch(pos, other, otherPos, commonLength);
+    if (mismatch < commonLength) {
+      seek(pos + mismatch);
+      int value = readUnsignedByte();
+      other.seek(otherPos + mismatch);
+      return value - other.readUnsignedByte();
+    }
+    return length - otherLength;
+  }
+
   /**
    * A {@link RandomAccessFile}-based implementation of {@link RandomAccessObject} which just
    * delegates all operations to the equivalents in {@link RandomAccessFile}. Slower than the
@@ -151,11 +221,81 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
       // No-op, this is just used by the extending class RandomAccessMmapObject.
     }
 
+    /**
+     * Returns a new object that shares the content of this object but has its own position, so
+     * that both can be used from different threads at the same time as long as they don't write
+     * to the same bytes. Closing the returned object has no effect on this one, and the returned
+     * object must not be used after this one has been closed.
+     *
+     * @return the new object
+     */
+    public RandomAccessByteArrayObject duplicate() {
+      RandomAccessByteArrayObject duplicate = new RandomAccessByteArrayObject();
+      duplicate.mByteBuffer = mByteBuffer.duplicate();
+      duplicate.mByteBuffer.position(0);
+      return duplicate;
+    }
+
+    /**
+     * Returns a new object for a range of the content of this object, which is shared in the same
+     * way as for {@link #duplicate()}.
+     *
+     * @param start the position in this object of the first byte of the range
+     * @param length the length of the range
+     * @return the new object, whose position 0 is position |start| of this object
+     */
+    public RandomAccessByteArrayObject slice(int start, int length) {
+      ByteBuffer view = asByteBuffer();
+      view.position(start);
+      view.limit(start + length);
+      RandomAccessByteArrayObject slice = new RandomAccessByteArrayObject();
+      slice.mByteBuffer = view.slice();
+      return slice;
+    }
+
+    /**
+     * Returns a big-endian view of the whole content of this object, for callers in this package
+     * that want absolute access without going through {@link #seek(long)}. The view must not be
+     * used after this object has been closed.
+     *
+     * @return the view
+     */
+    ByteBuffer asByteBuffer() {
+      ByteBuffer view = mByteBuffer.duplicate();
+      view.clear();
+      return view;
+    }
+
     @Override
     public long length() {
       return mByteBuffer.capacity();
     }
 
+    /**
+     * Compares eight bytes at a time if the other object is also a RandomAccessByteArrayObject or
+     * a {@link RandomAccessSegmentedMmapObject}, without changing the position of either object.
+     */
+    @Override
+    public int mismatch(long pos, RandomAccessObject other, long otherPos, int length)
+        throws IOException {
+      if (other instanceof RandomAccessSegmentedMmapObject) {
+        return other.mismatch(otherPos, this, pos, length);
+      }
+      if (!(other instanceof RandomAccessByteArrayObject)) {
+        return RandomAccessObject.super.mismatch(pos, other, otherPos, length);
+      }
+      if (pos > Integer.MAX_VALUE || otherPos > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException(
+            "RandomAccessByteArrayObject can only handle addresses up to Integer.MAX_VALUE.");
+      }
+      return BsUtil.mismatch(
+          mByteBuffer,
+          (int) pos,
+          ((RandomAccessByteArrayObject) other).mByteBuffer,
+          (int) otherPos,
+          length);
+    }
+
     @Override
     public byte readByte() {
       return mByteBuffer.get();
@@ -478,13 +618,16 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
       // finalize the MappedByteBuffer reference before the unmap operation is performed. This leaks
       // file handles and fills the virtual address space. Worse, on some systems (Windows for one)
       // the active mmap prevents the temp file from being deleted - even if File.deleteOnExit() is
-      // used. The only safe way to ensure that file handles and actual files are not leaked by this
-      // class is to force an explicit full gc after explicitly nulling the MappedByteBuffer
-      // reference. This has to be done before attempting file deletion.
+      // used. So the mapping is released explicitly, which has to be done before attempting file
+      // deletion. Only if that isn't possible on this JVM, an explicit full gc after nulling the
+      // MappedByteBuffer reference is the way to ensure that nothing is leaked.
       //
       // See https://github.com/andrewhayden/archive-patcher/issues/5 for more information.
+      ByteBuffer buffer = mByteBuffer;
       mByteBuffer = null;
-      System.gc();
+      if (buffer != null && !BufferReleaser.release(buffer)) {
+        System.gc();
+      }
 
       if (mShouldDeleteFileOnRelease && mFile != null) {
         mFile.delete();
@@ -492,4 +635,326 @@ public interface RandomAccessObject extends DataInput, DataOutput, Closeable {
 
     }
   }
+
+  /**
+   * A read-only {@link RandomAccessObject} for files of any size. Since a single mapping is limited
+   * to 2GiB, the file is mapped in consecutive segments, and reads that cross a segment boundary
+   * are assembled from both segments.
+   */
+  public static final class RandomAccessSegmentedMmapObject implements RandomAccessObject {
+    /** The default length of the segments. */
+    private static final int DEFAULT_SEGMENT_LENGTH = 1 << 30;
+
+    private final FileChannel mFileChannel;
+    private final long mLength;
+    private final int mSegmentLength;
+    private ByteBuffer[] mSegments;
+    private long mPosition;
+
+    /**
+     * Maps the whole file read-only. The file is closed when this object is closed.
+     *
+     * @param randomAccessFile the file to map
+     * @throws IOException if unable to map the file
+     */
+    public RandomAccessSegmentedMmapObject(final RandomAccessFile randomAccessFile)
+        throws IOException {
+      this(randomAccessFile, DEFAULT_SEGMENT_LENGTH);
+    }
+
+    // Visible for testing only
+    RandomAccessSegmentedMmapObject(final RandomAccessFile randomAccessFile, int segmentLength)
+        throws IOException {
+      mFileChannel = randomAccessFile.getChannel();
+      mLength = randomAccessFile.length();
+      mSegmentLength = segmentLength;
+      mSegments = new ByteBuffer[(int) ((mLength + segmentLength - 1) / segmentLength)];
+      for (int i = 0; i < mSegments.length; i++) {
+        long start = (long) i * segmentLength;
+        mSegments[i] =
+            mFileChannel.map(
+                FileChannel.MapMode.READ_ONLY, start, Math.min(segmentLength, mLength - start));
+      }
+    }
+
+    /**
+     * Returns a new object for a range of the content of this object that can be addressed with an
+     * int, which maps the range again so that it does not depend on the segments of this object.
+     * The returned object remains valid after this one has been closed, and owns its mapping: it
+     * must be closed to release the mapping, after which neither it nor any duplicate or slice of
+     * it may be used.
+     *
+     * @param start the position in this object of the first byte of the range
+     * @param length the length of the range
+     * @return the new object, whose position 0 is position |start| of this object
+     * @throws IOException if unable to map the range
+     */
+    public RandomAccessByteArrayObject slice(long start, int length) throws IOException {
+      if (start < 0 || length < 0 || start + length > mLength) {
+        throw new IllegalArgumentException("Range out of bounds: " + start + ", " + length);
+      }
+      return new MappedSlice(mFileChannel.map(FileChannel.MapMode.READ_ONLY, start, length));
+    }
+
+    /** A range of a file that is mapped on its own, and released when it is closed. */
+    private static final class MappedSlice extends RandomAccessByteArrayObject {
+      MappedSlice(ByteBuffer mapping) {
+        mByteBuffer = mapping;
+      }
+
+      @Override
+      public void close() {
+        // See RandomAccessMmapObject.close().
+        ByteBuffer buffer = mByteBuffer;
+        mByteBuffer = null;
+        if (buffer != null) {
+          BufferReleaser.release(buffer);
+        }
+      }
+    }
+
+    @Override
+    public long length() {
+      return mLength;
+    }
+
+    @Override
+    public void seek(long pos) {
+      if (pos < 0 || pos > mLength) {
+        throw new IllegalArgumentException("Position out of bounds: " + pos);
+      }
+      mPosition = pos;
+    }
+
+    @Override
+    public void seekToIntAligned(long pos) {
+      seek(pos * 4);
+    }
+
+    /**
+     * Compares eight bytes at a time if the other object is a {@link RandomAccessByteArrayObject},
+     * without changing the position of either object.
+     */
+    @Override
+    public int mismatch(long pos, RandomAccessObject other, long otherPos, int length)
+        throws IOException {
+      if (!(other instanceof RandomAccessByteArrayObject)) {
+        return RandomAccessObject.super.mismatch(pos, other, otherPos, length);
+      }
+      if (otherPos > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException(
+            "RandomAccessByteArrayObject can only handle addresses up to Integer.MAX_VALUE.");
+      }
+      ByteBuffer otherBuffer = ((RandomAccessByteArrayObject) other).mByteBuffer;
+      int done = 0;
+      while (done < length) {
+        int segmentOffset = (int) ((pos + done) % mSegmentLength);
+        int chunkLength = Math.min(length - done, mSegmentLength - segmentOffset);
+        int mismatch =
+            BsUtil.mismatch(
+                segment(pos + done),
+                segmentOffset,
+                otherBuffer,
+                (int) otherPos + done,
+                chunkLength);
+        if (mismatch < chunkLength) {
+          return done + mismatch;
+        }
+        done += chunkLength;
+      }
+      return length;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+      if (mPosition >= mLength) {
+        throw new EOFException();
+      }
+      byte result = segment(mPosition).get((int) (mPosition % mSegmentLength));
+      mPosition++;
+      return result;
+    }
+
+    @Override
+    public void readFully(byte[] b) throws IOException {
+      readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(byte[] b, int off, int len) throws IOException {
+      if (len > mLength - mPosition) {
+        throw new EOFException();
+      }
+      while (len > 0) {
+        ByteBuffer segment = segment(mPosition);
+        int segmentOffset = (int) (mPosition % mSegmentLength);
+        int chunkLength = Math.min(len, mSegmentLength - segmentOffset);
+        segment.position(segmentOffset);
+        segment.get(b, off, chunkLength);
+        mPosition += chunkLength;
+        off += chunkLength;
+        len -= chunkLength;
+      }
+    }
+
+    @Override
+    public int readInt() throws IOException {
+      int segmentOffset = (int) (mPosition % mSegmentLength);
+      if (segmentOffset + 4 <= mSegmentLength && mPosition + 4 <= mLength) {
+        int result = segment(mPosition).getInt(segmentOffset);
+        mPosition += 4;
+        return result;
+      }
+      return (readUnsignedByte() << 24)
+          | (readUnsignedByte() << 16)
+          | (readUnsignedByte() << 8)
+          | readUnsignedByte();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+      return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+    }
+
+    @Override
+    public short readShort() throws IOException {
+      return (short) readUnsignedShort();
+    }
+
+    @Override
+    public int readUnsignedByte() throws IOException {
+      return readByte() & 0xff;
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+      return (readUnsignedByte() << 8) | readUnsignedByte();
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+      return readByte() != 0;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+      return (char) readUnsignedShort();
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+      return Double.longBitsToDouble(readLong());
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+      return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public String readLine() {
+      throw new UnsupportedOperationException("Not supported by this object");
+    }
+
+    @Override
+    public String readUTF() throws IOException {
+      return DataInputStream.readUTF(this);
+    }
+
+    @Override
+    public int skipBytes(int n) {
+      int skipped = (int) Math.max(0, Math.min(n, mLength - mPosition));
+      mPosition += skipped;
+      return skipped;
+    }
+
+    @Override
+    public void write(int b) {
+      throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void write(byte[] b) {
+      throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void writeBoolean(boolean v) {
+      throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void writeByte(int v) {
+      throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void writeShort(int v) {
+      throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void writeChar(int v) {
+      throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void writeInt(int v) {
+      throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void writeLong(long v) {
+      throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void writeFloat(float v) {
+      throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void writeDouble(double v) {
+      throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void writeBytes(String s) {
+      throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void writeChars(String s) {
+      throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void writeUTF(String s) {
+      throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void close() throws IOException {
+      mFileChannel.close();
+      // See RandomAccessMmapObject.close(). Without an explicit release, the segments are released
+      // when they are garbage collected.
+      ByteBuffer[] segments = mSegments;
+      mSegments = null;
+      if (segments != null) {
+        for (ByteBuffer segment : segments) {
+          BufferReleaser.release(segment);
+        }
+      }
+    }
+
+    /** Returns the segment that contains the specified position. */
+    private ByteBuffer segment(long pos) {
+      return mSegments[(int) (pos / mSegmentLength)];
+    }
+  }
 }
@@ -21,6 +21,8 @@ import com.google.archivepatcher.generator.bsdiff.RandomAccessObject.RandomAcces
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A factory for creating instances of {@link RandomAccessObject}. BsDiff needs to store some
@@ -106,4 +108,143 @@ public interface RandomAccessObjectFactory {
       return new RandomAccessObject.RandomAccessMmapObject(FILE_NAME_PREFIX, mMode, size);
     }
   }
+
+  /**
+   * A factory that chooses the storage for every object it creates from the size of the object and
+   * a memory budget that is shared by all objects created by the factory and not yet closed. Share
+   * one instance between all generations in a process to keep their combined memory within the
+   * budget.
+   *
+   * <p>Objects that fit into the remaining budget are created on the heap if there is enough free
+   * heap, and in direct (off-heap) memory otherwise. Objects that don't fit into the remaining
+   * budget, or for which direct memory can't be allocated, are backed by memory-mapped temp files,
+   * which only cost page cache, and by plain temp files if the mapping fails, for instance because
+   * the address space is exhausted. The heap and direct objects are {@link
+   * RandomAccessByteArrayObject}s, so they get the same fast paths as memory-mapped objects.
+   * Their memory is returned to the budget when they are closed, and direct memory is freed right
+   * away; see {@link BufferReleaser}.
+   *
+   * <p>{@link DivSuffixSorter} takes the heap copies that it sorts in from the budget of the
+   * factory that it creates the suffix array with, so that the copies and the suffix array
+   * together stay within the budget.
+   */
+  public static final class AdaptiveRandomAccessObjectFactory
+      implements RandomAccessObjectFactory {
+    private static final String FILE_NAME_PREFIX = "wavsprafof";
+
+    /** The storage of an object. */
+    public enum Tier {
+      /** A byte array on the heap. */
+      HEAP,
+      /** A direct {@link ByteBuffer}, outside the heap. */
+      DIRECT,
+      /** A memory-mapped temp file. */
+      MMAP,
+      /** A temp file that is accessed through {@link RandomAccessFile}. */
+      FILE
+    }
+
+    private final long mMemoryBudgetBytes;
+
+    /** The bytes of the budget used by the heap and direct objects that are not closed yet. */
+    private final AtomicLong mBytesInUse = new AtomicLong();
+
+    /**
+     * Creates a factory with the specified budget.
+     *
+     * @param memoryBudgetBytes the maximum number of bytes of heap and direct memory that the
+     *     objects created by this factory may use at the same time
+     */
+    public AdaptiveRandomAccessObjectFactory(long memoryBudgetBytes) {
+      mMemoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    @Override
+    public RandomAccessObject create(int size) throws IOException {
+      if (reserve(size)) {
+        try {
+          Runtime runtime = Runtime.getRuntime();
+          long heapFree = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+          // Leave room on the heap for the rest of the generator, like DivSuffixSorter does.
+          ByteBuffer buffer =
+              size <= heapFree / 2 ? ByteBuffer.allocate(size) : ByteBuffer.allocateDirect(size);
+          return new BudgetedByteArrayObject(buffer, this);
+        } catch (OutOfMemoryError e) {
+          // Out of direct memory, or the heap filled up in the meantime.
+          release(size);
+        }
+      }
+      try {
+        return new RandomAccessMmapObject(FILE_NAME_PREFIX, "rw", size);
+      } catch (IOException e) {
+        return new RandomAccessFileObject(
+            File.createTempFile(FILE_NAME_PREFIX, "temp"), "rw", true);
+      }
+    }
+
+    /**
+     * Returns the storage of an object created by this factory.
+     *
+     * @param object the object
+     * @return the storage
+     */
+    public static Tier tierOf(RandomAccessObject object) {
+      if (object instanceof BudgetedByteArrayObject) {
+        return ((BudgetedByteArrayObject) object).mDirect ? Tier.DIRECT : Tier.HEAP;
+      }
+      if (object instanceof RandomAccessMmapObject) {
+        return Tier.MMAP;
+      }
+      if (object instanceof RandomAccessFileObject) {
+        return Tier.FILE;
+      }
+      throw new IllegalArgumentException("Not created by an AdaptiveRandomAccessObjectFactory");
+    }
+
+    /** Returns the number of bytes of the budget that are currently in use. */
+    public long getBytesInUse() {
+      return mBytesInUse.get();
+    }
+
+    /** Takes the specified number of bytes from the budget, if they are available. */
+    boolean reserve(long size) {
+      while (true) {
+        long inUse = mBytesInUse.get();
+        if (inUse + size > mMemoryBudgetBytes) {
+          return false;
+        }
+        if (mBytesInUse.compareAndSet(inUse, inUse + size)) {
+          return true;
+        }
+      }
+    }
+
+    /** Returns the specified number of bytes to the budget. */
+    void release(long size) {
+      mBytesInUse.addAndGet(-size);
+    }
+
+    /** A heap or direct object that returns its memory to the budget when it is closed. */
+    private static final class BudgetedByteArrayObject extends RandomAccessByteArrayObject {
+      private final boolean mDirect;
+      private AdaptiveRandomAccessObjectFactory mFactory;
+
+      BudgetedByteArrayObject(ByteBuffer buffer, AdaptiveRandomAccessObjectFactory factory) {
+        mByteBuffer = buffer;
+        mDirect = buffer.isDirect();
+        mFactory = factory;
+      }
+
+      @Override
+      public void close() throws IOException {
+        // Closing twice must not release the memory twice.
+        if (mFactory != null) {
+          mFactory.release(mByteBuffer.capacity());
+          mFactory = null;
+          BufferReleaser.release(mByteBuffer);
+          mByteBuffer = null;
+        }
+      }
+    }
+  }
 }
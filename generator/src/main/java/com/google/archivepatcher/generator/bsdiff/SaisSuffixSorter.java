@@ -0,0 +1,303 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A {@link SuffixSorter} that uses the induced sorting algorithm (SA-IS) by Ge Nong, Sen Zhang and
+ * Wai Hong Chan: "Two Efficient Algorithms for Linear Time Suffix Array Construction", IEEE
+ * Transactions on Computers, 2011.
+ *
+ * <p>Unlike {@link DivSuffixSorter}, the running time is O(n) regardless of the content of the
+ * input, which makes it the better choice for highly repetitive data such as long runs of padding
+ * or tables of similar records. On typical data {@link DivSuffixSorter} is faster; see {@link
+ * AdaptiveSuffixSorter} for choosing between them.
+ *
+ * <p>The sort works on an int array on the heap, which is copied into the suffix array created by
+ * the {@link RandomAccessObjectFactory} at the end, so both exist at the same time; {@link
+ * #heapBytesNeeded(RandomAccessObject)} tells how much heap that takes. Apart from that array, it
+ * needs one bit per byte of input for the types of the suffixes, and a copy of the input if it is
+ * not backed by a byte array. The reduced problems are stored in the int array itself; each of them
+ * is at most half as long as the one it was reduced from and needs one type bit per symbol and two
+ * counters per distinct symbol.
+ */
+public final class SaisSuffixSorter implements SuffixSorter {
+
+  /** The number of distinct symbols of the top-level text: the 256 byte values plus a sentinel. */
+  private static final int ALPHABET_SIZE = 257;
+
+  private final RandomAccessObjectFactory randomAccessObjectFactory;
+
+  public SaisSuffixSorter(RandomAccessObjectFactory randomAccessObjectFactory) {
+    this.randomAccessObjectFactory = randomAccessObjectFactory;
+  }
+
+  /**
+   * Returns the number of bytes of heap that sorting the specified input may take at its peak: the
+   * int array, the type bits, the copy of the input if it is not backed by a byte array, and the
+   * suffix array that the int array is copied into, unless the factory always creates it outside
+   * the heap.
+   *
+   * @param input the input to sort
+   * @return the number of bytes
+   * @throws IOException if unable to get the length of the input
+   */
+  long heapBytesNeeded(RandomAccessObject input) throws IOException {
+    long length = input.length();
+    long bytes = 4 * (length + 1) + (length + 64) / 8;
+    if (BsUtil.backingArray(input) == null) {
+      bytes += length;
+    }
+    if (!(randomAccessObjectFactory
+            instanceof RandomAccessObjectFactory.RandomAccessMmapObjectFactory
+        || randomAccessObjectFactory
+            instanceof RandomAccessObjectFactory.RandomAccessFileObjectFactory)) {
+      bytes += 4 * (length + 1);
+    }
+    return bytes;
+  }
+
+  @Override
+  public RandomAccessObject suffixSort(RandomAccessObject input)
+      throws IOException, InterruptedException {
+    if (4 * (input.length() + 1) >= Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Input too large (" + input.length() + " bytes)");
+    }
+    int length = (int) input.length();
+
+    // The text is the input followed by a sentinel that is smaller than any byte, so the first
+    // entry of its suffix array is the empty suffix, which is exactly the layout of the suffix
+    // arrays returned by SuffixSorter.
+    int[] suffixArray = new int[length + 1];
+    sais(new ByteText(BsUtil.toByteArray(input)), suffixArray, length + 1, ALPHABET_SIZE);
+
+    RandomAccessObject result = randomAccessObjectFactory.create((length + 1) * 4);
+    BsUtil.writeInts(suffixArray, result, 0);
+    return result;
+  }
+
+  /** The text to sort the suffixes of, which is either the input or a reduced problem. */
+  private abstract static class Text {
+    abstract int get(int index);
+  }
+
+  /** The input bytes shifted up by one, followed by a sentinel of 0. */
+  private static final class ByteText extends Text {
+    private final byte[] bytes;
+
+    ByteText(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    int get(int index) {
+      return index == bytes.length ? 0 : (bytes[index] & 0xff) + 1;
+    }
+  }
+
+  /** A reduced problem that lives in a region of the suffix array of the problem above it. */
+  private static final class IntText extends Text {
+    private final int[] ints;
+    private final int offset;
+
+    IntText(int[] ints, int offset) {
+      this.ints = ints;
+      this.offset = offset;
+    }
+
+    @Override
+    int get(int index) {
+      return ints[offset + index];
+    }
+  }
+
+  /**
+   * Sorts the suffixes of a text that ends with a unique smallest symbol.
+   *
+   * @param text the text
+   * @param sa where to store the suffix array; the first n entries are used
+   * @param n the length of the text, including the sentinel
+   * @param alphabetSize the number of distinct symbols, all of which must be in [0, alphabetSize)
+   */
+  private static void sais(Text text, int[] sa, int n, int alphabetSize)
+      throws InterruptedException {
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+    if (n == 1) {
+      sa[0] = 0;
+      return;
+    }
+
+    // Classify the suffixes: a bit is set for S-type suffixes, which are smaller than the suffix
+    // that follows them.
+    long[] types = new long[(n + 63) >>> 6];
+    setType(types, n - 1);
+    for (int i = n - 2, next = text.get(n - 1); i >= 0; i--) {
+      int current = text.get(i);
+      if (current < next || (current == next && isSType(types, i + 1))) {
+        setType(types, i);
+      }
+      next = current;
+    }
+
+    // Stage 1: sort the LMS substrings by placing the LMS suffixes at the ends of their buckets
+    // and inducing the rest.
+    int[] counts = new int[alphabetSize];
+    for (int i = 0; i < n; i++) {
+      counts[text.get(i)]++;
+    }
+    int[] buckets = new int[alphabetSize];
+    getBucketEnds(counts, buckets);
+    Arrays.fill(sa, 0, n, -1);
+    for (int i = 1; i < n; i++) {
+      if (isLms(types, i)) {
+        sa[--buckets[text.get(i)]] = i;
+      }
+    }
+    induce(text, types, sa, n, counts, buckets);
+
+    // Compact the sorted LMS substrings to the front of the suffix array.
+    int lmsCount = 0;
+    for (int i = 0; i < n; i++) {
+      if (isLms(types, sa[i])) {
+        sa[lmsCount++] = sa[i];
+      }
+    }
+
+    // Name the LMS substrings. The name of the LMS substring at position p is stored at
+    // lmsCount + p / 2, which is unique because LMS positions are at least two apart.
+    for (int i = lmsCount; i < n; i++) {
+      sa[i] = -1;
+    }
+    int name = 0;
+    int previous = -1;
+    for (int i = 0; i < lmsCount; i++) {
+      int position = sa[i];
+      if (previous == -1 || !equalLmsSubstrings(text, types, n, position, previous)) {
+        name++;
+        previous = position;
+      }
+      sa[lmsCount + (position >>> 1)] = name - 1;
+    }
+    for (int i = n - 1, j = n - 1; i >= lmsCount; i--) {
+      if (sa[i] >= 0) {
+        sa[j--] = sa[i];
+      }
+    }
+
+    // Stage 2: sort the LMS suffixes, recursing if the names are not unique yet. The reduced text
+    // occupies the last lmsCount entries of the suffix array and its suffix array the first.
+    int reducedOffset = n - lmsCount;
+    if (name < lmsCount) {
+      sais(new IntText(sa, reducedOffset), sa, lmsCount, name);
+    } else {
+      for (int i = 0; i < lmsCount; i++) {
+        sa[sa[reducedOffset + i]] = i;
+      }
+    }
+
+    // Stage 3: induce the order of all suffixes from the sorted LMS suffixes.
+    for (int i = 1, j = 0; i < n; i++) {
+      if (isLms(types, i)) {
+        sa[reducedOffset + j++] = i;
+      }
+    }
+    for (int i = 0; i < lmsCount; i++) {
+      sa[i] = sa[reducedOffset + sa[i]];
+    }
+    for (int i = lmsCount; i < n; i++) {
+      sa[i] = -1;
+    }
+    getBucketEnds(counts, buckets);
+    for (int i = lmsCount - 1; i >= 0; i--) {
+      int position = sa[i];
+      sa[i] = -1;
+      sa[--buckets[text.get(position)]] = position;
+    }
+    induce(text, types, sa, n, counts, buckets);
+  }
+
+  /**
+   * Induces the order of the L-type suffixes from left to right, then the order of the S-type
+   * suffixes from right to left. Clobbers the buckets.
+   */
+  private static void induce(
+      Text text, long[] types, int[] sa, int n, int[] counts, int[] buckets) {
+    getBucketStarts(counts, buckets);
+    for (int i = 0; i < n; i++) {
+      int j = sa[i] - 1;
+      if (j >= 0 && !isSType(types, j)) {
+        sa[buckets[text.get(j)]++] = j;
+      }
+    }
+    getBucketEnds(counts, buckets);
+    for (int i = n - 1; i >= 0; i--) {
+      int j = sa[i] - 1;
+      if (j >= 0 && isSType(types, j)) {
+        sa[--buckets[text.get(j)]] = j;
+      }
+    }
+  }
+
+  /** Returns true if the LMS substrings starting at the specified positions are equal. */
+  private static boolean equalLmsSubstrings(Text text, long[] types, int n, int a, int b) {
+    for (int d = 0; a + d < n && b + d < n; d++) {
+      if (text.get(a + d) != text.get(b + d) || isSType(types, a + d) != isSType(types, b + d)) {
+        return false;
+      }
+      if (d > 0 && (isLms(types, a + d) || isLms(types, b + d))) {
+        // Both end here, since the types so far are equal.
+        return true;
+      }
+    }
+    // Only the substrings that contain the sentinel reach the end of the text, and the sentinel
+    // is unique.
+    return false;
+  }
+
+  /** Computes the start of each bucket from the symbol counts. */
+  private static void getBucketStarts(int[] counts, int[] buckets) {
+    int sum = 0;
+    for (int i = 0; i < counts.length; i++) {
+      buckets[i] = sum;
+      sum += counts[i];
+    }
+  }
+
+  /** Computes the end (exclusive) of each bucket from the symbol counts. */
+  private static void getBucketEnds(int[] counts, int[] buckets) {
+    int sum = 0;
+    for (int i = 0; i < counts.length; i++) {
+      sum += counts[i];
+      buckets[i] = sum;
+    }
+  }
+
+  private static boolean isSType(long[] types, int index) {
+    return (types[index >>> 6] & (1L << index)) != 0;
+  }
+
+  private static void setType(long[] types, int index) {
+    types[index >>> 6] |= 1L << index;
+  }
+
+  /** Returns true if the suffix at the index is S-type and the one before it is L-type. */
+  private static boolean isLms(long[] types, int index) {
+    return index > 0 && isSType(types, index) && !isSType(types, index - 1);
+  }
+}
@@ -0,0 +1,468 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.gdiff;
+
+import com.google.archivepatcher.generator.DeltaGenerator;
+import com.google.archivepatcher.generator.bsdiff.RandomAccessObject;
+import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates deltas in the gdiff format (http://www.w3.org/TR/NOTE-gdiff-19970901), which consist of
+ * commands that either copy a range of the old blob or insert bytes from the patch. The old blob is
+ * indexed by the hashes of its non-overlapping blocks, and a rolling hash over the new blob finds
+ * the blocks again at any offset; matches are then extended in both directions. This takes a single
+ * pass over each blob and memory for one hash table entry per block of the old blob, which makes it
+ * much faster than bsdiff. The deltas are larger than bsdiff's when the changed regions are
+ * scattered, since gdiff cannot express approximate matches, but they are cheaper to apply.
+ */
+public class GdiffDeltaGenerator implements DeltaGenerator {
+  /** The default length of the blocks that the old blob is indexed by. */
+  public static final int DEFAULT_BLOCK_LENGTH = 32;
+
+  /** The maximum number of blocks to index, which bounds the hash table to 1GiB. */
+  private static final long MAX_INDEXED_BLOCKS = 1 << 25;
+
+  /** The multiplier of the polynomial rolling hash. */
+  private static final int HASH_MULTIPLIER = 0x01000193;
+
+  /** The length of the buffers that the blobs are read in. */
+  private static final int BUFFER_LENGTH = 64 * 1024;
+
+  /** The maximum length of the blocks that the old blob is indexed by. */
+  public static final int MAX_BLOCK_LENGTH = BUFFER_LENGTH / 2;
+
+  private final int blockLength;
+
+  /** Creates a generator that indexes the old blob in blocks of {@link #DEFAULT_BLOCK_LENGTH}. */
+  public GdiffDeltaGenerator() {
+    this(DEFAULT_BLOCK_LENGTH);
+  }
+
+  /**
+   * Creates a generator that indexes the old blob in blocks of the specified length. Shorter blocks
+   * find shorter matches, at the cost of a larger index.
+   *
+   * @param blockLength the length of the blocks, at least 4 and at most {@link #MAX_BLOCK_LENGTH}
+   */
+  public GdiffDeltaGenerator(int blockLength) {
+    if (blockLength < 4 || blockLength > MAX_BLOCK_LENGTH) {
+      throw new IllegalArgumentException("Unsupported block length: " + blockLength);
+    }
+    this.blockLength = blockLength;
+  }
+
+  @Override
+  public DeltaFormat getDeltaFormat() {
+    return DeltaFormat.GDIFF;
+  }
+
+  @Override
+  public void generateDelta(File oldBlob, File newBlob, OutputStream deltaOut)
+      throws IOException, InterruptedException {
+    try (RandomAccessFile oldBlobRaf = new RandomAccessFile(oldBlob, "r");
+        RandomAccessFile newBlobRaf = new RandomAccessFile(newBlob, "r");
+        RandomAccessObject oldData = mapReadOnly(oldBlobRaf);
+        RandomAccessObject newData = mapReadOnly(newBlobRaf)) {
+      generateDelta(oldData, newData, deltaOut);
+    }
+  }
+
+  /**
+   * Generates one delta for each of the specified ranges of the new blob, one after the other,
+   * indexing the old blob only once for all of them.
+   */
+  @Override
+  public void generateDeltas(File oldBlob, File newBlob, List<TypedRange<File>> deltaRanges)
+      throws IOException, InterruptedException {
+    try (RandomAccessFile oldBlobRaf = new RandomAccessFile(oldBlob, "r");
+        RandomAccessFile newBlobRaf = new RandomAccessFile(newBlob, "r");
+        RandomAccessObject oldData = mapReadOnly(oldBlobRaf);
+        RandomAccessObject newData = mapReadOnly(newBlobRaf)) {
+      BlockIndex index = BlockIndex.build(oldData, blockLength);
+      for (TypedRange<File> range : deltaRanges) {
+        try (FileOutputStream deltaFileOut = new FileOutputStream(range.getMetadata());
+            BufferedOutputStream bufferedDeltaOut = new BufferedOutputStream(deltaFileOut)) {
+          generateDelta(
+              index,
+              oldData,
+              newData,
+              range.getOffset(),
+              range.getOffset() + range.getLength(),
+              bufferedDeltaOut);
+        }
+      }
+    }
+  }
+
+  /**
+   * Generates one delta for each of the specified ranges of the new blob in memory, one after the
+   * other, indexing the old blob only once for all of them.
+   */
+  @Override
+  public void generateDeltas(
+      byte[] oldBlob, byte[] newBlob, List<TypedRange<ByteArrayOutputStream>> deltaRanges)
+      throws IOException, InterruptedException {
+    RandomAccessObject oldData = new RandomAccessObject.RandomAccessByteArrayObject(oldBlob);
+    RandomAccessObject newData = new RandomAccessObject.RandomAccessByteArrayObject(newBlob);
+    BlockIndex index = BlockIndex.build(oldData, blockLength);
+    for (TypedRange<ByteArrayOutputStream> range : deltaRanges) {
+      generateDelta(
+          index,
+          oldData,
+          newData,
+          range.getOffset(),
+          range.getOffset() + range.getLength(),
+          range.getMetadata());
+    }
+  }
+
+  /**
+   * Generates a delta between the old data and the new, writing it to the specified stream.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param deltaOut the stream to write the delta to
+   * @throws IOException if unable to read or write data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public void generateDelta(
+      RandomAccessObject oldData, RandomAccessObject newData, OutputStream deltaOut)
+      throws IOException, InterruptedException {
+    generateDelta(
+        BlockIndex.build(oldData, blockLength), oldData, newData, 0, newData.length(), deltaOut);
+  }
+
+  /**
+   * Finds the ranges of the new blob that are copies of ranges of the old blob; see {@link
+   * #findMatches(RandomAccessObject, RandomAccessObject, long)}.
+   *
+   * @param oldBlob the old blob
+   * @param newBlob the new blob
+   * @param minimumLength the minimum length of the ranges to return
+   * @return the ranges of the new blob in order, with the positions of their copies in the old blob
+   *     as metadata
+   * @throws IOException if unable to read the blobs
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public List<TypedRange<Long>> findMatches(File oldBlob, File newBlob, long minimumLength)
+      throws IOException, InterruptedException {
+    try (RandomAccessFile oldBlobRaf = new RandomAccessFile(oldBlob, "r");
+        RandomAccessFile newBlobRaf = new RandomAccessFile(newBlob, "r");
+        RandomAccessObject oldData = mapReadOnly(oldBlobRaf);
+        RandomAccessObject newData = mapReadOnly(newBlobRaf)) {
+      return findMatches(oldData, newData, minimumLength);
+    }
+  }
+
+  /**
+   * Finds the ranges of the new data that are copies of ranges of the old data, in the same way as
+   * when generating a delta, and returns those that are at least the specified length. Matches of
+   * at least twice the block length are always found unless the old data is too long to index
+   * every block, or the hash of a block collides with that of another.
+   *
+   * @param oldData the old data
+   * @param newData the new data
+   * @param minimumLength the minimum length of the ranges to return
+   * @return the ranges of the new data in order, with the positions of their copies in the old data
+   *     as metadata
+   * @throws IOException if unable to read data
+   * @throws InterruptedException if any thread interrupts this thread
+   */
+  public List<TypedRange<Long>> findMatches(
+      RandomAccessObject oldData, RandomAccessObject newData, long minimumLength)
+      throws IOException, InterruptedException {
+    final List<TypedRange<Long>> matches = new ArrayList<TypedRange<Long>>();
+    scan(
+        BlockIndex.build(oldData, blockLength),
+        oldData,
+        newData,
+        0,
+        newData.length(),
+        (oldPosition, newPosition, length) -> {
+          if (length >= minimumLength) {
+            matches.add(new TypedRange<Long>(newPosition, length, oldPosition));
+          }
+        });
+    return matches;
+  }
+
+  /** Generates the delta for a range of the new data, writing it to the specified stream. */
+  private static void generateDelta(
+      BlockIndex index,
+      RandomAccessObject oldData,
+      final RandomAccessObject newData,
+      long newStart,
+      long newEnd,
+      OutputStream deltaOut)
+      throws IOException, InterruptedException {
+    final GdiffWriter writer = new GdiffWriter(deltaOut);
+    final byte[] buffer = new byte[BUFFER_LENGTH];
+    // The start of the bytes of the new data that are not covered by a command yet.
+    final long[] dataStart = {newStart};
+    scan(
+        index,
+        oldData,
+        newData,
+        newStart,
+        newEnd,
+        (oldPosition, newPosition, length) -> {
+          writeData(writer, newData, dataStart[0], newPosition - dataStart[0], buffer);
+          writer.writeCopy(oldPosition, length);
+          dataStart[0] = newPosition + length;
+        });
+    writeData(writer, newData, dataStart[0], newEnd - dataStart[0], buffer);
+    writer.finish();
+  }
+
+  /** Receives the matches that {@link #scan} finds, in order. */
+  private interface MatchVisitor {
+    /**
+     * Receives a match.
+     *
+     * @param oldPosition the position of the match in the old data
+     * @param newPosition the position of the match in the new data
+     * @param length the length of the match
+     * @throws IOException if unable to process the match
+     */
+    void visit(long oldPosition, long newPosition, long length) throws IOException;
+  }
+
+  /**
+   * Finds the ranges of a range of the new data that are copies of ranges of the old data, and
+   * passes them to the visitor in order. The ranges don't overlap and are as long as possible.
+   */
+  private static void scan(
+      BlockIndex index,
+      RandomAccessObject oldData,
+      RandomAccessObject newData,
+      long newStart,
+      long newEnd,
+      MatchVisitor visitor)
+      throws IOException, InterruptedException {
+    int blockLength = index.blockLength;
+    long oldLength = oldData.length();
+    // The factor that the outgoing byte was multiplied with, HASH_MULTIPLIER^(blockLength - 1).
+    int outgoingFactor = 1;
+    for (int i = 1; i < blockLength; i++) {
+      outgoingFactor *= HASH_MULTIPLIER;
+    }
+
+    byte[] buffer = new byte[BUFFER_LENGTH];
+    long bufferStart = newStart;
+    int bufferLength = 0;
+    // The end of the last match, which the next one may not extend backward beyond.
+    long matchEnd = newStart;
+    long position = newStart;
+    int hash = 0;
+    boolean hashValid = false;
+    while (position + blockLength <= newEnd) {
+      if (position + blockLength >= bufferStart + bufferLength) {
+        // The buffer must hold the block at |position| and the byte after it.
+        bufferStart = position;
+        bufferLength = (int) Math.min(buffer.length, newEnd - position);
+        newData.seek(bufferStart);
+        newData.readFully(buffer, 0, bufferLength);
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+      int offset = (int) (position - bufferStart);
+      if (!hashValid) {
+        hash = hash(buffer, offset, blockLength);
+        hashValid = true;
+      }
+
+      long oldPosition = index.lookUp(hash);
+      if (oldPosition >= 0
+          && oldData.mismatch(oldPosition, newData, position, blockLength) == blockLength) {
+        // Extend the match backward over the bytes that are not covered yet, and forward.
+        long backwardLength =
+            backwardMatchLength(oldData, oldPosition, newData, position, position - matchEnd);
+        long forwardLength = blockLength;
+        while (true) {
+          int length =
+              (int)
+                  Math.min(
+                      Integer.MAX_VALUE,
+                      Math.min(
+                          oldLength - oldPosition - forwardLength,
+                          newEnd - position - forwardLength));
+          int matchLength =
+              length == 0
+                  ? 0
+                  : oldData.mismatch(
+                      oldPosition + forwardLength, newData, position + forwardLength, length);
+          forwardLength += matchLength;
+          if (matchLength < length || length == 0) {
+            break;
+          }
+        }
+        visitor.visit(
+            oldPosition - backwardLength,
+            position - backwardLength,
+            backwardLength + forwardLength);
+        position += forwardLength;
+        matchEnd = position;
+        hashValid = false;
+        continue;
+      }
+
+      if (position + blockLength == newEnd) {
+        break;
+      }
+      hash =
+          (hash - (buffer[offset] & 0xff) * outgoingFactor) * HASH_MULTIPLIER
+              + (buffer[offset + blockLength] & 0xff);
+      position++;
+    }
+  }
+
+  /**
+   * Returns the number of bytes that match immediately before the specified positions, up to the
+   * specified maximum.
+   */
+  private static long backwardMatchLength(
+      RandomAccessObject oldData,
+      long oldPosition,
+      RandomAccessObject newData,
+      long newPosition,
+      long maxLength)
+      throws IOException {
+    maxLength = Math.min(maxLength, oldPosition);
+    long length = 0;
+    while (length < maxLength) {
+      oldData.seek(oldPosition - length - 1);
+      newData.seek(newPosition - length - 1);
+      if (oldData.readByte() != newData.readByte()) {
+        break;
+      }
+      length++;
+    }
+    return length;
+  }
+
+  /** Writes DATA commands for a range of the new data, using the buffer to read it. */
+  private static void writeData(
+      GdiffWriter writer, RandomAccessObject newData, long start, long length, byte[] buffer)
+      throws IOException {
+    newData.seek(start);
+    while (length > 0) {
+      int commandLength = (int) Math.min(length, GdiffWriter.MAX_DATA_LENGTH);
+      newData.readFully(buffer, 0, commandLength);
+      writer.writeData(buffer, 0, commandLength);
+      length -= commandLength;
+    }
+  }
+
+  /** Returns the polynomial hash of the specified bytes, which can be rolled one byte at a time. */
+  private static int hash(byte[] buffer, int offset, int length) {
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      hash = hash * HASH_MULTIPLIER + (buffer[offset + i] & 0xff);
+    }
+    return hash;
+  }
+
+  /** Maps the file read-only, in segments if it is longer than a single mapping can be. */
+  private static RandomAccessObject mapReadOnly(RandomAccessFile file) throws IOException {
+    if (file.length() > Integer.MAX_VALUE) {
+      return new RandomAccessObject.RandomAccessSegmentedMmapObject(file);
+    }
+    return new RandomAccessObject.RandomAccessMmapObject(file, "r");
+  }
+
+  /**
+   * A hash table from the hashes of the non-overlapping blocks of the old data to their positions.
+   * Each slot holds one block, the first one whose hash maps to it. Old data of more than {@link
+   * #MAX_INDEXED_BLOCKS} blocks is indexed at an interval of several blocks.
+   */
+  private static final class BlockIndex {
+    /** The block number plus one of the block in each slot, or zero for an empty slot. */
+    private final int[] slots;
+
+    /** The full hash of the block in each slot, to rule out most collisions without reading. */
+    private final int[] hashes;
+
+    /** The number of bits to shift hashes right by to get a slot. */
+    private final int shift;
+
+    /** The distance between indexed blocks in bytes. */
+    private final long stride;
+
+    /** The length of the indexed blocks. */
+    final int blockLength;
+
+    private BlockIndex(int slotBits, long stride, int blockLength) {
+      slots = new int[1 << slotBits];
+      hashes = new int[1 << slotBits];
+      shift = 32 - slotBits;
+      this.stride = stride;
+      this.blockLength = blockLength;
+    }
+
+    static BlockIndex build(RandomAccessObject oldData, int blockLength)
+        throws IOException, InterruptedException {
+      long blockCount = oldData.length() / blockLength;
+      long blocksPerStride = (blockCount + MAX_INDEXED_BLOCKS - 1) / MAX_INDEXED_BLOCKS;
+      long stride = Math.max(1, blocksPerStride) * blockLength;
+      int indexedBlockCount = (int) (oldData.length() / stride);
+      // About twice as many slots as blocks, to keep collisions rare.
+      int slotBits = Math.max(1, 33 - Integer.numberOfLeadingZeros(indexedBlockCount));
+      BlockIndex index = new BlockIndex(slotBits, stride, blockLength);
+
+      // Consecutive blocks are read together.
+      int blocksPerRead = stride == blockLength ? BUFFER_LENGTH / blockLength : 1;
+      byte[] buffer = new byte[blocksPerRead * blockLength];
+      for (int i = 0; i < indexedBlockCount; i += blocksPerRead) {
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+        int count = Math.min(blocksPerRead, indexedBlockCount - i);
+        oldData.seek(i * stride);
+        oldData.readFully(buffer, 0, count * blockLength);
+        for (int j = 0; j < count; j++) {
+          int hash = hash(buffer, j * blockLength, blockLength);
+          int slot = index.slotOf(hash);
+          if (index.slots[slot] == 0) {
+            index.slots[slot] = i + j + 1;
+            index.hashes[slot] = hash;
+          }
+        }
+      }
+      return index;
+    }
+
+    /** Returns the position of a block with the specified hash, or -1 if there is none. */
+    long lookUp(int hash) {
+      int slot = slotOf(hash);
+      int block = slots[slot];
+      return block == 0 || hashes[slot] != hash ? -1 : (block - 1) * stride;
+    }
+
+    private int slotOf(int hash) {
+      return (hash * 0x9E3779B9) >>> shift;
+    }
+  }
+}
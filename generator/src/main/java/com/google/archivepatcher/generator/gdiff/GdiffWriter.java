@@ -0,0 +1,153 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.gdiff;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the commands of a gdiff patch as defined in http://www.w3.org/TR/NOTE-gdiff-19970901,
+ * always choosing the shortest encoding of each command.
+ */
+class GdiffWriter {
+
+  /** Magic bytes at start of file */
+  private static final int GDIFF_FILE_MAGIC = 0xD1FFD1FF;
+  /** Version code at start of file */
+  private static final int GDIFF_FILE_VERSION = 4;
+
+  /** The end of the patch */
+  private static final int EOF = 0;
+  /** Codes 1..246 represent inline streams of 1..246 bytes */
+  private static final int DATA_MAX = 246;
+  /** Copy inline data. The next two bytes are the number of bytes to copy */
+  private static final int DATA_USHORT = 247;
+  /**
+   * The copy commands are defined as follows: The first argument is the offset in the original
+   * file, and the second argument is the number of bytes to copy to the new file.
+   */
+  private static final int COPY_USHORT_UBYTE = 249;
+
+  private static final int COPY_USHORT_USHORT = 250;
+  private static final int COPY_USHORT_INT = 251;
+  private static final int COPY_INT_UBYTE = 252;
+  private static final int COPY_INT_USHORT = 253;
+  private static final int COPY_INT_INT = 254;
+  private static final int COPY_LONG_INT = 255;
+
+  /** The maximum length of a DATA command, which is written with DATA_USHORT at most. */
+  static final int MAX_DATA_LENGTH = 0xffff;
+
+  private static final int MAX_UBYTE = 0xff;
+  private static final int MAX_USHORT = 0xffff;
+
+  private final DataOutputStream out;
+
+  /**
+   * Creates a writer and writes the header of the patch.
+   *
+   * @param out the stream to write the patch to, which is not closed by this writer
+   * @throws IOException if unable to write
+   */
+  GdiffWriter(OutputStream out) throws IOException {
+    this.out = new DataOutputStream(out);
+    this.out.writeInt(GDIFF_FILE_MAGIC);
+    this.out.write(GDIFF_FILE_VERSION);
+  }
+
+  /**
+   * Writes a command that copies bytes from the patch to the new file.
+   *
+   * @param buffer the bytes
+   * @param offset the offset of the first byte in the buffer
+   * @param length the number of bytes, at most {@link #MAX_DATA_LENGTH}
+   * @throws IOException if unable to write
+   */
+  void writeData(byte[] buffer, int offset, int length) throws IOException {
+    if (length <= 0 || length > MAX_DATA_LENGTH) {
+      throw new IllegalArgumentException("Unsupported length: " + length);
+    }
+    if (length <= DATA_MAX) {
+      out.write(length);
+    } else {
+      out.write(DATA_USHORT);
+      out.writeShort(length);
+    }
+    out.write(buffer, offset, length);
+  }
+
+  /**
+   * Writes the commands that copy a range of the old file to the new file.
+   *
+   * @param oldOffset the offset of the range in the old file
+   * @param length the length of the range, which may be split into several commands
+   * @throws IOException if unable to write
+   */
+  void writeCopy(long oldOffset, long length) throws IOException {
+    while (length > 0) {
+      int commandLength = (int) Math.min(length, Integer.MAX_VALUE);
+      writeCopyCommand(oldOffset, commandLength);
+      oldOffset += commandLength;
+      length -= commandLength;
+    }
+  }
+
+  private void writeCopyCommand(long oldOffset, int length) throws IOException {
+    if (oldOffset <= MAX_USHORT) {
+      if (length <= MAX_UBYTE) {
+        out.write(COPY_USHORT_UBYTE);
+        out.writeShort((int) oldOffset);
+        out.write(length);
+      } else if (length <= MAX_USHORT) {
+        out.write(COPY_USHORT_USHORT);
+        out.writeShort((int) oldOffset);
+        out.writeShort(length);
+      } else {
+        out.write(COPY_USHORT_INT);
+        out.writeShort((int) oldOffset);
+        out.writeInt(length);
+      }
+    } else if (oldOffset <= Integer.MAX_VALUE) {
+      if (length <= MAX_UBYTE) {
+        out.write(COPY_INT_UBYTE);
+        out.writeInt((int) oldOffset);
+        out.write(length);
+      } else if (length <= MAX_USHORT) {
+        out.write(COPY_INT_USHORT);
+        out.writeInt((int) oldOffset);
+        out.writeShort(length);
+      } else {
+        out.write(COPY_INT_INT);
+        out.writeInt((int) oldOffset);
+        out.writeInt(length);
+      }
+    } else {
+      out.write(COPY_LONG_INT);
+      out.writeLong(oldOffset);
+      out.writeInt(length);
+    }
+  }
+
+  /**
+   * Writes the end of the patch and flushes the stream.
+   *
+   * @throws IOException if unable to write
+   */
+  void finish() throws IOException {
+    out.write(EOF);
+    out.flush();
+  }
+}
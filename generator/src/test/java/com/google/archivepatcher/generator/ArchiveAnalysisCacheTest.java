@@ -0,0 +1,254 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.generator.DefaultDeflateCompressionDiviner.DivinationResult;
+import com.google.archivepatcher.shared.DefaultDeflater;
+import com.google.archivepatcher.shared.UnitTestZipArchive;
+import com.google.archivepatcher.shared.UnitTestZipEntry;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ArchiveAnalysisCache}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class ArchiveAnalysisCacheTest {
+
+  private File cacheDirectory;
+  private File archiveFile;
+  private CountingDiviner diviner;
+  private ArchiveAnalysisCache cache;
+
+  /** A diviner that records the entries it divines. */
+  private static class CountingDiviner extends DefaultDeflateCompressionDiviner {
+    final List<String> divinedFileNames = new ArrayList<String>();
+
+    CountingDiviner() {
+      super(DefaultDeflater::new);
+    }
+
+    @Override
+    public List<DivinationResult> divineDeflateParameters(
+        File archiveFile, List<MinimalZipEntry> entries) throws IOException {
+      for (MinimalZipEntry entry : entries) {
+        divinedFileNames.add(entry.getFileName());
+      }
+      return super.divineDeflateParameters(archiveFile, entries);
+    }
+  }
+
+  @Before
+  public void setup() throws IOException {
+    cacheDirectory = File.createTempFile("ArchiveAnalysisCacheTest", "dir");
+    cacheDirectory.delete();
+    archiveFile = File.createTempFile("ArchiveAnalysisCacheTest", "zip");
+    UnitTestZipArchive.saveTestZip(archiveFile);
+    diviner = new CountingDiviner();
+    cache = new ArchiveAnalysisCache(cacheDirectory, Long.MAX_VALUE);
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = cacheDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    cacheDirectory.delete();
+    archiveFile.delete();
+  }
+
+  @Test
+  public void testListEntries() throws IOException {
+    List<MinimalZipEntry> expected = MinimalZipArchive.listEntries(archiveFile);
+    Assert.assertEquals(expected, cache.listEntries(archiveFile));
+    List<MinimalZipEntry> cached = cache.listEntries(archiveFile);
+    Assert.assertEquals(expected, cached);
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(
+          expected.get(i).getFileOffsetOfCompressedData(),
+          cached.get(i).getFileOffsetOfCompressedData());
+    }
+  }
+
+  @Test
+  public void testDivineDeflateParameters_Hit() throws IOException {
+    List<DivinationResult> expected =
+        new DefaultDeflateCompressionDiviner(DefaultDeflater::new)
+            .divineDeflateParameters(archiveFile);
+    assertResultsEqual(expected, cache.divineDeflateParameters(archiveFile, diviner));
+    int divinedCount = diviner.divinedFileNames.size();
+    Assert.assertTrue(divinedCount > 0);
+
+    assertResultsEqual(expected, cache.divineDeflateParameters(archiveFile, diviner));
+    Assert.assertEquals(divinedCount, diviner.divinedFileNames.size());
+  }
+
+  @Test
+  public void testDivineDeflateParameters_ReusesEntriesOfOtherArchives() throws IOException {
+    cache.divineDeflateParameters(archiveFile, diviner);
+    diviner.divinedFileNames.clear();
+
+    // Same entries in a different order, plus a new one.
+    UnitTestZipEntry newEntry =
+        UnitTestZipArchive.makeUnitTestZipEntry("/for/great/justice", 9, "new entry", null);
+    List<UnitTestZipEntry> otherEntries =
+        Arrays.asList(
+            UnitTestZipArchive.entry3,
+            newEntry,
+            UnitTestZipArchive.entry1,
+            UnitTestZipArchive.entry2,
+            UnitTestZipArchive.entry4);
+    File otherArchiveFile = File.createTempFile("ArchiveAnalysisCacheTest", "zip");
+    try {
+      Files.write(otherArchiveFile.toPath(), UnitTestZipArchive.makeTestZip(otherEntries));
+      List<DivinationResult> results = cache.divineDeflateParameters(otherArchiveFile, diviner);
+      Assert.assertEquals(Arrays.asList(newEntry.path), diviner.divinedFileNames);
+      assertResultsEqual(
+          new DefaultDeflateCompressionDiviner(DefaultDeflater::new)
+              .divineDeflateParameters(otherArchiveFile),
+          results);
+    } finally {
+      otherArchiveFile.delete();
+    }
+  }
+
+  @Test
+  public void testDivineDeflateParameters_ReusesEntriesWithoutArchiveEntries() throws IOException {
+    cache.divineDeflateParameters(archiveFile, diviner);
+    diviner.divinedFileNames.clear();
+    // Zip entries are looked up by their own keys, not in the divination entries of archives.
+    for (File file : cacheDirectory.listFiles()) {
+      if (file.getName().endsWith(".div")) {
+        Assert.assertTrue(file.delete());
+      }
+    }
+
+    List<UnitTestZipEntry> otherEntries =
+        Arrays.asList(UnitTestZipArchive.entry2, UnitTestZipArchive.entry1);
+    File otherArchiveFile = File.createTempFile("ArchiveAnalysisCacheTest", "zip");
+    try {
+      Files.write(otherArchiveFile.toPath(), UnitTestZipArchive.makeTestZip(otherEntries));
+      List<DivinationResult> results = cache.divineDeflateParameters(otherArchiveFile, diviner);
+      Assert.assertEquals(Arrays.asList(), diviner.divinedFileNames);
+      assertResultsEqual(
+          new DefaultDeflateCompressionDiviner(DefaultDeflater::new)
+              .divineDeflateParameters(otherArchiveFile),
+          results);
+    } finally {
+      otherArchiveFile.delete();
+    }
+  }
+
+  @Test
+  public void testListEntries_ArchiveChanged() throws IOException {
+    cache.listEntries(archiveFile);
+    // The digest of the archive is remembered only as long as the archive doesn't change.
+    Files.write(
+        archiveFile.toPath(),
+        UnitTestZipArchive.makeTestZip(Arrays.asList(UnitTestZipArchive.entry1)));
+    Assert.assertEquals(MinimalZipArchive.listEntries(archiveFile), cache.listEntries(archiveFile));
+  }
+
+  @Test
+  public void testDivineDeflateParameters_ProfileIsPartOfKey() throws IOException {
+    cache.divineDeflateParameters(archiveFile, diviner);
+    diviner.divinedFileNames.clear();
+    DefaultDeflateCompressionDiviner fastDiviner =
+        new DefaultDeflateCompressionDiviner(DefaultDeflater::new, GenerationProfile.FAST) {
+          @Override
+          public List<DivinationResult> divineDeflateParameters(
+              File archiveFile, List<MinimalZipEntry> entries) throws IOException {
+            diviner.divinedFileNames.add("fast");
+            return super.divineDeflateParameters(archiveFile, entries);
+          }
+        };
+    cache.divineDeflateParameters(archiveFile, fastDiviner);
+    Assert.assertEquals(Arrays.asList("fast"), diviner.divinedFileNames);
+  }
+
+  @Test
+  public void testDivineDeflateParameters_RequestedEntries() throws Exception {
+    List<DivinationResult> expected =
+        new DefaultDeflateCompressionDiviner(DefaultDeflater::new)
+            .divineDeflateParameters(archiveFile);
+    List<MinimalZipEntry> entries = cache.listEntries(archiveFile);
+    int index = 0;
+    while (!entries.get(index).isDeflateCompressed()) {
+      index++;
+    }
+    MinimalZipEntry requested = entries.get(index);
+    List<DivinationResult> results =
+        cache.divineDeflateParameters(archiveFile, Arrays.asList(requested), diviner, null, 1);
+    Assert.assertEquals(Arrays.asList(requested.getFileName()), diviner.divinedFileNames);
+    assertResultsEqual(expected.subList(index, index + 1), results);
+
+    // The other entries are divined when asked for, the requested one is remembered.
+    diviner.divinedFileNames.clear();
+    assertResultsEqual(expected, cache.divineDeflateParameters(archiveFile, diviner));
+    Assert.assertFalse(diviner.divinedFileNames.isEmpty());
+    Assert.assertFalse(diviner.divinedFileNames.contains(requested.getFileName()));
+    int divinedCount = diviner.divinedFileNames.size();
+    assertResultsEqual(expected, cache.divineDeflateParameters(archiveFile, diviner));
+    Assert.assertEquals(divinedCount, diviner.divinedFileNames.size());
+  }
+
+  @Test
+  public void testCorruptEntriesAreMisses() throws IOException {
+    List<DivinationResult> expected = cache.divineDeflateParameters(archiveFile, diviner);
+    File[] files = cacheDirectory.listFiles();
+    // The entries and divination entry of the archive, and the entry of each divined zip entry.
+    Assert.assertEquals(2 + diviner.divinedFileNames.size(), files.length);
+    for (File file : files) {
+      byte[] content = Files.readAllBytes(file.toPath());
+      Files.write(file.toPath(), Arrays.copyOf(content, content.length / 2));
+    }
+    diviner.divinedFileNames.clear();
+
+    Assert.assertEquals(MinimalZipArchive.listEntries(archiveFile), cache.listEntries(archiveFile));
+    assertResultsEqual(expected, cache.divineDeflateParameters(archiveFile, diviner));
+    Assert.assertFalse(diviner.divinedFileNames.isEmpty());
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    cache = new ArchiveAnalysisCache(cacheDirectory, 0);
+    List<DivinationResult> expected = cache.divineDeflateParameters(archiveFile, diviner);
+    Assert.assertEquals(0, cacheDirectory.listFiles().length);
+    int divinedCount = diviner.divinedFileNames.size();
+    assertResultsEqual(expected, cache.divineDeflateParameters(archiveFile, diviner));
+    Assert.assertEquals(2 * divinedCount, diviner.divinedFileNames.size());
+  }
+
+  private static void assertResultsEqual(
+      List<DivinationResult> expected, List<DivinationResult> actual) {
+    Assert.assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(expected.get(i).minimalZipEntry, actual.get(i).minimalZipEntry);
+      Assert.assertEquals(expected.get(i).divinedParameters, actual.get(i).divinedParameters);
+    }
+  }
+}
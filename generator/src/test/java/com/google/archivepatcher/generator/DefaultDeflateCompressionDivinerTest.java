@@ -21,7 +21,14 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -102,6 +109,54 @@ public class DefaultDeflateCompressionDivinerTest {
     } // End of iteration on nowrap
   }
 
+  @Test
+  public void testDivineDeflateParameters_DivergesLate() throws IOException {
+    // Levels 6 and 9 compress the zeros the same way and only diverge on the corpus after them,
+    // which is beyond the inflated bytes that are kept for the next candidate.
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    data.write(new byte[3 * 1024 * 1024]);
+    data.write(testData);
+    JreDeflateParameters parameters = JreDeflateParameters.of(9, 0, true);
+    DeflateCompressor compressor = new DeflateCompressor(DefaultDeflater::new);
+    compressor.setNowrap(parameters.nowrap);
+    compressor.setStrategy(parameters.strategy);
+    compressor.setCompressionLevel(parameters.level);
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    compressor.compress(new ByteArrayInputStream(data.toByteArray()), buffer);
+    Assert.assertEquals(
+        parameters,
+        diviner.divineDeflateParameters(new ByteArrayInputStreamFactory(buffer.toByteArray())));
+  }
+
+  @Test
+  public void testDivineDeflateParameters_FastProfile() throws IOException {
+    DefaultDeflateCompressionDiviner fastDiviner =
+        new DefaultDeflateCompressionDiviner(DefaultDeflater::new, GenerationProfile.FAST);
+    for (int level : new int[] {1, 6, 9}) {
+      JreDeflateParameters parameters = JreDeflateParameters.of(level, 0, true);
+      Assert.assertEquals(
+          parameters,
+          fastDiviner.divineDeflateParameters(
+              new ByteArrayInputStreamFactory(deflate(parameters))));
+    }
+    // Less popular levels and strategies are left to BALANCED and MAX.
+    for (JreDeflateParameters parameters :
+        new JreDeflateParameters[] {
+          JreDeflateParameters.of(5, 0, true), JreDeflateParameters.of(6, 1, true)
+        }) {
+      byte[] buffer = deflate(parameters);
+      Assert.assertNull(
+          fastDiviner.divineDeflateParameters(new ByteArrayInputStreamFactory(buffer)));
+      for (GenerationProfile profile :
+          new GenerationProfile[] {GenerationProfile.BALANCED, GenerationProfile.MAX}) {
+        Assert.assertEquals(
+            parameters,
+            new DefaultDeflateCompressionDiviner(DefaultDeflater::new, profile)
+                .divineDeflateParameters(new ByteArrayInputStreamFactory(buffer)));
+      }
+    }
+  }
+
   @Test
   public void testDivineDeflateParameters_File() throws IOException {
     File tempFile = File.createTempFile("ddcdt", "tmp");
@@ -136,4 +191,87 @@ public class DefaultDeflateCompressionDivinerTest {
       }
     }
   }
+
+  @Test
+  public void testDivineDeflateParameters_Parallel() throws Exception {
+    List<UnitTestZipEntry> entries = new ArrayList<UnitTestZipEntry>();
+    for (int level = 1; level <= 9; level++) {
+      entries.add(
+          UnitTestZipArchive.makeUnitTestZipEntry("/entry" + level, level, "" + level, null));
+    }
+    entries.add(UnitTestZipArchive.entry4);
+    File tempFile = File.createTempFile("ddcdt", "tmp");
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Files.write(tempFile.toPath(), UnitTestZipArchive.makeTestZip(entries));
+      List<DivinationResult> expected = diviner.divineDeflateParameters(tempFile);
+      for (int threadCount : new int[] {1, 3}) {
+        AtomicInteger deflaterCount = new AtomicInteger();
+        DefaultDeflateCompressionDiviner countingDiviner =
+            new DefaultDeflateCompressionDiviner(
+                (level, nowrap) -> {
+                  deflaterCount.incrementAndGet();
+                  return new DefaultDeflater(level, nowrap);
+                });
+        List<DivinationResult> actual =
+            countingDiviner.divineDeflateParameters(tempFile, executor, threadCount);
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int x = 0; x < expected.size(); x++) {
+          Assert.assertEquals(expected.get(x).minimalZipEntry, actual.get(x).minimalZipEntry);
+          Assert.assertEquals(expected.get(x).divinedParameters, actual.get(x).divinedParameters);
+        }
+        // Every task reuses its deflaters for all of its entries.
+        Assert.assertTrue(deflaterCount.get() <= 2 * threadCount);
+      }
+    } finally {
+      executor.shutdown();
+      tempFile.delete();
+    }
+  }
+
+  @Test
+  public void testDivineDeflateParameters_PrefersParametersOfSiblings() throws Exception {
+    // Every level compresses the tiny entries the same way; only the other entry tells level 9.
+    List<UnitTestZipEntry> entries =
+        Arrays.asList(
+            new UnitTestZipEntry("/tiny1", 9, "tiny", null),
+            UnitTestZipArchive.makeUnitTestZipEntry("/large", 9, "large", null),
+            new UnitTestZipEntry("/tiny2", 9, "tiny", null));
+    File tempFile = File.createTempFile("ddcdt", "tmp");
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Files.write(tempFile.toPath(), UnitTestZipArchive.makeTestZip(entries));
+      List<MinimalZipEntry> zipEntries = MinimalZipArchive.listEntries(tempFile);
+      // On its own, a tiny entry is divined as the first level of the profile.
+      Assert.assertEquals(
+          JreDeflateParameters.of(6, 0, true),
+          diviner
+              .divineDeflateParameters(tempFile, zipEntries.subList(0, 1))
+              .get(0)
+              .divinedParameters);
+      for (List<DivinationResult> results :
+          Arrays.asList(
+              diviner.divineDeflateParameters(tempFile),
+              diviner.divineDeflateParameters(tempFile, executor, 2))) {
+        Assert.assertEquals(3, results.size());
+        for (DivinationResult result : results) {
+          Assert.assertEquals(JreDeflateParameters.of(9, 0, true), result.divinedParameters);
+        }
+      }
+    } finally {
+      executor.shutdown();
+      tempFile.delete();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDivineDeflateParameters_ParallelZeroThreads() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      diviner.divineDeflateParameters(
+          new File("unused"), Collections.<MinimalZipEntry>emptyList(), executor, 0);
+    } finally {
+      executor.shutdown();
+    }
+  }
 }
@@ -0,0 +1,126 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import com.google.archivepatcher.shared.DefaultDeflateCompatibilityWindow;
+import com.google.archivepatcher.shared.DefaultDeflater;
+import com.google.archivepatcher.shared.DeflateCompressor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DeflateTokenStatistics}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class DeflateTokenStatisticsTest {
+
+  private byte[] corpus;
+
+  @Before
+  public void setup() {
+    corpus = new DefaultDeflateCompatibilityWindow(DefaultDeflater::new).getCorpus();
+  }
+
+  private static byte[] deflate(byte[] data, int level, int strategy, boolean nowrap)
+      throws IOException {
+    DeflateCompressor compressor = new DeflateCompressor(DefaultDeflater::new);
+    compressor.setNowrap(nowrap);
+    compressor.setStrategy(strategy);
+    compressor.setCompressionLevel(level);
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    compressor.compress(new ByteArrayInputStream(data), buffer);
+    return buffer.toByteArray();
+  }
+
+  private static DeflateTokenStatistics analyze(byte[] compressed, boolean nowrap) {
+    return DeflateTokenStatistics.analyze(compressed, compressed.length, nowrap);
+  }
+
+  @Test
+  public void testAllows_ActualParameters() throws IOException {
+    for (boolean nowrap : new boolean[] {true, false}) {
+      for (int strategy : new int[] {0, 1, 2}) {
+        for (int level = 1; level <= 9; level++) {
+          byte[] compressed = deflate(corpus, level, strategy, nowrap);
+          Assert.assertTrue(analyze(compressed, nowrap).allows(strategy, level));
+          // The start of the stream must not rule them out either.
+          Assert.assertTrue(
+              DeflateTokenStatistics.analyze(compressed, compressed.length / 3, nowrap)
+                  .allows(strategy, level));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testAllows_RulesOutHuffmanOnlyForMatches() throws IOException {
+    DeflateTokenStatistics statistics = analyze(deflate(corpus, 6, 0, true), true);
+    Assert.assertFalse(statistics.allows(2, 6));
+    statistics = analyze(deflate(corpus, 6, 2, true), true);
+    for (int strategy : new int[] {0, 1, 2}) {
+      Assert.assertTrue(statistics.allows(strategy, 6));
+    }
+  }
+
+  @Test
+  public void testAllows_RulesOutFilteredForShortMatches() throws IOException {
+    DeflateTokenStatistics statistics = analyze(deflate(corpus, 6, 0, true), true);
+    Assert.assertFalse(statistics.allows(1, 6));
+    Assert.assertTrue(statistics.allows(0, 6));
+  }
+
+  @Test
+  public void testAllows_RulesOutLazyLevelsForFarLength3Matches() throws IOException {
+    // Every three consecutive bytes of the counter are unique, except that three of its first
+    // bytes are repeated at the end, 4999 bytes back, with a different byte after them.
+    byte[] data = new byte[5004];
+    for (int i = 0; i < 2500; i++) {
+      data[2 * i] = (byte) ('A' + i / 64);
+      data[2 * i + 1] = (byte) (0x80 + i % 64);
+    }
+    System.arraycopy(data, 1, data, 5000, 3);
+    data[5003] = 'z';
+    for (int level = 1; level <= 3; level++) {
+      DeflateTokenStatistics statistics = analyze(deflate(data, level, 0, true), true);
+      Assert.assertTrue(statistics.allows(0, level));
+      Assert.assertFalse(statistics.allows(0, 6));
+      Assert.assertFalse(statistics.allows(0, 9));
+    }
+    Assert.assertTrue(analyze(deflate(data, 6, 0, true), true).allows(0, 6));
+  }
+
+  @Test
+  public void testAllows_RulesOutOtherLevelsOfZlibHeader() throws IOException {
+    DeflateTokenStatistics statistics = analyze(deflate(corpus, 9, 0, false), false);
+    Assert.assertTrue(statistics.allows(0, 7));
+    Assert.assertFalse(statistics.allows(0, 6));
+    Assert.assertFalse(statistics.allows(0, 1));
+  }
+
+  @Test
+  public void testAllows_JunkData() {
+    DeflateTokenStatistics statistics = analyze(new byte[] {(byte) 0xff, 1, 2, 3, 4}, true);
+    for (int strategy : new int[] {0, 1, 2}) {
+      for (int level = 1; level <= 9; level++) {
+        Assert.assertTrue(statistics.allows(strategy, level));
+      }
+    }
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DirectoryCache}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class DirectoryCacheTest {
+
+  private File cacheDirectory;
+
+  @Before
+  public void setup() throws IOException {
+    cacheDirectory = File.createTempFile("DirectoryCacheTest", "dir");
+    cacheDirectory.delete();
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = cacheDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    cacheDirectory.delete();
+  }
+
+  @Test
+  public void writesEntriesWithoutLeavingTempFiles() throws IOException {
+    DirectoryCache cache = new DirectoryCache(cacheDirectory, Long.MAX_VALUE, ".a");
+    File entry = cache.entry("x.a");
+    cache.store(entry, out -> out.writeInt(42));
+    Assert.assertArrayEquals(new byte[] {0, 0, 0, 42}, Files.readAllBytes(entry.toPath()));
+    Assert.assertEquals(1, cacheDirectory.listFiles().length);
+  }
+
+  @Test
+  public void failedWritesLeaveNoEntry() {
+    DirectoryCache cache = new DirectoryCache(cacheDirectory, Long.MAX_VALUE, ".a");
+    File entry = cache.entry("x.a");
+    cache.store(
+        entry,
+        out -> {
+          out.writeInt(42);
+          throw new IOException("test");
+        });
+    Assert.assertFalse(entry.exists());
+    Assert.assertEquals(0, cacheDirectory.listFiles().length);
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedEntries() throws IOException {
+    DirectoryCache cache = new DirectoryCache(cacheDirectory, 8, ".a", ".b");
+    File first = cache.entry("first.a");
+    File second = cache.entry("second.b");
+    File other = cache.entry("other.txt");
+    cache.write(first, out -> out.writeInt(1));
+    cache.write(second, out -> out.writeInt(2));
+    Files.write(other.toPath(), "not an entry".getBytes(StandardCharsets.UTF_8));
+    first.setLastModified(1000);
+    second.setLastModified(2000);
+
+    cache.store(cache.entry("third.a"), out -> out.writeInt(3));
+
+    Assert.assertFalse(first.exists());
+    Assert.assertTrue(second.exists());
+    Assert.assertTrue(cache.entry("third.a").exists());
+    Assert.assertTrue(other.exists());
+  }
+
+  @Test
+  public void toHex() {
+    Assert.assertEquals("00ff7f", DirectoryCache.toHex(new byte[] {0, (byte) 0xff, 0x7f}));
+    Assert.assertEquals(64, DirectoryCache.toHex(DirectoryCache.newDigest().digest()).length());
+  }
+}
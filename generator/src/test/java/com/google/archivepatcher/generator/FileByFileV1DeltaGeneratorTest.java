@@ -14,9 +14,21 @@
 
 package com.google.archivepatcher.generator;
 
+import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator;
+import com.google.archivepatcher.generator.gdiff.GdiffDeltaGenerator;
 import com.google.archivepatcher.shared.DefaultDeflater;
+import com.google.archivepatcher.shared.PatchConstants;
+import com.google.archivepatcher.shared.TypedRange;
 import com.google.archivepatcher.shared.UnitTestZipArchive;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -49,4 +61,245 @@ public class FileByFileV1DeltaGeneratorTest {
     byte[] result = buffer.toByteArray();
     Assert.assertTrue(result.length > 0);
   }
+
+  @Test
+  public void testGenerateDelta_Profiles() throws Exception {
+    // Every profile produces a patch, whatever it divines.
+    for (GenerationProfile profile : GenerationProfile.values()) {
+      FileByFileV1DeltaGenerator generator =
+          new FileByFileV1DeltaGenerator.Builder().withGenerationProfile(profile).build();
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      try (TempFileHolder oldArchive = new TempFileHolder();
+          TempFileHolder newArchive = new TempFileHolder()) {
+        UnitTestZipArchive.saveTestZip(oldArchive.file);
+        UnitTestZipArchive.saveTestZip(newArchive.file);
+        generator.generateDelta(oldArchive.file, newArchive.file, buffer);
+      }
+      Assert.assertTrue(buffer.size() > 0);
+    }
+  }
+
+  @Test
+  public void testGenerateDelta_MultipleDeltaRecords() throws Exception {
+    FileByFileV1DeltaGenerator generator =
+        new FileByFileV1DeltaGenerator.Builder().withDeltaRecordCount(3).build();
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(oldArchive.file);
+      UnitTestZipArchive.saveTestZip(newArchive.file);
+      generator.generateDelta(oldArchive.file, newArchive.file, buffer);
+    }
+    // The patch is flagged to have several delta records.
+    DataInputStream patchIn = new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+    patchIn.readFully(new byte[8]);
+    Assert.assertEquals(PatchConstants.FLAG_MULTIPLE_DELTA_RECORDS, patchIn.readInt());
+  }
+
+  @Test
+  public void testGenerateDelta_CopyRecords() throws Exception {
+    FileByFileV1DeltaGenerator generator =
+        new FileByFileV1DeltaGenerator.Builder()
+            .withDeltaRecordCount(3)
+            .withMinimumCopyLength(16)
+            .build();
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(oldArchive.file);
+      UnitTestZipArchive.saveTestZip(newArchive.file);
+      generator.generateDelta(oldArchive.file, newArchive.file, buffer);
+    }
+    // The delta-friendly blobs are identical, so the patch is a single copy of the whole old blob,
+    // which needs no flag.
+    DataInputStream patchIn = new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+    patchIn.readFully(new byte[8]);
+    Assert.assertEquals(0, patchIn.readInt());
+    long deltaFriendlyOldFileSize = patchIn.readLong();
+    patchIn.readFully(new byte[patchIn.readInt() * 16]); // Uncompression instructions
+    patchIn.readFully(new byte[patchIn.readInt() * 20]); // Recompression instructions
+    Assert.assertEquals(1, patchIn.readInt());
+    Assert.assertEquals(PatchConstants.DeltaFormat.COPY.patchValue, patchIn.read());
+    Assert.assertEquals(0, patchIn.readLong());
+    Assert.assertEquals(deltaFriendlyOldFileSize, patchIn.readLong());
+    Assert.assertEquals(0, patchIn.readLong());
+    Assert.assertEquals(deltaFriendlyOldFileSize, patchIn.readLong());
+    Assert.assertEquals(0, patchIn.readLong());
+    Assert.assertEquals(-1, patchIn.read());
+  }
+
+  @Test
+  public void testWithoutSplittingCopies() {
+    FileByFileV1DeltaGenerator generator =
+        new FileByFileV1DeltaGenerator.Builder().withMinimumCopyLength(16).build();
+    TypedRange<Long> atStart = new TypedRange<Long>(0, 16, 0L);
+    TypedRange<Long> splitting = new TypedRange<Long>(20, 31, 0L);
+    TypedRange<Long> longSplitting = new TypedRange<Long>(60, 32, 0L);
+    TypedRange<Long> beforeCopy = new TypedRange<Long>(100, 16, 0L);
+    TypedRange<Long> afterCopy = new TypedRange<Long>(116, 16, 0L);
+    TypedRange<Long> atEnd = new TypedRange<Long>(140, 20, 0L);
+    // Only the short copy between two delta ranges is dropped, which merges them.
+    Assert.assertEquals(
+        Arrays.asList(atStart, longSplitting, beforeCopy, afterCopy, atEnd),
+        generator.withoutSplittingCopies(
+            Arrays.asList(atStart, splitting, longSplitting, beforeCopy, afterCopy, atEnd), 160));
+  }
+
+  @Test
+  public void testGenerateDelta_InMemory() throws Exception {
+    List<DeltaGenerator> deltaGenerators =
+        Arrays.asList(
+            null,
+            new GdiffDeltaGenerator(),
+            // Only generates deltas between files, so deltas in memory go through temp files.
+            (oldBlob, newBlob, deltaOut) ->
+                new BsDiffDeltaGenerator().generateDelta(oldBlob, newBlob, deltaOut));
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder()) {
+      Files.write(
+          oldArchive.file.toPath(),
+          UnitTestZipArchive.makeTestZip(
+              Arrays.asList(
+                  UnitTestZipArchive.entry1,
+                  UnitTestZipArchive.entry2,
+                  UnitTestZipArchive.entry3)));
+      UnitTestZipArchive.saveTestZip(newArchive.file);
+      for (DeltaGenerator deltaGenerator : deltaGenerators) {
+        // The patch is the same whether the archives are below the threshold or not.
+        byte[][] patches = new byte[2][];
+        long[] inMemoryThresholds = {0, Integer.MAX_VALUE};
+        for (int i = 0; i < inMemoryThresholds.length; i++) {
+          FileByFileV1DeltaGenerator generator =
+              new FileByFileV1DeltaGenerator.Builder()
+                  .withDeltaGenerator(deltaGenerator)
+                  .withDeltaRecordCount(3)
+                  .withMinimumCopyLength(16)
+                  .withInMemoryThreshold(inMemoryThresholds[i])
+                  .build();
+          ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+          generator.generateDelta(oldArchive.file, newArchive.file, buffer);
+          patches[i] = buffer.toByteArray();
+        }
+        Assert.assertArrayEquals(patches[0], patches[1]);
+      }
+    }
+  }
+
+  @Test
+  public void testGenerateDelta_InMemoryWithoutTempFiles() throws Exception {
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder();
+        TempFileHolder missingTempDir = new TempFileHolder()) {
+      Files.write(
+          oldArchive.file.toPath(),
+          UnitTestZipArchive.makeTestZip(
+              Arrays.asList(UnitTestZipArchive.entry1, UnitTestZipArchive.entry2)));
+      UnitTestZipArchive.saveTestZip(newArchive.file);
+      // Any temp file would be created in a directory that doesn't exist, and fail.
+      missingTempDir.file.delete();
+      FileByFileV1DeltaGenerator generator =
+          new FileByFileV1DeltaGenerator.Builder()
+              .withDeltaGenerator(new GdiffDeltaGenerator())
+              .withInMemoryThreshold(Integer.MAX_VALUE)
+              .build();
+      TempFileHolder.setTempDir(missingTempDir.file);
+      try {
+        generator.generateDelta(oldArchive.file, newArchive.file, new ByteArrayOutputStream());
+      } finally {
+        TempFileHolder.setTempDir(null);
+      }
+    }
+  }
+
+  @Test
+  public void testGenerateDelta_InMemoryThresholdAppliesToDeltaFriendlyBlobs() throws Exception {
+    final AtomicInteger inMemoryDeltaCount = new AtomicInteger();
+    DeltaGenerator deltaGenerator =
+        new GdiffDeltaGenerator() {
+          @Override
+          public void generateDeltas(
+              byte[] oldBlob, byte[] newBlob, List<TypedRange<ByteArrayOutputStream>> deltaRanges)
+              throws IOException, InterruptedException {
+            inMemoryDeltaCount.incrementAndGet();
+            super.generateDeltas(oldBlob, newBlob, deltaRanges);
+          }
+        };
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder()) {
+      // The entry is recompressed, so it is uncompressed for diffing, and the delta-friendly blobs
+      // are longer than the archives.
+      Files.write(
+          oldArchive.file.toPath(),
+          UnitTestZipArchive.makeTestZip(
+              Arrays.asList(
+                  UnitTestZipArchive.makeUnitTestZipEntry("/entry", 1, "entry A", null))));
+      Files.write(
+          newArchive.file.toPath(),
+          UnitTestZipArchive.makeTestZip(
+              Arrays.asList(
+                  UnitTestZipArchive.makeUnitTestZipEntry("/entry", 9, "entry A", null))));
+      long archiveLength = Math.max(oldArchive.file.length(), newArchive.file.length());
+      long[] inMemoryThresholds = {0, archiveLength, Integer.MAX_VALUE};
+      int[] expectedInMemoryDeltaCounts = {0, 0, 1};
+      byte[] expectedPatch = null;
+      for (int i = 0; i < inMemoryThresholds.length; i++) {
+        inMemoryDeltaCount.set(0);
+        FileByFileV1DeltaGenerator generator =
+            new FileByFileV1DeltaGenerator.Builder()
+                .withDeltaGenerator(deltaGenerator)
+                .withInMemoryThreshold(inMemoryThresholds[i])
+                .build();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        generator.generateDelta(oldArchive.file, newArchive.file, buffer);
+        Assert.assertEquals(expectedInMemoryDeltaCounts[i], inMemoryDeltaCount.get());
+        if (expectedPatch == null) {
+          expectedPatch = buffer.toByteArray();
+        }
+        Assert.assertArrayEquals(expectedPatch, buffer.toByteArray());
+      }
+    }
+  }
+
+  @Test
+  public void testGeneratePreDiffPlan_AnalysisCache() throws Exception {
+    File cacheDirectory = File.createTempFile("FileByFileV1DeltaGeneratorTest", "dir");
+    cacheDirectory.delete();
+    try (TempFileHolder oldArchive = new TempFileHolder();
+        TempFileHolder newArchive = new TempFileHolder()) {
+      UnitTestZipArchive.saveTestZip(oldArchive.file);
+      UnitTestZipArchive.saveTestZip(newArchive.file);
+      FileByFileV1DeltaGenerator generator =
+          new FileByFileV1DeltaGenerator.Builder()
+              .withAnalysisCache(new ArchiveAnalysisCache(cacheDirectory, Long.MAX_VALUE))
+              .build();
+      // Planning goes through the same cache as generating a patch.
+      generator.generatePreDiffPlan(oldArchive.file, newArchive.file);
+      File[] cached = cacheDirectory.listFiles();
+      Assert.assertNotNull(cached);
+      Assert.assertTrue(cached.length > 0);
+    } finally {
+      File[] files = cacheDirectory.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          file.delete();
+        }
+      }
+      cacheDirectory.delete();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_NegativeInMemoryThreshold() {
+    new FileByFileV1DeltaGenerator.Builder().withInMemoryThreshold(-1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_NegativeMinimumCopyLength() {
+    new FileByFileV1DeltaGenerator.Builder().withMinimumCopyLength(-1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_NoDeltaRecords() {
+    new FileByFileV1DeltaGenerator.Builder().withDeltaRecordCount(0);
+  }
 }
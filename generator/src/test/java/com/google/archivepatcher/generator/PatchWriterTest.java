@@ -31,6 +31,7 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -149,4 +150,193 @@ public class PatchWriterTest {
     patchIn.readFully(actualDeltaContent);
     Assert.assertArrayEquals(expectedDeltaContent, actualDeltaContent);
   }
+
+  @Test
+  public void testWriteV1Patch_DeltaFormat() throws IOException {
+    new PatchWriter(PLAN, DELTA_FRIENDLY_OLD_FILE_SIZE, DELTA_FRIENDLY_NEW_FILE_SIZE, deltaFile)
+        .writeV1Patch(buffer);
+    byte[] bsDiffPatch = buffer.toByteArray();
+    buffer.reset();
+    new PatchWriter(
+            PLAN,
+            DELTA_FRIENDLY_OLD_FILE_SIZE,
+            DELTA_FRIENDLY_NEW_FILE_SIZE,
+            deltaFile,
+            PatchConstants.DeltaFormat.GDIFF)
+        .writeV1Patch(buffer);
+    byte[] gdiffPatch = buffer.toByteArray();
+
+    // Only the format of the delta record differs. It follows the number of delta records, 1.
+    Assert.assertEquals(bsDiffPatch.length, gdiffPatch.length);
+    int formatOffset = bsDiffPatch.length - DELTA_CONTENT.length() - 8 - 4 * 8 - 1;
+    Assert.assertEquals(1, gdiffPatch[formatOffset - 1]);
+    Assert.assertEquals(PatchConstants.DeltaFormat.BSDIFF.patchValue, bsDiffPatch[formatOffset]);
+    Assert.assertEquals(PatchConstants.DeltaFormat.GDIFF.patchValue, gdiffPatch[formatOffset]);
+    gdiffPatch[formatOffset] = bsDiffPatch[formatOffset];
+    Assert.assertArrayEquals(bsDiffPatch, gdiffPatch);
+  }
+
+  @Test
+  public void testWriteV1Patch_MultipleDeltaRecords() throws IOException {
+    File secondDeltaFile = File.createTempFile("patchwritertest", "delta2");
+    secondDeltaFile.deleteOnExit();
+    try {
+      try (FileOutputStream out = new FileOutputStream(secondDeltaFile)) {
+        out.write("second".getBytes("US-ASCII"));
+      }
+      long split = 1000;
+      PatchWriter writer =
+          new PatchWriter(
+              PLAN,
+              DELTA_FRIENDLY_OLD_FILE_SIZE,
+              DELTA_FRIENDLY_NEW_FILE_SIZE,
+              Arrays.asList(
+                  new TypedRange<File>(0, split, deltaFile),
+                  new TypedRange<File>(
+                      split, DELTA_FRIENDLY_NEW_FILE_SIZE - split, secondDeltaFile)),
+              PatchConstants.DeltaFormat.GDIFF);
+      writer.writeV1Patch(buffer);
+    } finally {
+      secondDeltaFile.delete();
+    }
+    DataInputStream patchIn = new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+    patchIn.readFully(new byte[8]); // Identifier
+    Assert.assertEquals(PatchConstants.FLAG_MULTIPLE_DELTA_RECORDS, patchIn.readInt());
+    // Skip the size of the delta-friendly old file and the uncompression and recompression
+    // instructions, which are the same as with a single delta.
+    patchIn.readFully(new byte[8 + 4 + 16 + 4 + 16 + 4]);
+
+    Assert.assertEquals(2, patchIn.readInt()); // Number of difference records
+    Assert.assertEquals(PatchConstants.DeltaFormat.GDIFF.patchValue, patchIn.read());
+    Assert.assertEquals(0, patchIn.readLong());
+    Assert.assertEquals(DELTA_FRIENDLY_OLD_FILE_SIZE, patchIn.readLong());
+    Assert.assertEquals(0, patchIn.readLong());
+    Assert.assertEquals(1000, patchIn.readLong());
+    Assert.assertEquals(DELTA_CONTENT.length(), patchIn.readLong());
+    Assert.assertEquals(PatchConstants.DeltaFormat.GDIFF.patchValue, patchIn.read());
+    Assert.assertEquals(0, patchIn.readLong());
+    Assert.assertEquals(DELTA_FRIENDLY_OLD_FILE_SIZE, patchIn.readLong());
+    Assert.assertEquals(1000, patchIn.readLong());
+    Assert.assertEquals(DELTA_FRIENDLY_NEW_FILE_SIZE - 1000, patchIn.readLong());
+    Assert.assertEquals("second".length(), patchIn.readLong());
+
+    // The deltas follow the records, in order.
+    byte[] expectedDeltaContent = (DELTA_CONTENT + "second").getBytes("US-ASCII");
+    byte[] actualDeltaContent = new byte[expectedDeltaContent.length];
+    patchIn.readFully(actualDeltaContent);
+    Assert.assertArrayEquals(expectedDeltaContent, actualDeltaContent);
+    Assert.assertEquals(-1, patchIn.read());
+  }
+
+  @Test
+  public void testWriteV1Patch_CopyRanges() throws IOException {
+    PatchWriter writer =
+        new PatchWriter(
+            PLAN,
+            DELTA_FRIENDLY_OLD_FILE_SIZE,
+            DELTA_FRIENDLY_NEW_FILE_SIZE,
+            PatchWriter.fromFiles(
+                Collections.singletonList(new TypedRange<File>(100, 900, deltaFile))),
+            PatchConstants.DeltaFormat.BSDIFF,
+            Arrays.asList(
+                new TypedRange<Long>(0, 100, 5L),
+                new TypedRange<Long>(1000, DELTA_FRIENDLY_NEW_FILE_SIZE - 1000, 0L)));
+    writer.writeV1Patch(buffer);
+    DataInputStream patchIn = new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()));
+    patchIn.readFully(new byte[8]); // Identifier
+    Assert.assertEquals(PatchConstants.FLAG_MULTIPLE_DELTA_RECORDS, patchIn.readInt());
+    patchIn.readFully(new byte[8 + 4 + 16 + 4 + 16 + 4]);
+
+    // The records are in the order of their work ranges in the new file, and copies have no delta.
+    Assert.assertEquals(3, patchIn.readInt()); // Number of difference records
+    Assert.assertEquals(PatchConstants.DeltaFormat.COPY.patchValue, patchIn.read());
+    Assert.assertEquals(5, patchIn.readLong());
+    Assert.assertEquals(100, patchIn.readLong());
+    Assert.assertEquals(0, patchIn.readLong());
+    Assert.assertEquals(100, patchIn.readLong());
+    Assert.assertEquals(0, patchIn.readLong());
+    Assert.assertEquals(PatchConstants.DeltaFormat.BSDIFF.patchValue, patchIn.read());
+    Assert.assertEquals(0, patchIn.readLong());
+    Assert.assertEquals(DELTA_FRIENDLY_OLD_FILE_SIZE, patchIn.readLong());
+    Assert.assertEquals(100, patchIn.readLong());
+    Assert.assertEquals(900, patchIn.readLong());
+    Assert.assertEquals(DELTA_CONTENT.length(), patchIn.readLong());
+    Assert.assertEquals(PatchConstants.DeltaFormat.COPY.patchValue, patchIn.read());
+    Assert.assertEquals(0, patchIn.readLong());
+    Assert.assertEquals(DELTA_FRIENDLY_NEW_FILE_SIZE - 1000, patchIn.readLong());
+    Assert.assertEquals(1000, patchIn.readLong());
+    Assert.assertEquals(DELTA_FRIENDLY_NEW_FILE_SIZE - 1000, patchIn.readLong());
+    Assert.assertEquals(0, patchIn.readLong());
+
+    byte[] actualDeltaContent = new byte[DELTA_CONTENT.length()];
+    patchIn.readFully(actualDeltaContent);
+    Assert.assertArrayEquals(DELTA_CONTENT.getBytes("US-ASCII"), actualDeltaContent);
+    Assert.assertEquals(-1, patchIn.read());
+  }
+
+  @Test
+  public void testWriteV1Patch_InMemoryDeltas() throws IOException {
+    new PatchWriter(
+            PLAN,
+            DELTA_FRIENDLY_OLD_FILE_SIZE,
+            DELTA_FRIENDLY_NEW_FILE_SIZE,
+            PatchWriter.fromFiles(
+                Collections.singletonList(new TypedRange<File>(100, 900, deltaFile))),
+            PatchConstants.DeltaFormat.BSDIFF,
+            Arrays.asList(
+                new TypedRange<Long>(0, 100, 5L),
+                new TypedRange<Long>(1000, DELTA_FRIENDLY_NEW_FILE_SIZE - 1000, 0L)))
+        .writeV1Patch(buffer);
+    // A delta held in memory is written the same as one in a file.
+    ByteArrayOutputStream delta = new ByteArrayOutputStream();
+    delta.write(DELTA_CONTENT.getBytes("US-ASCII"));
+    ByteArrayOutputStream inMemoryBuffer = new ByteArrayOutputStream();
+    new PatchWriter(
+            PLAN,
+            DELTA_FRIENDLY_OLD_FILE_SIZE,
+            DELTA_FRIENDLY_NEW_FILE_SIZE,
+            PatchWriter.fromByteArrayOutputStreams(
+                Collections.singletonList(new TypedRange<ByteArrayOutputStream>(100, 900, delta))),
+            PatchConstants.DeltaFormat.BSDIFF,
+            Arrays.asList(
+                new TypedRange<Long>(0, 100, 5L),
+                new TypedRange<Long>(1000, DELTA_FRIENDLY_NEW_FILE_SIZE - 1000, 0L)))
+        .writeV1Patch(inMemoryBuffer);
+    Assert.assertArrayEquals(buffer.toByteArray(), inMemoryBuffer.toByteArray());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_MissingDelta() {
+    new PatchWriter(
+        PLAN,
+        DELTA_FRIENDLY_OLD_FILE_SIZE,
+        DELTA_FRIENDLY_NEW_FILE_SIZE,
+        Collections.singletonList(
+            new TypedRange<PatchWriter.DeltaSource>(0, DELTA_FRIENDLY_NEW_FILE_SIZE, null)),
+        PatchConstants.DeltaFormat.BSDIFF,
+        Collections.<TypedRange<Long>>emptyList());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_CopyBeyondOldFile() {
+    new PatchWriter(
+        PLAN,
+        DELTA_FRIENDLY_OLD_FILE_SIZE,
+        DELTA_FRIENDLY_NEW_FILE_SIZE,
+        Collections.<TypedRange<PatchWriter.DeltaSource>>emptyList(),
+        PatchConstants.DeltaFormat.BSDIFF,
+        Collections.singletonList(new TypedRange<Long>(0, DELTA_FRIENDLY_NEW_FILE_SIZE, 1L)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_WorkRangesNotContiguous() {
+    new PatchWriter(
+        PLAN,
+        DELTA_FRIENDLY_OLD_FILE_SIZE,
+        DELTA_FRIENDLY_NEW_FILE_SIZE,
+        Arrays.asList(
+            new TypedRange<File>(0, 1000, deltaFile),
+            new TypedRange<File>(1001, DELTA_FRIENDLY_NEW_FILE_SIZE - 1001, deltaFile)),
+        PatchConstants.DeltaFormat.BSDIFF);
+  }
 }
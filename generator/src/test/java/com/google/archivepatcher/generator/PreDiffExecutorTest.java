@@ -22,9 +22,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -228,4 +233,233 @@ public class PreDiffExecutorTest {
     assertFileEquals(oldFile, deltaFriendlyOldFile);
     assertFileEquals(newFile, deltaFriendlyNewFile);
   }
+
+  @Test
+  public void testPrepareForDiffing_DeltaFriendlyStreams() throws IOException {
+    File oldFile = store(UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_6)));
+    File newFile = store(UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_9)));
+    PreDiffPlan filePlan =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .writingDeltaFriendlyFiles(deltaFriendlyOldFile, deltaFriendlyNewFile)
+            .build()
+            .prepareForDiffing();
+    ByteArrayOutputStream deltaFriendlyOldOut = new ByteArrayOutputStream();
+    ByteArrayOutputStream deltaFriendlyNewOut = new ByteArrayOutputStream();
+    PreDiffPlan streamPlan =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .writingDeltaFriendlyStreams(deltaFriendlyOldOut, deltaFriendlyNewOut)
+            .build()
+            .prepareForDiffing();
+    // The streams receive the same bytes as the files, and the plans are the same.
+    Assert.assertArrayEquals(readFile(deltaFriendlyOldFile), deltaFriendlyOldOut.toByteArray());
+    Assert.assertArrayEquals(readFile(deltaFriendlyNewFile), deltaFriendlyNewOut.toByteArray());
+    Assert.assertEquals(
+        filePlan.getDeltaFriendlyNewFileRecompressionPlan(),
+        streamPlan.getDeltaFriendlyNewFileRecompressionPlan());
+  }
+
+  @Test
+  public void testPrepareForDiffing_DeltaFriendlyBlobsUpTo() throws IOException {
+    File oldFile = store(UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_6)));
+    File newFile = store(UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_9)));
+    new PreDiffExecutor.Builder()
+        .readingOriginalFiles(oldFile, newFile)
+        .writingDeltaFriendlyFiles(deltaFriendlyOldFile, deltaFriendlyNewFile)
+        .build()
+        .prepareForDiffing();
+    byte[] expectedDeltaFriendlyOld = readFile(deltaFriendlyOldFile);
+    byte[] expectedDeltaFriendlyNew = readFile(deltaFriendlyNewFile);
+    long maxLength = Math.max(expectedDeltaFriendlyOld.length, expectedDeltaFriendlyNew.length);
+    // The blobs are held in memory up to the length of the longer one, written to files beyond it,
+    // and the files are only asked for when they are written.
+    for (long blobsMaxLength : new long[] {maxLength, maxLength - 1}) {
+      deltaFriendlyOldFile.delete();
+      deltaFriendlyNewFile.delete();
+      AtomicInteger filesSupplied = new AtomicInteger();
+      PreDiffExecutor executor =
+          new PreDiffExecutor.Builder()
+              .readingOriginalFiles(oldFile, newFile)
+              .writingDeltaFriendlyFilesOnDemand(
+                  () -> {
+                    filesSupplied.incrementAndGet();
+                    return deltaFriendlyOldFile;
+                  },
+                  () -> {
+                    filesSupplied.incrementAndGet();
+                    return deltaFriendlyNewFile;
+                  })
+              .holdingDeltaFriendlyBlobsUpTo(blobsMaxLength)
+              .build();
+      executor.prepareForDiffing();
+      boolean fits = blobsMaxLength == maxLength;
+      Assert.assertEquals(fits ? 0 : 2, filesSupplied.get());
+      Assert.assertEquals(!fits, deltaFriendlyOldFile.exists());
+      if (fits) {
+        Assert.assertArrayEquals(expectedDeltaFriendlyOld, executor.getDeltaFriendlyOldBlob());
+        Assert.assertArrayEquals(expectedDeltaFriendlyNew, executor.getDeltaFriendlyNewBlob());
+      } else {
+        Assert.assertNull(executor.getDeltaFriendlyOldBlob());
+        Assert.assertNull(executor.getDeltaFriendlyNewBlob());
+        Assert.assertArrayEquals(expectedDeltaFriendlyOld, readFile(deltaFriendlyOldFile));
+        Assert.assertArrayEquals(expectedDeltaFriendlyNew, readFile(deltaFriendlyNewFile));
+      }
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testBuilder_DeltaFriendlyBlobsUpToWithoutFiles() {
+    new PreDiffExecutor.Builder().holdingDeltaFriendlyBlobsUpTo(0);
+  }
+
+  @Test
+  public void testPrepareForDiffing_AnalysisCache() throws IOException {
+    File oldFile = store(UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_6)));
+    File newFile = store(UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_9)));
+    PreDiffPlan expectedPlan =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .writingDeltaFriendlyFiles(deltaFriendlyOldFile, deltaFriendlyNewFile)
+            .build()
+            .prepareForDiffing();
+    byte[] expectedDeltaFriendlyOld = readFile(deltaFriendlyOldFile);
+    byte[] expectedDeltaFriendlyNew = readFile(deltaFriendlyNewFile);
+    File cacheDirectory = newTempFile();
+    cacheDirectory.delete();
+    try {
+      ArchiveAnalysisCache cache = new ArchiveAnalysisCache(cacheDirectory, Long.MAX_VALUE);
+      // The first preparation fills the cache, the second is served from it.
+      for (int i = 0; i < 2; i++) {
+        PreDiffPlan plan =
+            new PreDiffExecutor.Builder()
+                .readingOriginalFiles(oldFile, newFile)
+                .writingDeltaFriendlyFiles(deltaFriendlyOldFile, deltaFriendlyNewFile)
+                .withAnalysisCache(cache)
+                .build()
+                .prepareForDiffing();
+        Assert.assertEquals(
+            expectedPlan.getDeltaFriendlyNewFileRecompressionPlan(),
+            plan.getDeltaFriendlyNewFileRecompressionPlan());
+        Assert.assertArrayEquals(expectedDeltaFriendlyOld, readFile(deltaFriendlyOldFile));
+        Assert.assertArrayEquals(expectedDeltaFriendlyNew, readFile(deltaFriendlyNewFile));
+        // The entries of both archives, the divination entry of the new one, and the divined
+        // parameters of its one entry.
+        Assert.assertEquals(4, cacheDirectory.listFiles().length);
+      }
+    } finally {
+      for (File file : cacheDirectory.listFiles()) {
+        file.delete();
+      }
+      cacheDirectory.delete();
+    }
+  }
+
+  @Test
+  public void testPrepareForDiffing_DivinationThreadCount() throws IOException {
+    List<UnitTestZipEntry> newEntries =
+        Arrays.asList(
+            ENTRY_LEVEL_9,
+            UnitTestZipArchive.makeUnitTestZipEntry("/entry B", 1, "entry B", null),
+            UnitTestZipArchive.makeUnitTestZipEntry("/entry C", 6, false, "entry C", null));
+    File oldFile = store(UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_6)));
+    File newFile = store(UnitTestZipArchive.makeTestZip(newEntries));
+    PreDiffPlan expectedPlan =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .writingDeltaFriendlyFiles(deltaFriendlyOldFile, deltaFriendlyNewFile)
+            .build()
+            .prepareForDiffing();
+    byte[] expectedDeltaFriendlyNew = readFile(deltaFriendlyNewFile);
+    PreDiffPlan plan =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .writingDeltaFriendlyFiles(deltaFriendlyOldFile, deltaFriendlyNewFile)
+            .withDivinationThreadCount(3)
+            .build()
+            .prepareForDiffing();
+    Assert.assertEquals(
+        expectedPlan.getDeltaFriendlyNewFileRecompressionPlan(),
+        plan.getDeltaFriendlyNewFileRecompressionPlan());
+    Assert.assertArrayEquals(expectedDeltaFriendlyNew, readFile(deltaFriendlyNewFile));
+  }
+
+  @Test
+  public void testPrepareForDiffing_Executor() throws IOException {
+    File oldFile = store(UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_6)));
+    File newFile = store(UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_9)));
+    PreDiffPlan expectedPlan =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .writingDeltaFriendlyFiles(deltaFriendlyOldFile, deltaFriendlyNewFile)
+            .build()
+            .prepareForDiffing();
+    byte[] expectedDeltaFriendlyOld = readFile(deltaFriendlyOldFile);
+    byte[] expectedDeltaFriendlyNew = readFile(deltaFriendlyNewFile);
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    try {
+      PreDiffExecutor executor =
+          new PreDiffExecutor.Builder()
+              .readingOriginalFiles(oldFile, newFile)
+              .writingDeltaFriendlyFiles(deltaFriendlyOldFile, deltaFriendlyNewFile)
+              .withDivinationThreadCount(2)
+              .withExecutor(executorService)
+              .build();
+      // The executor is reused, and not shut down, by every preparation.
+      for (int i = 0; i < 2; i++) {
+        PreDiffPlan plan = executor.prepareForDiffing();
+        Assert.assertEquals(
+            expectedPlan.getDeltaFriendlyNewFileRecompressionPlan(),
+            plan.getDeltaFriendlyNewFileRecompressionPlan());
+        Assert.assertArrayEquals(expectedDeltaFriendlyOld, readFile(deltaFriendlyOldFile));
+        Assert.assertArrayEquals(expectedDeltaFriendlyNew, readFile(deltaFriendlyNewFile));
+        Assert.assertFalse(executorService.isShutdown());
+      }
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_NullExecutor() {
+    new PreDiffExecutor.Builder().withExecutor(null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBuilder_ZeroDivinationThreads() {
+    new PreDiffExecutor.Builder().withDivinationThreadCount(0);
+  }
+
+  @Test
+  public void testGetStageTimesMillis() throws IOException {
+    File oldFile =
+        store(UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_6)));
+    File newFile =
+        store(UnitTestZipArchive.makeTestZip(Collections.singletonList(ENTRY_LEVEL_9)));
+    PreDiffExecutor executor =
+        new PreDiffExecutor.Builder().readingOriginalFiles(oldFile, newFile).build();
+    Assert.assertTrue(executor.getStageTimesMillis().isEmpty());
+    executor.prepareForDiffing();
+    // Without delta-friendly files to write, only the stages up to planning run.
+    Assert.assertEquals(
+        Arrays.asList(
+            PreDiffExecutor.Stage.LIST_OLD_ENTRIES,
+            PreDiffExecutor.Stage.LIST_NEW_ENTRIES,
+            PreDiffExecutor.Stage.DIVINE_NEW_ENTRIES,
+            PreDiffExecutor.Stage.PLAN),
+        new ArrayList<PreDiffExecutor.Stage>(executor.getStageTimesMillis().keySet()));
+
+    executor =
+        new PreDiffExecutor.Builder()
+            .readingOriginalFiles(oldFile, newFile)
+            .writingDeltaFriendlyFiles(deltaFriendlyOldFile, deltaFriendlyNewFile)
+            .build();
+    executor.prepareForDiffing();
+    Assert.assertEquals(
+        Arrays.asList(PreDiffExecutor.Stage.values()),
+        new ArrayList<PreDiffExecutor.Stage>(executor.getStageTimesMillis().keySet()));
+    for (long timeMillis : executor.getStageTimesMillis().values()) {
+      Assert.assertTrue(timeMillis >= 0);
+    }
+  }
 }
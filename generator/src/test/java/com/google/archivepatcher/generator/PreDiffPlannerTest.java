@@ -22,6 +22,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -265,6 +266,45 @@ public class PreDiffPlannerTest {
     return preDiffPlanner.generatePreDiffPlan();
   }
 
+  /**
+   * Like {@link #invokeGeneratePreDiffPlan(File, File, RecommendationModifier...)}, but divines the
+   * entries of the new file on demand and records the paths of the entries divined.
+   */
+  private PreDiffPlan invokeGeneratePreDiffPlanDivining(
+      File oldFile,
+      File newFile,
+      List<String> divinedPaths,
+      RecommendationModifier... recommendationModifiers)
+      throws IOException {
+    DefaultDeflateCompressionDiviner diviner =
+        new DefaultDeflateCompressionDiviner(DefaultDeflater::new);
+    PreDiffPlanner preDiffPlanner =
+        new PreDiffPlanner(
+            oldFile,
+            entriesByPathByTempFile.get(oldFile),
+            newFile,
+            entriesByPathByTempFile.get(newFile),
+            entries -> {
+              List<JreDeflateParameters> parameters = new ArrayList<>();
+              for (DivinationResult result : diviner.divineDeflateParameters(newFile, entries)) {
+                divinedPaths.add(result.minimalZipEntry.getFileName());
+                parameters.add(result.divinedParameters);
+              }
+              return parameters;
+            },
+            recommendationModifiers);
+    return preDiffPlanner.generatePreDiffPlan();
+  }
+
+  private static QualifiedRecommendation findRecommendation(PreDiffPlan plan, String newPath) {
+    for (QualifiedRecommendation recommendation : plan.getQualifiedRecommendations()) {
+      if (recommendation.getNewEntry().getFileName().equals(newPath)) {
+        return recommendation;
+      }
+    }
+    throw new AssertionError("No recommendation for " + newPath);
+  }
+
   private void checkRecommendation(PreDiffPlan plan, QualifiedRecommendation... expected) {
     Assert.assertNotNull(plan.getQualifiedRecommendations());
     Assert.assertEquals(expected.length, plan.getQualifiedRecommendations().size());
@@ -714,4 +754,58 @@ public class PreDiffPlannerTest {
             RecommendationReason.UNCOMPRESSED_CHANGED_TO_COMPRESSED));
   }
 
+  @Test
+  public void testGeneratePreDiffPlan_OnlyDivinesUncompressedNewEntries() throws IOException {
+    // A is unchanged, B is changed and C is only in the new archive; only B is uncompressed.
+    UnitTestZipEntry entryC = UnitTestZipArchive.makeUnitTestZipEntry("/path C", 6, "C", null);
+    byte[] oldBytes =
+        UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_A_LEVEL_6, ENTRY_B_LEVEL_6));
+    byte[] newBytes =
+        UnitTestZipArchive.makeTestZip(Arrays.asList(ENTRY_A_LEVEL_6, ENTRY_B_LEVEL_9, entryC));
+    File oldFile = storeAndMapArchive(oldBytes);
+    File newFile = storeAndMapArchive(newBytes);
+    List<String> divinedPaths = new ArrayList<>();
+    PreDiffPlan plan = invokeGeneratePreDiffPlanDivining(oldFile, newFile, divinedPaths);
+    Assert.assertEquals(Collections.singletonList(ENTRY_B_LEVEL_9.path), divinedPaths);
+    Assert.assertEquals(
+        Collections.singletonList(findRangeWithParams(newFile, ENTRY_B_LEVEL_9)),
+        plan.getNewFileUncompressionPlan());
+    Assert.assertEquals(
+        RecommendationReason.COMPRESSED_BYTES_IDENTICAL,
+        findRecommendation(plan, ENTRY_A_LEVEL_6.path).getReason());
+  }
+
+  @Test
+  public void testGeneratePreDiffPlan_UndivinableEntryLeavesRoomForOthers() throws IOException {
+    // The limiter only has room for the large entry, which turns out to be undivinable.
+    UnitTestZipEntry largeEntryLevel6 =
+        UnitTestZipArchive.makeUnitTestZipEntry("/large", 6, "a larger entry", null);
+    UnitTestZipEntry largeEntryLevel9 =
+        UnitTestZipArchive.makeUnitTestZipEntry("/large", 9, "a larger entry", null);
+    byte[] oldBytes =
+        UnitTestZipArchive.makeTestZip(Arrays.asList(largeEntryLevel6, ENTRY_A_LEVEL_6));
+    byte[] newBytes =
+        UnitTestZipArchive.makeTestZip(Arrays.asList(largeEntryLevel9, ENTRY_A_LEVEL_9));
+    File oldFile = storeAndMapArchive(oldBytes);
+    File newFile = storeAndMapArchive(newBytes);
+    corruptEntryData(newFile, largeEntryLevel9);
+    List<String> divinedPaths = new ArrayList<>();
+    PreDiffPlan plan =
+        invokeGeneratePreDiffPlanDivining(
+            oldFile,
+            newFile,
+            divinedPaths,
+            new TotalRecompressionLimiter(
+                findEntry(newFile, largeEntryLevel9).getUncompressedSize()));
+    Assert.assertEquals(Arrays.asList(largeEntryLevel9.path, ENTRY_A_LEVEL_9.path), divinedPaths);
+    Assert.assertEquals(
+        RecommendationReason.DEFLATE_UNSUITABLE,
+        findRecommendation(plan, largeEntryLevel9.path).getReason());
+    Assert.assertEquals(
+        RecommendationReason.COMPRESSED_BYTES_CHANGED,
+        findRecommendation(plan, ENTRY_A_LEVEL_9.path).getReason());
+    Assert.assertEquals(
+        Collections.singletonList(findRangeWithParams(newFile, ENTRY_A_LEVEL_9)),
+        plan.getNewFileUncompressionPlan());
+  }
 }
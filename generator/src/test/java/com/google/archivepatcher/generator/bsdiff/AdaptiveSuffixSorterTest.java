@@ -0,0 +1,92 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class AdaptiveSuffixSorterTest extends SuffixSorterTestBase {
+
+  AdaptiveSuffixSorter adaptiveSuffixSorter;
+
+  @Before
+  public void setup() {
+    adaptiveSuffixSorter =
+        new AdaptiveSuffixSorter(
+            new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+  }
+
+  @Override
+  public SuffixSorter getSuffixSorter() {
+    return adaptiveSuffixSorter;
+  }
+
+  @Test
+  public void choosesDivSuffixSorterForRandomData() throws Exception {
+    byte[] data = new byte[1000000];
+    new Random(1).nextBytes(data);
+    Assert.assertTrue(chooseFor(data) instanceof DivSuffixSorter);
+  }
+
+  @Test
+  public void choosesDivSuffixSorterForRuns() throws Exception {
+    byte[] data = new byte[1000000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i % 7 == 0 ? 1 : 0);
+    }
+    Assert.assertTrue(chooseFor(data) instanceof DivSuffixSorter);
+  }
+
+  @Test
+  public void choosesDivSuffixSorterForRepeatedRandomBlocks() throws Exception {
+    byte[] block = new byte[65536];
+    new Random(2).nextBytes(block);
+    byte[] data = new byte[block.length * 16];
+    for (int i = 0; i < data.length; i += block.length) {
+      System.arraycopy(block, 0, data, i, block.length);
+    }
+    Assert.assertTrue(chooseFor(data) instanceof DivSuffixSorter);
+  }
+
+  @Test
+  public void choosesSaisSuffixSorterForSimilarRecords() throws Exception {
+    byte[] template = new byte[48];
+    new Random(3).nextBytes(template);
+    byte[] data = new byte[template.length * 20000];
+    for (int i = 0, id = 0; i < data.length; i += template.length, id++) {
+      System.arraycopy(template, 0, data, i, template.length);
+      data[i + 8] = (byte) id;
+      data[i + 9] = (byte) (id >> 8);
+    }
+    Assert.assertTrue(chooseFor(data) instanceof SaisSuffixSorter);
+  }
+
+  @Test
+  public void estimateOfEmptyData() throws Exception {
+    AdaptiveSuffixSorter.Estimate estimate =
+        AdaptiveSuffixSorter.estimate(new RandomAccessObject.RandomAccessByteArrayObject(0));
+    Assert.assertEquals(0, estimate.repetitiveness, 0);
+  }
+
+  private SuffixSorter chooseFor(byte[] data) throws Exception {
+    return adaptiveSuffixSorter.chooseSuffixSorter(
+        new RandomAccessObject.RandomAccessByteArrayObject(data));
+  }
+}
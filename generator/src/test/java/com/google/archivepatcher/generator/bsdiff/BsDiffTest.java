@@ -14,14 +14,27 @@
 
 package com.google.archivepatcher.generator.bsdiff;
 
+import com.google.archivepatcher.generator.GenerationProfile;
 import com.google.archivepatcher.generator.bsdiff.Matcher.NextMatch;
+import com.google.archivepatcher.shared.TypedRange;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -236,6 +249,69 @@ public class BsDiffTest {
     }
   }
 
+  @Test
+  public void searchForMatchOnRepetitiveDataTest() throws Exception {
+    // Long shared prefixes, where the search skips most of every comparison.
+    Random random = new Random(7);
+    byte[] oldBytes = new byte[4096];
+    for (int i = 0; i < oldBytes.length; i++) {
+      oldBytes[i] = (byte) (random.nextInt(100) == 0 ? random.nextInt(3) : 'a' + (i % 3));
+    }
+    RandomAccessObject oldData = new RandomAccessObject.RandomAccessByteArrayObject(oldBytes);
+    RandomAccessObject suffixArray =
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory())
+            .suffixSort(oldData);
+    for (int i = 0; i < 500; i++) {
+      int start = random.nextInt(oldBytes.length);
+      byte[] newBytes =
+          Arrays.copyOfRange(oldBytes, start, start + random.nextInt(oldBytes.length - start + 1));
+      if (newBytes.length > 0 && random.nextBoolean()) {
+        newBytes[random.nextInt(newBytes.length)]++;
+      }
+      RandomAccessObject newData = new RandomAccessObject.RandomAccessByteArrayObject(newBytes);
+      int newStart = random.nextInt(newBytes.length + 1);
+
+      BsDiff.Match expected =
+          searchForMatchWithoutSkipping(
+              suffixArray, oldData, newData, newStart, 0, oldBytes.length);
+      BsDiff.Match actual =
+          BsDiff.searchForMatch(suffixArray, oldData, newData, newStart, 0, oldBytes.length);
+      Assert.assertEquals(expected.start, actual.start);
+      Assert.assertEquals(expected.length, actual.length);
+    }
+  }
+
+  /** The search as it was before it kept track of the known match lengths, for comparison. */
+  private static BsDiff.Match searchForMatchWithoutSkipping(
+      RandomAccessObject groupArray,
+      RandomAccessObject oldData,
+      RandomAccessObject newData,
+      int newStart,
+      int oldDataRangeStartA,
+      int oldDataRangeStartB)
+      throws IOException {
+    if (oldDataRangeStartB - oldDataRangeStartA < 2) {
+      return BsDiff.searchForMatchBaseCase(
+          groupArray, oldData, newData, newStart, oldDataRangeStartA, oldDataRangeStartB);
+    }
+    int pivot = oldDataRangeStartA + (oldDataRangeStartB - oldDataRangeStartA) / 2;
+    groupArray.seekToIntAligned(pivot);
+    int groupArrayPivot = groupArray.readInt();
+    if (BsUtil.lexicographicalCompare(
+            oldData,
+            groupArrayPivot,
+            (int) oldData.length() - groupArrayPivot,
+            newData,
+            newStart,
+            (int) newData.length() - newStart)
+        < 0) {
+      return searchForMatchWithoutSkipping(
+          groupArray, oldData, newData, newStart, pivot, oldDataRangeStartB);
+    }
+    return searchForMatchWithoutSkipping(
+        groupArray, oldData, newData, newStart, oldDataRangeStartA, pivot);
+  }
+
   @Test
   public void generatePatchTest() throws Exception {
     ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -264,6 +340,624 @@ public class BsDiffTest {
     Assert.assertArrayEquals(actualPatch, expectedPatch);
   }
 
+  @Test
+  public void generatePatchInSegmentsTest() throws Exception {
+    // Three segments of the new data, the last of which lies beyond the end of the old data.
+    Random random = new Random(42);
+    byte[] oldData = new byte[2 * BsDiffPatchWriter.MIN_SEGMENT_LENGTH];
+    random.nextBytes(oldData);
+    ByteArrayOutputStream newDataStream = new ByteArrayOutputStream();
+    int position = 0;
+    while (newDataStream.size() < 3 * BsDiffPatchWriter.MIN_SEGMENT_LENGTH) {
+      int length = 1000 + random.nextInt(50000);
+      if (random.nextInt(4) == 0) {
+        byte[] inserted = new byte[length / 10];
+        random.nextBytes(inserted);
+        newDataStream.write(inserted);
+      } else {
+        position = random.nextInt(4) == 0 ? random.nextInt(oldData.length) : position;
+        length = Math.min(length, oldData.length - position);
+        byte[] copied = Arrays.copyOfRange(oldData, position, position + length);
+        copied[random.nextInt(length)]++;
+        newDataStream.write(copied);
+        position += length;
+        if (position == oldData.length) {
+          position = 0;
+        }
+      }
+    }
+    byte[] newData = newDataStream.toByteArray();
+
+    ByteArrayOutputStream segmentedPatch = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(
+        new RandomAccessObject.RandomAccessByteArrayObject(oldData),
+        new RandomAccessObject.RandomAccessByteArrayObject(newData),
+        segmentedPatch,
+        new BsDiffOptions.Builder()
+            .withSuffixSorter(
+                new DivSuffixSorter(
+                    new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory()))
+            .withMatchingThreadCount(8)
+            .build());
+    Assert.assertArrayEquals(newData, applyPatch(oldData, segmentedPatch.toByteArray()));
+
+    // With one thread, the patch is the same as without the option.
+    ByteArrayOutputStream expectedPatch = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(oldData, newData, expectedPatch);
+    ByteArrayOutputStream singleThreadedPatch = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(
+        new RandomAccessObject.RandomAccessByteArrayObject(oldData),
+        new RandomAccessObject.RandomAccessByteArrayObject(newData),
+        singleThreadedPatch,
+        new BsDiffOptions.Builder()
+            .withSuffixSorter(
+                new DivSuffixSorter(
+                    new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory()))
+            .withMatchingThreadCount(1)
+            .build());
+    Assert.assertArrayEquals(expectedPatch.toByteArray(), singleThreadedPatch.toByteArray());
+  }
+
+  @Test
+  public void generatePatchInSegmentsWaitsForOtherSegmentsOnFailureTest() throws Exception {
+    byte[] data = new byte[4 * 1024];
+    CountDownLatch othersStarted = new CountDownLatch(3);
+    AtomicInteger othersRunning = new AtomicInteger();
+    try {
+      BsDiffPatchWriter.generatePatchInSegments(
+          new RandomAccessObject.RandomAccessByteArrayObject(data),
+          new RandomAccessObject.RandomAccessByteArrayObject(data),
+          (oldData, newData, initialOldPosition) -> {
+            if (initialOldPosition == 0) {
+              return () -> {
+                othersStarted.await();
+                throw new IOException("first segment failed");
+              };
+            }
+            return () -> {
+              othersRunning.incrementAndGet();
+              othersStarted.countDown();
+              try {
+                // Keep reading the shared data for a while, regardless of interrupts.
+                long end = System.nanoTime() + 200_000_000L;
+                while (System.nanoTime() < end) {
+                  oldData.seek(0);
+                  oldData.readByte();
+                }
+                return NextMatch.of(false, 0, 0);
+              } finally {
+                othersRunning.decrementAndGet();
+              }
+            };
+          },
+          4,
+          new ByteArrayOutputStream());
+      Assert.fail("Expected the failure of the first segment");
+    } catch (IOException expected) {
+      Assert.assertEquals("first segment failed", expected.getMessage());
+    }
+    Assert.assertEquals(0, othersRunning.get());
+  }
+
+  @Test
+  public void generatePatchWithSegmentedSuffixArrayTest() throws Exception {
+    // Copies of random ranges of the old data, many of which cross the boundaries of the segments.
+    Random random = new Random(7);
+    byte[] oldData = new byte[200 * 1024];
+    random.nextBytes(oldData);
+    ByteArrayOutputStream newDataStream = new ByteArrayOutputStream();
+    while (newDataStream.size() < 300 * 1024) {
+      int position = random.nextInt(oldData.length);
+      int length = Math.min(1000 + random.nextInt(20000), oldData.length - position);
+      byte[] copied = Arrays.copyOfRange(oldData, position, position + length);
+      copied[random.nextInt(length)]++;
+      newDataStream.write(copied);
+    }
+    byte[] newData = newDataStream.toByteArray();
+    SuffixSorter suffixSorter =
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+
+    ByteArrayOutputStream expectedPatch = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(oldData, newData, expectedPatch);
+
+    ByteArrayOutputStream segmentedPatch = new ByteArrayOutputStream();
+    segmentedPatch.write("ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII));
+    BsUtil.writeFormattedLong(newData.length, segmentedPatch);
+    BsDiffPatchWriter.generatePatchWithSegmentedSuffixArray(
+        new RandomAccessObject.RandomAccessByteArrayObject(oldData),
+        new RandomAccessObject.RandomAccessByteArrayObject(newData),
+        suffixSorter,
+        new int[] {BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH},
+        BsDiffMatcher.DEFAULT_TOTAL_MATCH_LENGTH_BUDGET,
+        64 * 1024,
+        4 * 1024,
+        segmentedPatch);
+    Assert.assertArrayEquals(newData, applyPatch(oldData, segmentedPatch.toByteArray()));
+    // Matches are only split where they cross the end of a segment.
+    Assert.assertTrue(segmentedPatch.size() < expectedPatch.size() * 11 / 10);
+
+    // With a single segment, the patch is the same as with a single suffix array.
+    ByteArrayOutputStream singleSegmentPatch = new ByteArrayOutputStream();
+    singleSegmentPatch.write("ENDSLEY/BSDIFF43".getBytes(StandardCharsets.US_ASCII));
+    BsUtil.writeFormattedLong(newData.length, singleSegmentPatch);
+    BsDiffPatchWriter.generatePatchWithSegmentedSuffixArray(
+        new RandomAccessObject.RandomAccessByteArrayObject(oldData),
+        new RandomAccessObject.RandomAccessByteArrayObject(newData),
+        suffixSorter,
+        new int[] {BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH},
+        BsDiffMatcher.DEFAULT_TOTAL_MATCH_LENGTH_BUDGET,
+        oldData.length,
+        4 * 1024,
+        singleSegmentPatch);
+    Assert.assertArrayEquals(expectedPatch.toByteArray(), singleSegmentPatch.toByteArray());
+  }
+
+  @Test
+  public void generatePatchWithMemoryBudgetTest() throws Exception {
+    // The halves of the old data swapped, with a changed byte in every 1000, so that the windows
+    // only compress well against the right regions.
+    Random random = new Random(11);
+    byte[] oldData = new byte[1024 * 1024];
+    random.nextBytes(oldData);
+    byte[] newData = new byte[oldData.length + 1000];
+    int half = oldData.length / 2;
+    System.arraycopy(oldData, half, newData, 0, half);
+    byte[] inserted = new byte[1000];
+    random.nextBytes(inserted);
+    System.arraycopy(inserted, 0, newData, half, inserted.length);
+    System.arraycopy(oldData, 0, newData, half + 1000, half);
+    for (int i = 0; i < newData.length; i += 1000) {
+      newData[i]++;
+    }
+    SuffixSorter suffixSorter =
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+
+    ByteArrayOutputStream expectedPatch = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(oldData, newData, expectedPatch);
+
+    // Windows of 128 KiB.
+    long memoryBudgetBytes =
+        BsDiffPatchWriter.MEMORY_BUDGET_BYTES_PER_WINDOW_BYTE * 128 * 1024 * 16 / 15 + 16;
+    ByteArrayOutputStream windowedPatch = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(
+        new RandomAccessObject.RandomAccessByteArrayObject(oldData),
+        new RandomAccessObject.RandomAccessByteArrayObject(newData),
+        windowedPatch,
+        new BsDiffOptions.Builder()
+            .withSuffixSorter(suffixSorter)
+            .withMemoryBudget(memoryBudgetBytes)
+            .build());
+    Assert.assertArrayEquals(newData, applyPatch(oldData, windowedPatch.toByteArray()));
+    Assert.assertTrue(
+        deflatedLength(windowedPatch.toByteArray())
+            < deflatedLength(expectedPatch.toByteArray()) * 3 / 2);
+
+    // With a budget for the whole old data, the patch is the same as without a budget.
+    ByteArrayOutputStream unlimitedPatch = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(
+        new RandomAccessObject.RandomAccessByteArrayObject(oldData),
+        new RandomAccessObject.RandomAccessByteArrayObject(newData),
+        unlimitedPatch,
+        new BsDiffOptions.Builder()
+            .withSuffixSorter(suffixSorter)
+            .withMemoryBudget(
+                BsDiffPatchWriter.MEMORY_BUDGET_BYTES_PER_WINDOW_BYTE * (long) newData.length)
+            .build());
+    Assert.assertArrayEquals(expectedPatch.toByteArray(), unlimitedPatch.toByteArray());
+  }
+
+  @Test
+  public void generatePatchWithHashChainsTest() throws Exception {
+    // Moved, changed and inserted regions, and enough new data for several threads.
+    Random random = new Random(17);
+    byte[] oldData = new byte[3 * BsDiffPatchWriter.MIN_SEGMENT_LENGTH];
+    random.nextBytes(oldData);
+    byte[] newData = new byte[oldData.length + 5000];
+    int third = oldData.length / 3;
+    System.arraycopy(oldData, 2 * third, newData, 0, third);
+    byte[] inserted = new byte[5000];
+    random.nextBytes(inserted);
+    System.arraycopy(inserted, 0, newData, third, inserted.length);
+    System.arraycopy(oldData, 0, newData, third + 5000, 2 * third);
+    for (int i = 0; i < newData.length; i += 50 + random.nextInt(5000)) {
+      newData[i]++;
+    }
+
+    ByteArrayOutputStream suffixArrayPatch = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(oldData, newData, suffixArrayPatch);
+    for (int matchingThreadCount : new int[] {1, 3}) {
+      ByteArrayOutputStream hashChainPatch = new ByteArrayOutputStream();
+      BsDiffPatchWriter.generatePatch(
+          new RandomAccessObject.RandomAccessByteArrayObject(oldData),
+          new RandomAccessObject.RandomAccessByteArrayObject(newData),
+          hashChainPatch,
+          new BsDiffOptions.Builder()
+              .withHashChainMatching(true)
+              .withMatchingThreadCount(matchingThreadCount)
+              .build());
+      Assert.assertArrayEquals(newData, applyPatch(oldData, hashChainPatch.toByteArray()));
+      Assert.assertTrue(
+          deflatedLength(hashChainPatch.toByteArray())
+              < deflatedLength(suffixArrayPatch.toByteArray()) * 11 / 10);
+    }
+
+    // Data that is shorter than a hash, and highly repetitive data.
+    byte[] text = "abcdefghij".getBytes(StandardCharsets.US_ASCII);
+    byte[] changedText = "xabcdefghijx".getBytes(StandardCharsets.US_ASCII);
+    byte[][][] cases = {
+      {new byte[0], new byte[0]},
+      {new byte[0], text},
+      {text, new byte[0]},
+      {text, changedText},
+      {new byte[100000], new byte[100010]},
+    };
+    for (byte[][] testCase : cases) {
+      ByteArrayOutputStream patch = new ByteArrayOutputStream();
+      BsDiffPatchWriter.generatePatch(
+          new RandomAccessObject.RandomAccessByteArrayObject(testCase[0]),
+          new RandomAccessObject.RandomAccessByteArrayObject(testCase[1]),
+          patch,
+          new BsDiffOptions.Builder().withHashChainMatching(true).build());
+      Assert.assertArrayEquals(testCase[1], applyPatch(testCase[0], patch.toByteArray()));
+    }
+  }
+
+  @Test
+  public void generatePatchWithProfileTest() throws Exception {
+    // Short runs of changed bytes within long shared regions, so that the minimum match lengths of
+    // MAX produce different patches.
+    Random random = new Random(13);
+    byte[] oldData = new byte[256 * 1024];
+    random.nextBytes(oldData);
+    byte[] newData = oldData.clone();
+    for (int i = 0; i < newData.length; i += 20 + random.nextInt(200)) {
+      newData[i] ^= 1 + random.nextInt(255);
+    }
+    File oldFile = File.createTempFile("BsDiffTest", "old");
+    File newFile = File.createTempFile("BsDiffTest", "new");
+    try {
+      Files.write(oldFile.toPath(), oldData);
+      Files.write(newFile.toPath(), newData);
+      SuffixSorter suffixSorter =
+          new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+
+      int smallestCandidateLength = Integer.MAX_VALUE;
+      for (int minimumMatchLength : GenerationProfile.MAX.getBsDiffMinimumMatchLengths()) {
+        ByteArrayOutputStream candidate = new ByteArrayOutputStream();
+        BsDiffPatchWriter.generatePatch(
+            oldFile,
+            newFile,
+            candidate,
+            new BsDiffOptions.Builder()
+                .withSuffixSorter(suffixSorter)
+                .withMinimumMatchLength(minimumMatchLength)
+                .build());
+        smallestCandidateLength =
+            Math.min(smallestCandidateLength, deflatedLength(candidate.toByteArray()));
+      }
+      ByteArrayOutputStream maxPatch = new ByteArrayOutputStream();
+      BsDiffPatchWriter.generatePatch(
+          oldFile,
+          newFile,
+          maxPatch,
+          new BsDiffOptions.Builder()
+              .withSuffixSorter(suffixSorter)
+              .withGenerationProfile(GenerationProfile.MAX)
+              .withMatchingThreadCount(1)
+              .build());
+      Assert.assertArrayEquals(newData, applyPatch(oldData, maxPatch.toByteArray()));
+      Assert.assertEquals(smallestCandidateLength, deflatedLength(maxPatch.toByteArray()));
+
+      // FAST and BALANCED produce valid patches regardless of the number of threads.
+      for (GenerationProfile profile :
+          new GenerationProfile[] {GenerationProfile.FAST, GenerationProfile.BALANCED}) {
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        BsDiffPatchWriter.generatePatch(
+            oldFile,
+            newFile,
+            patch,
+            new BsDiffOptions.Builder()
+                .withSuffixSorter(suffixSorter)
+                .withGenerationProfile(profile)
+                .build());
+        Assert.assertArrayEquals(newData, applyPatch(oldData, patch.toByteArray()));
+      }
+    } finally {
+      oldFile.delete();
+      newFile.delete();
+    }
+  }
+
+  @Test
+  public void generatePatchWithMinimumMatchLengthsTest() throws Exception {
+    // Copies of short ranges from nearby positions in the old data, which only the shorter minimum
+    // match length finds.
+    Random random = new Random(23);
+    byte[] oldData = new byte[512 * 1024];
+    random.nextBytes(oldData);
+    ByteArrayOutputStream newDataStream = new ByteArrayOutputStream();
+    while (newDataStream.size() < oldData.length) {
+      int length = 20 + random.nextInt(40);
+      int position = Math.min(newDataStream.size() + random.nextInt(1000), oldData.length - length);
+      newDataStream.write(oldData, position, length);
+    }
+    byte[] newData = newDataStream.toByteArray();
+    int[] minimumMatchLengths = {16, 64};
+    SuffixSorter suffixSorter =
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+    // Windows of 128 KiB.
+    long memoryBudgetBytes =
+        BsDiffPatchWriter.MEMORY_BUDGET_BYTES_PER_WINDOW_BYTE * 128 * 1024 * 16 / 15 + 16;
+    BsDiffOptions[] modes = {
+      new BsDiffOptions.Builder()
+          .withSuffixSorter(suffixSorter)
+          .withHashChainMatching(true)
+          .build(),
+      new BsDiffOptions.Builder()
+          .withSuffixSorter(suffixSorter)
+          .withMemoryBudget(memoryBudgetBytes)
+          .build(),
+    };
+    for (BsDiffOptions mode : modes) {
+      int smallestCandidateLength = Integer.MAX_VALUE;
+      int largestCandidateLength = 0;
+      for (int minimumMatchLength : minimumMatchLengths) {
+        ByteArrayOutputStream candidate = new ByteArrayOutputStream();
+        BsDiffPatchWriter.generatePatch(
+            new RandomAccessObject.RandomAccessByteArrayObject(oldData),
+            new RandomAccessObject.RandomAccessByteArrayObject(newData),
+            candidate,
+            mode.toBuilder().withMinimumMatchLength(minimumMatchLength).build());
+        smallestCandidateLength =
+            Math.min(smallestCandidateLength, deflatedLength(candidate.toByteArray()));
+        largestCandidateLength =
+            Math.max(largestCandidateLength, deflatedLength(candidate.toByteArray()));
+      }
+      Assert.assertTrue(smallestCandidateLength < largestCandidateLength);
+      ByteArrayOutputStream patch = new ByteArrayOutputStream();
+      BsDiffPatchWriter.generatePatch(
+          new RandomAccessObject.RandomAccessByteArrayObject(oldData),
+          new RandomAccessObject.RandomAccessByteArrayObject(newData),
+          patch,
+          mode.toBuilder().withMinimumMatchLengths(minimumMatchLengths).build());
+      Assert.assertArrayEquals(newData, applyPatch(oldData, patch.toByteArray()));
+      // Windows choose their lengths independently, so the patch may be smaller than either.
+      Assert.assertTrue(deflatedLength(patch.toByteArray()) <= smallestCandidateLength);
+    }
+
+    // Segmented suffix arrays.
+    int smallestCandidateLength = Integer.MAX_VALUE;
+    for (int minimumMatchLength : minimumMatchLengths) {
+      ByteArrayOutputStream candidate = new ByteArrayOutputStream();
+      BsDiffPatchWriter.generatePatchWithSegmentedSuffixArray(
+          new RandomAccessObject.RandomAccessByteArrayObject(oldData),
+          new RandomAccessObject.RandomAccessByteArrayObject(newData),
+          suffixSorter,
+          new int[] {minimumMatchLength},
+          BsDiffMatcher.DEFAULT_TOTAL_MATCH_LENGTH_BUDGET,
+          128 * 1024,
+          4 * 1024,
+          candidate);
+      smallestCandidateLength =
+          Math.min(smallestCandidateLength, deflatedLength(candidate.toByteArray()));
+    }
+    ByteArrayOutputStream segmentedPatch = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatchWithSegmentedSuffixArray(
+        new RandomAccessObject.RandomAccessByteArrayObject(oldData),
+        new RandomAccessObject.RandomAccessByteArrayObject(newData),
+        suffixSorter,
+        minimumMatchLengths,
+        BsDiffMatcher.DEFAULT_TOTAL_MATCH_LENGTH_BUDGET,
+        128 * 1024,
+        4 * 1024,
+        segmentedPatch);
+    Assert.assertEquals(smallestCandidateLength, deflatedLength(segmentedPatch.toByteArray()));
+  }
+
+  @Test
+  public void generatePatchesTest() throws Exception {
+    Random random = new Random(19);
+    byte[] oldData = new byte[200 * 1024];
+    random.nextBytes(oldData);
+    byte[] newData = new byte[oldData.length + 1000];
+    System.arraycopy(oldData, 100 * 1024, newData, 0, 100 * 1024);
+    System.arraycopy(oldData, 0, newData, 100 * 1024 + 1000, 100 * 1024);
+    for (int i = 0; i < newData.length; i += 20 + random.nextInt(2000)) {
+      newData[i] ^= 1 + random.nextInt(255);
+    }
+    int[] rangeStarts = {0, 1, 50000, 150000, newData.length};
+    File oldFile = File.createTempFile("BsDiffTest", "old");
+    File newFile = File.createTempFile("BsDiffTest", "new");
+    List<TypedRange<File>> ranges = new ArrayList<TypedRange<File>>();
+    try {
+      Files.write(oldFile.toPath(), oldData);
+      Files.write(newFile.toPath(), newData);
+      for (int i = 0; i + 1 < rangeStarts.length; i++) {
+        ranges.add(
+            new TypedRange<File>(
+                rangeStarts[i],
+                rangeStarts[i + 1] - rangeStarts[i],
+                File.createTempFile("BsDiffTest", "delta")));
+      }
+      SuffixSorter suffixSorter =
+          new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+      for (GenerationProfile profile : GenerationProfile.values()) {
+        BsDiffOptions options =
+            new BsDiffOptions.Builder()
+                .withSuffixSorter(suffixSorter)
+                .withGenerationProfile(profile)
+                .build();
+        List<byte[]> sequentialPatches = new ArrayList<byte[]>();
+        for (int threadCount : new int[] {1, 3}) {
+          BsDiffPatchWriter.generatePatches(oldFile, newFile, ranges, options, threadCount);
+          for (int i = 0; i < ranges.size(); i++) {
+            // Every range is patched against the whole old data, and independently of the threads.
+            byte[] patch = Files.readAllBytes(ranges.get(i).getMetadata().toPath());
+            Assert.assertArrayEquals(
+                Arrays.copyOfRange(newData, rangeStarts[i], rangeStarts[i + 1]),
+                applyPatch(oldData, patch));
+            if (threadCount == 1) {
+              sequentialPatches.add(patch);
+            } else {
+              Assert.assertArrayEquals(sequentialPatches.get(i), patch);
+            }
+          }
+        }
+        // Generating in memory writes the same patches.
+        List<TypedRange<ByteArrayOutputStream>> memoryRanges =
+            new ArrayList<TypedRange<ByteArrayOutputStream>>();
+        for (TypedRange<File> range : ranges) {
+          memoryRanges.add(
+              new TypedRange<ByteArrayOutputStream>(
+                  range.getOffset(), range.getLength(), new ByteArrayOutputStream()));
+        }
+        BsDiffPatchWriter.generatePatches(oldData, newData, memoryRanges, options, 3);
+        for (int i = 0; i < ranges.size(); i++) {
+          Assert.assertArrayEquals(
+              sequentialPatches.get(i), memoryRanges.get(i).getMetadata().toByteArray());
+        }
+      }
+    } finally {
+      oldFile.delete();
+      newFile.delete();
+      for (TypedRange<File> range : ranges) {
+        range.getMetadata().delete();
+      }
+    }
+  }
+
+  @Test
+  public void generatePatchFromFilesReleasesMappingsTest() throws Exception {
+    // Thousands of generations on several threads, each of which maps both files and, every other
+    // time, a temp file for the suffix array. Nothing may be left mapped or open afterwards, even
+    // though nothing forces a garbage collection.
+    Random random = new Random(5);
+    final byte[] oldData = new byte[4096];
+    random.nextBytes(oldData);
+    final byte[] newData = Arrays.copyOf(oldData, 5000);
+    newData[100]++;
+    final File oldFile = File.createTempFile("BsDiffTest", "old");
+    final File newFile = File.createTempFile("BsDiffTest", "new");
+    try {
+      Files.write(oldFile.toPath(), oldData);
+      Files.write(newFile.toPath(), newData);
+      int mappingsBefore = countMappings(oldFile, newFile);
+      int openFilesBefore = countOpenFiles();
+
+      final int generationsPerThread = 500;
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (int thread = 0; thread < 4; thread++) {
+          results.add(
+              executor.submit(
+                  () -> {
+                    SuffixSorter mmapSuffixSorter =
+                        new DivSuffixSorter(
+                            new RandomAccessObjectFactory.RandomAccessMmapObjectFactory("rw"));
+                    for (int i = 0; i < generationsPerThread; i++) {
+                      ByteArrayOutputStream patch = new ByteArrayOutputStream();
+                      if (i % 2 == 0) {
+                        BsDiffPatchWriter.generatePatch(oldFile, newFile, patch);
+                      } else {
+                        BsDiffPatchWriter.generatePatch(
+                            oldFile,
+                            newFile,
+                            patch,
+                            new BsDiffOptions.Builder().withSuffixSorter(mmapSuffixSorter).build());
+                      }
+                      Assert.assertArrayEquals(newData, applyPatch(oldData, patch.toByteArray()));
+                    }
+                    return null;
+                  }));
+        }
+        for (Future<Void> result : results) {
+          result.get();
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+
+      Assert.assertEquals(mappingsBefore, countMappings(oldFile, newFile));
+      if (openFilesBefore >= 0) {
+        // Some slack for file descriptors that the JVM opens by itself.
+        Assert.assertTrue(countOpenFiles() <= openFilesBefore + 16);
+      }
+    } finally {
+      oldFile.delete();
+      newFile.delete();
+    }
+  }
+
+  /**
+   * Returns the number of mappings of the specified files and of temp files for suffix arrays, or 0
+   * if the mappings of the process can't be listed.
+   */
+  private static int countMappings(File... files) throws IOException {
+    File maps = new File("/proc/self/maps");
+    if (!maps.canRead()) {
+      return 0;
+    }
+    int count = 0;
+    for (String line : Files.readAllLines(maps.toPath(), StandardCharsets.UTF_8)) {
+      boolean matches = line.contains("wavsprafof");
+      for (File file : files) {
+        matches |= line.endsWith(file.getName());
+      }
+      if (matches) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** Returns the number of open file descriptors of the process, or -1 if unknown. */
+  private static int countOpenFiles() {
+    String[] descriptors = new File("/proc/self/fd").list();
+    return descriptors == null ? -1 : descriptors.length;
+  }
+
+  private static int deflatedLength(byte[] data) throws IOException {
+    ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+    try (DeflaterOutputStream out = new DeflaterOutputStream(deflated)) {
+      out.write(data);
+    }
+    return deflated.size();
+  }
+
+  /**
+   * Applies a patch the way the applier does, failing on any entry that the applier would reject.
+   */
+  private static byte[] applyPatch(byte[] oldData, byte[] patch) throws IOException {
+    ByteArrayInputStream patchInputStream = new ByteArrayInputStream(patch);
+    byte[] signature = new byte[16];
+    Assert.assertEquals(signature.length, patchInputStream.read(signature));
+    Assert.assertEquals("ENDSLEY/BSDIFF43", new String(signature, StandardCharsets.US_ASCII));
+    long newSize = BsUtil.readFormattedLong(patchInputStream);
+    Assert.assertTrue(newSize >= 0 && newSize <= Integer.MAX_VALUE);
+    byte[] newData = new byte[(int) newSize];
+    int newPosition = 0;
+    int oldPosition = 0;
+    while (newPosition < newData.length) {
+      long diffLength = BsUtil.readFormattedLong(patchInputStream);
+      long extraLength = BsUtil.readFormattedLong(patchInputStream);
+      long oldPositionOffset = BsUtil.readFormattedLong(patchInputStream);
+      Assert.assertTrue(diffLength >= 0 && extraLength >= 0);
+      Assert.assertTrue(newPosition + diffLength + extraLength <= newData.length);
+      Assert.assertTrue(oldPosition + diffLength <= oldData.length);
+      for (int i = 0; i < diffLength; i++) {
+        newData[newPosition++] = (byte) (oldData[oldPosition++] + patchInputStream.read());
+      }
+      for (int i = 0; i < extraLength; i++) {
+        newData[newPosition++] = (byte) patchInputStream.read();
+      }
+      oldPosition += oldPositionOffset;
+      Assert.assertTrue(oldPosition >= 0 && oldPosition <= oldData.length);
+    }
+    Assert.assertEquals(0, patchInputStream.available());
+    return newData;
+  }
+
   /**
    * Naive implementation of BsDiff.Matcher. Exact matches between newData[a ... a + len - 1] and
    * oldData[b ... b + len - 1] are valid if |len| >= 3.
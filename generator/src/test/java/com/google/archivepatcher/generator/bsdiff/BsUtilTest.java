@@ -23,6 +23,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
 @RunWith(JUnit4.class)
 public class BsUtilTest {
@@ -54,6 +55,19 @@ public class BsUtilTest {
     Assert.assertArrayEquals(expected, actual);
   }
 
+  @Test
+  public void writeFormattedLongToArrayTest() throws IOException {
+    for (long value : new long[] {0, -1, 0x0eadbeef, Long.MAX_VALUE, -Long.MAX_VALUE}) {
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream(8);
+      BsUtil.writeFormattedLong(value, outputStream);
+      byte[] actual = new byte[10];
+      BsUtil.writeFormattedLong(value, actual, 1);
+      Assert.assertArrayEquals(outputStream.toByteArray(), Arrays.copyOfRange(actual, 1, 9));
+      Assert.assertEquals(0, actual[0]);
+      Assert.assertEquals(0, actual[9]);
+    }
+  }
+
   @Test
   public void readFormattedLongTest() throws IOException {
     byte[] data = {
@@ -0,0 +1,137 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CachingSuffixSorterTest extends SuffixSorterTestBase {
+
+  private File cacheDirectory;
+  private CountingSuffixSorter countingSuffixSorter;
+  private CachingSuffixSorter cachingSuffixSorter;
+
+  /** A sorter that counts how often it is called. */
+  private static class CountingSuffixSorter implements SuffixSorter {
+    private final SuffixSorter delegate =
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+    int calls;
+
+    @Override
+    public RandomAccessObject suffixSort(RandomAccessObject data)
+        throws IOException, InterruptedException {
+      calls++;
+      return delegate.suffixSort(data);
+    }
+  }
+
+  @Before
+  public void setup() throws IOException {
+    cacheDirectory = File.createTempFile("CachingSuffixSorterTest", "dir");
+    cacheDirectory.delete();
+    countingSuffixSorter = new CountingSuffixSorter();
+    cachingSuffixSorter =
+        new CachingSuffixSorter(countingSuffixSorter, cacheDirectory, Long.MAX_VALUE);
+  }
+
+  @After
+  public void tearDown() {
+    File[] files = cacheDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    cacheDirectory.delete();
+  }
+
+  @Override
+  public SuffixSorter getSuffixSorter() {
+    return cachingSuffixSorter;
+  }
+
+  @Test
+  public void hitReturnsSameSuffixArray() throws Exception {
+    byte[] data = randomData(1, 10000);
+    int[] expected = sortToIntArray(data);
+    Assert.assertEquals(1, countingSuffixSorter.calls);
+    Assert.assertArrayEquals(expected, sortToIntArray(data));
+    Assert.assertEquals(1, countingSuffixSorter.calls);
+  }
+
+  @Test
+  public void differentDataMisses() throws Exception {
+    sortToIntArray(randomData(1, 10000));
+    sortToIntArray(randomData(2, 10000));
+    Assert.assertEquals(2, countingSuffixSorter.calls);
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() throws Exception {
+    // Room for two entries of 4 * (1000 + 1) bytes.
+    cachingSuffixSorter =
+        new CachingSuffixSorter(countingSuffixSorter, cacheDirectory, 2 * 4 * 1001);
+    byte[] first = randomData(1, 1000);
+    byte[] second = randomData(2, 1000);
+    byte[] third = randomData(3, 1000);
+    sortToIntArray(first);
+    sortToIntArray(second);
+    // Make sure that the first entry is the most recently used one.
+    File[] entries = cacheDirectory.listFiles();
+    Assert.assertEquals(2, entries.length);
+    for (File entry : entries) {
+      entry.setLastModified(entry.lastModified() - 60000);
+    }
+    sortToIntArray(first);
+    Assert.assertEquals(2, countingSuffixSorter.calls);
+    sortToIntArray(third);
+    Assert.assertEquals(3, countingSuffixSorter.calls);
+    Assert.assertEquals(2, cacheDirectory.listFiles().length);
+    sortToIntArray(first);
+    Assert.assertEquals(3, countingSuffixSorter.calls);
+    sortToIntArray(second);
+    Assert.assertEquals(4, countingSuffixSorter.calls);
+  }
+
+  @Test
+  public void doesNotStoreEntriesLargerThanLimit() throws Exception {
+    cachingSuffixSorter = new CachingSuffixSorter(countingSuffixSorter, cacheDirectory, 100);
+    byte[] data = randomData(1, 1000);
+    sortToIntArray(data);
+    sortToIntArray(data);
+    Assert.assertEquals(2, countingSuffixSorter.calls);
+  }
+
+  private int[] sortToIntArray(byte[] data) throws Exception {
+    try (RandomAccessObject suffixArray =
+        cachingSuffixSorter.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data))) {
+      return randomAccessObjectToIntArray(suffixArray);
+    }
+  }
+
+  private static byte[] randomData(long seed, int length) {
+    byte[] data = new byte[length];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+}
@@ -14,7 +14,11 @@
 
 package com.google.archivepatcher.generator.bsdiff;
 
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
@@ -33,4 +37,65 @@ public class DivSuffixSorterTest extends SuffixSorterTestBase {
   public SuffixSorter getSuffixSorter() {
     return divSuffixSorter;
   }
+
+  @Test
+  public void suffixSortIntoFileBackedSuffixArray() throws Exception {
+    byte[] data = new byte[50000];
+    new Random(99).nextBytes(data);
+    int[] expected =
+        randomAccessObjectToIntArray(
+            divSuffixSorter.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data)));
+    DivSuffixSorter fileSorter =
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessFileObjectFactory("rw"));
+    try (RandomAccessObject suffixArray =
+        fileSorter.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data))) {
+      Assert.assertArrayEquals(expected, randomAccessObjectToIntArray(suffixArray));
+    }
+  }
+
+  @Test
+  public void suffixSortReturnsHeapCopiesToBudget() throws Exception {
+    byte[] data = new byte[50000];
+    new Random(99).nextBytes(data);
+    int[] expected =
+        randomAccessObjectToIntArray(
+            divSuffixSorter.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data)));
+    RandomAccessObjectFactory.AdaptiveRandomAccessObjectFactory factory =
+        new RandomAccessObjectFactory.AdaptiveRandomAccessObjectFactory(100L * data.length);
+    try (RandomAccessObject suffixArray =
+        new DivSuffixSorter(factory)
+            .suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data))) {
+      Assert.assertArrayEquals(expected, randomAccessObjectToIntArray(suffixArray));
+      // Only the suffix array is left in the budget.
+      Assert.assertEquals(4L * (data.length + 1), factory.getBytesInUse());
+    }
+    Assert.assertEquals(0, factory.getBytesInUse());
+  }
+
+  @Test
+  public void suffixSortThroughBufferViews() throws Exception {
+    byte[] data = new byte[50000];
+    new Random(99).nextBytes(data);
+    int[] expected =
+        randomAccessObjectToIntArray(
+            divSuffixSorter.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data)));
+    ForkJoinPool forkJoinPool = new ForkJoinPool(3);
+    try {
+      for (ForkJoinPool pool : new ForkJoinPool[] {null, forkJoinPool}) {
+        // The budget only fits the suffix array, which leaves no room for the heap copies, so the
+        // sort works on views of the buffers of the input and the suffix array.
+        RandomAccessObjectFactory.AdaptiveRandomAccessObjectFactory factory =
+            new RandomAccessObjectFactory.AdaptiveRandomAccessObjectFactory(
+                4L * (data.length + 1));
+        try (RandomAccessObject suffixArray =
+            new DivSuffixSorter(factory, pool)
+                .suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data))) {
+          Assert.assertTrue(suffixArray instanceof RandomAccessObject.RandomAccessByteArrayObject);
+          Assert.assertArrayEquals(expected, randomAccessObjectToIntArray(suffixArray));
+        }
+      }
+    } finally {
+      forkJoinPool.shutdown();
+    }
+  }
 }
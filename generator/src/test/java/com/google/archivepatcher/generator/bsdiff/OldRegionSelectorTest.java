@@ -0,0 +1,100 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class OldRegionSelectorTest {
+
+  @Test
+  public void selectsRegionContainingWindow() throws Exception {
+    byte[] oldData = new byte[1000000];
+    new Random(1).nextBytes(oldData);
+    // The window is a copy of oldData[600000 ... 699999], with a random byte in every 1000.
+    byte[] newData = new byte[300000];
+    new Random(2).nextBytes(newData);
+    System.arraycopy(oldData, 600000, newData, 100000, 100000);
+    for (int i = 100000; i < 200000; i += 1000) {
+      newData[i] = (byte) ~newData[i];
+    }
+
+    OldRegionSelector selector =
+        new OldRegionSelector(
+            new RandomAccessObject.RandomAccessByteArrayObject(oldData), 150000, 10000);
+    long start =
+        selector.selectRegion(
+            new RandomAccessObject.RandomAccessByteArrayObject(newData), 0, 300000, 0);
+    Assert.assertTrue(start <= 600000);
+    Assert.assertTrue(start + 150000 >= 700000);
+  }
+
+  @Test
+  public void ignoresRepeatedBlocks() throws Exception {
+    // Zeros at the start of the old data, which the window is full of, and a copy of the window's
+    // random part at the end.
+    byte[] oldData = new byte[1000000];
+    new Random(1).nextBytes(oldData);
+    Arrays.fill(oldData, 0, 100000, (byte) 0);
+    byte[] newData = new byte[100000];
+    System.arraycopy(oldData, 950000, newData, 90000, 10000);
+
+    OldRegionSelector selector =
+        new OldRegionSelector(
+            new RandomAccessObject.RandomAccessByteArrayObject(oldData), 100000, 10000);
+    long start =
+        selector.selectRegion(
+            new RandomAccessObject.RandomAccessByteArrayObject(newData), 0, 100000, 0);
+    Assert.assertTrue(start <= 950000);
+    Assert.assertTrue(start + 100000 >= 960000);
+  }
+
+  @Test
+  public void keepsRegionWithinOldData() throws Exception {
+    byte[] oldData = new byte[100000];
+    new Random(1).nextBytes(oldData);
+    byte[] newData = new byte[10000];
+    System.arraycopy(oldData, 90000, newData, 0, 10000);
+
+    OldRegionSelector selector =
+        new OldRegionSelector(
+            new RandomAccessObject.RandomAccessByteArrayObject(oldData), 50000, 1000);
+    Assert.assertEquals(
+        50000,
+        selector.selectRegion(
+            new RandomAccessObject.RandomAccessByteArrayObject(newData), 0, 10000, 0));
+  }
+
+  @Test
+  public void selectsDefaultRegionWithoutCommonContent() throws Exception {
+    byte[] oldData = new byte[100000];
+    new Random(1).nextBytes(oldData);
+    byte[] newData = new byte[10000];
+    new Random(2).nextBytes(newData);
+
+    OldRegionSelector selector =
+        new OldRegionSelector(
+            new RandomAccessObject.RandomAccessByteArrayObject(oldData), 50000, 1000);
+    Assert.assertEquals(
+        12345,
+        selector.selectRegion(
+            new RandomAccessObject.RandomAccessByteArrayObject(newData), 0, 10000, 12345));
+  }
+}
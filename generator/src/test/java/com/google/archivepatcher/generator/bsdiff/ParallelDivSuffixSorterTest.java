@@ -0,0 +1,121 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests {@link DivSuffixSorter} with the type B* buckets sorted on a {@link ForkJoinPool}. */
+@RunWith(JUnit4.class)
+public class ParallelDivSuffixSorterTest extends SuffixSorterTestBase {
+
+  private ForkJoinPool forkJoinPool;
+  private DivSuffixSorter divSuffixSorter;
+
+  @Before
+  public void setup() {
+    forkJoinPool = new ForkJoinPool(4);
+    divSuffixSorter =
+        new DivSuffixSorter(
+            new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory(), forkJoinPool);
+  }
+
+  @After
+  public void tearDown() {
+    forkJoinPool.shutdownNow();
+  }
+
+  @Override
+  public SuffixSorter getSuffixSorter() {
+    return divSuffixSorter;
+  }
+
+  @Test
+  public void matchesSequentialSortOnRandomData() throws Exception {
+    Random rand = new Random(42);
+    byte[] data = new byte[500000];
+    rand.nextBytes(data);
+    assertMatchesSequentialSort(data);
+  }
+
+  @Test
+  public void matchesSequentialSortOnRepetitiveData() throws Exception {
+    // Long repeats with a few mutations produce deep type B* buckets.
+    Random rand = new Random(43);
+    byte[] block = new byte[4096];
+    rand.nextBytes(block);
+    byte[] data = new byte[block.length * 64];
+    for (int i = 0; i < data.length; i += block.length) {
+      System.arraycopy(block, 0, data, i, block.length);
+      data[i + rand.nextInt(block.length)] = (byte) rand.nextInt();
+    }
+    assertMatchesSequentialSort(data);
+  }
+
+  @Test
+  public void matchesSequentialSortOnSmallAlphabet() throws Exception {
+    Random rand = new Random(44);
+    byte[] data = new byte[300000];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) ('a' + rand.nextInt(3));
+    }
+    assertMatchesSequentialSort(data);
+  }
+
+  @Test
+  public void generatesIdenticalPatch() throws Exception {
+    Random rand = new Random(45);
+    byte[] oldData = new byte[200000];
+    rand.nextBytes(oldData);
+    byte[] newData = oldData.clone();
+    for (int i = 0; i < 500; i++) {
+      newData[rand.nextInt(newData.length)] = (byte) rand.nextInt();
+    }
+
+    ByteArrayOutputStream sequentialPatch = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(
+        new RandomAccessObject.RandomAccessByteArrayObject(oldData),
+        new RandomAccessObject.RandomAccessByteArrayObject(newData),
+        sequentialPatch,
+        new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory(),
+        BsDiffPatchWriter.DEFAULT_MINIMUM_MATCH_LENGTH);
+    ByteArrayOutputStream parallelPatch = new ByteArrayOutputStream();
+    BsDiffPatchWriter.generatePatch(
+        new RandomAccessObject.RandomAccessByteArrayObject(oldData),
+        new RandomAccessObject.RandomAccessByteArrayObject(newData),
+        parallelPatch,
+        new BsDiffOptions.Builder().withSuffixSorter(divSuffixSorter).build());
+    Assert.assertArrayEquals(sequentialPatch.toByteArray(), parallelPatch.toByteArray());
+  }
+
+  private void assertMatchesSequentialSort(byte[] data) throws Exception {
+    DivSuffixSorter sequentialSorter =
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+    int[] expected =
+        randomAccessObjectToIntArray(
+            sequentialSorter.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data)));
+    int[] actual =
+        randomAccessObjectToIntArray(
+            divSuffixSorter.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data)));
+    Assert.assertArrayEquals(expected, actual);
+  }
+}
@@ -0,0 +1,76 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import com.google.archivepatcher.generator.bsdiff.RandomAccessObjectFactory.AdaptiveRandomAccessObjectFactory;
+import com.google.archivepatcher.generator.bsdiff.RandomAccessObjectFactory.AdaptiveRandomAccessObjectFactory.Tier;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RandomAccessObjectFactoryTest {
+
+  @Test
+  public void adaptiveFactoryUsesMemoryWithinBudget() throws Exception {
+    AdaptiveRandomAccessObjectFactory factory = new AdaptiveRandomAccessObjectFactory(1000);
+    try (RandomAccessObject obj = factory.create(600)) {
+      Assert.assertEquals(Tier.HEAP, AdaptiveRandomAccessObjectFactory.tierOf(obj));
+      Assert.assertTrue(obj instanceof RandomAccessObject.RandomAccessByteArrayObject);
+      Assert.assertEquals(600, obj.length());
+      Assert.assertEquals(600, factory.getBytesInUse());
+      obj.writeInt(0x01020304);
+      obj.seek(0);
+      Assert.assertEquals(0x01020304, obj.readInt());
+    }
+    Assert.assertEquals(0, factory.getBytesInUse());
+  }
+
+  @Test
+  public void adaptiveFactoryMapsFilesBeyondBudget() throws Exception {
+    AdaptiveRandomAccessObjectFactory factory = new AdaptiveRandomAccessObjectFactory(1000);
+    try (RandomAccessObject first = factory.create(600);
+        RandomAccessObject second = factory.create(600)) {
+      Assert.assertEquals(Tier.HEAP, AdaptiveRandomAccessObjectFactory.tierOf(first));
+      Assert.assertEquals(Tier.MMAP, AdaptiveRandomAccessObjectFactory.tierOf(second));
+      Assert.assertEquals(600, second.length());
+      Assert.assertEquals(600, factory.getBytesInUse());
+    }
+    Assert.assertEquals(0, factory.getBytesInUse());
+
+    // The memory of closed objects is available again, and closing twice doesn't free it twice.
+    RandomAccessObject third = factory.create(1000);
+    Assert.assertEquals(Tier.HEAP, AdaptiveRandomAccessObjectFactory.tierOf(third));
+    third.close();
+    third.close();
+    Assert.assertEquals(0, factory.getBytesInUse());
+  }
+
+  @Test
+  public void adaptiveFactoryReportsOtherTiers() throws Exception {
+    try (RandomAccessObject obj =
+        new RandomAccessObjectFactory.RandomAccessFileObjectFactory("rw").create(10)) {
+      Assert.assertEquals(Tier.FILE, AdaptiveRandomAccessObjectFactory.tierOf(obj));
+    }
+    try {
+      AdaptiveRandomAccessObjectFactory.tierOf(
+          new RandomAccessObject.RandomAccessByteArrayObject(10));
+      Assert.fail("Reported a tier for an object from elsewhere");
+    } catch (IllegalArgumentException expected) {
+      // Pass
+    }
+  }
+}
@@ -28,6 +28,9 @@ import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+import java.util.Random;
 
 @RunWith(JUnit4.class)
 public class RandomAccessObjectTest {
@@ -601,6 +604,108 @@ public class RandomAccessObjectTest {
     Assert.assertEquals(0x26391bd2, obj.readInt());
   }
 
+  @Test
+  public void mismatchTest() throws IOException {
+    // Long enough for several words and a block size increase of the default implementation.
+    Random random = new Random(3);
+    byte[] data = new byte[1000];
+    random.nextBytes(data);
+    // The mmap object is modified, so it gets its own file.
+    File mmapFile = storeInTempFile(new ByteArrayInputStream(data));
+    File tmpFile = storeInTempFile(new ByteArrayInputStream(data));
+    try (RandomAccessFile file = new RandomAccessFile(mmapFile, "rw");
+        RandomAccessObject mmapObject = new RandomAccessObject.RandomAccessMmapObject(file, "rw");
+        RandomAccessObject fileObject =
+            new RandomAccessObject.RandomAccessFileObject(tmpFile, "r")) {
+      RandomAccessObject byteArrayObject = new RandomAccessObject.RandomAccessByteArrayObject(data);
+      RandomAccessObject[] others = {byteArrayObject, mmapObject, fileObject};
+      for (RandomAccessObject obj : new RandomAccessObject[] {byteArrayObject, fileObject}) {
+        for (RandomAccessObject other : others) {
+          Assert.assertEquals(990, obj.mismatch(5, other, 5, 990));
+          Assert.assertEquals(0, obj.mismatch(5, other, 5, 0));
+          for (int difference : new int[] {0, 7, 8, 9, 500, 989}) {
+            mmapObject.seek(5 + difference);
+            mmapObject.writeByte(data[5 + difference] + 1);
+            Assert.assertEquals(difference, obj.mismatch(5, mmapObject, 5, 990));
+            Assert.assertEquals(difference, mmapObject.mismatch(5, obj, 5, 990));
+            mmapObject.seek(5 + difference);
+            mmapObject.writeByte(data[5 + difference]);
+          }
+        }
+      }
+      // Overlapping ranges of the same object.
+      RandomAccessObject zeros = new RandomAccessObject.RandomAccessByteArrayObject(100);
+      Assert.assertEquals(99, zeros.mismatch(0, zeros, 1, 99));
+    }
+  }
+
+  @Test
+  public void compareTest() throws IOException {
+    RandomAccessObject obj = new RandomAccessObject.RandomAccessByteArrayObject(BLOB);
+    RandomAccessObject other =
+        new RandomAccessObject.RandomAccessByteArrayObject(new byte[] {1, 2, 3, (byte) 0xff});
+    Assert.assertEquals(0, obj.compare(0, 3, other, 0, 3));
+    Assert.assertEquals(1, obj.compare(0, 4, other, 0, 3));
+    Assert.assertEquals(-1, obj.compare(0, 3, other, 0, 4));
+    // Bytes are unsigned.
+    Assert.assertTrue(obj.compare(0, 4, other, 0, 4) < 0);
+    Assert.assertTrue(other.compare(0, 4, obj, 0, 4) > 0);
+    Assert.assertTrue(obj.compare(1, 2, other, 0, 2) > 0);
+  }
+
+  @Test
+  public void segmentedMmapTest() throws IOException {
+    // Segments of 4 bytes, so that most reads cross a boundary.
+    File tmpFile = storeInTempFile(new ByteArrayInputStream(BLOB));
+    try (RandomAccessObject obj =
+        new RandomAccessObject.RandomAccessSegmentedMmapObject(
+            new RandomAccessFile(tmpFile, "r"), 4)) {
+      Assert.assertEquals(13, obj.length());
+      for (int i = 0; i < BLOB.length; i++) {
+        Assert.assertEquals(BLOB[i], obj.readByte());
+      }
+      try {
+        obj.readByte();
+        Assert.fail("Read past the end of the file");
+      } catch (EOFException expected) {
+        // Pass
+      }
+
+      obj.seek(2);
+      Assert.assertEquals(0x03040506, obj.readInt());
+      obj.seekToIntAligned(2);
+      Assert.assertEquals(0x090a0b0c, obj.readInt());
+      byte[] buffer = new byte[11];
+      obj.seek(1);
+      obj.readFully(buffer);
+      Assert.assertArrayEquals(Arrays.copyOfRange(BLOB, 1, 12), buffer);
+
+      RandomAccessObject copy = new RandomAccessObject.RandomAccessByteArrayObject(BLOB.clone());
+      Assert.assertEquals(11, obj.mismatch(1, copy, 1, 11));
+      copy.seek(9);
+      copy.writeByte(0);
+      Assert.assertEquals(8, obj.mismatch(1, copy, 1, 11));
+      Assert.assertEquals(8, copy.mismatch(1, obj, 1, 11));
+
+      RandomAccessObject slice =
+          ((RandomAccessObject.RandomAccessSegmentedMmapObject) obj).slice(3, 6);
+      Assert.assertEquals(6, slice.length());
+      Assert.assertEquals(0x04050607, slice.readInt());
+      Assert.assertEquals(6, slice.mismatch(0, obj, 3, 6));
+      // The slice releases its own mapping, which leaves the object intact.
+      slice.close();
+      obj.seek(3);
+      Assert.assertEquals(0x04050607, obj.readInt());
+
+      try {
+        obj.writeByte(0);
+        Assert.fail("Wrote to a read-only object");
+      } catch (ReadOnlyBufferException expected) {
+        // Pass
+      }
+    }
+  }
+
   private File storeInTempFile(InputStream content) throws IOException {
     File tmpFile = null;
     try {
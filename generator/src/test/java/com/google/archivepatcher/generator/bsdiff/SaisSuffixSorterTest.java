@@ -0,0 +1,83 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.bsdiff;
+
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SaisSuffixSorterTest extends SuffixSorterTestBase {
+
+  SaisSuffixSorter saisSuffixSorter;
+
+  @Before
+  public void setup() {
+    saisSuffixSorter =
+        new SaisSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+  }
+
+  @Override
+  public SuffixSorter getSuffixSorter() {
+    return saisSuffixSorter;
+  }
+
+  @Test
+  public void matchesDivSuffixSorterOnRepetitiveData() throws Exception {
+    Random rand = new Random(7);
+    // Zero padding, a short period and a long period, with a few mutations.
+    byte[] data = new byte[200000];
+    for (int i = 50000; i < 100000; i++) {
+      data[i] = (byte) "abcab".charAt(i % 5);
+    }
+    byte[] block = new byte[3000];
+    rand.nextBytes(block);
+    for (int i = 100000; i < data.length; i++) {
+      data[i] = block[i % block.length];
+    }
+    for (int i = 0; i < 20; i++) {
+      data[rand.nextInt(data.length)] = (byte) rand.nextInt();
+    }
+    assertMatchesDivSuffixSorter(data);
+  }
+
+  @Test
+  public void matchesDivSuffixSorterOnSingleByteRun() throws Exception {
+    assertMatchesDivSuffixSorter(new byte[100000]);
+  }
+
+  @Test
+  public void heapBytesNeededCountsTheCopyOfTheSuffixArray() throws Exception {
+    RandomAccessObject input = new RandomAccessObject.RandomAccessByteArrayObject(new byte[1000]);
+    // The int array and the heap-backed suffix array it is copied into, plus the type bits.
+    Assert.assertEquals(2 * 4 * 1001 + 133, saisSuffixSorter.heapBytesNeeded(input));
+    SaisSuffixSorter mmapSorter =
+        new SaisSuffixSorter(new RandomAccessObjectFactory.RandomAccessMmapObjectFactory("rw"));
+    Assert.assertEquals(4 * 1001 + 133, mmapSorter.heapBytesNeeded(input));
+  }
+
+  private void assertMatchesDivSuffixSorter(byte[] data) throws Exception {
+    DivSuffixSorter divSuffixSorter =
+        new DivSuffixSorter(new RandomAccessObjectFactory.RandomAccessByteArrayObjectFactory());
+    Assert.assertArrayEquals(
+        randomAccessObjectToIntArray(
+            divSuffixSorter.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data))),
+        randomAccessObjectToIntArray(
+            saisSuffixSorter.suffixSort(new RandomAccessObject.RandomAccessByteArrayObject(data))));
+  }
+}
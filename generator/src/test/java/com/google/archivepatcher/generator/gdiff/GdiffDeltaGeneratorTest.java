@@ -0,0 +1,270 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.archivepatcher.generator.gdiff;
+
+import com.google.archivepatcher.generator.bsdiff.RandomAccessObject.RandomAccessByteArrayObject;
+import com.google.archivepatcher.shared.PatchConstants.DeltaFormat;
+import com.google.archivepatcher.shared.TypedRange;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link GdiffDeltaGenerator}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class GdiffDeltaGeneratorTest {
+
+  @Test
+  public void testGetDeltaFormat() {
+    Assert.assertEquals(DeltaFormat.GDIFF, new GdiffDeltaGenerator().getDeltaFormat());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructor_BlockLengthTooShort() {
+    new GdiffDeltaGenerator(3);
+  }
+
+  @Test
+  public void testGenerateDelta_Identical() throws Exception {
+    byte[] oldData = randomBytes(new Random(1), 100000);
+    byte[] delta = generateDelta(new GdiffDeltaGenerator(), oldData, oldData);
+    // The header, a single COPY_USHORT_INT (offset 0, length 100000) and EOF.
+    Assert.assertEquals(5 + 7 + 1, delta.length);
+    Assert.assertArrayEquals(oldData, applyDelta(oldData, delta));
+  }
+
+  @Test
+  public void testGenerateDelta_Empty() throws Exception {
+    byte[] oldData = randomBytes(new Random(2), 1000);
+    GdiffDeltaGenerator generator = new GdiffDeltaGenerator();
+    byte[] toEmptyDelta = generateDelta(generator, oldData, new byte[0]);
+    Assert.assertArrayEquals(new byte[0], applyDelta(oldData, toEmptyDelta));
+    byte[] fromEmptyDelta = generateDelta(generator, new byte[0], oldData);
+    Assert.assertArrayEquals(oldData, applyDelta(new byte[0], fromEmptyDelta));
+  }
+
+  @Test
+  public void testGenerateDelta_Unrelated() throws Exception {
+    Random random = new Random(3);
+    byte[] oldData = randomBytes(random, 100000);
+    byte[] newData = randomBytes(random, 100000);
+    byte[] delta = generateDelta(new GdiffDeltaGenerator(), oldData, newData);
+    Assert.assertArrayEquals(newData, applyDelta(oldData, delta));
+  }
+
+  @Test
+  public void testGenerateDelta_MovedAndChanged() throws Exception {
+    Random random = new Random(4);
+    byte[] oldData = randomBytes(random, 300000);
+    // Swap the halves, change a few scattered bytes and insert a run of new bytes.
+    byte[] newData = new byte[oldData.length + 5000];
+    System.arraycopy(oldData, 150000, newData, 0, 150000);
+    System.arraycopy(randomBytes(random, 5000), 0, newData, 150000, 5000);
+    System.arraycopy(oldData, 0, newData, 155000, 150000);
+    for (int i = 0; i < 20; i++) {
+      newData[random.nextInt(newData.length)] ^= 0x55;
+    }
+
+    for (int blockLength : new int[] {4, 16, GdiffDeltaGenerator.DEFAULT_BLOCK_LENGTH, 1000}) {
+      byte[] delta = generateDelta(new GdiffDeltaGenerator(blockLength), oldData, newData);
+      Assert.assertArrayEquals(newData, applyDelta(oldData, delta));
+      // The moved halves are copied rather than inserted.
+      Assert.assertTrue(delta.length < 5000 + 20 * 2 * blockLength + 1000);
+    }
+  }
+
+  @Test
+  public void testGenerateDelta_Repetitive() throws Exception {
+    byte[] oldData = new byte[70000];
+    byte[] newData = new byte[90000];
+    for (int i = 0; i < newData.length; i++) {
+      newData[i] = (byte) (i % 7);
+      if (i < oldData.length) {
+        oldData[i] = (byte) (i % 5);
+      }
+    }
+    byte[] delta = generateDelta(new GdiffDeltaGenerator(), oldData, newData);
+    Assert.assertArrayEquals(newData, applyDelta(oldData, delta));
+  }
+
+  @Test
+  public void testFindMatches() throws Exception {
+    Random random = new Random(5);
+    byte[] oldData = randomBytes(random, 300000);
+    // A copy of 100000 bytes and one of 1000, surrounded by bytes that differ from the old data.
+    byte[] newData = randomBytes(random, 110000);
+    System.arraycopy(oldData, 50000, newData, 1000, 100000);
+    System.arraycopy(oldData, 200000, newData, 105000, 1000);
+    newData[999] = (byte) ~oldData[49999];
+    newData[101000] = (byte) ~oldData[150000];
+    newData[104999] = (byte) ~oldData[199999];
+    newData[106000] = (byte) ~oldData[201000];
+
+    List<TypedRange<Long>> matches =
+        new GdiffDeltaGenerator(100)
+            .findMatches(
+                new RandomAccessByteArrayObject(oldData),
+                new RandomAccessByteArrayObject(newData),
+                500);
+    Assert.assertEquals(
+        Arrays.asList(
+            new TypedRange<Long>(1000, 100000, 50000L),
+            new TypedRange<Long>(105000, 1000, 200000L)),
+        matches);
+
+    // Only the long copy is long enough.
+    matches =
+        new GdiffDeltaGenerator(100)
+            .findMatches(
+                new RandomAccessByteArrayObject(oldData),
+                new RandomAccessByteArrayObject(newData),
+                1001);
+    Assert.assertEquals(
+        Collections.singletonList(new TypedRange<Long>(1000, 100000, 50000L)), matches);
+  }
+
+  @Test
+  public void testGenerateDeltas() throws Exception {
+    Random random = new Random(6);
+    byte[] oldData = randomBytes(random, 200000);
+    byte[] newData = new byte[250000];
+    System.arraycopy(oldData, 100000, newData, 0, 100000);
+    System.arraycopy(randomBytes(random, 50000), 0, newData, 100000, 50000);
+    System.arraycopy(oldData, 0, newData, 150000, 100000);
+    File oldFile = File.createTempFile("GdiffDeltaGeneratorTest", "old");
+    File newFile = File.createTempFile("GdiffDeltaGeneratorTest", "new");
+    List<TypedRange<File>> ranges = new ArrayList<TypedRange<File>>();
+    try {
+      Files.write(oldFile.toPath(), oldData);
+      Files.write(newFile.toPath(), newData);
+      int[] rangeStarts = {0, 70000, 120000, 120000, 250000};
+      for (int i = 0; i + 1 < rangeStarts.length; i++) {
+        ranges.add(
+            new TypedRange<File>(
+                rangeStarts[i],
+                rangeStarts[i + 1] - rangeStarts[i],
+                File.createTempFile("GdiffDeltaGeneratorTest", "delta")));
+      }
+      new GdiffDeltaGenerator().generateDeltas(oldFile, newFile, ranges);
+      List<TypedRange<ByteArrayOutputStream>> memoryRanges =
+          new ArrayList<TypedRange<ByteArrayOutputStream>>();
+      for (TypedRange<File> range : ranges) {
+        memoryRanges.add(
+            new TypedRange<ByteArrayOutputStream>(
+                range.getOffset(), range.getLength(), new ByteArrayOutputStream()));
+      }
+      new GdiffDeltaGenerator().generateDeltas(oldData, newData, memoryRanges);
+      for (int i = 0; i < ranges.size(); i++) {
+        // Every range is produced from the whole old data, the same way in memory.
+        byte[] delta = Files.readAllBytes(ranges.get(i).getMetadata().toPath());
+        Assert.assertArrayEquals(
+            Arrays.copyOfRange(newData, rangeStarts[i], rangeStarts[i + 1]),
+            applyDelta(oldData, delta));
+        Assert.assertArrayEquals(delta, memoryRanges.get(i).getMetadata().toByteArray());
+      }
+    } finally {
+      oldFile.delete();
+      newFile.delete();
+      for (TypedRange<File> range : ranges) {
+        range.getMetadata().delete();
+      }
+    }
+  }
+
+  private static byte[] randomBytes(Random random, int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] generateDelta(GdiffDeltaGenerator generator, byte[] oldData, byte[] newData)
+      throws IOException, InterruptedException {
+    ByteArrayOutputStream deltaOut = new ByteArrayOutputStream();
+    generator.generateDelta(
+        new RandomAccessByteArrayObject(oldData),
+        new RandomAccessByteArrayObject(newData),
+        deltaOut);
+    return deltaOut.toByteArray();
+  }
+
+  /**
+   * Applies a gdiff delta. This is deliberately independent of the applier, which the generator
+   * does not depend on, so that a change to the writer can't escape detection.
+   */
+  private static byte[] applyDelta(byte[] oldData, byte[] delta) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta));
+    Assert.assertEquals(0xD1FFD1FF, in.readInt());
+    Assert.assertEquals(4, in.read());
+    ByteArrayOutputStream newOut = new ByteArrayOutputStream();
+    while (true) {
+      int command = in.readUnsignedByte();
+      if (command == 0) {
+        Assert.assertEquals(-1, in.read());
+        return newOut.toByteArray();
+      }
+      if (command <= 248) {
+        int length =
+            command <= 246 ? command : command == 247 ? in.readUnsignedShort() : in.readInt();
+        byte[] data = new byte[length];
+        in.readFully(data);
+        newOut.write(data);
+        continue;
+      }
+      long offset;
+      switch (command) {
+        case 249:
+        case 250:
+        case 251:
+          offset = in.readUnsignedShort();
+          break;
+        case 252:
+        case 253:
+        case 254:
+          offset = in.readInt();
+          break;
+        default:
+          offset = in.readLong();
+          break;
+      }
+      int length;
+      switch (command) {
+        case 249:
+        case 252:
+          length = in.readUnsignedByte();
+          break;
+        case 250:
+        case 253:
+          length = in.readUnsignedShort();
+          break;
+        default:
+          length = in.readInt();
+          break;
+      }
+      newOut.write(oldData, (int) offset, length);
+    }
+  }
+}
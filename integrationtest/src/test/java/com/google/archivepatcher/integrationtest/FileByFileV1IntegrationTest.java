@@ -14,9 +14,16 @@
 
 package com.google.archivepatcher.integrationtest;
 
+import com.google.archivepatcher.applier.DeltaDescriptor;
 import com.google.archivepatcher.applier.FileByFileV1DeltaApplier;
+import com.google.archivepatcher.applier.PatchReader;
 import com.google.archivepatcher.generator.FileByFileV1DeltaGenerator;
+import com.google.archivepatcher.generator.GenerationProfile;
+import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator;
+import com.google.archivepatcher.generator.bsdiff.BsDiffOptions;
+import com.google.archivepatcher.generator.gdiff.GdiffDeltaGenerator;
 import com.google.archivepatcher.shared.DefaultDeflater;
+import com.google.archivepatcher.shared.PatchConstants;
 import com.google.archivepatcher.shared.UnitTestZipArchive;
 import com.google.archivepatcher.shared.UnitTestZipEntry;
 import java.io.ByteArrayInputStream;
@@ -27,6 +34,7 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.zip.Deflater;
 
 import org.junit.After;
@@ -145,8 +153,113 @@ public class FileByFileV1IntegrationTest {
    */
   @Test
   public void testPatchAndApply() throws Exception {
-    // Write the old archive to disk.
-    byte[] oldArchiveBytes = UnitTestZipArchive.makeTestZip(Arrays.asList(
+    testPatchAndApply(new FileByFileV1DeltaGenerator(DefaultDeflater::new));
+  }
+
+  /** Like {@link #testPatchAndApply()}, but with a gdiff delta instead of a bsdiff delta. */
+  @Test
+  public void testPatchAndApply_Gdiff() throws Exception {
+    testPatchAndApply(
+        new FileByFileV1DeltaGenerator.Builder()
+            .withDeltaGenerator(new GdiffDeltaGenerator())
+            .build());
+  }
+
+  /** Like {@link #testPatchAndApply()}, but with several delta records of each format. */
+  @Test
+  public void testPatchAndApply_MultipleDeltaRecords() throws Exception {
+    testPatchAndApply(new FileByFileV1DeltaGenerator.Builder().withDeltaRecordCount(3).build());
+    testPatchAndApply(
+        new FileByFileV1DeltaGenerator.Builder()
+            .withDeltaGenerator(new GdiffDeltaGenerator())
+            .withDeltaRecordCount(4)
+            .build());
+  }
+
+  /**
+   * Like {@link #testPatchAndApply()}, but with the ranges that are the same in the delta-friendly
+   * blobs written as copies, and the rest in delta records of each format.
+   */
+  @Test
+  public void testPatchAndApply_CopyRecords() throws Exception {
+    for (FileByFileV1DeltaGenerator generator :
+        new FileByFileV1DeltaGenerator[] {
+          new FileByFileV1DeltaGenerator.Builder()
+              .withDeltaRecordCount(2)
+              .withMinimumCopyLength(16)
+              .build(),
+          new FileByFileV1DeltaGenerator.Builder()
+              .withGenerationProfile(GenerationProfile.FAST)
+              .withDeltaGenerator(new GdiffDeltaGenerator())
+              .withMinimumCopyLength(32)
+              .build()
+        }) {
+      byte[] patch = testPatchAndApply(generator);
+      boolean hasCopy = false;
+      for (DeltaDescriptor descriptor :
+          new PatchReader()
+              .readPatchApplyPlan(new ByteArrayInputStream(patch))
+              .getDeltaDescriptors()) {
+        hasCopy |= descriptor.getFormat() == PatchConstants.DeltaFormat.COPY;
+      }
+      Assert.assertTrue(hasCopy);
+    }
+  }
+
+  /**
+   * Like {@link #testPatchAndApply()}, but with entries long enough for bsdiff to match on several
+   * threads, in windows within a memory budget, and with hash chains.
+   */
+  @Test
+  public void testPatchAndApply_BsDiffMatching() throws Exception {
+    // The halves of a long entry swapped, with a changed character in every thousand.
+    Random random = new Random(3);
+    char[] content = new char[3 * 1024 * 1024];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (char) ('a' + random.nextInt(26));
+    }
+    String oldContent = new String(content);
+    int half = content.length / 2;
+    StringBuilder newContent =
+        new StringBuilder(oldContent.substring(half)).append(oldContent, 0, half);
+    for (int i = 0; i < newContent.length(); i += 1000) {
+      newContent.setCharAt(i, (char) ('A' + random.nextInt(26)));
+    }
+    List<UnitTestZipEntry> oldEntries =
+        Arrays.asList(
+            OLD_ENTRY3, new UnitTestZipEntry("/long", 0, oldContent, null), OLD_ENTRY7);
+    List<UnitTestZipEntry> newEntries =
+        Arrays.asList(
+            NEW_ENTRY7, new UnitTestZipEntry("/long", 0, newContent.toString(), null), NEW_ENTRY3);
+
+    // Windows of 256 KiB.
+    long memoryBudgetBytes = 6 * 256 * 1024 * 16 / 15 + 16;
+    BsDiffOptions[] optionsList = {
+      new BsDiffOptions.Builder().withMatchingThreadCount(4).build(),
+      new BsDiffOptions.Builder().withMemoryBudget(memoryBudgetBytes).build(),
+      new BsDiffOptions.Builder().withHashChainMatching(true).withMatchingThreadCount(4).build(),
+      new BsDiffOptions.Builder().withMinimumMatchLengths(16, 24).withMatchingThreadCount(4).build()
+    };
+    for (BsDiffOptions options : optionsList) {
+      for (int deltaRecordCount : new int[] {1, 3}) {
+        testPatchAndApply(
+            new FileByFileV1DeltaGenerator.Builder()
+                .withDeltaGenerator(new BsDiffDeltaGenerator(options))
+                .withDeltaRecordCount(deltaRecordCount)
+                .build(),
+            oldEntries,
+            newEntries);
+      }
+    }
+  }
+
+  /**
+   * Generates a patch between the test archives with the specified generator, and checks that
+   * applying it produces the new archive.
+   * @return the patch
+   */
+  private byte[] testPatchAndApply(FileByFileV1DeltaGenerator generator) throws Exception {
+    List<UnitTestZipEntry> oldEntries = Arrays.asList(
         OLD_ENTRY1,
         OLD_ENTRY2,
         OLD_ENTRY3,
@@ -159,11 +272,10 @@ public class FileByFileV1IntegrationTest {
         OLD_ENTRY10,
         OLD_ENTRY11,
         OLD_ENTRY12,
-        OLD_ENTRY13));
-    writeFile(oldFile, oldArchiveBytes);
+        OLD_ENTRY13);
 
-    // Write the new archive to disk. Flip the order around to fully exercise reordering logic where
-    // the offsets might otherwise be exactly the same by chance.
+    // Flip the order of the new entries around to fully exercise reordering logic where the
+    // offsets might otherwise be exactly the same by chance.
     List<UnitTestZipEntry> newEntries = Arrays.asList(
         NEW_ENTRY1,
         NEW_ENTRY2,
@@ -179,22 +291,45 @@ public class FileByFileV1IntegrationTest {
         NEW_ENTRY12,
         NEW_ENTRY13);
     Collections.reverse(newEntries);
+    return testPatchAndApply(generator, oldEntries, newEntries);
+  }
+
+  /**
+   * Generates a patch between archives of the specified entries with the specified generator, and
+   * checks that applying it produces the new archive.
+   * @return the patch
+   */
+  private byte[] testPatchAndApply(
+      FileByFileV1DeltaGenerator generator,
+      List<UnitTestZipEntry> oldEntries,
+      List<UnitTestZipEntry> newEntries)
+      throws Exception {
+    // Write the old and new archives to disk.
+    byte[] oldArchiveBytes = UnitTestZipArchive.makeTestZip(oldEntries);
+    writeFile(oldFile, oldArchiveBytes);
     byte[] newArchiveBytes = UnitTestZipArchive.makeTestZip(newEntries);
     writeFile(newFile, newArchiveBytes);
 
     // Generate the patch.
     ByteArrayOutputStream patchBuffer = new ByteArrayOutputStream();
-    FileByFileV1DeltaGenerator generator = new FileByFileV1DeltaGenerator(DefaultDeflater::new);
     generator.generateDelta(oldFile, newFile, patchBuffer);
 
-    // Apply the patch.
-    FileByFileV1DeltaApplier applier = new FileByFileV1DeltaApplier(tempDir, DefaultDeflater::new);
-    ByteArrayInputStream patchIn = new ByteArrayInputStream(patchBuffer.toByteArray());
-    ByteArrayOutputStream newOut = new ByteArrayOutputStream();
-    applier.applyDelta(oldFile, patchIn, newOut);
+    // Apply the patch, both in order and with the deltas of several records applied concurrently,
+    // and both with temp files and in memory.
+    for (int threadCount : new int[] {1, 3}) {
+      for (long inMemoryThreshold : new long[] {0, Long.MAX_VALUE}) {
+        FileByFileV1DeltaApplier applier =
+            new FileByFileV1DeltaApplier(
+                tempDir, DefaultDeflater::new, threadCount, inMemoryThreshold);
+        ByteArrayInputStream patchIn = new ByteArrayInputStream(patchBuffer.toByteArray());
+        ByteArrayOutputStream newOut = new ByteArrayOutputStream();
+        applier.applyDelta(oldFile, patchIn, newOut);
 
-    // Finally, expect that the result of applying the patch is exactly the same as the new archive
-    // that was written to disk.
-    Assert.assertArrayEquals(newArchiveBytes, newOut.toByteArray());
+        // Finally, expect that the result of applying the patch is exactly the same as the new
+        // archive that was written to disk.
+        Assert.assertArrayEquals(newArchiveBytes, newOut.toByteArray());
+      }
+    }
+    return patchBuffer.toByteArray();
   }
 }
@@ -0,0 +1,59 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.archivepatcher.shared;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/** Helpers for waiting for the results of tasks that run on other threads. */
+public final class Futures {
+
+  private Futures() {
+    // Static helpers only.
+  }
+
+  /**
+   * Waits for a task and returns its result. If the task threw an {@link IOException}, an {@link
+   * InterruptedException}, a {@link RuntimeException} or an {@link Error}, it is rethrown as it
+   * is; any other exception is wrapped in an {@link IOException}.
+   *
+   * @param future the result of the task
+   * @return the value of the result
+   * @throws IOException if the task threw it
+   * @throws InterruptedException if the task threw it, or if interrupted while waiting
+   */
+  public static <T> T get(Future<T> future) throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof InterruptedException) {
+        throw (InterruptedException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+}
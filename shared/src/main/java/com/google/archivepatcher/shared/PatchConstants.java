@@ -23,6 +23,15 @@ public class PatchConstants {
    */
   public static final String IDENTIFIER = "GFbFv1_0"; // Google File-by-File v1.0
 
+  /**
+   * The flag, in the flags that follow the {@link #IDENTIFIER}, that marks a patch with several
+   * delta records. Their work ranges in the delta-friendly new file are contiguous and in order,
+   * and each delta is against the whole delta-friendly old file, so that the records can be
+   * generated and applied concurrently. Without this flag a patch has exactly one delta record, so
+   * appliers that predate the flag reject patches that have it.
+   */
+  public static final int FLAG_MULTIPLE_DELTA_RECORDS = 1;
+
   /**
    * All available compatibility windows. The {@link #patchValue} field specifies the value for
    * each constant as represented in a patch file.
@@ -68,7 +77,18 @@ public class PatchConstants {
     /**
      * The bsdiff delta format.
      */
-    BSDIFF((byte) 0);
+    BSDIFF((byte) 0),
+
+    /**
+     * The gdiff delta format, as defined in http://www.w3.org/TR/NOTE-gdiff-19970901.
+     */
+    GDIFF((byte) 1),
+
+    /**
+     * A verbatim copy of the work range of the delta-friendly old file, which is as long as the
+     * work range of the delta-friendly new file. There is no delta, so its length is zero.
+     */
+    COPY((byte) 2);
 
     /**
      * The representation of this enumerated constant in patch files.
@@ -91,6 +111,10 @@ public class PatchConstants {
       switch (patchValue) {
         case 0:
           return BSDIFF;
+        case 1:
+          return GDIFF;
+        case 2:
+          return COPY;
         default:
           return null;
       }
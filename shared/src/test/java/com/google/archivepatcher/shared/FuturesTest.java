@@ -0,0 +1,67 @@
+// Copyright 2016 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.archivepatcher.shared;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link Futures}. */
+@RunWith(JUnit4.class)
+@SuppressWarnings("javadoc")
+public class FuturesTest {
+
+  private static <T> CompletableFuture<T> failed(Throwable cause) {
+    CompletableFuture<T> future = new CompletableFuture<T>();
+    future.completeExceptionally(cause);
+    return future;
+  }
+
+  private static Throwable thrownBy(CompletableFuture<?> future) {
+    try {
+      Futures.get(future);
+    } catch (Throwable t) {
+      return t;
+    }
+    throw new AssertionError("Nothing thrown");
+  }
+
+  @Test
+  public void testGet_Value() throws Exception {
+    Assert.assertEquals("value", Futures.get(CompletableFuture.completedFuture("value")));
+  }
+
+  @Test
+  public void testGet_RethrowsCause() {
+    for (Throwable cause :
+        new Throwable[] {
+          new IOException(), new InterruptedException(), new IllegalStateException(), new Error()
+        }) {
+      Assert.assertSame(cause, thrownBy(failed(cause)));
+    }
+  }
+
+  @Test
+  public void testGet_WrapsCheckedCause() {
+    Exception cause = new Exception();
+    Throwable thrown = thrownBy(failed(cause));
+    Assert.assertEquals(IOException.class, thrown.getClass());
+    Assert.assertSame(cause, thrown.getCause());
+  }
+}
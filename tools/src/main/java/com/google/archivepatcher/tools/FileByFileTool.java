@@ -15,10 +15,16 @@
 package com.google.archivepatcher.tools;
 
 import com.google.archivepatcher.applier.FileByFileV1DeltaApplier;
+import com.google.archivepatcher.generator.ArchiveAnalysisCache;
 import com.google.archivepatcher.generator.DeltaFriendlyOldBlobSizeLimiter;
 import com.google.archivepatcher.generator.FileByFileV1DeltaGenerator;
+import com.google.archivepatcher.generator.GenerationProfile;
 import com.google.archivepatcher.generator.RecommendationModifier;
 import com.google.archivepatcher.generator.TotalRecompressionLimiter;
+import com.google.archivepatcher.generator.bsdiff.AdaptiveSuffixSorter;
+import com.google.archivepatcher.generator.bsdiff.BsDiffDeltaGenerator;
+import com.google.archivepatcher.generator.bsdiff.CachingSuffixSorter;
+import com.google.archivepatcher.generator.bsdiff.RandomAccessObjectFactory;
 import com.google.archivepatcher.shared.DefaultDeflater;
 
 import java.io.BufferedInputStream;
@@ -49,7 +55,15 @@ public class FileByFileTool extends AbstractTool {
           + "  --new           the new file\n"
           + "  --patch         the patch file\n"
           + "  --trl           optionally, the total bytes of recompression to allow (see below)\n"
-          + "  --dfobsl        optionally, a limit on the total size of the delta-friendly old blob (see below)\n"
+          + "  --dfobsl        optionally, the maximum delta-friendly old blob size (see below)\n"
+          + "  --sacache       optionally, a directory to cache old suffix arrays in (see below)\n"
+          + "  --sacachesize   optionally, the maximum size of the suffix array cache in bytes\n"
+          + "  --profile       optionally, FAST, BALANCED (default) or MAX (see below)\n"
+          + "  --deltarecords  optionally, the number of delta records to split the patch into\n"
+          + "  --mincopy       optionally, the minimum length of verbatim copies (see below)\n"
+          + "  --inmemory      optionally, the size up to which to work in memory (see below)\n"
+          + "  --accache       optionally, a directory to cache archive analyses in (see below)\n"
+          + "  --accachesize   optionally, the maximum size of the analysis cache in bytes\n"
           + "\nTotal Recompression Limit (trl):\n"
           + "  When generating a patch, a limit can be specified on the total number of bytes to\n"
           + "  allow to be recompressed during the patch apply process. This can be for a variety\n"
@@ -66,17 +80,57 @@ public class FileByFileTool extends AbstractTool {
           + "  the content. If the limit is less than or equal to the size of the old file, no\n"
           + "  uncompression will be performed at all. Otherwise, the old file can expand into\n"
           + "  delta-friendly old blob until the size reaches this limit.\n"
+          + "\nSuffix Array Cache (sacache):\n"
+          + "  Most of the time spent generating a patch goes into sorting the suffixes of the\n"
+          + "  delta-friendly old blob. When generating patches from the same old file to many\n"
+          + "  new files, the sorted suffixes can be kept in a directory and reused. The cache\n"
+          + "  takes about four bytes per byte of delta-friendly old blob; least recently used\n"
+          + "  entries are deleted once it exceeds --sacachesize (default: 4 GiB).\n"
+          + "\nGeneration Profile (profile):\n"
+          + "  Trades the size of the patch against the time needed to generate it. FAST suits\n"
+          + "  continuous integration builds, MAX suits release builds whose patches are\n"
+          + "  downloaded many times. Patches from any profile are applied the same way.\n"
+          + "\nDelta Records (deltarecords):\n"
+          + "  Splits the delta-friendly new blob into this many ranges whose deltas are\n"
+          + "  generated on one thread each, and can be applied on one thread each as well. Every\n"
+          + "  thread needs as much memory as a patch with a single delta record (the default),\n"
+          + "  and appliers that predate this option can't apply patches with several records.\n"
+          + "\nMinimum Copy Length (mincopy):\n"
+          + "  Writes ranges of at least this many bytes that are the same in the delta-friendly\n"
+          + "  old and new blobs, like entries whose compressed bytes haven't changed, as copy\n"
+          + "  records, which are neither diffed nor patched but copied from the old blob. Such\n"
+          + "  ranges of at least 65536 bytes are cheap to find. Appliers that predate this\n"
+          + "  option can't apply patches with copy records.\n"
+          + "\nIn-Memory Threshold (inmemory):\n"
+          + "  Holds the delta-friendly blobs and deltas in memory instead of in temporary files\n"
+          + "  when the delta-friendly blobs are at most this many bytes, for both --generate and\n"
+          + "  --apply. The delta-friendly blobs are several times larger than the archives, so\n"
+          + "  allow for that in the heap size. Larger blobs fall back to temporary files.\n"
+          + "\nArchive Analysis Cache (accache):\n"
+          + "  Parsing the old file and divining how the entries of the new file were compressed\n"
+          + "  is repeated for every patch. When generating patches from or to the same files\n"
+          + "  many times, the results can be kept in a directory, keyed by the contents of the\n"
+          + "  files and of their entries, and reused. Least recently used entries are deleted\n"
+          + "  once the cache exceeds --accachesize (default: 256 MiB).\n"
           + "\nExamples:\n"
           + "  To generate a patch from OLD to NEW, saving the patch in PATCH:\n"
-          + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool --generate \\\n"
+          + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool"
+          + " --generate \\\n"
           + "      --old OLD --new NEW --patch PATCH\n"
           + "  To generate a patch from OLD to NEW, limiting to 1,000,000 recompress bytes:\n"
-          + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool --generate \\\n"
+          + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool"
+          + " --generate \\\n"
           + "      --old OLD --new NEW --trl 1000000 --patch PATCH\n"
           + "  To apply a patch PATCH to OLD, saving the result in NEW:\n"
           + "    java -cp <classpath> com.google.archivepatcher.tools.FileByFileTool --apply \\\n"
           + "      --old OLD --patch PATCH --new NEW";
 
+  /** The default maximum size of the suffix array cache: 4 GiB. */
+  private static final long DEFAULT_SUFFIX_ARRAY_CACHE_SIZE = 4L * 1024 * 1024 * 1024;
+
+  /** The default maximum size of the archive analysis cache: 256 MiB. */
+  private static final long DEFAULT_ANALYSIS_CACHE_SIZE = 256L * 1024 * 1024;
+
   /**
    * Modes of operation.
    */
@@ -116,6 +170,14 @@ public class FileByFileTool extends AbstractTool {
     String patchPath = null;
     Long totalRecompressionLimit = null;
     Long deltaFriendlyOldBlobSizeLimit = null;
+    String suffixArrayCachePath = null;
+    long suffixArrayCacheSize = DEFAULT_SUFFIX_ARRAY_CACHE_SIZE;
+    GenerationProfile generationProfile = null;
+    Integer deltaRecordCount = null;
+    Long minimumCopyLength = null;
+    long inMemoryThreshold = 0;
+    String analysisCachePath = null;
+    long analysisCacheSize = DEFAULT_ANALYSIS_CACHE_SIZE;
     Mode mode = null;
     Iterator<String> argIterator = new LinkedList<String>(Arrays.asList(args)).iterator();
     while (argIterator.hasNext()) {
@@ -140,6 +202,42 @@ public class FileByFileTool extends AbstractTool {
         if (deltaFriendlyOldBlobSizeLimit < 0) {
           exitWithUsage("--dfobsl cannot be negative: " + deltaFriendlyOldBlobSizeLimit);
         }
+      } else if ("--sacache".equals(arg)) {
+        suffixArrayCachePath = popOrDie(argIterator, "--sacache");
+      } else if ("--sacachesize".equals(arg)) {
+        suffixArrayCacheSize = Long.parseLong(popOrDie(argIterator, "--sacachesize"));
+        if (suffixArrayCacheSize < 0) {
+          exitWithUsage("--sacachesize cannot be negative: " + suffixArrayCacheSize);
+        }
+      } else if ("--profile".equals(arg)) {
+        String profileName = popOrDie(argIterator, "--profile");
+        try {
+          generationProfile = GenerationProfile.valueOf(profileName);
+        } catch (IllegalArgumentException e) {
+          exitWithUsage("unknown profile: " + profileName);
+        }
+      } else if ("--deltarecords".equals(arg)) {
+        deltaRecordCount = Integer.parseInt(popOrDie(argIterator, "--deltarecords"));
+        if (deltaRecordCount < 1) {
+          exitWithUsage("--deltarecords must be positive: " + deltaRecordCount);
+        }
+      } else if ("--mincopy".equals(arg)) {
+        minimumCopyLength = Long.parseLong(popOrDie(argIterator, "--mincopy"));
+        if (minimumCopyLength < 1) {
+          exitWithUsage("--mincopy must be positive: " + minimumCopyLength);
+        }
+      } else if ("--inmemory".equals(arg)) {
+        inMemoryThreshold = Long.parseLong(popOrDie(argIterator, "--inmemory"));
+        if (inMemoryThreshold < 0) {
+          exitWithUsage("--inmemory cannot be negative: " + inMemoryThreshold);
+        }
+      } else if ("--accache".equals(arg)) {
+        analysisCachePath = popOrDie(argIterator, "--accache");
+      } else if ("--accachesize".equals(arg)) {
+        analysisCacheSize = Long.parseLong(popOrDie(argIterator, "--accachesize"));
+        if (analysisCacheSize < 0) {
+          exitWithUsage("--accachesize cannot be negative: " + analysisCacheSize);
+        }
       } else {
         exitWithUsage("unknown argument: " + arg);
       }
@@ -153,6 +251,21 @@ public class FileByFileTool extends AbstractTool {
     if (mode == Mode.APPLY && deltaFriendlyOldBlobSizeLimit != null) {
       exitWithUsage("--dfobsl can only be used with --generate");
     }
+    if (mode == Mode.APPLY && suffixArrayCachePath != null) {
+      exitWithUsage("--sacache can only be used with --generate");
+    }
+    if (mode == Mode.APPLY && generationProfile != null) {
+      exitWithUsage("--profile can only be used with --generate");
+    }
+    if (mode == Mode.APPLY && deltaRecordCount != null) {
+      exitWithUsage("--deltarecords can only be used with --generate");
+    }
+    if (mode == Mode.APPLY && minimumCopyLength != null) {
+      exitWithUsage("--mincopy can only be used with --generate");
+    }
+    if (mode == Mode.APPLY && analysisCachePath != null) {
+      exitWithUsage("--accache can only be used with --generate");
+    }
     File oldFile = getRequiredFileOrDie(oldPath, "old file");
     if (mode == Mode.GENERATE) {
       File newFile = getRequiredFileOrDie(newPath, "new file");
@@ -161,10 +274,19 @@ public class FileByFileTool extends AbstractTool {
           newFile,
           new File(patchPath),
           totalRecompressionLimit,
-          deltaFriendlyOldBlobSizeLimit);
+          deltaFriendlyOldBlobSizeLimit,
+          suffixArrayCachePath == null ? null : new File(suffixArrayCachePath),
+          suffixArrayCacheSize,
+          generationProfile == null ? GenerationProfile.BALANCED : generationProfile,
+          deltaRecordCount == null ? 1 : deltaRecordCount,
+          minimumCopyLength == null ? 0 : minimumCopyLength,
+          inMemoryThreshold,
+          analysisCachePath == null
+              ? null
+              : new ArchiveAnalysisCache(new File(analysisCachePath), analysisCacheSize));
     } else { // mode == Mode.APPLY
       File patchFile = getRequiredFileOrDie(patchPath, "patch file");
-      applyPatch(oldFile, patchFile, new File(newPath));
+      applyPatch(oldFile, patchFile, new File(newPath), inMemoryThreshold);
     }
   }
 
@@ -188,6 +310,271 @@ public class FileByFileTool extends AbstractTool {
       Long totalRecompressionLimit,
       Long deltaFriendlyOldBlobSizeLimit)
       throws IOException, InterruptedException {
+    generatePatch(
+        oldFile,
+        newFile,
+        patchFile,
+        totalRecompressionLimit,
+        deltaFriendlyOldBlobSizeLimit,
+        null,
+        DEFAULT_SUFFIX_ARRAY_CACHE_SIZE);
+  }
+
+  /**
+   * Generate a specified patch to transform the specified old file to the specified new file,
+   * optionally reusing the suffix array of the delta-friendly old blob from a cache.
+   *
+   * @param oldFile the old file (will be read)
+   * @param newFile the new file (will be read)
+   * @param patchFile the patch file (will be written)
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression to
+   *     allow in the resulting patch
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old
+   *     blob, which implies a limit on the temporary space needed to apply the generated patch
+   * @param suffixArrayCacheDirectory optional directory to cache suffix arrays in
+   * @param suffixArrayCacheSize the maximum size of the cache in bytes
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static void generatePatch(
+      File oldFile,
+      File newFile,
+      File patchFile,
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      File suffixArrayCacheDirectory,
+      long suffixArrayCacheSize)
+      throws IOException, InterruptedException {
+    generatePatch(
+        oldFile,
+        newFile,
+        patchFile,
+        totalRecompressionLimit,
+        deltaFriendlyOldBlobSizeLimit,
+        suffixArrayCacheDirectory,
+        suffixArrayCacheSize,
+        GenerationProfile.BALANCED);
+  }
+
+  /**
+   * Generate a specified patch to transform the specified old file to the specified new file,
+   * optionally reusing the suffix array of the delta-friendly old blob from a cache, with the
+   * specified trade-off between patch size and generation time.
+   *
+   * @param oldFile the old file (will be read)
+   * @param newFile the new file (will be read)
+   * @param patchFile the patch file (will be written)
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression to
+   *     allow in the resulting patch
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old
+   *     blob, which implies a limit on the temporary space needed to apply the generated patch
+   * @param suffixArrayCacheDirectory optional directory to cache suffix arrays in
+   * @param suffixArrayCacheSize the maximum size of the cache in bytes
+   * @param generationProfile the profile to generate the patch with
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static void generatePatch(
+      File oldFile,
+      File newFile,
+      File patchFile,
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      File suffixArrayCacheDirectory,
+      long suffixArrayCacheSize,
+      GenerationProfile generationProfile)
+      throws IOException, InterruptedException {
+    generatePatch(
+        oldFile,
+        newFile,
+        patchFile,
+        totalRecompressionLimit,
+        deltaFriendlyOldBlobSizeLimit,
+        suffixArrayCacheDirectory,
+        suffixArrayCacheSize,
+        generationProfile,
+        1);
+  }
+
+  /**
+   * Generate a specified patch to transform the specified old file to the specified new file,
+   * optionally reusing the suffix array of the delta-friendly old blob from a cache, with the
+   * specified trade-off between patch size and generation time, and with the specified number of
+   * delta records that are generated concurrently.
+   *
+   * @param oldFile the old file (will be read)
+   * @param newFile the new file (will be read)
+   * @param patchFile the patch file (will be written)
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression to
+   *     allow in the resulting patch
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old
+   *     blob, which implies a limit on the temporary space needed to apply the generated patch
+   * @param suffixArrayCacheDirectory optional directory to cache suffix arrays in
+   * @param suffixArrayCacheSize the maximum size of the cache in bytes
+   * @param generationProfile the profile to generate the patch with
+   * @param deltaRecordCount the number of delta records to split the patch into
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static void generatePatch(
+      File oldFile,
+      File newFile,
+      File patchFile,
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      File suffixArrayCacheDirectory,
+      long suffixArrayCacheSize,
+      GenerationProfile generationProfile,
+      int deltaRecordCount)
+      throws IOException, InterruptedException {
+    generatePatch(
+        oldFile,
+        newFile,
+        patchFile,
+        totalRecompressionLimit,
+        deltaFriendlyOldBlobSizeLimit,
+        suffixArrayCacheDirectory,
+        suffixArrayCacheSize,
+        generationProfile,
+        deltaRecordCount,
+        0);
+  }
+
+  /**
+   * Generate a specified patch to transform the specified old file to the specified new file, like
+   * {@link #generatePatch(File, File, File, Long, Long, File, long, GenerationProfile, int)}, and
+   * write the ranges of the delta-friendly new blob of at least the specified length that are
+   * verbatim copies of the delta-friendly old blob as copy records.
+   *
+   * @param oldFile the old file (will be read)
+   * @param newFile the new file (will be read)
+   * @param patchFile the patch file (will be written)
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression to
+   *     allow in the resulting patch
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old
+   *     blob, which implies a limit on the temporary space needed to apply the generated patch
+   * @param suffixArrayCacheDirectory optional directory to cache suffix arrays in
+   * @param suffixArrayCacheSize the maximum size of the cache in bytes
+   * @param generationProfile the profile to generate the patch with
+   * @param deltaRecordCount the number of delta records to split the rest of the patch into
+   * @param minimumCopyLength the minimum length of a copy record, or 0 for none
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static void generatePatch(
+      File oldFile,
+      File newFile,
+      File patchFile,
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      File suffixArrayCacheDirectory,
+      long suffixArrayCacheSize,
+      GenerationProfile generationProfile,
+      int deltaRecordCount,
+      long minimumCopyLength)
+      throws IOException, InterruptedException {
+    generatePatch(
+        oldFile,
+        newFile,
+        patchFile,
+        totalRecompressionLimit,
+        deltaFriendlyOldBlobSizeLimit,
+        suffixArrayCacheDirectory,
+        suffixArrayCacheSize,
+        generationProfile,
+        deltaRecordCount,
+        minimumCopyLength,
+        0);
+  }
+
+  /**
+   * Generate a specified patch to transform the specified old file to the specified new file, like
+   * {@link #generatePatch(File, File, File, Long, Long, File, long, GenerationProfile, int, long)},
+   * without temp files if the old and new files are at most the specified length.
+   *
+   * @param oldFile the old file (will be read)
+   * @param newFile the new file (will be read)
+   * @param patchFile the patch file (will be written)
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression to
+   *     allow in the resulting patch
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old
+   *     blob, which implies a limit on the temporary space needed to apply the generated patch
+   * @param suffixArrayCacheDirectory optional directory to cache suffix arrays in
+   * @param suffixArrayCacheSize the maximum size of the cache in bytes
+   * @param generationProfile the profile to generate the patch with
+   * @param deltaRecordCount the number of delta records to split the rest of the patch into
+   * @param minimumCopyLength the minimum length of a copy record, or 0 for none
+   * @param inMemoryThreshold the maximum length of the delta-friendly blobs to generate the patch
+   *     in memory for, or 0 to always use temp files
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static void generatePatch(
+      File oldFile,
+      File newFile,
+      File patchFile,
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      File suffixArrayCacheDirectory,
+      long suffixArrayCacheSize,
+      GenerationProfile generationProfile,
+      int deltaRecordCount,
+      long minimumCopyLength,
+      long inMemoryThreshold)
+      throws IOException, InterruptedException {
+    generatePatch(
+        oldFile,
+        newFile,
+        patchFile,
+        totalRecompressionLimit,
+        deltaFriendlyOldBlobSizeLimit,
+        suffixArrayCacheDirectory,
+        suffixArrayCacheSize,
+        generationProfile,
+        deltaRecordCount,
+        minimumCopyLength,
+        inMemoryThreshold,
+        null);
+  }
+
+  /**
+   * Generate a specified patch to transform the specified old file to the specified new file, like
+   * {@link #generatePatch(File, File, File, Long, Long, File, long, GenerationProfile, int, long,
+   * long)}, taking the entries of the old file and the deflate parameters of the entries of the new
+   * file from the specified cache if possible.
+   *
+   * @param oldFile the old file (will be read)
+   * @param newFile the new file (will be read)
+   * @param patchFile the patch file (will be written)
+   * @param totalRecompressionLimit optional limit for total number of bytes of recompression to
+   *     allow in the resulting patch
+   * @param deltaFriendlyOldBlobSizeLimit optional limit for the size of the delta-friendly old
+   *     blob, which implies a limit on the temporary space needed to apply the generated patch
+   * @param suffixArrayCacheDirectory optional directory to cache suffix arrays in
+   * @param suffixArrayCacheSize the maximum size of the cache in bytes
+   * @param generationProfile the profile to generate the patch with
+   * @param deltaRecordCount the number of delta records to split the rest of the patch into
+   * @param minimumCopyLength the minimum length of a copy record, or 0 for none
+   * @param inMemoryThreshold the maximum length of the delta-friendly blobs to generate the patch
+   *     in memory for, or 0 to always use temp files
+   * @param analysisCache optional cache of the analyses of the old and new files
+   * @throws IOException if anything goes wrong
+   * @throws InterruptedException if any thread has interrupted the current thread
+   */
+  public static void generatePatch(
+      File oldFile,
+      File newFile,
+      File patchFile,
+      Long totalRecompressionLimit,
+      Long deltaFriendlyOldBlobSizeLimit,
+      File suffixArrayCacheDirectory,
+      long suffixArrayCacheSize,
+      GenerationProfile generationProfile,
+      int deltaRecordCount,
+      long minimumCopyLength,
+      long inMemoryThreshold,
+      ArchiveAnalysisCache analysisCache)
+      throws IOException, InterruptedException {
     List<RecommendationModifier> recommendationModifiers = new ArrayList<RecommendationModifier>();
     if (totalRecompressionLimit != null) {
       recommendationModifiers.add(new TotalRecompressionLimiter(totalRecompressionLimit));
@@ -196,10 +583,32 @@ public class FileByFileTool extends AbstractTool {
       recommendationModifiers.add(
           new DeltaFriendlyOldBlobSizeLimiter(deltaFriendlyOldBlobSizeLimit));
     }
-    FileByFileV1DeltaGenerator generator =
-        new FileByFileV1DeltaGenerator(
-            DefaultDeflater::new,
-            recommendationModifiers.toArray(new RecommendationModifier[] {}));
+    BsDiffDeltaGenerator deltaGenerator = null;
+    if (suffixArrayCacheDirectory != null) {
+      deltaGenerator =
+          new BsDiffDeltaGenerator(
+              new CachingSuffixSorter(
+                  new AdaptiveSuffixSorter(
+                      new RandomAccessObjectFactory.RandomAccessMmapObjectFactory("rw")),
+                  suffixArrayCacheDirectory,
+                  suffixArrayCacheSize),
+              Long.MAX_VALUE,
+              generationProfile);
+    }
+    FileByFileV1DeltaGenerator.Builder builder =
+        new FileByFileV1DeltaGenerator.Builder()
+            .withGenerationProfile(generationProfile)
+            .withDeltaGenerator(deltaGenerator)
+            .withDeltaRecordCount(deltaRecordCount)
+            .withMinimumCopyLength(minimumCopyLength)
+            .withInMemoryThreshold(inMemoryThreshold);
+    if (analysisCache != null) {
+      builder.withAnalysisCache(analysisCache);
+    }
+    for (RecommendationModifier modifier : recommendationModifiers) {
+      builder.withRecommendationModifier(modifier);
+    }
+    FileByFileV1DeltaGenerator generator = builder.build();
     try (FileOutputStream patchOut = new FileOutputStream(patchFile);
         BufferedOutputStream bufferedPatchOut = new BufferedOutputStream(patchOut)) {
       generator.generateDelta(oldFile, newFile, bufferedPatchOut);
@@ -215,11 +624,32 @@ public class FileByFileTool extends AbstractTool {
    * @throws IOException if anything goes wrong
    */
   public static void applyPatch(File oldFile, File patchFile, File newFile) throws IOException {
+    applyPatch(oldFile, patchFile, newFile, 0);
+  }
+
+  /**
+   * Apply a specified patch to the specified old file, creating the specified new file, without
+   * temp files if the delta-friendly blobs are at most the specified length.
+   *
+   * @param oldFile the old file (will be read)
+   * @param patchFile the patch file (will be read)
+   * @param newFile the new file (will be written)
+   * @param inMemoryThreshold the maximum length of the delta-friendly blobs to apply the patch in
+   *     memory for, or 0 to always use temp files
+   * @throws IOException if anything goes wrong
+   */
+  public static void applyPatch(File oldFile, File patchFile, File newFile, long inMemoryThreshold)
+      throws IOException {
     // Figure out temp directory
     File tempFile = File.createTempFile("fbftool", "tmp");
     File tempDir = tempFile.getParentFile();
     tempFile.delete();
-    FileByFileV1DeltaApplier applier = new FileByFileV1DeltaApplier(tempDir, DefaultDeflater::new);
+    FileByFileV1DeltaApplier applier =
+        new FileByFileV1DeltaApplier(
+            tempDir,
+            DefaultDeflater::new,
+            Runtime.getRuntime().availableProcessors(),
+            inMemoryThreshold);
     try (FileInputStream patchIn = new FileInputStream(patchFile);
         BufferedInputStream bufferedPatchIn = new BufferedInputStream(patchIn);
         FileOutputStream newOut = new FileOutputStream(newFile);